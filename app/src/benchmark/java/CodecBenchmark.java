@@ -0,0 +1,178 @@
+package com.hfm.app;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Measures the compression ratio and speed of every codec in CodecRegistry.all() on data a phone
+ * typically holds, to back the choices in CodecRegistry.UseCase.
+ *
+ * Inputs, generated from a fixed seed: log-like text, JSON records, database pages of small
+ * records and free space, and random bytes standing in for photos and video. Each input is cut
+ * into 1 MB blocks, the unit transfers compress, and every block is compressed and decompressed
+ * in memory on one thread. Reported per codec and input: ratio, compress MB/s and decompress MB/s,
+ * both of raw data, as the median of the measured runs.
+ *
+ * A second table cuts the JSON input into 4 KB blocks, the size of a single record or cache entry,
+ * where a codec has too little data to find repeats in. It compares Zstandard with and without a
+ * dictionary trained on other records of the same kind.
+ *
+ * Build and run with run-benchmark.sh, next to this file:
+ *   run-benchmark.sh codecs [--size 16] [--runs 3] [--codecs lz4,lz4-hc-9,zstd-3,deflate-6]
+ */
+public class CodecBenchmark {
+
+    private static final int MB = 1024 * 1024;
+    private static final int BLOCK_SIZE = ChunkedTransfer.CHUNK_SIZE;
+    private static final int SMALL_BLOCK_SIZE = 4 * 1024;
+    private static final int DICTIONARY_SIZE = 16 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        int sizeMb = 16;
+        int runs = 3;
+        List<BlockCodec> codecs = CodecRegistry.all();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--size":
+                    sizeMb = Integer.parseInt(args[++i]);
+                    break;
+                case "--runs":
+                    runs = Integer.parseInt(args[++i]);
+                    break;
+                case "--codecs":
+                    codecs = new ArrayList<>();
+                    for (String name : args[++i].split(",")) {
+                        codecs.add(CodecRegistry.get(name.trim()));
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+
+        Map<String, byte[]> inputs = new LinkedHashMap<>();
+        long size = (long) sizeMb * MB;
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        TransferBenchmark.writeText(text, size, new Random(1));
+        inputs.put("text", text.toByteArray());
+        inputs.put("json", json(size, new Random(2)));
+        inputs.put("database", database(size, new Random(3)));
+        byte[] media = new byte[(int) size];
+        new Random(4).nextBytes(media);
+        inputs.put("media", media);
+
+        System.out.printf(Locale.US, "Block codecs, %d MB per input in %d KB blocks, %d runs after one warm-up%n",
+                sizeMb, BLOCK_SIZE / 1024, runs);
+        System.out.printf(Locale.US, "%-14s %-10s %7s %14s %16s%n", "codec", "input", "ratio", "compress MB/s", "decompress MB/s");
+        for (BlockCodec codec : codecs) {
+            for (Map.Entry<String, byte[]> input : inputs.entrySet()) {
+                measure(codec, input.getKey(), input.getValue(), BLOCK_SIZE, runs);
+            }
+        }
+
+        // Trained on records from another seed, so the dictionary hasn't seen the measured ones.
+        List<byte[]> samples = new ArrayList<>();
+        for (String record : new String(json(4 * MB, new Random(5)), StandardCharsets.UTF_8).split("\n")) {
+            samples.add(record.getBytes(StandardCharsets.UTF_8));
+        }
+        byte[] dictionary = CodecRegistry.trainZstdDictionary(samples, DICTIONARY_SIZE);
+        System.out.printf(Locale.US, "%nJSON in %d KB blocks, dictionary of %d KB%n", SMALL_BLOCK_SIZE / 1024, dictionary.length / 1024);
+        System.out.printf(Locale.US, "%-14s %-10s %7s %14s %16s%n", "codec", "input", "ratio", "compress MB/s", "decompress MB/s");
+        for (int level : new int[] {3, 9}) {
+            measure(CodecRegistry.zstd(level), "json", inputs.get("json"), SMALL_BLOCK_SIZE, runs);
+            measure(CodecRegistry.zstd(level, dictionary), "json", inputs.get("json"), SMALL_BLOCK_SIZE, runs);
+        }
+    }
+
+    private static void measure(BlockCodec codec, String name, byte[] data, int blockSize, int runs) throws IOException {
+        int blockCount = (data.length + blockSize - 1) / blockSize;
+        byte[][] compressed = new byte[blockCount][codec.maxCompressedLength(blockSize)];
+        int[] compressedLengths = new int[blockCount];
+        byte[] block = new byte[blockSize];
+        byte[] restored = new byte[blockSize];
+        List<Double> compressSpeeds = new ArrayList<>();
+        List<Double> decompressSpeeds = new ArrayList<>();
+        long compressedTotal = 0;
+
+        for (int run = 0; run <= runs; run++) {
+            compressedTotal = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < blockCount; i++) {
+                int length = Math.min(blockSize, data.length - i * blockSize);
+                System.arraycopy(data, i * blockSize, block, 0, length);
+                compressedLengths[i] = codec.compress(block, length, compressed[i]);
+                compressedTotal += compressedLengths[i];
+            }
+            double compressSeconds = (System.nanoTime() - start) / 1e9;
+
+            start = System.nanoTime();
+            for (int i = 0; i < blockCount; i++) {
+                int length = Math.min(blockSize, data.length - i * blockSize);
+                codec.decompress(compressed[i], compressedLengths[i], restored, length);
+                if (run == 0 && !Arrays.equals(restored, 0, length, data, i * blockSize, i * blockSize + length)) {
+                    throw new IOException(codec.getName() + " did not restore block " + i + " of " + name);
+                }
+            }
+            double decompressSeconds = (System.nanoTime() - start) / 1e9;
+            // The first run only warms up the JIT.
+            if (run > 0) {
+                compressSpeeds.add(data.length / (double) MB / compressSeconds);
+                decompressSpeeds.add(data.length / (double) MB / decompressSeconds);
+            }
+        }
+        System.out.printf(Locale.US, "%-14s %-10s %7.2f %14.0f %16.0f%n", codec.getName(), name,
+                data.length / (double) compressedTotal, median(compressSpeeds), median(decompressSpeeds));
+    }
+
+    // One JSON object per line, like an API cache or a chat export.
+    private static byte[] json(long size, Random random) {
+        String[] names = {"Alice", "Bob", "Chidi", "Dana", "Emeka", "Farah", "Goran", "Hana"};
+        String[] types = {"text", "image", "video", "voice", "sticker"};
+        StringBuilder out = new StringBuilder();
+        while (out.length() < size) {
+            out.append("{\"id\":").append(1000000 + random.nextInt(9000000))
+                    .append(",\"from\":\"").append(names[random.nextInt(names.length)])
+                    .append("\",\"type\":\"").append(types[random.nextInt(types.length)])
+                    .append("\",\"timestamp\":").append(1600000000000L + random.nextInt(1000000000))
+                    .append(",\"read\":").append(random.nextBoolean())
+                    .append(",\"size\":").append(random.nextInt(5000000)).append("}\n");
+        }
+        return out.substring(0, (int) size).getBytes(StandardCharsets.UTF_8);
+    }
+
+    // 4 KB pages of small fixed-layout records followed by zeroed free space, roughly how SQLite files look.
+    private static byte[] database(long size, Random random) {
+        ByteBuffer out = ByteBuffer.allocate((int) size);
+        byte[] page = new byte[4096];
+        while (out.hasRemaining()) {
+            ByteBuffer records = ByteBuffer.wrap(page);
+            Arrays.fill(page, (byte) 0);
+            int recordCount = 10 + random.nextInt(40);
+            for (int i = 0; i < recordCount && records.remaining() > 64; i++) {
+                records.putInt(random.nextInt(100000));
+                records.putLong(1600000000000L + random.nextInt(1000000));
+                records.putShort((short) random.nextInt(50));
+                for (int c = 0; c < 10 + random.nextInt(30); c++) {
+                    records.put((byte) ('a' + random.nextInt(26)));
+                }
+            }
+            out.put(page, 0, Math.min(page.length, out.remaining()));
+        }
+        return out.array();
+    }
+
+    private static double median(List<Double> values) {
+        Collections.sort(values);
+        return values.get(values.size() / 2);
+    }
+}
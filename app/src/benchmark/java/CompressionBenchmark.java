@@ -0,0 +1,116 @@
+package com.hfm.app;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Measures how CompressionUtils.compress and decompress scale with the number of threads.
+ *
+ * Data is held in memory and written to a stream that discards it, so only the codec is timed.
+ * Two inputs are used: log-like text, which LZ4 shrinks to about half, and random bytes, which
+ * it can't shrink and which are stored as-is block by block. Reported per thread count, as the
+ * median of the measured runs: MB/s of raw data and the speedup over one thread.
+ *
+ * Build and run with run-benchmark.sh, next to this file:
+ *   run-benchmark.sh compression [--size 64] [--runs 5] [--threads 1,2,4,8]
+ */
+public class CompressionBenchmark {
+
+    private static final int MB = 1024 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        int sizeMb = 64;
+        int runs = 5;
+        int[] threadCounts = {1, 2, 4, 8};
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--size":
+                    sizeMb = Integer.parseInt(args[++i]);
+                    break;
+                case "--runs":
+                    runs = Integer.parseInt(args[++i]);
+                    break;
+                case "--threads":
+                    String[] parts = args[++i].split(",");
+                    threadCounts = new int[parts.length];
+                    for (int k = 0; k < parts.length; k++) {
+                        threadCounts[k] = Integer.parseInt(parts[k].trim());
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+
+        Random random = new Random(42);
+        ByteArrayOutputStream text = new ByteArrayOutputStream(sizeMb * MB);
+        TransferBenchmark.writeText(text, (long) sizeMb * MB, random);
+        byte[] noise = new byte[sizeMb * MB];
+        random.nextBytes(noise);
+
+        System.out.printf(Locale.US, "LZ4 frame codec, %d MB per run, %d runs after one warm-up, %d CPUs%n",
+                sizeMb, runs, Runtime.getRuntime().availableProcessors());
+        measure("text", text.toByteArray(), threadCounts, runs);
+        measure("random", noise, threadCounts, runs);
+    }
+
+    private static void measure(String name, byte[] data, int[] threadCounts, int runs) throws IOException {
+        ByteArrayOutputStream compressedOut = new ByteArrayOutputStream(data.length + MB);
+        CompressionUtils.compress(new ByteArrayInputStream(data), compressedOut, 1);
+        byte[] compressed = compressedOut.toByteArray();
+        System.out.printf(Locale.US, "%n%s: ratio %.2f%n", name, data.length / (double) compressed.length);
+        System.out.printf(Locale.US, "%8s %14s %8s %16s %8s%n", "threads", "compress MB/s", "speedup", "decompress MB/s", "speedup");
+
+        double compressBase = 0;
+        double decompressBase = 0;
+        for (int threads : threadCounts) {
+            List<Double> compressSpeeds = new ArrayList<>();
+            List<Double> decompressSpeeds = new ArrayList<>();
+            for (int run = 0; run <= runs; run++) {
+                long start = System.nanoTime();
+                CompressionUtils.compress(new ByteArrayInputStream(data), new NullOutputStream(), threads);
+                double compressSpeed = data.length / (double) MB / ((System.nanoTime() - start) / 1e9);
+
+                start = System.nanoTime();
+                CompressionUtils.decompress(new ByteArrayInputStream(compressed), new NullOutputStream(), threads);
+                double decompressSpeed = data.length / (double) MB / ((System.nanoTime() - start) / 1e9);
+                // The first run only warms up the JIT.
+                if (run > 0) {
+                    compressSpeeds.add(compressSpeed);
+                    decompressSpeeds.add(decompressSpeed);
+                }
+            }
+            double compressSpeed = median(compressSpeeds);
+            double decompressSpeed = median(decompressSpeeds);
+            if (compressBase == 0) {
+                compressBase = compressSpeed;
+                decompressBase = decompressSpeed;
+            }
+            System.out.printf(Locale.US, "%8d %14.0f %7.2fx %16.0f %7.2fx%n", threads,
+                    compressSpeed, compressSpeed / compressBase, decompressSpeed, decompressSpeed / decompressBase);
+        }
+    }
+
+    private static double median(List<Double> values) {
+        Collections.sort(values);
+        return values.get(values.size() / 2);
+    }
+
+    private static class NullOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+}
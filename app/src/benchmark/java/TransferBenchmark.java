@@ -0,0 +1,481 @@
+package com.hfm.app;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import com.sun.management.OperatingSystemMXBean;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+/**
+ * Loopback benchmark for the transfer protocol, run on a desktop JVM.
+ *
+ * Each run sends a synthetic corpus with BatchSender to a ReceiveServer over localhost, i.e.
+ * the same code ClientRunnable and ServerRunnable use, without the service around it. Reported
+ * per scenario, as the median of the measured runs:
+ *
+ *   MB/s        file bytes per second of wall time
+ *   CPU ms/MB   process CPU time per MB, sender and receiver together
+ *   alloc MB/MB heap allocated per MB sent, from GC notifications and the heap delta
+ *   GCs         collections during the run
+ *   first byte  ms from connecting until the receiver got the first byte of file data
+ *
+ * Scenarios: many small files, a few huge files, incompressible and compressible data, and a
+ * mixed media corpus sent once with CompressionPolicy's per-file choice and once with LZ4 for
+ * every file. Loopback has no radio in the way, so the numbers show CPU and protocol overhead;
+ * compare runs on the same machine only.
+ *
+ * Build and run with run-benchmark.sh, next to this file:
+ *   run-benchmark.sh transfer [--scale 0.25] [--runs 3] [--port 18988] [--dir /tmp/hfm-benchmark] [scenario...]
+ */
+public class TransferBenchmark {
+
+    private static final int MB = 1024 * 1024;
+    private static final String[] WORDS = {
+        "the", "file", "transfer", "receiver", "sender", "chunk", "photo", "error", "INFO", "WARN",
+        "connection", "timeout", "stream", "folder", "android", "device", "battery", "network",
+        "value", "status", "request", "response", "user", "id", "name", "size", "true", "false"
+    };
+
+    private double scale = 1.0;
+    private int runs = 3;
+    private int port = 18988;
+    private File baseDir = new File(System.getProperty("java.io.tmpdir"), "hfm-benchmark");
+
+    private static class Corpus {
+        final String name;
+        final List<String> paths = new ArrayList<>();
+        int files;
+        long bytes;
+
+        Corpus(String name) {
+            this.name = name;
+        }
+    }
+
+    private static class Result {
+        double seconds;
+        double mbPerSecond;
+        double cpuMsPerMb;
+        double allocMbPerMb;
+        long gcCount;
+        long firstByteMs;
+    }
+
+    public static void main(String[] args) throws Exception {
+        TransferBenchmark benchmark = new TransferBenchmark();
+        List<String> scenarios = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--scale":
+                    benchmark.scale = Double.parseDouble(args[++i]);
+                    break;
+                case "--runs":
+                    benchmark.runs = Integer.parseInt(args[++i]);
+                    break;
+                case "--port":
+                    benchmark.port = Integer.parseInt(args[++i]);
+                    break;
+                case "--dir":
+                    benchmark.baseDir = new File(args[++i]);
+                    break;
+                default:
+                    scenarios.add(args[i]);
+            }
+        }
+        if (scenarios.isEmpty()) {
+            scenarios.addAll(Arrays.asList("small-files", "huge-files", "incompressible", "compressible", "mixed-media", "mixed-media-lz4"));
+        }
+        benchmark.run(scenarios);
+    }
+
+    private void run(List<String> scenarios) throws Exception {
+        System.out.printf(Locale.US, "Loopback transfer benchmark, scale %.2f, %d runs after one warm-up, %d CPUs%n",
+                scale, runs, Runtime.getRuntime().availableProcessors());
+        System.out.printf(Locale.US, "%-16s %7s %9s %8s %10s %12s %5s %11s%n",
+                "scenario", "files", "MB", "MB/s", "CPU ms/MB", "alloc MB/MB", "GCs", "first byte");
+        Map<String, Result> results = new LinkedHashMap<>();
+        for (String scenario : scenarios) {
+            Corpus corpus = corpus(scenario.equals("mixed-media-lz4") ? "mixed-media" : scenario);
+            CompressionPolicy.Codec forcedCodec = scenario.equals("mixed-media-lz4") ? CompressionPolicy.Codec.LZ4 : null;
+            measure(corpus, forcedCodec);
+            List<Result> measured = new ArrayList<>();
+            for (int i = 0; i < runs; i++) {
+                measured.add(measure(corpus, forcedCodec));
+            }
+            Result result = median(measured);
+            results.put(scenario, result);
+            System.out.printf(Locale.US, "%-16s %7d %9.1f %8.1f %10.2f %12.2f %5d %8d ms%n",
+                    scenario, corpus.files, corpus.bytes / (double) MB, result.mbPerSecond, result.cpuMsPerMb,
+                    result.allocMbPerMb, result.gcCount, result.firstByteMs);
+        }
+
+        Result adaptive = results.get("mixed-media");
+        Result lz4 = results.get("mixed-media-lz4");
+        if (adaptive != null && lz4 != null) {
+            System.out.printf(Locale.US, "Per-file codec choice vs. LZ4 for every file on mixed media: %+.0f%% time, %+.0f%% CPU%n",
+                    100 * (adaptive.seconds / lz4.seconds - 1), 100 * (adaptive.cpuMsPerMb / lz4.cpuMsPerMb - 1));
+        }
+    }
+
+    // Sends the corpus once to a fresh receiving folder and measures the run.
+    private Result measure(Corpus corpus, CompressionPolicy.Codec forcedCodec) throws Exception {
+        File runDir = new File(baseDir, "run");
+        deleteRecursively(runDir);
+        final File receiveDir = new File(runDir, "received");
+        receiveDir.mkdirs();
+        System.gc();
+
+        final AtomicLong firstByteNanos = new AtomicLong(-1);
+        final ReceiveServer server = new ReceiveServer(receiveDir, new File(runDir, "receive_journal"), ".hfmpart",
+                new File(runDir, "fingerprints.cache"), 0, new ReceiveServer.Listener() {
+                    @Override
+                    public ChunkedTransfer.Listener onFileStarted(String path, long size) {
+                        return new FirstByteListener(firstByteNanos);
+                    }
+
+                    @Override
+                    public PackedTransfer.Listener onPackStarted(List<PackedTransfer.Entry> entries, long packSize) {
+                        return new FirstByteListener(firstByteNanos);
+                    }
+
+                    @Override
+                    public void onFilesReceived(int count) {
+                    }
+
+                    @Override
+                    public void onSessionFailed(IOException cause) {
+                        cause.printStackTrace();
+                    }
+                });
+        server.listen(port);
+        final Exception[] serverFailure = new Exception[1];
+        Thread serverThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    server.serve();
+                } catch (Exception e) {
+                    serverFailure[0] = e;
+                }
+            }
+        });
+        serverThread.start();
+
+        OperatingSystemMXBean os = (OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+        AllocationCounter allocations = new AllocationCounter();
+        long gcBefore = gcCount();
+        long cpuBefore = os.getProcessCpuTime();
+        long start = System.nanoTime();
+
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", port);
+        TransferJournal batchJournal = TransferJournal.open(new File(runDir, "send_journal"), TransferJournal.idFor("benchmark"), corpus.paths.size());
+        SocketChannel channel = SocketChannel.open(address);
+        try {
+            TransferProtocol protocol = new TransferProtocol(channel);
+            protocol.handshakeAsSender();
+            BatchSender sender = new BatchSender(corpus.paths, batchJournal, null, address, null, new SilentListener());
+            sender.setForcedCodec(forcedCodec);
+            sender.send(channel, protocol);
+        } finally {
+            channel.close();
+            batchJournal.close();
+        }
+        serverThread.join();
+        if (serverFailure[0] != null) {
+            throw serverFailure[0];
+        }
+
+        Result result = new Result();
+        result.seconds = (System.nanoTime() - start) / 1e9;
+        double megabytes = corpus.bytes / (double) MB;
+        result.mbPerSecond = megabytes / result.seconds;
+        result.cpuMsPerMb = (os.getProcessCpuTime() - cpuBefore) / 1e6 / megabytes;
+        result.allocMbPerMb = allocations.stop() / (double) MB / megabytes;
+        result.gcCount = gcCount() - gcBefore;
+        result.firstByteMs = (firstByteNanos.get() - start) / 1000000;
+        return result;
+    }
+
+    private static Result median(List<Result> results) {
+        Result median = new Result();
+        median.seconds = medianOf(results, 0);
+        median.mbPerSecond = medianOf(results, 1);
+        median.cpuMsPerMb = medianOf(results, 2);
+        median.allocMbPerMb = medianOf(results, 3);
+        median.gcCount = (long) medianOf(results, 4);
+        median.firstByteMs = (long) medianOf(results, 5);
+        return median;
+    }
+
+    private static double medianOf(List<Result> results, int field) {
+        List<Double> values = new ArrayList<>();
+        for (Result result : results) {
+            double[] fields = {result.seconds, result.mbPerSecond, result.cpuMsPerMb, result.allocMbPerMb, result.gcCount, result.firstByteMs};
+            values.add(fields[field]);
+        }
+        Collections.sort(values);
+        return values.get(values.size() / 2);
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    // Heap allocated while running: what each collection freed, plus the growth of the heap since the start.
+    private static class AllocationCounter implements NotificationListener {
+        private final AtomicLong collected = new AtomicLong();
+        private final long heapBefore = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+
+        AllocationCounter() {
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                ((NotificationEmitter) gc).addNotificationListener(this, null, null);
+            }
+        }
+
+        @Override
+        public void handleNotification(Notification notification, Object handback) {
+            if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+                return;
+            }
+            GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+            long before = 0;
+            long after = 0;
+            for (MemoryUsage usage : info.getGcInfo().getMemoryUsageBeforeGc().values()) {
+                before += usage.getUsed();
+            }
+            for (MemoryUsage usage : info.getGcInfo().getMemoryUsageAfterGc().values()) {
+                after += usage.getUsed();
+            }
+            collected.addAndGet(Math.max(0, before - after));
+        }
+
+        long stop() throws Exception {
+            long heapAfter = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                ((NotificationEmitter) gc).removeNotificationListener(this);
+            }
+            return collected.get() + heapAfter - heapBefore;
+        }
+    }
+
+    // Records when the first file bytes arrive, over every file and pack of the run.
+    private static class FirstByteListener implements PackedTransfer.Listener, ParallelTransfer.Listener {
+        private final AtomicLong firstByteNanos;
+
+        FirstByteListener(AtomicLong firstByteNanos) {
+            this.firstByteNanos = firstByteNanos;
+        }
+
+        @Override
+        public void onProgress(long bytesDone) {
+            if (bytesDone > 0) {
+                firstByteNanos.compareAndSet(-1, System.nanoTime());
+            }
+        }
+
+        @Override
+        public void onEntryDone(int entry) {
+        }
+
+        @Override
+        public void onStreamStats(double[] mbPerSecond) {
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public boolean isPaused() {
+            return false;
+        }
+
+        @Override
+        public void awaitIfPaused() {
+        }
+    }
+
+    private static class SilentListener implements BatchSender.Listener {
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public void onItemStarted(int rootIndex) {
+        }
+
+        @Override
+        public void onSkipped(FileTreeWalker.Item item) {
+        }
+
+        @Override
+        public ParallelTransfer.Listener onFileStarted(FileTreeWalker.Item item, long size) {
+            return new FirstByteListener(new AtomicLong());
+        }
+
+        @Override
+        public PackedTransfer.Listener onPackStarted(List<PackedTransfer.Entry> entries, List<Integer> rootIndices, long packSize) {
+            return new FirstByteListener(new AtomicLong());
+        }
+    }
+
+    // --- Synthetic corpora, generated once per scale and reused by later runs ---
+
+    private Corpus corpus(String name) throws IOException {
+        File dir = new File(baseDir, String.format(Locale.US, "corpus-%.2f/%s", scale, name));
+        File done = new File(dir.getParentFile(), name + ".done");
+        if (!done.exists()) {
+            deleteRecursively(dir);
+            dir.mkdirs();
+            generate(name, dir, new Random(42));
+            done.createNewFile();
+        }
+        Corpus corpus = new Corpus(name);
+        File[] roots = dir.listFiles();
+        Arrays.sort(roots);
+        for (File root : roots) {
+            corpus.paths.add(root.getPath());
+        }
+        FileTreeWalker walker = new FileTreeWalker(corpus.paths, new BitSet());
+        while (walker.hasNext()) {
+            corpus.files++;
+            corpus.bytes += walker.next().file.length();
+        }
+        return corpus;
+    }
+
+    private void generate(String name, File dir, Random random) throws IOException {
+        switch (name) {
+            case "small-files":
+                // A chat export or source tree: thousands of files of a few KB in nested folders.
+                for (int i = 0; i < scaled(5000); i++) {
+                    File folder = new File(dir, "folder" + (i % 50) + "/sub" + (i % 7));
+                    folder.mkdirs();
+                    writeText(new File(folder, "note" + i + ".txt"), 1024 + random.nextInt(31 * 1024), random);
+                }
+                break;
+            case "huge-files":
+                for (int i = 0; i < 3; i++) {
+                    writeRandom(new File(dir, "video" + i + ".mp4"), scaled(96) * (long) MB, random);
+                }
+                writeText(new File(dir, "backup.sql"), scaled(96) * (long) MB, random);
+                break;
+            case "incompressible":
+                for (int i = 0; i < scaled(16); i++) {
+                    writeRandom(new File(dir, "data" + i + ".bin"), 16L * MB, random);
+                }
+                break;
+            case "compressible":
+                for (int i = 0; i < scaled(16); i++) {
+                    writeText(new File(dir, "log" + i + ".log"), 16L * MB, random);
+                }
+                break;
+            case "mixed-media":
+                // A typical phone share: photos, a few videos and apps, plus some documents.
+                File camera = new File(dir, "DCIM");
+                camera.mkdirs();
+                for (int i = 0; i < scaled(60); i++) {
+                    writeRandom(new File(camera, "IMG_" + i + ".jpg"), (2 + random.nextInt(3)) * (long) MB, random);
+                }
+                for (int i = 0; i < scaled(2); i++) {
+                    writeRandom(new File(dir, "VID_" + i + ".mp4"), 48L * MB, random);
+                }
+                writeRandom(new File(dir, "app.apk"), scaled(24) * (long) MB, random);
+                writeRandom(new File(dir, "archive.zip"), scaled(16) * (long) MB, random);
+                File documents = new File(dir, "Documents");
+                documents.mkdirs();
+                for (int i = 0; i < scaled(40); i++) {
+                    writeText(new File(documents, "report" + i + ".csv"), 256 * 1024 + random.nextInt(2 * MB), random);
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown scenario: " + name);
+        }
+    }
+
+    private int scaled(int count) {
+        return Math.max(1, (int) Math.round(count * scale));
+    }
+
+    private static void writeRandom(File file, long size, Random random) throws IOException {
+        byte[] block = new byte[MB];
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            for (long written = 0; written < size; written += block.length) {
+                random.nextBytes(block);
+                out.write(block, 0, (int) Math.min(block.length, size - written));
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void writeText(File file, long size, Random random) throws IOException {
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file), MB);
+        try {
+            writeText(out, size, random);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Writes size bytes of log-like text of random words and numbers, which LZ4 shrinks to roughly half.
+     */
+    static void writeText(OutputStream out, long size, Random random) throws IOException {
+        StringBuilder line = new StringBuilder();
+        long written = 0;
+        while (written < size) {
+            line.setLength(0);
+            line.append(random.nextInt(100000)).append(' ');
+            int words = 4 + random.nextInt(12);
+            for (int i = 0; i < words; i++) {
+                line.append(WORDS[random.nextInt(WORDS.length)]).append(i % 3 == 0 ? '=' : ' ');
+            }
+            line.append(random.nextInt(1000)).append('\n');
+            byte[] bytes = line.toString().getBytes("US-ASCII");
+            int length = (int) Math.min(bytes.length, size - written);
+            out.write(bytes, 0, length);
+            written += length;
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,60 @@
+#!/bin/sh
+# Builds one of the benchmarks in this folder with the app classes it exercises and runs it on
+# the desktop JVM. Those classes have no Android dependencies, so no emulator or device is needed.
+#   run-benchmark.sh transfer [--scale 0.25] [--runs 5] [scenario...]
+#   run-benchmark.sh compression [--size 64] [--runs 5] [--threads 1,2,4,8]
+#   run-benchmark.sh codecs [--size 16] [--runs 3] [--codecs lz4,lz4-hc-9,zstd-3,deflate-6]
+#   run-benchmark.sh copy [--scale 1] [--runs 5]
+set -e
+
+HERE=$(cd "$(dirname "$0")" && pwd)
+APP=$(cd "$HERE/../../.." && pwd)
+SRC="$APP/src/main/java"
+OUT="${TMPDIR:-/tmp}/hfm-benchmark/classes"
+# The app gets zstd-jni from Maven as an AAR; the desktop JVM needs the jar, which carries the
+# native library for desktop platforms.
+ZSTD_VERSION=1.5.6-8
+ZSTD_JAR="${TMPDIR:-/tmp}/hfm-benchmark/zstd-jni-$ZSTD_VERSION.jar"
+CLASSPATH="$APP/libs/lz4-java-1.5.0.jar:$ZSTD_JAR"
+
+case "$1" in
+    transfer) MAIN=TransferBenchmark ;;
+    compression) MAIN=CompressionBenchmark ;;
+    codecs) MAIN=CodecBenchmark ;;
+    copy) MAIN=CopyBenchmark ;;
+    *) echo "usage: $0 transfer|compression|codecs|copy [options]" >&2; exit 2 ;;
+esac
+shift
+
+rm -rf "$OUT"
+mkdir -p "$OUT"
+if [ ! -f "$ZSTD_JAR" ]; then
+    curl -fsSL -o "$ZSTD_JAR" \
+        "https://repo1.maven.org/maven2/com/github/luben/zstd-jni/$ZSTD_VERSION/zstd-jni-$ZSTD_VERSION.jar"
+fi
+# Built at the app's language level, with every warning shown.
+javac -encoding UTF-8 --release 11 -Xlint:all -d "$OUT" -cp "$CLASSPATH" \
+    "$SRC/BatchSender.java" \
+    "$SRC/BlockCodec.java" \
+    "$SRC/BufferPool.java" \
+    "$SRC/ChunkedTransfer.java" \
+    "$SRC/CodecRegistry.java" \
+    "$SRC/CompressionPipeline.java" \
+    "$SRC/CompressionPolicy.java" \
+    "$SRC/CompressionUtils.java" \
+    "$SRC/CopyEngine.java" \
+    "$SRC/DeduplicatingWalker.java" \
+    "$SRC/FileTreeWalker.java" \
+    "$SRC/Fingerprint.java" \
+    "$SRC/FingerprintCache.java" \
+    "$SRC/PackedTransfer.java" \
+    "$SRC/ParallelTransfer.java" \
+    "$SRC/RateLimitedChannel.java" \
+    "$SRC/RateLimiter.java" \
+    "$SRC/ReceiveServer.java" \
+    "$SRC/TransferJournal.java" \
+    "$SRC/TransferProtocol.java" \
+    "$SRC/TransferStats.java" \
+    "$HERE"/*.java
+
+exec java -Xmx512m -cp "$OUT:$CLASSPATH" "com.hfm.app.$MAIN" "$@"
@@ -406,8 +406,7 @@ public class AudioPlayerActivity extends Activity {
             Toast.makeText(this, "File moved to Recycle Bin.", Toast.LENGTH_SHORT).show();
             mFileDeleted = true;
             mFilePaths.remove(mCurrentIndex);
-            sendBroadcast(new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE, Uri.fromFile(sourceFile)));
-            sendBroadcast(new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE, Uri.fromFile(destFile)));
+            MediaStoreSync.getInstance(this).notifyMoved(sourceFile, destFile);
 
             if (mFilePaths.isEmpty()) {
                 onBackPressed();
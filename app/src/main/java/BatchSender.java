@@ -0,0 +1,298 @@
+package com.hfm.app;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Sends a batch of picked files and folders over a connection that has finished its handshake.
+ *
+ * Folders are walked as they are sent and files the receiver already has are left out. Runs of
+ * small files go out as packs and large files over parallel data streams, where the receiver
+ * supports them. Each picked item is recorded in the batch journal once the receiver has
+ * confirmed it, so a later session only sends what is still missing.
+ */
+public class BatchSender {
+
+    /**
+     * Lets the caller report progress and cancel. Called on the sending thread.
+     */
+    public interface Listener {
+        boolean isCancelled();
+
+        // The first file of a picked item is about to go out.
+        void onItemStarted(int rootIndex);
+
+        // A file the receiver already has; it is not sent.
+        void onSkipped(FileTreeWalker.Item item);
+
+        ParallelTransfer.Listener onFileStarted(FileTreeWalker.Item item, long size);
+
+        PackedTransfer.Listener onPackStarted(List<PackedTransfer.Entry> entries, List<Integer> rootIndices, long packSize);
+    }
+
+    private final List<String> paths;
+    private final TransferJournal batchJournal;
+    private final FileTreeWalker.RootOrder order;
+    private final Listener listener;
+    // Shared across the batch so each large file starts with the stream count that worked last time.
+    private final ParallelTransfer parallelTransfer;
+    private final TransferStats stats = new TransferStats();
+    // While resuming, each file is first checked against what the receiver already has.
+    private boolean isResuming;
+    private boolean skipExisting = true;
+    private CompressionPolicy.Codec forcedCodec;
+
+    /**
+     * @param batchJournal Which picked items the receiver has already confirmed.
+     * @param order        Which picked item goes next, or null for the picked order.
+     * @param address      Where parallel data streams connect to, or null if the receiver can't accept them.
+     * @param rateLimiter  Caps the parallel data streams, or null.
+     */
+    public BatchSender(List<String> paths, TransferJournal batchJournal, FileTreeWalker.RootOrder order,
+                       InetSocketAddress address, RateLimiter rateLimiter, Listener listener) {
+        this.paths = paths;
+        this.batchJournal = batchJournal;
+        this.order = order;
+        this.listener = listener;
+        this.parallelTransfer = new ParallelTransfer(address, rateLimiter);
+    }
+
+    /**
+     * Makes the next session ask the receiver what it already has of each file, e.g. after the
+     * connection dropped.
+     */
+    public void setResuming(boolean resuming) {
+        isResuming = resuming;
+    }
+
+    /**
+     * Whether files are first offered to the receiver, which then skips those it already has.
+     * On by default; receivers that don't support it are always sent everything.
+     */
+    public void setSkipExisting(boolean skipExisting) {
+        this.skipExisting = skipExisting;
+    }
+
+    /**
+     * Sends every file with the given codec instead of the one CompressionPolicy picks, e.g. to
+     * compare the two in a benchmark. Null restores the policy.
+     */
+    public void setForcedCodec(CompressionPolicy.Codec codec) {
+        forcedCodec = codec;
+    }
+
+    /**
+     * What this sender has moved so far, over all its sessions.
+     */
+    public TransferStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Sends the rest of the batch and waits for the receiver to confirm it, unless cancelled.
+     */
+    public void send(ByteChannel channel, TransferProtocol protocol) throws IOException, InterruptedException {
+        // Files sent in this session that the receiver has not confirmed yet.
+        final List<Integer> unconfirmedFiles = new ArrayList<>();
+        stats.start();
+        if (!protocol.supports(TransferProtocol.CAP_RESUME)) {
+            isResuming = false;
+        }
+
+        BitSet confirmedItems = batchJournal.snapshot();
+        if (order != null) {
+            order.restart(confirmedItems);
+        }
+
+        // Folders are walked as they are sent, so the first bytes go out before the scan is done.
+        // Files the receiver already has are offered first and then left out.
+        DeduplicatingWalker walker = new DeduplicatingWalker(
+                new FileTreeWalker(paths, confirmedItems, order),
+                skipExisting && protocol.supports(TransferProtocol.CAP_DEDUP) ? protocol : null,
+                channel,
+                new DeduplicatingWalker.Listener() {
+                    @Override
+                    public void onSkipped(FileTreeWalker.Item item) {
+                        listener.onSkipped(item);
+                    }
+
+                    @Override
+                    public void onOfferAnswered() throws IOException {
+                        confirmEarlierFiles(unconfirmedFiles);
+                    }
+                });
+        int currentRoot = -1;
+        while (walker.hasNext()) {
+            if (listener.isCancelled()) return;
+            FileTreeWalker.Item item = walker.next();
+            if (item.rootIndex != currentRoot) {
+                // Everything of the previous picked item has been sent.
+                if (currentRoot >= 0) {
+                    unconfirmedFiles.add(currentRoot);
+                }
+                currentRoot = item.rootIndex;
+                listener.onItemStarted(currentRoot);
+            }
+
+            if (protocol.supports(TransferProtocol.CAP_PACK) && PackedTransfer.canPack(item.file, item.relativePath)) {
+                // Runs of small files go out together so per-file overhead doesn't dominate.
+                List<FileTreeWalker.Item> pack = collectPack(item, walker);
+                if (pack.size() > 1) {
+                    // Picked items whose first file is in the pack start with it.
+                    int startedRoot = currentRoot;
+                    for (FileTreeWalker.Item packed : pack) {
+                        if (packed.rootIndex != startedRoot) {
+                            startedRoot = packed.rootIndex;
+                            listener.onItemStarted(startedRoot);
+                        }
+                    }
+                    sendPack(channel, protocol, pack, unconfirmedFiles);
+                    // Picked items that ended inside the pack are now fully sent.
+                    for (FileTreeWalker.Item packed : pack) {
+                        if (packed.rootIndex != currentRoot) {
+                            unconfirmedFiles.add(currentRoot);
+                            currentRoot = packed.rootIndex;
+                        }
+                    }
+                    continue;
+                }
+            }
+            sendFile(channel, protocol, item, unconfirmedFiles);
+        }
+        if (currentRoot >= 0) {
+            unconfirmedFiles.add(currentRoot);
+        }
+
+        if (!listener.isCancelled()) {
+            protocol.writeGoodbye();
+            // Wait for the receiver to confirm it has everything before forgetting the batch.
+            if (protocol.readFrame(new TransferProtocol.Header()).frameType != TransferProtocol.FRAME_GOODBYE) {
+                throw new IOException("Receiver did not confirm the end of the transfer");
+            }
+            confirmEarlierFiles(unconfirmedFiles);
+        }
+    }
+
+    // Collects the run of small files starting with first, up to the pack limits. A pack may span
+    // several picked items; each of them is complete once the pack and any items before it are.
+    private List<FileTreeWalker.Item> collectPack(FileTreeWalker.Item first, DeduplicatingWalker walker) throws IOException {
+        List<FileTreeWalker.Item> pack = new ArrayList<>();
+        pack.add(first);
+        long packBytes = first.file.length();
+        while (pack.size() < PackedTransfer.MAX_PACK_FILES) {
+            FileTreeWalker.Item next = walker.peek();
+            if (next == null || !PackedTransfer.canPack(next.file, next.relativePath) || packBytes + next.file.length() > PackedTransfer.MAX_PACK_BYTES) {
+                break;
+            }
+            pack.add(walker.next());
+            packBytes += next.file.length();
+        }
+        return pack;
+    }
+
+    private void sendPack(ByteChannel channel, TransferProtocol protocol, List<FileTreeWalker.Item> pack, List<Integer> unconfirmedFiles) throws IOException, InterruptedException {
+        List<PackedTransfer.Entry> entries = new ArrayList<>();
+        List<Integer> rootIndices = new ArrayList<>();
+        String[] idParts = new String[pack.size()];
+        for (int k = 0; k < pack.size(); k++) {
+            FileTreeWalker.Item item = pack.get(k);
+            entries.add(new PackedTransfer.Entry(item.file, item.relativePath));
+            rootIndices.add(item.rootIndex);
+            idParts[k] = item.relativePath + ":" + item.file.length() + ":" + item.file.lastModified();
+        }
+        CompressionPolicy.Codec codec = forcedCodec != null ? forcedCodec : PackedTransfer.chooseCodec(entries);
+        if (codec == CompressionPolicy.Codec.LZ4_HC && !protocol.supports(TransferProtocol.CAP_LZ4_HC)) {
+            codec = CompressionPolicy.Codec.LZ4;
+        }
+
+        TransferProtocol.Header header = new TransferProtocol.Header();
+        header.fileCount = entries.size();
+        header.transferId = "pack_" + TransferJournal.idFor(idParts);
+        header.codec = codec;
+        header.resume = isResuming;
+        protocol.writePack(header);
+        PackedTransfer.writeIndex(channel, entries);
+
+        BitSet confirmedEntries = new BitSet();
+        if (isResuming) {
+            confirmedEntries = ChunkedTransfer.readBitSet(channel, entries.size());
+            confirmedEntries.clear(entries.size(), Integer.MAX_VALUE);
+            confirmEarlierFiles(unconfirmedFiles);
+            // As for single files: if none of the pack arrived, nothing after it did either.
+            isResuming = !confirmedEntries.isEmpty();
+        }
+
+        long packSize = PackedTransfer.totalSize(entries, confirmedEntries);
+        PackedTransfer.Listener progress = listener.onPackStarted(entries, rootIndices, packSize);
+        stats.markFirstByte();
+        long sent = PackedTransfer.send(entries, confirmedEntries, codec, channel, progress);
+        stats.add(entries.size() - confirmedEntries.cardinality(), sent);
+    }
+
+    private void sendFile(ByteChannel channel, TransferProtocol protocol, FileTreeWalker.Item item, List<Integer> unconfirmedFiles) throws IOException, InterruptedException {
+        File originalFile = item.file;
+        long fileSize = originalFile.length();
+        int chunkCount = ChunkedTransfer.chunkCount(fileSize);
+        boolean parallel = protocol.supports(TransferProtocol.CAP_PARALLEL) && ParallelTransfer.shouldUse(fileSize);
+        long streamToken = ParallelTransfer.newStreamToken();
+        // Photos and videos are sent as-is; only data that actually shrinks pays for compression.
+        CompressionPolicy.Codec codec = forcedCodec != null ? forcedCodec : CompressionPolicy.choose(originalFile);
+        if (codec == CompressionPolicy.Codec.LZ4_HC && !protocol.supports(TransferProtocol.CAP_LZ4_HC)) {
+            codec = CompressionPolicy.Codec.LZ4;
+        }
+
+        TransferProtocol.Header header = new TransferProtocol.Header();
+        header.path = item.relativePath;
+        header.size = fileSize;
+        header.lastModified = originalFile.lastModified();
+        header.permissions = TransferProtocol.permissionsOf(originalFile);
+        header.transferId = TransferJournal.idFor(item.relativePath, String.valueOf(fileSize), String.valueOf(originalFile.lastModified()));
+        // Chunk i starts at i * chunkSize, so size and count are the whole chunk map.
+        header.chunkCount = chunkCount;
+        header.codec = codec;
+        header.resume = isResuming;
+        header.parallel = parallel;
+        header.streamToken = streamToken;
+        protocol.writeFile(header);
+
+        BitSet confirmedChunks = new BitSet();
+        if (isResuming) {
+            confirmedChunks = ChunkedTransfer.readBitSet(channel, chunkCount);
+            confirmedChunks.clear(chunkCount, Integer.MAX_VALUE);
+            confirmEarlierFiles(unconfirmedFiles);
+            // Nothing of this file arrived before the drop, so nothing of later files did either.
+            isResuming = chunkCount == 0 || !confirmedChunks.isEmpty();
+        }
+
+        ParallelTransfer.Listener progress = listener.onFileStarted(item, fileSize);
+        FileChannel fileChannel = new FileInputStream(originalFile).getChannel();
+        long sent;
+        stats.markFirstByte();
+        try {
+            if (parallel) {
+                sent = parallelTransfer.send(fileChannel, fileSize, confirmedChunks, codec, streamToken, progress);
+            } else {
+                // Compression and sending overlap: each chunk goes out as soon as it is compressed.
+                sent = ChunkedTransfer.send(fileChannel, fileSize, confirmedChunks, codec, channel, progress);
+            }
+        } finally {
+            fileChannel.close();
+        }
+        stats.add(1, sent - ChunkedTransfer.bytesCovered(confirmedChunks, fileSize));
+    }
+
+    // The receiver handles files in order, so its answer about one file also confirms every earlier file.
+    private void confirmEarlierFiles(List<Integer> unconfirmedFiles) throws IOException {
+        for (int confirmed : unconfirmedFiles) {
+            batchJournal.markDone(confirmed);
+        }
+        unconfirmedFiles.clear();
+    }
+}
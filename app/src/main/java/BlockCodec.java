@@ -0,0 +1,41 @@
+package com.hfm.app;
+
+import java.io.IOException;
+
+/**
+ * Compresses and decompresses self-contained blocks of bytes, e.g. the chunks of a transfer.
+ * Implementations are stateless and safe to use from several threads at once.
+ */
+public interface BlockCodec {
+
+    /**
+     * A short stable name such as "lz4-hc-9", used to look the codec up in CodecRegistry.
+     */
+    String getName();
+
+    /**
+     * The compression level the codec was made with, on its own library's scale, or 0 for a
+     * codec without levels.
+     */
+    int getLevel();
+
+    /**
+     * Returns the largest number of bytes compress can produce for the given input length.
+     */
+    int maxCompressedLength(int length);
+
+    /**
+     * Compresses src[0, srcLen) into dest, which is at least maxCompressedLength(srcLen) bytes long.
+     *
+     * @return The number of compressed bytes written to dest.
+     */
+    int compress(byte[] src, int srcLen, byte[] dest);
+
+    /**
+     * Decompresses a block produced by compress.
+     *
+     * @param destLen The exact number of raw bytes the block is expected to hold.
+     * @throws IOException if the block is corrupt or does not match destLen.
+     */
+    void decompress(byte[] src, int srcLen, byte[] dest, int destLen) throws IOException;
+}
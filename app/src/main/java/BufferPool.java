@@ -0,0 +1,123 @@
+package com.hfm.app;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Shared pool of heap and direct buffers for copy loops and transfers, so moving thousands of
+ * files doesn't allocate (and later collect) a fresh buffer for each one.
+ *
+ * Buffers are pooled by exact size; callers use a handful of fixed sizes, such as the chunk size
+ * of a transfer or Medium.bufferSize. A borrowed buffer must be given back exactly once and not
+ * used afterwards. The pool keeps at most MAX_POOLED_BYTES of heap and MAX_POOLED_DIRECT_BYTES of
+ * direct buffers; anything beyond that is left to the garbage collector.
+ */
+public class BufferPool {
+
+    /**
+     * Where a copy reads or writes, which decides how large its buffer should be.
+     */
+    public enum Medium {
+        // Internal flash: large sequential requests reach full speed and save system calls.
+        INTERNAL(1024 * 1024),
+        // Removable SD cards, read directly: slower cards gain nothing past a few erase blocks.
+        SD_CARD(256 * 1024),
+        // Streams from the Storage Access Framework, e.g. writes to the SD card. Every write
+        // crosses into the media provider, so large buffers only delay progress updates.
+        SAF(128 * 1024);
+
+        public final int bufferSize;
+
+        Medium(int bufferSize) {
+            this.bufferSize = bufferSize;
+        }
+    }
+
+    private static final long MAX_POOLED_BYTES = 16L * 1024 * 1024;
+    private static final long MAX_POOLED_DIRECT_BYTES = 8L * 1024 * 1024;
+
+    private static final Map<Integer, ArrayDeque<byte[]>> heapBuffers = new HashMap<>();
+    private static final Map<Integer, ArrayDeque<ByteBuffer>> directBuffers = new HashMap<>();
+    private static long pooledBytes;
+    private static long pooledDirectBytes;
+
+    private BufferPool() {
+    }
+
+    /**
+     * Borrows a heap buffer of exactly size bytes. Its contents are undefined.
+     */
+    public static synchronized byte[] acquire(int size) {
+        ArrayDeque<byte[]> free = heapBuffers.get(size);
+        if (free != null && !free.isEmpty()) {
+            pooledBytes -= size;
+            return free.pop();
+        }
+        return new byte[size];
+    }
+
+    /**
+     * Borrows a heap buffer sized for copying on the given medium.
+     */
+    public static byte[] acquire(Medium medium) {
+        return acquire(medium.bufferSize);
+    }
+
+    /**
+     * Gives back a buffer borrowed with acquire. Null is ignored, so this can go in a finally block.
+     */
+    public static synchronized void release(byte[] buffer) {
+        if (buffer == null || pooledBytes + buffer.length > MAX_POOLED_BYTES) {
+            return;
+        }
+        ArrayDeque<byte[]> free = heapBuffers.get(buffer.length);
+        if (free == null) {
+            free = new ArrayDeque<>();
+            heapBuffers.put(buffer.length, free);
+        }
+        free.push(buffer);
+        pooledBytes += buffer.length;
+    }
+
+    /**
+     * Borrows a cleared direct buffer with a capacity of exactly size bytes.
+     */
+    public static synchronized ByteBuffer acquireDirect(int size) {
+        ArrayDeque<ByteBuffer> free = directBuffers.get(size);
+        if (free != null && !free.isEmpty()) {
+            pooledDirectBytes -= size;
+            ByteBuffer buffer = free.pop();
+            buffer.clear();
+            return buffer;
+        }
+        return ByteBuffer.allocateDirect(size);
+    }
+
+    /**
+     * Gives back a buffer borrowed with acquireDirect. Null is ignored.
+     */
+    public static synchronized void releaseDirect(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect() || pooledDirectBytes + buffer.capacity() > MAX_POOLED_DIRECT_BYTES) {
+            return;
+        }
+        ArrayDeque<ByteBuffer> free = directBuffers.get(buffer.capacity());
+        if (free == null) {
+            free = new ArrayDeque<>();
+            directBuffers.put(buffer.capacity(), free);
+        }
+        free.push(buffer);
+        pooledDirectBytes += buffer.capacity();
+    }
+
+    /**
+     * Drops every pooled buffer, e.g. when the services that use the pool stop or memory runs low.
+     */
+    public static synchronized void clear() {
+        heapBuffers.clear();
+        directBuffers.clear();
+        pooledBytes = 0;
+        pooledDirectBytes = 0;
+    }
+}
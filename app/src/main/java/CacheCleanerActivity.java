@@ -89,6 +89,8 @@ public class CacheCleanerActivity extends Activity {
         long size;
         List<File> filesToDelete;
         int iconResId;
+        // The items are folders that were empty when scanned; only remove them if they still are.
+        boolean emptyFoldersOnly;
 
         CacheItem(String name, String description, int iconResId) {
             this.name = name;
@@ -163,6 +165,10 @@ public class CacheCleanerActivity extends Activity {
         protected List<CacheItem> doInBackground(Void... voids) {
             List<CacheItem> foundItems = new ArrayList<>();
             totalCacheSize = 0;
+            File externalStorage = Environment.getExternalStorageDirectory();
+            FileIndex index = FileIndex.getInstance(CacheCleanerActivity.this);
+            // App caches are always walked: Android/data is mostly unreadable to the indexer.
+            boolean useIndex = index.isReady() && index.covers(CacheCleanerActivity.this, externalStorage);
 
             // 1. Scan Application Caches
             CacheItem appCache = new CacheItem("App Cache", "Cached data from installed apps", android.R.drawable.sym_def_app_icon);
@@ -176,7 +182,11 @@ public class CacheCleanerActivity extends Activity {
             publishProgress("Scanning thumbnails...");
             CacheItem thumbnails = new CacheItem("Thumbnail Cache", "Image and video preview files", android.R.drawable.ic_menu_gallery);
             File thumbnailDir = new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DCIM), ".thumbnails");
-            scanDirectory(thumbnailDir, thumbnails);
+            if (useIndex) {
+                addFilesFromIndex(index, thumbnailDir, null, thumbnails);
+            } else {
+                scanDirectory(thumbnailDir, thumbnails);
+            }
             if (thumbnails.size > 0) {
                 foundItems.add(thumbnails);
                 totalCacheSize += thumbnails.size;
@@ -185,7 +195,11 @@ public class CacheCleanerActivity extends Activity {
             // 3. Scan for Log Files
             publishProgress("Scanning log files...");
             CacheItem logFiles = new CacheItem("Log Files", "System and app log files", android.R.drawable.ic_menu_info_details);
-            scanForExtension(Environment.getExternalStorageDirectory(), ".log", logFiles);
+            if (useIndex) {
+                addFilesFromIndex(index, externalStorage, ".log", logFiles);
+            } else {
+                scanForExtension(externalStorage, ".log", logFiles);
+            }
             if (logFiles.size > 0) {
                 foundItems.add(logFiles);
                 totalCacheSize += logFiles.size;
@@ -194,12 +208,19 @@ public class CacheCleanerActivity extends Activity {
             // 4. Scan for Empty Folders
             publishProgress("Scanning for empty folders...");
             CacheItem emptyFolders = new CacheItem("Empty Folders", "Unused and empty directories", android.R.drawable.ic_menu_compass);
-            scanForEmptyFolders(Environment.getExternalStorageDirectory(), emptyFolders);
+            emptyFolders.emptyFoldersOnly = true;
+            if (useIndex) {
+                addEmptyFoldersFromIndex(index, externalStorage, emptyFolders);
+            } else {
+                scanForEmptyFolders(externalStorage, emptyFolders);
+            }
             if (emptyFolders.size > 0) {
                 foundItems.add(emptyFolders);
                 // Size is 0 but we can still clean them
             }
 
+            // Keeps the index current for the next visit.
+            FileIndexer.refresh(CacheCleanerActivity.this);
             return foundItems;
         }
 
@@ -242,6 +263,37 @@ public class CacheCleanerActivity extends Activity {
             }
         }
 
+        // Files below root, optionally only those ending in extension, leaving out Android/data.
+        private void addFilesFromIndex(FileIndex index, File root, String extension, CacheItem cacheItem) {
+            StringBuilder selection = new StringBuilder(FileIndex.COLUMN_IS_DIR + " = 0");
+            List<String> selectionArgs = new ArrayList<>();
+            FileIndex.appendUnder(selection, selectionArgs, root.getAbsolutePath());
+            FileIndex.appendNotUnder(selection, selectionArgs, Environment.getExternalStorageDirectory().getAbsolutePath() + "/Android/data");
+            if (extension != null) {
+                // LIKE ignores ASCII case, as toLowerCase().endsWith() did.
+                selection.append(" AND " + FileIndex.COLUMN_NAME + " LIKE ?");
+                selectionArgs.add("%" + extension);
+            }
+            for (FileIndex.Entry entry : index.query(selection.toString(), selectionArgs.toArray(new String[0]), null)) {
+                cacheItem.addFile(entry.getFile(), entry.size);
+            }
+        }
+
+        private void addEmptyFoldersFromIndex(FileIndex index, File root, CacheItem cacheItem) {
+            StringBuilder selection = new StringBuilder();
+            List<String> selectionArgs = new ArrayList<>();
+            FileIndex.appendUnder(selection, selectionArgs, root.getAbsolutePath());
+            FileIndex.appendNotUnder(selection, selectionArgs, root.getAbsolutePath() + "/Android/data");
+            for (FileIndex.Entry entry : index.queryEmptyFolders(selection.toString(), selectionArgs.toArray(new String[0]))) {
+                // The index can be behind the disk, so only report folders that are still empty.
+                File folder = entry.getFile();
+                String[] children = folder.list();
+                if (children != null && children.length == 0) {
+                    cacheItem.addFile(folder, 0);
+                }
+            }
+        }
+
         private void scanDirectory(File dir, CacheItem cacheItem) {
             if (dir != null && dir.exists() && dir.isDirectory()) {
                 File[] files = dir.listFiles();
@@ -312,7 +364,8 @@ public class CacheCleanerActivity extends Activity {
             for (CacheItem item : cacheItemsList) {
                 for (File file : item.filesToDelete) {
                     long fileSize = file.length();
-                    if (deleteRecursively(file)) {
+                    // Something may have been saved into an empty folder since the scan; delete() leaves it alone then.
+                    if (item.emptyFoldersOnly ? file.delete() : deleteRecursively(file)) {
                         cleanedSize += fileSize;
                     }
                 }
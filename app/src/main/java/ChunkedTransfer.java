@@ -0,0 +1,412 @@
+package com.hfm.app;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.BitSet;
+import java.util.zip.CRC32;
+
+/**
+ * Streams a file over a socket channel as a sequence of independently compressed chunks,
+ * so compression on the sender, the network and decompression on the receiver all overlap
+ * and neither side needs a temporary copy of the file.
+ *
+ * Chunk i always covers the bytes starting at i * CHUNK_SIZE. Wire format of every chunk:
+ * [int index][int rawLength][int encodedLength][int crc32 of the raw bytes][encoded bytes].
+ * A chunk whose encodedLength equals its rawLength was stored uncompressed, either because
+ * the file's codec is RAW or because LZ4 could not shrink it. Chunks of a RAW file are moved
+ * with transferTo/transferFrom; their checksum is computed from the file on both sides. The file
+ * ends with a header whose index is END_OF_FILE.
+ *
+ * Because every chunk carries its own index and checksum, the sender can skip chunks the
+ * receiver already confirmed and the receiver can write each chunk at its offset.
+ */
+public class ChunkedTransfer {
+
+    public static final int CHUNK_SIZE = 1024 * 1024;
+    public static final int HEADER_SIZE = 16;
+    // RAW chunks are checksummed from their file through a buffer of this size.
+    private static final int CHECKSUM_BUFFER_SIZE = 64 * 1024;
+    public static final int END_OF_FILE = -1;
+
+    /**
+     * Lets the caller drive pause/cancel and receive progress for the file being streamed.
+     */
+    public interface Listener {
+        boolean isCancelled();
+
+        boolean isPaused();
+
+        void awaitIfPaused() throws InterruptedException;
+
+        void onProgress(long bytesDone);
+    }
+
+    /**
+     * Reusable buffers for one chunk. Each thread moving chunks owns one of these and releases
+     * it when done, which gives its buffers back to the BufferPool.
+     */
+    public static class ChunkBuffer {
+        final CompressionPolicy.Codec codec;
+        final byte[] raw;
+        final byte[] encoded;
+        // Only for chunks without heap buffers, to checksum them where they are stored.
+        final byte[] scratch;
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        final CRC32 crc = new CRC32();
+        int index;
+        int length;
+        int encodedLength;
+        int checksum;
+
+        public ChunkBuffer(CompressionPolicy.Codec codec) {
+            // RAW chunks of a file go between the file and the socket without passing through the heap.
+            this(codec, codec != CompressionPolicy.Codec.RAW);
+        }
+
+        /**
+         * @param withHeapBuffers Whether chunks are staged in raw/encoded, which every codec
+         *                        but RAW needs and RAW needs when chunks aren't a file's bytes.
+         */
+        public ChunkBuffer(CompressionPolicy.Codec codec, boolean withHeapBuffers) {
+            this.codec = codec;
+            this.raw = withHeapBuffers ? BufferPool.acquire(CHUNK_SIZE) : null;
+            this.encoded = withHeapBuffers ? BufferPool.acquire(CompressionUtils.maxCompressedLength(CHUNK_SIZE)) : null;
+            this.scratch = withHeapBuffers ? null : BufferPool.acquire(CHECKSUM_BUFFER_SIZE);
+        }
+
+        /**
+         * Gives the buffers back to the pool. The ChunkBuffer must not be used afterwards.
+         */
+        public void release() {
+            BufferPool.release(raw);
+            BufferPool.release(encoded);
+            BufferPool.release(scratch);
+        }
+    }
+
+    public static int chunkCount(long fileSize) {
+        return (int) ((fileSize + CHUNK_SIZE - 1) / CHUNK_SIZE);
+    }
+
+    public static long chunkOffset(int index) {
+        return (long) index * CHUNK_SIZE;
+    }
+
+    public static int chunkLength(long fileSize, int index) {
+        return (int) Math.min(CHUNK_SIZE, fileSize - chunkOffset(index));
+    }
+
+    /**
+     * Returns how many bytes of the file the given chunks cover.
+     */
+    public static long bytesCovered(BitSet chunks, long fileSize) {
+        long bytes = 0;
+        for (int i = chunks.nextSetBit(0); i >= 0; i = chunks.nextSetBit(i + 1)) {
+            bytes += chunkLength(fileSize, i);
+        }
+        return bytes;
+    }
+
+    /**
+     * Encodes every chunk not in skip with the given codec and writes it to the channel as soon as it is ready.
+     * On a multi-core device compressed chunks are encoded by a CompressionPipeline, so a single
+     * connection isn't held to what one core can compress.
+     *
+     * @param skip Chunks the receiver already has.
+     * @return The number of raw bytes the receiver now has, including the skipped chunks.
+     *         Less than the file length if the transfer was cancelled.
+     */
+    public static long send(FileChannel file, long fileSize, BitSet skip, CompressionPolicy.Codec codec, WritableByteChannel channel, Listener listener) throws IOException, InterruptedException {
+        long done = bytesCovered(skip, fileSize);
+        int chunkCount = chunkCount(fileSize);
+        int chunksToSend = chunkCount - skip.get(0, chunkCount).cardinality();
+        if (CompressionPipeline.isWorthwhile(codec, chunksToSend)) {
+            return sendCompressed(file, fileSize, skip, codec, chunksToSend, channel, listener, done);
+        }
+
+        ChunkBuffer chunk = new ChunkBuffer(codec);
+        try {
+            for (int index = skip.nextClearBit(0); index < chunkCount && !listener.isCancelled(); index = skip.nextClearBit(index + 1)) {
+                listener.awaitIfPaused();
+                chunk.index = index;
+                chunk.length = chunkLength(fileSize, index);
+                sendChunk(file, channel, chunk);
+                done += chunk.length;
+                listener.onProgress(done);
+            }
+
+            if (!listener.isCancelled()) {
+                writeEndOfFile(channel, chunk);
+            }
+            return done;
+        } finally {
+            chunk.release();
+        }
+    }
+
+    // Like send, with the chunks compressed by a CompressionPipeline while this thread reads and writes.
+    private static long sendCompressed(FileChannel file, long fileSize, BitSet skip, CompressionPolicy.Codec codec, int chunksToSend, WritableByteChannel channel, Listener listener, long done) throws IOException, InterruptedException {
+        CompressionPipeline pipeline = new CompressionPipeline(codec, chunksToSend, channel, listener, done);
+        try {
+            int chunkCount = chunkCount(fileSize);
+            for (int index = skip.nextClearBit(0); index < chunkCount && !listener.isCancelled(); index = skip.nextClearBit(index + 1)) {
+                listener.awaitIfPaused();
+                ChunkBuffer chunk = pipeline.takeBuffer();
+                chunk.index = index;
+                chunk.length = chunkLength(fileSize, index);
+                readAt(file, chunk.raw, chunk.length, chunkOffset(index));
+                pipeline.submit(chunk);
+            }
+            if (listener.isCancelled()) {
+                return pipeline.bytesDone();
+            }
+            done = pipeline.finish();
+            writeEndOfFile(channel, pipeline.takeBuffer());
+            return done;
+        } finally {
+            pipeline.shutdown();
+        }
+    }
+
+    /**
+     * Sends the chunk described by chunk.index and chunk.length from the file.
+     *
+     * Chunks of a RAW file are handed from the file to the socket with transferTo, so their
+     * bytes are not copied through the Java heap for the socket (the kernel's sendfile does
+     * that). Their checksum is read from the file first, mostly from the page cache.
+     */
+    public static void sendChunk(FileChannel file, WritableByteChannel channel, ChunkBuffer chunk) throws IOException {
+        if (chunk.codec == CompressionPolicy.Codec.RAW) {
+            int checksum = checksumAt(file, chunkOffset(chunk.index), chunk.length, chunk);
+            writeHeader(channel, chunk, chunk.index, chunk.length, chunk.length, checksum);
+            transferToFully(file, chunkOffset(chunk.index), chunk.length, channel);
+        } else {
+            readAt(file, chunk.raw, chunk.length, chunkOffset(chunk.index));
+            writeChunk(channel, chunk);
+        }
+    }
+
+    /**
+     * Computes the CRC32 of length bytes of the file starting at offset, for a RAW chunk that
+     * goes between the file and the socket without being staged in chunk.raw.
+     */
+    public static int checksumAt(FileChannel file, long offset, int length, ChunkBuffer chunk) throws IOException {
+        chunk.crc.reset();
+        int done = 0;
+        while (done < length) {
+            int count = Math.min(length - done, chunk.scratch.length);
+            readAt(file, chunk.scratch, count, offset + done);
+            chunk.crc.update(chunk.scratch, 0, count);
+            done += count;
+        }
+        return (int) chunk.crc.getValue();
+    }
+
+    /**
+     * Decodes a chunk whose payload the caller read into payloadBuffer, verifies its checksum, writes it at its offset in dest
+     * and records it in the journal. Safe to call from several threads with different buffers.
+     *
+     * @return The number of new raw bytes stored, or 0 if the journal already had the chunk.
+     */
+    public static int storeChunk(FileChannel dest, TransferJournal journal, ChunkBuffer chunk) throws IOException {
+        if (journal.isDone(chunk.index)) {
+            return 0;
+        }
+        decode(chunk);
+        writeAt(dest, chunk.raw, chunk.length, chunkOffset(chunk.index));
+        return journal.markDone(chunk.index) ? chunk.length : 0;
+    }
+
+    /**
+     * Encodes chunk.raw[0, chunk.length) with the chunk's codec and writes it to the channel under chunk.index.
+     */
+    public static void writeChunk(WritableByteChannel channel, ChunkBuffer chunk) throws IOException {
+        prepareChunk(chunk);
+        writePreparedChunk(channel, chunk);
+    }
+
+    /**
+     * Computes the checksum of chunk.raw[0, chunk.length) and encodes it, setting chunk.checksum
+     * and chunk.encodedLength. Needs no channel, so any thread can do it.
+     */
+    public static void prepareChunk(ChunkBuffer chunk) {
+        chunk.crc.reset();
+        chunk.crc.update(chunk.raw, 0, chunk.length);
+        chunk.checksum = (int) chunk.crc.getValue();
+        chunk.encodedLength = encode(chunk);
+    }
+
+    /**
+     * Writes a chunk encoded by prepareChunk.
+     */
+    public static void writePreparedChunk(WritableByteChannel channel, ChunkBuffer chunk) throws IOException {
+        byte[] payload = chunk.encodedLength == chunk.length ? chunk.raw : chunk.encoded;
+        writeHeader(channel, chunk, chunk.index, chunk.length, chunk.encodedLength, chunk.checksum);
+        writeFully(channel, ByteBuffer.wrap(payload, 0, chunk.encodedLength));
+    }
+
+    /**
+     * Compresses chunk.raw into chunk.encoded according to the chunk's codec.
+     *
+     * @return The encoded length, or chunk.length if the chunk is to be sent as-is from chunk.raw.
+     */
+    public static int encode(ChunkBuffer chunk) {
+        BlockCodec blockCodec = chunk.codec.blockCodec();
+        if (blockCodec == null) {
+            return chunk.length;
+        }
+        int encodedLength = blockCodec.compress(chunk.raw, chunk.length, chunk.encoded);
+        // A block that happens to be incompressible would only grow, so send it as-is.
+        return Math.min(encodedLength, chunk.length);
+    }
+
+    public static void writeEndOfFile(WritableByteChannel channel, ChunkBuffer chunk) throws IOException {
+        writeHeader(channel, chunk, END_OF_FILE, 0, 0, 0);
+    }
+
+    private static void writeHeader(WritableByteChannel channel, ChunkBuffer chunk, int index, int rawLength, int encodedLength, int checksum) throws IOException {
+        chunk.header.clear();
+        chunk.header.putInt(index).putInt(rawLength).putInt(encodedLength).putInt(checksum);
+        chunk.header.flip();
+        writeFully(channel, chunk.header);
+    }
+
+    /**
+     * Parses a chunk header read by the caller for a file sent with the given codec.
+     *
+     * @return false if it was the end-of-file header.
+     */
+    public static boolean parseHeader(ByteBuffer header, long fileSize, CompressionPolicy.Codec codec, ChunkBuffer chunk) throws IOException {
+        int index = header.getInt();
+        int rawLength = header.getInt();
+        int encodedLength = header.getInt();
+        int checksum = header.getInt();
+
+        if (index == END_OF_FILE) {
+            return false;
+        }
+        if (index < 0 || rawLength <= 0 || rawLength > CHUNK_SIZE
+                || encodedLength <= 0 || encodedLength > CompressionUtils.maxCompressedLength(CHUNK_SIZE)) {
+            throw new IOException("Invalid chunk header received: index=" + index
+                    + " raw=" + rawLength + " encoded=" + encodedLength);
+        }
+        if (index >= chunkCount(fileSize) || rawLength != chunkLength(fileSize, index)) {
+            throw new IOException("Invalid chunk " + index + " of length " + rawLength);
+        }
+        if (codec == CompressionPolicy.Codec.RAW && encodedLength != rawLength) {
+            throw new IOException("Compressed chunk " + index + " received for an uncompressed file");
+        }
+        chunk.index = index;
+        chunk.length = rawLength;
+        chunk.encodedLength = encodedLength;
+        chunk.checksum = checksum;
+        return true;
+    }
+
+    /**
+     * Returns where the payload of the chunk whose header was just parsed goes, for callers that read it themselves.
+     */
+    public static ByteBuffer payloadBuffer(ChunkBuffer chunk) {
+        if (chunk.encodedLength == chunk.length) {
+            return ByteBuffer.wrap(chunk.raw, 0, chunk.length);
+        }
+        return ByteBuffer.wrap(chunk.encoded, 0, chunk.encodedLength);
+    }
+
+    /**
+     * Decompresses the payload read into payloadBuffer into chunk.raw, if needed, and verifies its checksum.
+     */
+    static void decode(ChunkBuffer chunk) throws IOException {
+        if (chunk.encodedLength != chunk.length) {
+            CompressionUtils.decompressBlock(chunk.encoded, chunk.encodedLength, chunk.raw, chunk.length);
+        }
+        chunk.crc.reset();
+        chunk.crc.update(chunk.raw, 0, chunk.length);
+        if ((int) chunk.crc.getValue() != chunk.checksum) {
+            throw new IOException("Checksum mismatch in chunk " + chunk.index);
+        }
+    }
+
+    /**
+     * Sends a set of chunk indices as [int byteLength][BitSet bytes].
+     */
+    public static void writeBitSet(WritableByteChannel channel, BitSet bits) throws IOException {
+        byte[] bytes = bits.toByteArray();
+        ByteBuffer buffer = ByteBuffer.allocate(4 + bytes.length);
+        buffer.putInt(bytes.length).put(bytes);
+        buffer.flip();
+        writeFully(channel, buffer);
+    }
+
+    public static BitSet readBitSet(ReadableByteChannel channel, int maxBits) throws IOException {
+        ByteBuffer lengthBuffer = ByteBuffer.allocate(4);
+        readFully(channel, lengthBuffer);
+        lengthBuffer.flip();
+        int length = lengthBuffer.getInt();
+        if (length < 0 || length > maxBits / 8 + 1) {
+            throw new IOException("Invalid chunk set length received: " + length);
+        }
+        ByteBuffer bytes = ByteBuffer.allocate(length);
+        readFully(channel, bytes);
+        return BitSet.valueOf(bytes.array());
+    }
+
+    public static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    public static void readFully(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) == -1) {
+                throw new EOFException("Connection closed prematurely.");
+            }
+        }
+    }
+
+    public static void writeAt(FileChannel channel, byte[] data, int length, long offset) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, offset + buffer.position());
+        }
+    }
+
+    /**
+     * Copies length bytes of the file starting at offset to the channel with FileChannel.transferTo,
+     * which the kernel turns into sendfile for a socket.
+     */
+    public static void transferToFully(FileChannel file, long offset, long length, WritableByteChannel channel) throws IOException {
+        if (channel instanceof RateLimitedChannel) {
+            // Paced slice by slice, so a rate-limited socket still gets the file by sendfile.
+            RateLimitedChannel limited = (RateLimitedChannel) channel;
+            for (long done = 0; done < length; done += RateLimitedChannel.SLICE_SIZE) {
+                long slice = Math.min(length - done, RateLimitedChannel.SLICE_SIZE);
+                limited.acquire(slice);
+                transferToFully(file, offset + done, slice, limited.unwrap());
+            }
+            return;
+        }
+        long sent = 0;
+        while (sent < length) {
+            long transferred = file.transferTo(offset + sent, length - sent, channel);
+            if (transferred <= 0 && offset + sent >= file.size()) {
+                throw new IOException("File shrank while it was being sent.");
+            }
+            sent += transferred;
+        }
+    }
+
+    public static void readAt(FileChannel channel, byte[] data, int length, long offset) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) == -1) {
+                throw new IOException("File shrank while it was being sent.");
+            }
+        }
+    }
+}
@@ -0,0 +1,318 @@
+package com.hfm.app;
+
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdDictCompress;
+import com.github.luben.zstd.ZstdDictDecompress;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The block codecs the app knows, and which one each use case gets.
+ *
+ * From fastest to smallest: LZ4, LZ4 high-compression at levels 1 to 17, Zstandard at levels 1
+ * to 19 and Deflate at levels 1 to 9. LZ4 decodes several times faster than the others at any
+ * level, so it is the choice wherever data is decoded right away; Deflate is what zip archives use.
+ * Zstandard, from the bundled zstd-jni, gets close to Deflate's ratio at LZ4-like speeds and can
+ * use a dictionary trained on samples, which is what makes small blocks of similar records
+ * compress well. run-benchmark.sh codecs measures the ratio and speed of every codec in all() on
+ * phone-typical data, which is what the choices in UseCase are based on.
+ */
+public class CodecRegistry {
+
+    public static final BlockCodec LZ4 = new Lz4Codec();
+
+    /**
+     * What a codec is picked for. Each use case trades speed against ratio differently.
+     */
+    public enum UseCase {
+        // Files sent over Wi-Fi Direct: compression has to keep up with the link.
+        TRANSFER(LZ4),
+        // Redundant files sent over Wi-Fi Direct, e.g. text and databases: a slower mode pays for itself
+        // in bytes not sent. Level 3 gets most of level 9's ratio at about three times the speed, which
+        // keeps a few cores ahead of the link. The receiver decodes every LZ4 level alike.
+        TRANSFER_REDUNDANT(lz4Hc(3)),
+        // Zip archives the user creates: written once and kept, so ratio counts for more than speed,
+        // but levels above 6 cost a lot of time for a few percent.
+        ARCHIVE(deflate(6));
+
+        public final BlockCodec codec;
+
+        UseCase(BlockCodec codec) {
+            this.codec = codec;
+        }
+
+        /**
+         * The level of this use case's codec, for callers that hand the compression to another
+         * library, e.g. zip4j for archives.
+         */
+        public int getLevel() {
+            return codec.getLevel();
+        }
+    }
+
+    /**
+     * The codec for a use case.
+     */
+    public static BlockCodec forUseCase(UseCase useCase) {
+        return useCase.codec;
+    }
+
+    public static BlockCodec lz4Hc(int level) {
+        return new Lz4HcCodec(level);
+    }
+
+    public static BlockCodec deflate(int level) {
+        return new DeflateCodec(level);
+    }
+
+    public static BlockCodec zstd(int level) {
+        return new ZstdCodec(level, null);
+    }
+
+    /**
+     * Zstandard primed with a dictionary from trainZstdDictionary. Blocks only decode with a codec
+     * made from the same dictionary.
+     */
+    public static BlockCodec zstd(int level, byte[] dictionary) {
+        return new ZstdCodec(level, dictionary);
+    }
+
+    /**
+     * Trains a Zstandard dictionary of at most maxSize bytes on samples of the data it will be
+     * used for. Training needs many samples, at least a few hundred small ones.
+     *
+     * @throws IllegalArgumentException if the samples are too few or too alike to train on.
+     */
+    public static byte[] trainZstdDictionary(List<byte[]> samples, int maxSize) {
+        byte[] dictionary = new byte[maxSize];
+        long size = Zstd.trainFromBuffer(samples.toArray(new byte[0][]), dictionary);
+        if (Zstd.isError(size)) {
+            throw new IllegalArgumentException("Can't train a dictionary: " + Zstd.getErrorName(size));
+        }
+        return Arrays.copyOf(dictionary, (int) size);
+    }
+
+    /**
+     * Looks a codec up by its name, e.g. "lz4", "lz4-hc-9", "zstd-3" or "deflate-6". Codecs with
+     * a dictionary can't be looked up, as the name doesn't carry the dictionary.
+     *
+     * @throws IllegalArgumentException if there is no such codec.
+     */
+    public static BlockCodec get(String name) {
+        if (name.equals(LZ4.getName())) {
+            return LZ4;
+        }
+        try {
+            if (name.startsWith(Lz4HcCodec.PREFIX)) {
+                return lz4Hc(Integer.parseInt(name.substring(Lz4HcCodec.PREFIX.length())));
+            } else if (name.startsWith(DeflateCodec.PREFIX)) {
+                return deflate(Integer.parseInt(name.substring(DeflateCodec.PREFIX.length())));
+            } else if (name.startsWith(ZstdCodec.PREFIX)) {
+                return zstd(Integer.parseInt(name.substring(ZstdCodec.PREFIX.length())));
+            }
+        } catch (NumberFormatException e) {
+            // Reported below.
+        }
+        throw new IllegalArgumentException("Unknown codec: " + name);
+    }
+
+    /**
+     * A representative set of codecs and levels, by family and fastest level first.
+     */
+    public static List<BlockCodec> all() {
+        return Collections.unmodifiableList(Arrays.asList(
+                LZ4, lz4Hc(3), lz4Hc(9), lz4Hc(12), zstd(1), zstd(3), zstd(9), zstd(19), deflate(1), deflate(6), deflate(9)));
+    }
+
+    private static class Lz4Codec implements BlockCodec {
+        @Override
+        public String getName() {
+            return "lz4";
+        }
+
+        @Override
+        public int getLevel() {
+            return 0;
+        }
+
+        @Override
+        public int maxCompressedLength(int length) {
+            return CompressionUtils.maxCompressedLength(length);
+        }
+
+        @Override
+        public int compress(byte[] src, int srcLen, byte[] dest) {
+            return CompressionUtils.compressBlock(src, srcLen, dest);
+        }
+
+        @Override
+        public void decompress(byte[] src, int srcLen, byte[] dest, int destLen) throws IOException {
+            CompressionUtils.decompressBlock(src, srcLen, dest, destLen);
+        }
+    }
+
+    // Produces plain LZ4 blocks, so it decodes exactly like Lz4Codec.
+    private static class Lz4HcCodec extends Lz4Codec {
+        static final String PREFIX = "lz4-hc-";
+        private final int level;
+
+        Lz4HcCodec(int level) {
+            if (level < 1 || level > 17) {
+                throw new IllegalArgumentException("LZ4 HC level must be 1-17: " + level);
+            }
+            this.level = level;
+        }
+
+        @Override
+        public String getName() {
+            return PREFIX + level;
+        }
+
+        @Override
+        public int getLevel() {
+            return level;
+        }
+
+        @Override
+        public int compress(byte[] src, int srcLen, byte[] dest) {
+            return CompressionUtils.compressBlockHC(src, srcLen, dest, level);
+        }
+    }
+
+    // Raw Deflate, the compression zip archives use.
+    private static class DeflateCodec implements BlockCodec {
+        static final String PREFIX = "deflate-";
+        private final int level;
+
+        DeflateCodec(int level) {
+            if (level < 1 || level > 9) {
+                throw new IllegalArgumentException("Deflate level must be 1-9: " + level);
+            }
+            this.level = level;
+        }
+
+        @Override
+        public int getLevel() {
+            return level;
+        }
+
+        @Override
+        public String getName() {
+            return PREFIX + level;
+        }
+
+        @Override
+        public int maxCompressedLength(int length) {
+            // zlib's deflateBound: incompressible input goes into stored blocks with a few bytes of overhead each.
+            return length + (length >> 12) + (length >> 14) + (length >> 25) + 13;
+        }
+
+        @Override
+        public int compress(byte[] src, int srcLen, byte[] dest) {
+            Deflater deflater = new Deflater(level, true);
+            try {
+                deflater.setInput(src, 0, srcLen);
+                deflater.finish();
+                int length = 0;
+                while (!deflater.finished() && length < dest.length) {
+                    length += deflater.deflate(dest, length, dest.length - length);
+                }
+                return length;
+            } finally {
+                deflater.end();
+            }
+        }
+
+        @Override
+        public void decompress(byte[] src, int srcLen, byte[] dest, int destLen) throws IOException {
+            Inflater inflater = new Inflater(true);
+            try {
+                inflater.setInput(src, 0, srcLen);
+                int length = 0;
+                while (!inflater.finished() && length < destLen) {
+                    int inflated = inflater.inflate(dest, length, destLen - length);
+                    if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    length += inflated;
+                }
+                if (length != destLen || !inflater.finished()) {
+                    throw new IOException("Corrupt compressed block: expected " + destLen + " bytes but got " + length);
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt compressed block", e);
+            } finally {
+                inflater.end();
+            }
+        }
+    }
+
+    // Zstandard frames, through zstd-jni. The native dictionaries are read-only once built, so
+    // one codec can be shared by every thread.
+    private static class ZstdCodec implements BlockCodec {
+        static final String PREFIX = "zstd-";
+        private final int level;
+        private final ZstdDictCompress compressDictionary;
+        private final ZstdDictDecompress decompressDictionary;
+
+        ZstdCodec(int level, byte[] dictionary) {
+            if (level < 1 || level > 19) {
+                throw new IllegalArgumentException("Zstandard level must be 1-19: " + level);
+            }
+            this.level = level;
+            this.compressDictionary = dictionary == null ? null : new ZstdDictCompress(dictionary, level);
+            this.decompressDictionary = dictionary == null ? null : new ZstdDictDecompress(dictionary);
+        }
+
+        @Override
+        public String getName() {
+            return PREFIX + level + (compressDictionary != null ? "-dict" : "");
+        }
+
+        @Override
+        public int getLevel() {
+            return level;
+        }
+
+        @Override
+        public int maxCompressedLength(int length) {
+            return (int) Zstd.compressBound(length);
+        }
+
+        @Override
+        public int compress(byte[] src, int srcLen, byte[] dest) {
+            long length = compressDictionary == null
+                    ? Zstd.compressByteArray(dest, 0, dest.length, src, 0, srcLen, level)
+                    : Zstd.compressFastDict(dest, 0, src, 0, srcLen, compressDictionary);
+            if (Zstd.isError(length)) {
+                // Only happens if dest is smaller than maxCompressedLength asked for.
+                throw new IllegalStateException("Zstandard compression failed: " + Zstd.getErrorName(length));
+            }
+            return (int) length;
+        }
+
+        @Override
+        public void decompress(byte[] src, int srcLen, byte[] dest, int destLen) throws IOException {
+            long length;
+            try {
+                length = decompressDictionary == null
+                        ? Zstd.decompressByteArray(dest, 0, destLen, src, 0, srcLen)
+                        : Zstd.decompressFastDict(dest, 0, src, 0, srcLen, decompressDictionary);
+            } catch (RuntimeException e) {
+                throw new IOException("Corrupt compressed block", e);
+            }
+            if (Zstd.isError(length)) {
+                throw new IOException("Corrupt compressed block: " + Zstd.getErrorName(length));
+            }
+            if (length != destLen) {
+                throw new IOException("Corrupt compressed block: expected " + destLen + " bytes but got " + length);
+            }
+        }
+    }
+}
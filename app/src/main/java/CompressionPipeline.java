@@ -0,0 +1,138 @@
+package com.hfm.app;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compresses chunks on a small pool of worker threads and writes them to the channel in the
+ * order they were read, so the sending thread only reads the file and writes the socket.
+ *
+ * The pipeline owns a fixed number of chunk buffers: taking a buffer while all of them are in
+ * flight first waits for the oldest chunk and writes it. Memory stays bounded and chunks still
+ * leave in order, so the receiver sees the same stream as from a single thread.
+ */
+public class CompressionPipeline {
+
+    private static final int MAX_WORKERS = 4;
+
+    private final WritableByteChannel channel;
+    private final ChunkedTransfer.Listener listener;
+    private final ExecutorService workers;
+    private final List<ChunkedTransfer.ChunkBuffer> buffers = new ArrayList<>();
+    private final ArrayDeque<ChunkedTransfer.ChunkBuffer> freeBuffers = new ArrayDeque<>();
+    private final ArrayDeque<Future<ChunkedTransfer.ChunkBuffer>> pending = new ArrayDeque<>();
+    private long bytesDone;
+
+    /**
+     * Whether sending chunkCount chunks of the given codec is worth a pipeline on this device:
+     * there must be something to compress, more than one chunk and a second core.
+     */
+    public static boolean isWorthwhile(CompressionPolicy.Codec codec, int chunkCount) {
+        return codec != CompressionPolicy.Codec.RAW && chunkCount > 1 && Runtime.getRuntime().availableProcessors() > 1;
+    }
+
+    /**
+     * @param chunkCount The number of chunks that will be submitted, to size the pipeline for small files.
+     * @param bytesDone  Raw bytes of the file the receiver already has, the start of the progress count.
+     */
+    public CompressionPipeline(CompressionPolicy.Codec codec, int chunkCount, WritableByteChannel channel, ChunkedTransfer.Listener listener, long bytesDone) {
+        this.channel = channel;
+        this.listener = listener;
+        this.bytesDone = bytesDone;
+
+        int workerCount = Math.max(1, Math.min(Math.min(MAX_WORKERS, chunkCount), Runtime.getRuntime().availableProcessors()));
+        // One buffer per worker plus two, so the next chunk can be read while every worker is busy.
+        // The end-of-file header needs a buffer too, so there is always at least one more than chunks.
+        int bufferCount = Math.min(workerCount + 2, chunkCount + 1);
+        for (int i = 0; i < bufferCount; i++) {
+            buffers.add(new ChunkedTransfer.ChunkBuffer(codec));
+        }
+        freeBuffers.addAll(buffers);
+        workers = Executors.newFixedThreadPool(workerCount);
+    }
+
+    /**
+     * Returns a free buffer to read the next chunk into. If every buffer is in flight, the
+     * oldest chunk is written first.
+     *
+     * @throws IOException if writing failed.
+     */
+    public ChunkedTransfer.ChunkBuffer takeBuffer() throws IOException {
+        if (freeBuffers.isEmpty()) {
+            writeOldest();
+        }
+        return freeBuffers.poll();
+    }
+
+    /**
+     * Hands a chunk whose raw bytes have been read to the workers.
+     */
+    public void submit(final ChunkedTransfer.ChunkBuffer chunk) {
+        pending.add(workers.submit(new Callable<ChunkedTransfer.ChunkBuffer>() {
+            @Override
+            public ChunkedTransfer.ChunkBuffer call() {
+                ChunkedTransfer.prepareChunk(chunk);
+                return chunk;
+            }
+        }));
+    }
+
+    /**
+     * Writes every submitted chunk.
+     *
+     * @return The number of raw bytes of the file the receiver now has.
+     */
+    public long finish() throws IOException {
+        while (!pending.isEmpty()) {
+            writeOldest();
+        }
+        return bytesDone;
+    }
+
+    /**
+     * The raw bytes of the file written so far, including those the receiver already had.
+     */
+    public long bytesDone() {
+        return bytesDone;
+    }
+
+    /**
+     * Stops the workers and gives the buffers back to the BufferPool. Chunks that were submitted
+     * but not written are dropped.
+     */
+    public void shutdown() throws InterruptedException {
+        workers.shutdownNow();
+        // A worker may still be encoding into a buffer; it must not go back to the pool before it's done.
+        if (workers.awaitTermination(30, TimeUnit.SECONDS)) {
+            for (ChunkedTransfer.ChunkBuffer chunk : buffers) {
+                chunk.release();
+            }
+        }
+    }
+
+    private void writeOldest() throws IOException {
+        ChunkedTransfer.ChunkBuffer chunk;
+        try {
+            chunk = pending.poll().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing");
+        } catch (ExecutionException e) {
+            throw new IOException("Compression failed", e.getCause());
+        }
+        ChunkedTransfer.writePreparedChunk(channel, chunk);
+        bytesDone += chunk.length;
+        listener.onProgress(bytesDone);
+        freeBuffers.add(chunk);
+    }
+}
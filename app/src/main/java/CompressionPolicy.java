@@ -0,0 +1,139 @@
+package com.hfm.app;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Decides per file whether a transfer should compress it at all, and how hard.
+ *
+ * Photos, videos, music and archives are already compressed, so LZ4 only burns CPU and battery
+ * on them. Those go RAW based on their extension. Everything else is judged by the byte entropy
+ * of its first blocks: near-random data goes RAW, highly redundant data (text, logs, databases)
+ * is worth the slower LZ4 high-compression mode, and the rest uses fast LZ4.
+ */
+public class CompressionPolicy {
+
+    /**
+     * How the chunks of a file are encoded on the wire. The id goes into the file's header frame.
+     */
+    public enum Codec {
+        RAW(0, null),
+        LZ4(1, CodecRegistry.UseCase.TRANSFER),
+        LZ4_HC(2, CodecRegistry.UseCase.TRANSFER_REDUNDANT);
+
+        public final int id;
+        private final CodecRegistry.UseCase useCase;
+
+        Codec(int id, CodecRegistry.UseCase useCase) {
+            this.id = id;
+            this.useCase = useCase;
+        }
+
+        /**
+         * The block codec chunks are compressed with, or null for RAW. Receivers decode every
+         * compressed chunk as plain LZ4, so this is always one of the LZ4 codecs.
+         */
+        public BlockCodec blockCodec() {
+            return useCase == null ? null : CodecRegistry.forUseCase(useCase);
+        }
+
+        public static Codec fromId(int id) throws IOException {
+            for (Codec codec : values()) {
+                if (codec.id == id) {
+                    return codec;
+                }
+            }
+            throw new IOException("Unsupported codec: " + id);
+        }
+    }
+
+    private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "jpg", "jpeg", "png", "gif", "webp", "heic", "heif",
+            "mp4", "mkv", "webm", "3gp", "mov", "avi", "m4v",
+            "mp3", "aac", "m4a", "ogg", "opus", "flac", "amr",
+            "zip", "rar", "7z", "gz", "bz2", "xz", "lz4", "zst",
+            "apk", "aab", "jar", "docx", "xlsx", "pptx", "epub"));
+
+    private static final int SAMPLE_SIZE = 256 * 1024;
+    // Files this small finish in microseconds either way, so sampling them isn't worth a read.
+    private static final long MIN_SAMPLED_SIZE = 16 * 1024;
+    // Bits per byte. Above RAW_ENTROPY LZ4 can't win anything; below HC_ENTROPY the HC mode pays off.
+    private static final double RAW_ENTROPY = 7.5;
+    private static final double HC_ENTROPY = 5.0;
+
+    public static Codec choose(File file) {
+        if (isCompressedFormat(file.getName())) {
+            return Codec.RAW;
+        }
+        if (file.length() < MIN_SAMPLED_SIZE) {
+            return Codec.LZ4;
+        }
+
+        byte[] sample = BufferPool.acquire(SAMPLE_SIZE);
+        double entropy;
+        try {
+            int length = 0;
+            InputStream in = new FileInputStream(file);
+            try {
+                int read;
+                while (length < sample.length && (read = in.read(sample, length, sample.length - length)) != -1) {
+                    length += read;
+                }
+            } finally {
+                in.close();
+            }
+            entropy = entropy(sample, length);
+        } catch (IOException e) {
+            // The transfer itself will report the read error.
+            return Codec.LZ4;
+        } finally {
+            BufferPool.release(sample);
+        }
+
+        if (entropy > RAW_ENTROPY) {
+            return Codec.RAW;
+        } else if (entropy < HC_ENTROPY) {
+            return Codec.LZ4_HC;
+        }
+        return Codec.LZ4;
+    }
+
+    /**
+     * Returns whether the file name has the extension of a format that is already compressed.
+     */
+    public static boolean isCompressedFormat(String fileName) {
+        return COMPRESSED_EXTENSIONS.contains(getExtension(fileName));
+    }
+
+    /**
+     * Returns the Shannon entropy of the data in bits per byte, from 0 (constant) to 8 (random).
+     */
+    public static double entropy(byte[] data, int length) {
+        if (length == 0) {
+            return 0;
+        }
+        int[] counts = new int[256];
+        for (int i = 0; i < length; i++) {
+            counts[data[i] & 0xFF]++;
+        }
+        double entropy = 0;
+        for (int count : counts) {
+            if (count > 0) {
+                double p = (double) count / length;
+                entropy -= p * (Math.log(p) / Math.log(2));
+            }
+        }
+        return entropy;
+    }
+
+    private static String getExtension(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        return dot < 0 ? "" : fileName.substring(dot + 1).toLowerCase(Locale.ROOT);
+    }
+}
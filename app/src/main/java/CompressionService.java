@@ -6,7 +6,6 @@ import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
-import android.net.Uri;
 import android.os.Build;
 import android.os.IBinder;
 import android.util.Log;
@@ -18,6 +17,9 @@ import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
 import net.lingala.zip4j.ZipFile;
 import net.lingala.zip4j.exception.ZipException;
+import net.lingala.zip4j.model.ZipParameters;
+import net.lingala.zip4j.model.enums.CompressionLevel;
+import net.lingala.zip4j.model.enums.CompressionMethod;
 import net.lingala.zip4j.progress.ProgressMonitor;
 
 import java.io.File;
@@ -107,31 +109,37 @@ public class CompressionService extends Service {
         try {
             zipFile = new ZipFile(tempZipFile);
             zipFile.setRunInThread(true);
+            ProgressMonitor progressMonitor = zipFile.getProgressMonitor();
 
-            for (File file : sourceFiles) {
-                if (isCancelled) break;
+            // zip4j works on one item at a time, so each one is added once the previous one is done.
+            for (int i = 0; i < sourceFiles.size() && !isCancelled; i++) {
+                File file = sourceFiles.get(i);
+                ZipParameters parameters = parametersFor(file);
                 if (file.isDirectory()) {
-                    zipFile.addFolder(file);
+                    zipFile.addFolder(file, parameters);
                 } else {
-                    zipFile.addFile(file);
+                    zipFile.addFile(file, parameters);
                 }
-            }
 
-            if (!isCancelled) {
-                ProgressMonitor progressMonitor = zipFile.getProgressMonitor();
+                String status = sourceFiles.size() > 1 ? "Compressing " + (i + 1) + " of " + sourceFiles.size() + "..." : "Compressing...";
                 while (!progressMonitor.getState().equals(ProgressMonitor.State.READY)) {
                     if (isCancelled) {
                         progressMonitor.setCancelAllTasks(true);
                         break;
                     }
-                    updateNotification("Compressing...", progressMonitor.getPercentDone(), false);
+                    updateNotification(status, progressMonitor.getPercentDone(), false);
                     try {
                         Thread.sleep(100);
                     } catch (InterruptedException e) {
                         break;
                     }
                 }
+                if (!progressMonitor.getResult().equals(ProgressMonitor.Result.SUCCESS)) {
+                    break;
+                }
+            }
 
+            if (!isCancelled) {
                 if (progressMonitor.getResult().equals(ProgressMonitor.Result.SUCCESS)) {
                     updateNotification("Finalizing...", 100, true);
                     if (moveFile(tempZipFile, finalZipFile)) {
@@ -161,14 +169,56 @@ public class CompressionService extends Service {
         }
     }
 
+    // Photos, videos and other compressed formats are stored as they are: deflating them takes long and saves next to nothing.
+    // A folder is stored when most of its bytes are such files, e.g. a camera folder.
+    private ZipParameters parametersFor(File file) {
+        ZipParameters parameters = new ZipParameters();
+        long[] bytes = new long[2];
+        countBytes(file, bytes);
+        if (bytes[1] > bytes[0] / 2) {
+            parameters.setCompressionMethod(CompressionMethod.STORE);
+        } else {
+            parameters.setCompressionMethod(CompressionMethod.DEFLATE);
+            parameters.setCompressionLevel(compressionLevel(CodecRegistry.UseCase.ARCHIVE));
+        }
+        return parameters;
+    }
+
+    // Adds the total size of file and the size of its already-compressed files to bytes[0] and bytes[1].
+    private static void countBytes(File file, long[] bytes) {
+        if (file.isDirectory()) {
+            File[] children = file.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    countBytes(child, bytes);
+                }
+            }
+        } else {
+            bytes[0] += file.length();
+            if (CompressionPolicy.isCompressedFormat(file.getName())) {
+                bytes[1] += file.length();
+            }
+        }
+    }
+
+    private static CompressionLevel compressionLevel(CodecRegistry.UseCase useCase) {
+        int level = useCase.getLevel();
+        for (CompressionLevel compressionLevel : CompressionLevel.values()) {
+            if (compressionLevel.getLevel() == level) {
+                return compressionLevel;
+            }
+        }
+        return CompressionLevel.NORMAL;
+    }
+
     private boolean moveFile(File source, File dest) {
         InputStream in = null;
         OutputStream out = null;
+        byte[] buffer = BufferPool.acquire(StorageUtils.getCopyMedium(this, source, dest));
         try {
             in = new FileInputStream(source);
             out = StorageUtils.getOutputStream(this, dest);
 
-            byte[] buffer = new byte[8192];
             int length;
             while ((length = in.read(buffer)) > 0) {
                 out.write(buffer, 0, length);
@@ -178,6 +228,7 @@ public class CompressionService extends Service {
             Log.e(TAG, "Failed to move file from " + source.getPath() + " to " + dest.getPath(), e);
             return false;
         } finally {
+            BufferPool.release(buffer);
             try {
                 if (in != null) in.close();
                 if (out != null) out.close();
@@ -272,9 +323,7 @@ public class CompressionService extends Service {
     }
 
     private void scanFile(File file) {
-        Intent mediaScanIntent = new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE);
-        mediaScanIntent.setData(Uri.fromFile(file));
-        sendBroadcast(mediaScanIntent);
+        MediaStoreSync.getInstance(this).notifyChanged(file);
     }
 
     @Override
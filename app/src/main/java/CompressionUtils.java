@@ -1,55 +1,454 @@
 package com.hfm.app;
 
-import net.jpountz.lz4.LZ4FrameInputStream;
-import net.jpountz.lz4.LZ4FrameOutputStream;
+import net.jpountz.lz4.LZ4Exception;
+import net.jpountz.lz4.LZ4Factory;
 
+import net.jpountz.xxhash.StreamingXXHash32;
+import net.jpountz.xxhash.XXHash32;
+import net.jpountz.xxhash.XXHashFactory;
+
+import java.io.EOFException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
 
 public class CompressionUtils {
 
+    // Falls back to the pure-Java implementations on devices without the native library.
+    private static final LZ4Factory LZ4_FACTORY = LZ4Factory.fastestInstance();
+    private static final XXHashFactory XXHASH_FACTORY = XXHashFactory.fastestInstance();
+    private static final XXHash32 XXHASH = XXHASH_FACTORY.hash32();
+
+    /** Size of the blocks compress cuts a frame into; each one is a unit of work for a thread. */
+    public static final int FRAME_BLOCK_SIZE = 1024 * 1024;
+    private static final int MAX_THREADS = 8;
+
+    // LZ4 frame format constants, see https://github.com/lz4/lz4/blob/dev/doc/lz4_Frame_format.md
+    private static final int FRAME_MAGIC = 0x184D2204;
+    private static final int SKIPPABLE_MAGIC = 0x184D2A50;
+    private static final int SKIPPABLE_MAGIC_MASK = 0xFFFFFFF0;
+    private static final int FLG_VERSION_MASK = 0xC0;
+    private static final int FLG_VERSION = 0x40;
+    private static final int FLG_BLOCK_INDEPENDENCE = 0x20;
+    private static final int FLG_BLOCK_CHECKSUM = 0x10;
+    private static final int FLG_CONTENT_SIZE = 0x08;
+    private static final int FLG_CONTENT_CHECKSUM = 0x04;
+    private static final int FLG_DICT_ID = 0x01;
+    // Block size id 6: blocks of up to 1 MB, i.e. FRAME_BLOCK_SIZE.
+    private static final int BD_1MB = 6 << 4;
+    private static final int MAX_DESCRIPTOR_SIZE = 14;
+    private static final int UNCOMPRESSED_BLOCK = 0x80000000;
+    private static final int END_OF_STREAM = 0;
+    private static final int SKIP_BUFFER_SIZE = 8192;
+
     /**
-     * Compresses data from an InputStream and writes it to an OutputStream using LZ4.
+     * Compresses data from an InputStream and writes it to an OutputStream as an LZ4 frame,
+     * using up to one thread per core.
      *
      * @param in  The InputStream to read raw data from.
-     * @param out The OutputStream to write compressed data to.
+     * @param out The OutputStream to write compressed data to. It is closed at the end.
      * @throws IOException if an I/O error occurs.
      */
     public static void compress(InputStream in, OutputStream out) throws IOException {
-        // This simplified implementation is more robust for the LZ4 library.
-        // It ensures that the close() method, which writes the critical end-of-stream markers,
-        // is only called after the read/write loop completes successfully.
-        LZ4FrameOutputStream lz4Out = new LZ4FrameOutputStream(out);
-        byte[] buffer = new byte[8192];
-        int len;
-        while ((len = in.read(buffer)) > 0) {
-            lz4Out.write(buffer, 0, len);
+        compress(in, out, defaultThreadCount());
+    }
+
+    /**
+     * Compresses data from an InputStream into a standard LZ4 frame on the given number of threads.
+     *
+     * The frame is cut into independent blocks of FRAME_BLOCK_SIZE, each with its own checksum.
+     * Blocks are compressed on a worker pool and written in order, with at most two blocks more
+     * than there are threads in memory. Any LZ4 frame reader, e.g. LZ4FrameInputStream or the
+     * lz4 command line tool, can read the result.
+     */
+    public static void compress(InputStream in, OutputStream out, int threads) throws IOException {
+        ExecutorService workers = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+        try {
+            byte[] descriptor = {(byte) (FLG_VERSION | FLG_BLOCK_INDEPENDENCE | FLG_BLOCK_CHECKSUM), (byte) BD_1MB};
+            writeIntLE(out, FRAME_MAGIC);
+            out.write(descriptor);
+            out.write(headerChecksum(descriptor, descriptor.length));
+
+            int maxInFlight = Math.max(1, threads) + 2;
+            ArrayDeque<FrameBlock> freeBlocks = new ArrayDeque<>();
+            ArrayDeque<FutureTask<FrameBlock>> pending = new ArrayDeque<>();
+            while (true) {
+                if (pending.size() == maxInFlight) {
+                    freeBlocks.add(writeBlock(out, await(pending.poll())));
+                }
+                final FrameBlock block = freeBlocks.isEmpty() ? new FrameBlock(FRAME_BLOCK_SIZE) : freeBlocks.poll();
+                block.rawLength = readUpTo(in, block.raw, 0, FRAME_BLOCK_SIZE);
+                if (block.rawLength == 0) {
+                    freeBlocks.add(block);
+                    break;
+                }
+                pending.add(run(workers, new Callable<FrameBlock>() {
+                    @Override
+                    public FrameBlock call() {
+                        int compressed = compressBlock(block.raw, block.rawLength, block.encoded);
+                        if (compressed < block.rawLength) {
+                            block.encodedLength = compressed;
+                            block.checksum = XXHASH.hash(block.encoded, 0, compressed, 0);
+                        } else {
+                            // Incompressible blocks are stored as-is, flagged in their size field.
+                            block.encodedLength = -1;
+                            block.checksum = XXHASH.hash(block.raw, 0, block.rawLength, 0);
+                        }
+                        return block;
+                    }
+                }));
+            }
+            while (!pending.isEmpty()) {
+                freeBlocks.add(writeBlock(out, await(pending.poll())));
+            }
+            writeIntLE(out, 0);
+            releaseAll(freeBlocks);
+        } finally {
+            if (workers != null) {
+                workers.shutdownNow();
+            }
         }
-        // It is critical to close the LZ4 stream to finalize the frame.
-        // This also closes the underlying 'out' stream.
-        lz4Out.close();
+        out.close();
     }
 
     /**
-     * Decompresses data from an InputStream and writes it to an OutputStream using LZ4.
+     * Decompresses LZ4 frames from an InputStream and writes the raw data to an OutputStream,
+     * using up to one thread per core.
      *
-     * @param in  The InputStream to read compressed data from.
+     * @param in  The InputStream to read compressed data from. It is closed at the end.
      * @param out The OutputStream to write decompressed raw data to.
-     * @throws IOException if an I/O error occurs.
+     * @throws IOException if an I/O error occurs or the data is corrupt.
      */
     public static void decompress(InputStream in, OutputStream out) throws IOException {
-        // This simplified implementation is more robust for the LZ4 library.
-        // If an error happens during the read/write loop, the exception will propagate
-        // and the stream won't be closed here, preventing further issues.
-        LZ4FrameInputStream lz4In = new LZ4FrameInputStream(in);
-        byte[] buffer = new byte[8192];
-        int len;
-        while ((len = lz4In.read(buffer)) > 0) {
-            out.write(buffer, 0, len);
-        }
-        // Closing the wrapper stream is good practice and also closes the underlying 'in' stream.
-        lz4In.close();
+        decompress(in, out, defaultThreadCount());
+    }
+
+    /**
+     * Decompresses LZ4 frames on the given number of threads.
+     *
+     * Blocks are decoded on a worker pool and written in order. This reads what compress and
+     * LZ4FrameOutputStream write, i.e. frames of independent blocks, including concatenated and
+     * skippable frames, and verifies every checksum the frames carry.
+     */
+    public static void decompress(InputStream in, OutputStream out, int threads) throws IOException {
+        ExecutorService workers = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+        try {
+            int maxInFlight = Math.max(1, threads) + 2;
+            ArrayDeque<FrameBlock> freeBlocks = new ArrayDeque<>();
+            ArrayDeque<FutureTask<FrameBlock>> pending = new ArrayDeque<>();
+            byte[] descriptor = new byte[MAX_DESCRIPTOR_SIZE];
+            boolean firstFrame = true;
+            int magic;
+            while ((magic = readMagic(in, firstFrame)) != END_OF_STREAM) {
+                firstFrame = false;
+                if ((magic & SKIPPABLE_MAGIC_MASK) == SKIPPABLE_MAGIC) {
+                    skipFully(in, readIntLE(in) & 0xFFFFFFFFL);
+                    continue;
+                }
+                if (magic != FRAME_MAGIC) {
+                    throw new IOException("Not an LZ4 frame");
+                }
+
+                readFully(in, descriptor, 0, 2);
+                int flags = descriptor[0] & 0xFF;
+                if ((flags & FLG_VERSION_MASK) != FLG_VERSION) {
+                    throw new IOException("Unsupported LZ4 frame version");
+                }
+                int descriptorLength = 2 + ((flags & FLG_CONTENT_SIZE) != 0 ? 8 : 0) + ((flags & FLG_DICT_ID) != 0 ? 4 : 0);
+                readFully(in, descriptor, 2, descriptorLength - 2);
+                int checksum = readByte(in);
+                if ((flags & FLG_BLOCK_INDEPENDENCE) == 0 || (flags & FLG_DICT_ID) != 0) {
+                    // Neither LZ4FrameOutputStream nor compress writes these, and LZ4FrameInputStream can't read them either.
+                    throw new IOException("LZ4 frames with linked blocks or a dictionary are not supported");
+                }
+                if (checksum != headerChecksum(descriptor, descriptorLength)) {
+                    throw new IOException("Corrupt LZ4 frame header");
+                }
+                int blockSizeId = (descriptor[1] >> 4) & 0x07;
+                if (blockSizeId < 4) {
+                    throw new IOException("Invalid LZ4 frame block size");
+                }
+                int maxBlockSize = 1 << (8 + 2 * blockSizeId);
+                if (!freeBlocks.isEmpty() && freeBlocks.peek().raw.length != maxBlockSize) {
+                    releaseAll(freeBlocks);
+                }
+                final boolean blockChecksums = (flags & FLG_BLOCK_CHECKSUM) != 0;
+                StreamingXXHash32 contentHash = (flags & FLG_CONTENT_CHECKSUM) != 0 ? XXHASH_FACTORY.newStreamingHash32(0) : null;
+                long contentSize = 0;
+
+                while (true) {
+                    int size = readIntLE(in);
+                    if (size == 0) {
+                        break;
+                    }
+                    if (pending.size() == maxInFlight) {
+                        contentSize += writeRaw(out, await(pending.poll()), contentHash, freeBlocks);
+                    }
+                    final FrameBlock block = freeBlocks.isEmpty() ? new FrameBlock(maxBlockSize) : freeBlocks.poll();
+                    final boolean stored = (size & UNCOMPRESSED_BLOCK) != 0;
+                    final int length = size & ~UNCOMPRESSED_BLOCK;
+                    if (length > maxBlockSize) {
+                        throw new IOException("Corrupt LZ4 frame: block of " + length + " bytes");
+                    }
+                    readFully(in, stored ? block.raw : block.encoded, 0, length);
+                    block.encodedLength = length;
+                    block.checksum = blockChecksums ? readIntLE(in) : 0;
+                    pending.add(run(workers, new Callable<FrameBlock>() {
+                        @Override
+                        public FrameBlock call() throws IOException {
+                            byte[] data = stored ? block.raw : block.encoded;
+                            if (blockChecksums && XXHASH.hash(data, 0, length, 0) != block.checksum) {
+                                throw new IOException("Corrupt LZ4 frame: block checksum mismatch");
+                            }
+                            if (stored) {
+                                block.rawLength = length;
+                            } else {
+                                try {
+                                    block.rawLength = LZ4_FACTORY.safeDecompressor().decompress(block.encoded, 0, length, block.raw, 0, block.raw.length);
+                                } catch (LZ4Exception e) {
+                                    throw new IOException("Corrupt compressed block", e);
+                                }
+                            }
+                            return block;
+                        }
+                    }));
+                }
+                while (!pending.isEmpty()) {
+                    contentSize += writeRaw(out, await(pending.poll()), contentHash, freeBlocks);
+                }
+                if (contentHash != null && readIntLE(in) != contentHash.getValue()) {
+                    throw new IOException("Corrupt LZ4 frame: content checksum mismatch");
+                }
+                if ((flags & FLG_CONTENT_SIZE) != 0 && contentSize != readLongLE(descriptor, 2)) {
+                    throw new IOException("Corrupt LZ4 frame: expected " + readLongLE(descriptor, 2) + " bytes but got " + contentSize);
+                }
+            }
+            releaseAll(freeBlocks);
+        } finally {
+            if (workers != null) {
+                workers.shutdownNow();
+            }
+        }
+        in.close();
+    }
+
+    /**
+     * The number of threads compress and decompress use by default: one per core, up to MAX_THREADS.
+     */
+    public static int defaultThreadCount() {
+        return Math.max(1, Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors()));
+    }
+
+    // Buffers for one frame block, from the BufferPool and reused once the block has been written.
+    private static class FrameBlock {
+        final byte[] raw;
+        final byte[] encoded;
+        int rawLength;
+        // -1 for a block stored uncompressed in raw.
+        int encodedLength;
+        int checksum;
+
+        FrameBlock(int maxBlockSize) {
+            raw = BufferPool.acquire(maxBlockSize);
+            encoded = BufferPool.acquire(maxCompressedLength(maxBlockSize));
+        }
+    }
+
+    // Gives idle blocks back to the pool. Blocks a worker may still be using are left to the garbage collector.
+    private static void releaseAll(ArrayDeque<FrameBlock> blocks) {
+        for (FrameBlock block : blocks) {
+            BufferPool.release(block.raw);
+            BufferPool.release(block.encoded);
+        }
+        blocks.clear();
+    }
+
+    // Runs the task on the pool, or right away without one.
+    private static FutureTask<FrameBlock> run(ExecutorService workers, Callable<FrameBlock> task) {
+        FutureTask<FrameBlock> future = new FutureTask<>(task);
+        if (workers != null) {
+            workers.execute(future);
+        } else {
+            future.run();
+        }
+        return future;
+    }
+
+    private static FrameBlock await(FutureTask<FrameBlock> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a block");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Block compression failed", e.getCause());
+        }
+    }
+
+    private static FrameBlock writeBlock(OutputStream out, FrameBlock block) throws IOException {
+        if (block.encodedLength < 0) {
+            writeIntLE(out, block.rawLength | UNCOMPRESSED_BLOCK);
+            out.write(block.raw, 0, block.rawLength);
+        } else {
+            writeIntLE(out, block.encodedLength);
+            out.write(block.encoded, 0, block.encodedLength);
+        }
+        writeIntLE(out, block.checksum);
+        return block;
+    }
+
+    private static int writeRaw(OutputStream out, FrameBlock block, StreamingXXHash32 contentHash, ArrayDeque<FrameBlock> freeBlocks) throws IOException {
+        out.write(block.raw, 0, block.rawLength);
+        if (contentHash != null) {
+            contentHash.update(block.raw, 0, block.rawLength);
+        }
+        freeBlocks.add(block);
+        return block.rawLength;
+    }
+
+    // The second byte of xxHash32 over the frame descriptor.
+    private static int headerChecksum(byte[] descriptor, int length) {
+        return (XXHASH.hash(descriptor, 0, length, 0) >> 8) & 0xFF;
     }
-}
 
+    // Returns END_OF_STREAM if the stream ends cleanly before another frame.
+    private static int readMagic(InputStream in, boolean required) throws IOException {
+        int first = in.read();
+        if (first == -1) {
+            if (required) {
+                throw new EOFException("Empty LZ4 stream");
+            }
+            return END_OF_STREAM;
+        }
+        byte[] rest = new byte[3];
+        readFully(in, rest, 0, 3);
+        return first | (rest[0] & 0xFF) << 8 | (rest[1] & 0xFF) << 16 | (rest[2] & 0xFF) << 24;
+    }
+
+    // Fills buffer from in as far as possible; returns less than length only at the end of the stream.
+    private static int readUpTo(InputStream in, byte[] buffer, int offset, int length) throws IOException {
+        int total = 0;
+        while (total < length) {
+            int read = in.read(buffer, offset + total, length - total);
+            if (read == -1) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    private static void readFully(InputStream in, byte[] buffer, int offset, int length) throws IOException {
+        if (readUpTo(in, buffer, offset, length) < length) {
+            throw new EOFException("Truncated LZ4 frame");
+        }
+    }
+
+    private static int readByte(InputStream in) throws IOException {
+        int b = in.read();
+        if (b == -1) {
+            throw new EOFException("Truncated LZ4 frame");
+        }
+        return b;
+    }
+
+    private static int readIntLE(InputStream in) throws IOException {
+        return readByte(in) | readByte(in) << 8 | readByte(in) << 16 | readByte(in) << 24;
+    }
+
+    private static long readLongLE(byte[] buffer, int offset) {
+        long value = 0;
+        for (int i = 7; i >= 0; i--) {
+            value = value << 8 | (buffer[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    private static void writeIntLE(OutputStream out, int value) throws IOException {
+        out.write(value);
+        out.write(value >>> 8);
+        out.write(value >>> 16);
+        out.write(value >>> 24);
+    }
+
+    private static void skipFully(InputStream in, long length) throws IOException {
+        byte[] buffer = BufferPool.acquire(SKIP_BUFFER_SIZE);
+        try {
+            while (length > 0) {
+                int read = in.read(buffer, 0, (int) Math.min(buffer.length, length));
+                if (read == -1) {
+                    throw new EOFException("Truncated LZ4 frame");
+                }
+                length -= read;
+            }
+        } finally {
+            BufferPool.release(buffer);
+        }
+    }
+    /**
+     * Returns the largest number of bytes compressBlock can produce for the given input length.
+     */
+    public static int maxCompressedLength(int length) {
+        return LZ4_FACTORY.fastCompressor().maxCompressedLength(length);
+    }
+
+    /**
+     * Compresses a single self-contained LZ4 block. Used by the streaming transfer so that
+     * each chunk can be put on the wire as soon as it has been read from disk.
+     *
+     * @param src    The raw bytes to compress.
+     * @param srcLen The number of bytes in src to compress.
+     * @param dest   The destination buffer, at least maxCompressedLength(srcLen) bytes long.
+     * @return The number of compressed bytes written to dest.
+     */
+    public static int compressBlock(byte[] src, int srcLen, byte[] dest) {
+        return LZ4_FACTORY.fastCompressor().compress(src, 0, srcLen, dest, 0, dest.length);
+    }
+
+    /**
+     * Like compressBlock but uses LZ4's high-compression mode, which is several times slower to
+     * compress but yields noticeably smaller blocks for redundant data. The output is a plain LZ4
+     * block, so decompressBlock reads it just as fast.
+     */
+    public static int compressBlockHC(byte[] src, int srcLen, byte[] dest) {
+        return LZ4_FACTORY.highCompressor().compress(src, 0, srcLen, dest, 0, dest.length);
+    }
+
+    /**
+     * Like compressBlockHC at the given level, from 1 (fastest) to 17 (smallest). The default is 9.
+     */
+    public static int compressBlockHC(byte[] src, int srcLen, byte[] dest, int level) {
+        return LZ4_FACTORY.highCompressor(level).compress(src, 0, srcLen, dest, 0, dest.length);
+    }
+
+    /**
+     * Decompresses a single LZ4 block produced by compressBlock.
+     *
+     * @param src     The compressed bytes.
+     * @param srcLen  The number of compressed bytes in src.
+     * @param dest    The destination buffer for the raw bytes.
+     * @param destLen The exact number of raw bytes the block is expected to hold.
+     * @throws IOException if the block is corrupt or does not match destLen.
+     */
+    public static void decompressBlock(byte[] src, int srcLen, byte[] dest, int destLen) throws IOException {
+        try {
+            // The safe decompressor validates the input, which matters for data read off the network.
+            int decompressed = LZ4_FACTORY.safeDecompressor().decompress(src, 0, srcLen, dest, 0, destLen);
+            if (decompressed != destLen) {
+                throw new IOException("Corrupt compressed block: expected " + destLen + " bytes but got " + decompressed);
+            }
+        } catch (LZ4Exception e) {
+            throw new IOException("Corrupt compressed block", e);
+        }
+    }
+}
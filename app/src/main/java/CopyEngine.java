@@ -0,0 +1,335 @@
+package com.hfm.app;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Copies files and folder trees with a small pool of worker threads.
+ *
+ * The thread calling add walks the source tree, creates the destination folders in order and
+ * queues every file; the workers copy the queued files meanwhile. Copying thousands of small files
+ * is bound by the open, close and metadata calls of each file rather than by the storage, and
+ * several files in flight hide that latency. The queue is bounded, so walking a huge tree doesn't
+ * run far ahead of the copy. Files written to plain file descriptors are copied with
+ * FileChannel.transferTo; streams from the Storage Access Framework use a pooled buffer.
+ *
+ * Progress is counted in bytes and always reported on the calling thread, at most every
+ * PROGRESS_INTERVAL_MS. The total grows while the tree is still being walked.
+ */
+public class CopyEngine {
+
+    /**
+     * Workers for a copy within one volume. Flash storage serves several requests at once, so the
+     * extra threads mostly overlap per-file overhead.
+     */
+    public static final int SAME_VOLUME_WORKERS = 4;
+
+    /**
+     * Workers for a copy between internal storage and the SD card. The card is the bottleneck and
+     * more than two streams only make its writes less sequential.
+     */
+    public static final int CROSS_VOLUME_WORKERS = 2;
+
+    private static final int QUEUE_CAPACITY = 256;
+    private static final long PROGRESS_INTERVAL_MS = 250;
+    private static final long TRANSFER_SLICE = 8L * 1024 * 1024;
+
+    /**
+     * How the engine creates folders and writes files, so the service can go through
+     * StorageUtils for the SD card.
+     */
+    public interface Target {
+        OutputStream openOutput(File dest) throws IOException;
+
+        boolean createDirectory(File dir);
+
+        BufferPool.Medium getMedium(File source, File dest);
+    }
+
+    public interface Listener {
+        /**
+         * Called on the thread calling add or finish.
+         *
+         * @param current The file or folder most recently queued.
+         */
+        void onProgress(long bytesDone, long bytesTotal, File current);
+
+        /**
+         * Called on a worker thread once dest is completely written, or on the calling thread
+         * once a folder is created.
+         */
+        void onCopied(File dest);
+    }
+
+    private static class Task {
+        final File source;
+        final File dest;
+
+        Task(File source, File dest) {
+            this.source = source;
+            this.dest = dest;
+        }
+    }
+
+    // Tells a worker that no more tasks will come.
+    private static final Task END = new Task(null, null);
+
+    private final Target target;
+    private final Listener listener;
+    private final BlockingQueue<Task> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final List<Thread> workers = new ArrayList<>();
+    private final Set<String> reserved = new HashSet<>();
+    private final AtomicLong bytesDone = new AtomicLong();
+    private final AtomicReference<IOException> failure = new AtomicReference<>();
+    private volatile boolean cancelled;
+    private long bytesTotal;
+    private long lastProgress;
+    private File current;
+
+    public CopyEngine(int workerCount, Target target, Listener listener) {
+        this.target = target;
+        this.listener = listener;
+        for (int i = 0; i < Math.max(1, workerCount); i++) {
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    work();
+                }
+            }, "CopyEngine-" + i);
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    /**
+     * Returns dest, or "name (n).ext" next to it if dest exists or was already handed out by this
+     * engine. Files that are queued but not yet written count as taken.
+     */
+    public File reserve(File dest) {
+        String parentPath = dest.getParent();
+        String fileName = dest.getName();
+        String extension = "";
+        String baseName = fileName;
+
+        int dotIndex = fileName.lastIndexOf('.');
+        if (dotIndex > 0) {
+            baseName = fileName.substring(0, dotIndex);
+            extension = fileName.substring(dotIndex);
+        }
+
+        int count = 1;
+        File newFile = dest;
+        while (newFile.exists() || reserved.contains(newFile.getPath())) {
+            newFile = new File(parentPath, baseName + " (" + count + ")" + extension);
+            count++;
+        }
+        reserved.add(newFile.getPath());
+        return newFile;
+    }
+
+    /**
+     * Copies source, a file or a folder, to dest, which should come from reserve. Folders are
+     * created before this returns; files may still be queued.
+     *
+     * @throws IOException if a folder can't be created or a worker has failed.
+     */
+    public void add(File source, File dest) throws IOException, InterruptedException {
+        checkFailure();
+        if (cancelled) {
+            return;
+        }
+        if (source.isDirectory()) {
+            current = source;
+            if (!target.createDirectory(dest)) {
+                throw new IOException("Failed to create destination directory: " + dest.getAbsolutePath());
+            }
+            listener.onCopied(dest);
+            File[] files = source.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    // The folder is new, so its children can't clash with anything.
+                    add(file, new File(dest, file.getName()));
+                }
+            }
+        } else {
+            current = source;
+            bytesTotal += source.length();
+            Task task = new Task(source, dest);
+            while (!queue.offer(task, PROGRESS_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+                checkFailure();
+                if (cancelled) {
+                    return;
+                }
+                reportProgress(false);
+            }
+        }
+        reportProgress(false);
+    }
+
+    /**
+     * Waits until every queued file is copied and stops the workers.
+     *
+     * @throws IOException if a worker failed.
+     */
+    public void finish() throws IOException, InterruptedException {
+        try {
+            for (int i = 0; i < workers.size(); i++) {
+                // The workers keep taking from the queue, so this only waits while it's full.
+                while (!queue.offer(END, PROGRESS_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+                    checkFailure();
+                    reportProgress(false);
+                }
+            }
+            for (Thread worker : workers) {
+                while (worker.isAlive()) {
+                    worker.join(PROGRESS_INTERVAL_MS);
+                    reportProgress(false);
+                }
+            }
+        } catch (InterruptedException e) {
+            cancel();
+            throw e;
+        }
+        checkFailure();
+        reportProgress(true);
+    }
+
+    /**
+     * Stops copying. Files being written are abandoned and deleted; queued files are skipped.
+     */
+    public void cancel() {
+        cancelled = true;
+        queue.clear();
+    }
+
+    /**
+     * Cancels whatever is left and stops the workers without waiting for them. Safe to call
+     * after finish, so it can go in a finally block.
+     */
+    public void shutdown() {
+        cancel();
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public long getBytesDone() {
+        return bytesDone.get();
+    }
+
+    private void work() {
+        try {
+            Task task;
+            while ((task = queue.take()) != END) {
+                if (cancelled || failure.get() != null) {
+                    continue;
+                }
+                try {
+                    copyFile(task.source, task.dest);
+                    if (!cancelled) {
+                        listener.onCopied(task.dest);
+                    }
+                } catch (IOException e) {
+                    failure.compareAndSet(null, e);
+                } catch (RuntimeException e) {
+                    // E.g. a SecurityException from the SAF, or a bug in a listener. Leaving it
+                    // uncaught would end this worker, and finish would wait for it forever.
+                    failure.compareAndSet(null, new IOException("Failed to copy " + task.source.getAbsolutePath(), e));
+                }
+            }
+        } catch (InterruptedException e) {
+            cancelled = true;
+        }
+    }
+
+    private void copyFile(File source, File dest) throws IOException {
+        BufferPool.Medium medium = target.getMedium(source, dest);
+        FileInputStream in = null;
+        OutputStream out = null;
+        byte[] buf = null;
+        boolean complete = false;
+        try {
+            in = new FileInputStream(source);
+            out = target.openOutput(dest);
+            if (medium != BufferPool.Medium.SAF && out instanceof FileOutputStream) {
+                // File to file, the kernel copies without the bytes passing through the heap.
+                complete = transfer(in.getChannel(), ((FileOutputStream) out).getChannel());
+                return;
+            }
+            buf = BufferPool.acquire(medium);
+            int len;
+            while ((len = in.read(buf)) > 0) {
+                if (cancelled) {
+                    return;
+                }
+                out.write(buf, 0, len);
+                bytesDone.addAndGet(len);
+            }
+            complete = true;
+        } finally {
+            BufferPool.release(buf);
+            if (in != null) in.close();
+            if (out != null) out.close();
+            // A half-written file looks like a good copy in the destination folder.
+            if (!complete) {
+                dest.delete();
+            }
+        }
+    }
+
+    // Copies in slices, so progress moves and cancel is noticed during large files.
+    private boolean transfer(FileChannel source, FileChannel dest) throws IOException {
+        long size = source.size();
+        long position = 0;
+        while (position < size) {
+            if (cancelled) {
+                return false;
+            }
+            long count = source.transferTo(position, Math.min(TRANSFER_SLICE, size - position), dest);
+            if (count <= 0) {
+                // The source shrank while we were copying it.
+                break;
+            }
+            position += count;
+            bytesDone.addAndGet(count);
+        }
+        return true;
+    }
+
+    private void reportProgress(boolean force) {
+        long now = System.currentTimeMillis();
+        if (force || now - lastProgress >= PROGRESS_INTERVAL_MS) {
+            lastProgress = now;
+            listener.onProgress(bytesDone.get(), bytesTotal, current);
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        IOException e = failure.get();
+        if (e != null) {
+            throw e;
+        }
+        if (Thread.currentThread().isInterrupted()) {
+            cancel();
+            throw new InterruptedIOException("Copy interrupted");
+        }
+    }
+}
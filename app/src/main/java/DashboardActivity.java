@@ -1,15 +1,20 @@
 package com.hfm.app;
 
 import android.app.Activity;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.graphics.PorterDuff;
 import android.graphics.drawable.LayerDrawable;
 import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Environment;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.StatFs;
+import android.os.SystemClock;
 import android.os.storage.StorageManager;
 import android.os.storage.StorageVolume;
 import android.text.format.Formatter;
@@ -25,6 +30,7 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import androidx.core.content.ContextCompat;
+import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
 import java.io.File;
 import java.io.FileOutputStream;
@@ -33,7 +39,6 @@ import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collections;
 import java.util.Comparator;
@@ -65,15 +70,30 @@ public class DashboardActivity extends Activity {
     public static final String EXTRA_STORAGE_PATH = "storage_path";
     public static final String EXTRA_STORAGE_NAME = "storage_name";
 
-    private static final int CATEGORY_IMAGES = 1;
-    private static final int CATEGORY_VIDEOS = 2;
-    private static final int CATEGORY_AUDIO = 3;
-    private static final int CATEGORY_DOCS = 4;
-    private static final int CATEGORY_SCRIPTS = 5;
-    private static final int CATEGORY_OTHER = 6;
+    private static final int CATEGORY_IMAGES = FileIndex.CATEGORY_IMAGES;
+    private static final int CATEGORY_VIDEOS = FileIndex.CATEGORY_VIDEOS;
+    private static final int CATEGORY_AUDIO = FileIndex.CATEGORY_AUDIO;
+    private static final int CATEGORY_DOCS = FileIndex.CATEGORY_DOCS;
+    private static final int CATEGORY_SCRIPTS = FileIndex.CATEGORY_SCRIPTS;
+    private static final int CATEGORY_OTHER = FileIndex.CATEGORY_OTHER;
 
     private Map<Integer, String> categoryNames = new HashMap<>();
     private Map<Integer, Integer> categoryIcons = new HashMap<>();
+    private BroadcastReceiver indexUpdatedReceiver;
+
+    // Changes come in batches every half second while files are copied or downloaded; analysing
+    // the whole index for each would keep a core busy. They are caught up on at most this often.
+    private static final long CHANGES_ANALYZE_INTERVAL_MS = 30000;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private long lastAnalyzeTime;
+    private boolean analyzeScheduled;
+    private final Runnable analyzeRunnable = new Runnable() {
+        @Override
+        public void run() {
+            analyzeScheduled = false;
+            analyzeStorage();
+        }
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -85,6 +105,35 @@ public class DashboardActivity extends Activity {
         initializeCategories();
         setupListeners();
 
+        analyzeStorage();
+        // The task reads the index as it was; analyze again once a fresh scan is in.
+        FileIndexer.refresh(this);
+        indexUpdatedReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                if (!intent.hasExtra(FileIndexer.EXTRA_CHANGED_PATHS)) {
+                    handler.removeCallbacks(analyzeRunnable);
+                    analyzeScheduled = false;
+                    analyzeStorage();
+                } else if (!analyzeScheduled) {
+                    analyzeScheduled = true;
+                    long wait = lastAnalyzeTime + CHANGES_ANALYZE_INTERVAL_MS - SystemClock.elapsedRealtime();
+                    handler.postDelayed(analyzeRunnable, Math.max(0, wait));
+                }
+            }
+        };
+        LocalBroadcastManager.getInstance(this).registerReceiver(indexUpdatedReceiver, new IntentFilter(FileIndexer.ACTION_INDEX_UPDATED));
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        LocalBroadcastManager.getInstance(this).unregisterReceiver(indexUpdatedReceiver);
+        handler.removeCallbacks(analyzeRunnable);
+    }
+
+    private void analyzeStorage() {
+        lastAnalyzeTime = SystemClock.elapsedRealtime();
         new AnalyzeStorageTask().execute();
     }
 
@@ -136,7 +185,7 @@ public class DashboardActivity extends Activity {
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
         super.onActivityResult(requestCode, resultCode, data);
         if (requestCode == FOLDER_LIST_REQUEST_CODE && resultCode == Activity.RESULT_OK) {
-            new AnalyzeStorageTask().execute();
+            analyzeStorage();
         }
     }
 
@@ -274,24 +323,7 @@ public class DashboardActivity extends Activity {
     }
 
     private int getFileCategory(String fileName) {
-        String extension = "";
-        int i = fileName.lastIndexOf('.');
-        if (i > 0) {
-            extension = fileName.substring(i + 1).toLowerCase(Locale.ROOT);
-        }
-
-        List<String> imageExtensions = Arrays.asList("jpg", "jpeg", "png", "gif", "bmp", "webp");
-        List<String> videoExtensions = Arrays.asList("mp4", "3gp", "mkv", "webm", "avi");
-        List<String> audioExtensions = Arrays.asList("mp3", "wav", "ogg", "m4a", "aac", "flac");
-        List<String> scriptExtensions = Arrays.asList("json", "xml", "html", "js", "css", "java", "kt", "py", "c", "cpp", "h", "cs", "php", "rb", "go", "swift", "sh", "bat", "ps1", "ini", "cfg", "conf", "md", "prop", "gradle", "pro", "sql");
-        List<String> docExtensions = Arrays.asList("pdf", "doc", "docx", "xls", "xlsx", "ppt", "pptx", "txt", "rtf", "csv");
-
-        if (imageExtensions.contains(extension)) return CATEGORY_IMAGES;
-        if (videoExtensions.contains(extension)) return CATEGORY_VIDEOS;
-        if (audioExtensions.contains(extension)) return CATEGORY_AUDIO;
-        if (scriptExtensions.contains(extension)) return CATEGORY_SCRIPTS;
-        if (docExtensions.contains(extension)) return CATEGORY_DOCS;
-        return CATEGORY_OTHER;
+        return FileIndex.categoryOf(fileName);
     }
 
     private static class StorageVolumeInfo {
@@ -333,9 +365,16 @@ public class DashboardActivity extends Activity {
 
             long todayStartMillis = getStartOfToday();
 
+            FileIndex index = FileIndex.getInstance(DashboardActivity.this);
+            boolean indexReady = index.isReady();
             for (StorageVolumeInfo info : storageInfos) {
                 if (info.path != null && info.path.exists()) {
-                    scanDirectory(info.path, todayStartMillis, categorizedFiles);
+                    if (indexReady && index.covers(DashboardActivity.this, info.path)) {
+                        addTodaysFilesFromIndex(index, info.path, todayStartMillis, categorizedFiles);
+                    } else {
+                        // OTG drives aren't indexed, and nothing is before the first scan.
+                        scanDirectory(info.path, todayStartMillis, categorizedFiles);
+                    }
                 }
             }
 
@@ -433,6 +472,33 @@ public class DashboardActivity extends Activity {
         }
 
 
+        private void addTodaysFilesFromIndex(FileIndex index, File volume, long todayStartMillis, Map<Integer, Map<String, List<File>>> categorizedFiles) {
+            StringBuilder selection = new StringBuilder(FileIndex.COLUMN_IS_DIR + " = 0 AND " + FileIndex.COLUMN_HIDDEN + " = 0 AND "
+                + FileIndex.COLUMN_MTIME + " >= ?");
+            List<String> selectionArgs = new ArrayList<>();
+            selectionArgs.add(String.valueOf(todayStartMillis));
+            FileIndex.appendUnder(selection, selectionArgs, volume.getAbsolutePath());
+
+            for (FileIndex.Entry entry : index.query(selection.toString(), selectionArgs.toArray(new String[0]), null)) {
+                File file = entry.getFile();
+                addCategorizedFile(file, entry.category, categorizedFiles);
+            }
+        }
+
+        private void addCategorizedFile(File file, int category, Map<Integer, Map<String, List<File>>> categorizedFiles) {
+            String parentFolderName = getHumanReadableFolderName(file.getParentFile());
+
+            Map<String, List<File>> folderMap = categorizedFiles.get(category);
+            if (folderMap != null) {
+                List<File> fileList = folderMap.get(parentFolderName);
+                if (fileList == null) {
+                    fileList = new ArrayList<>();
+                    folderMap.put(parentFolderName, fileList);
+                }
+                fileList.add(file);
+            }
+        }
+
         private void scanDirectory(File directory, long todayStartMillis, Map<Integer, Map<String, List<File>>> categorizedFiles) {
             if (directory == null || !directory.isDirectory() || directory.getName().startsWith(".")) {
                 return;
@@ -448,18 +514,7 @@ public class DashboardActivity extends Activity {
                         scanDirectory(file, todayStartMillis, categorizedFiles);
                     } else {
                         if (file.lastModified() >= todayStartMillis) {
-                            int category = getFileCategory(file.getName());
-                            String parentFolderName = getHumanReadableFolderName(file.getParentFile());
-
-                            Map<String, List<File>> folderMap = categorizedFiles.get(category);
-                            if (folderMap != null) {
-                                List<File> fileList = folderMap.get(parentFolderName);
-                                if (fileList == null) {
-                                    fileList = new ArrayList<>();
-                                    folderMap.put(parentFolderName, fileList);
-                                }
-                                fileList.add(file);
-                            }
+                            addCategorizedFile(file, getFileCategory(file.getName()), categorizedFiles);
                         }
                     }
                 }
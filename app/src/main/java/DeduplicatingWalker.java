@@ -0,0 +1,97 @@
+package com.hfm.app;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Walks the picked files like FileTreeWalker, but first offers them to the receiver in windows
+ * and hands out only the files it doesn't have yet, so re-sending a camera folder only moves
+ * the new photos.
+ *
+ * Windows start small, so the first file still goes out almost at once, and double up to
+ * MAX_WINDOW as the transfer gets going, so larger trees take few round trips.
+ */
+public class DeduplicatingWalker {
+
+    private static final int FIRST_WINDOW = 32;
+    private static final int MAX_WINDOW = 512;
+
+    public interface Listener {
+        // A file the receiver already has; it will not be handed out.
+        void onSkipped(FileTreeWalker.Item item);
+
+        // The receiver answered an offer, so it has handled every frame sent before it.
+        void onOfferAnswered() throws IOException;
+    }
+
+    private final FileTreeWalker walker;
+    private final TransferProtocol protocol;
+    private final ReadableByteChannel channel;
+    private final Listener listener;
+    private final Deque<FileTreeWalker.Item> pending = new ArrayDeque<>();
+    private int window = FIRST_WINDOW;
+
+    /**
+     * @param protocol The connection to offer files over, or null to hand out every file, e.g.
+     *                 when the receiver doesn't support deduplication.
+     */
+    public DeduplicatingWalker(FileTreeWalker walker, TransferProtocol protocol, ReadableByteChannel channel, Listener listener) {
+        this.walker = walker;
+        this.protocol = protocol;
+        this.channel = channel;
+        this.listener = listener;
+    }
+
+    public boolean hasNext() throws IOException {
+        return peek() != null;
+    }
+
+    /**
+     * Returns the next file to send without moving past it, or null at the end of the walk.
+     */
+    public FileTreeWalker.Item peek() throws IOException {
+        if (protocol == null) {
+            return walker.peek();
+        }
+        while (pending.isEmpty() && walker.hasNext()) {
+            offerNextWindow();
+        }
+        return pending.peek();
+    }
+
+    public FileTreeWalker.Item next() throws IOException {
+        FileTreeWalker.Item item = peek();
+        if (item == null) {
+            throw new NoSuchElementException();
+        }
+        return protocol == null ? walker.next() : pending.poll();
+    }
+
+    private void offerNextWindow() throws IOException {
+        List<FileTreeWalker.Item> items = new ArrayList<>();
+        List<TransferProtocol.OfferEntry> offer = new ArrayList<>();
+        while (items.size() < window && walker.hasNext()) {
+            FileTreeWalker.Item item = walker.next();
+            items.add(item);
+            offer.add(new TransferProtocol.OfferEntry(item.relativePath, Fingerprint.of(item.file)));
+        }
+        protocol.writeOffer(offer);
+        BitSet have = ChunkedTransfer.readBitSet(channel, items.size());
+        listener.onOfferAnswered();
+
+        for (int i = 0; i < items.size(); i++) {
+            if (have.get(i)) {
+                listener.onSkipped(items.get(i));
+            } else {
+                pending.add(items.get(i));
+            }
+        }
+        window = Math.min(window * 2, MAX_WINDOW);
+    }
+}
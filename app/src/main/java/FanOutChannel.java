@@ -0,0 +1,359 @@
+package com.hfm.app;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * A channel that sends everything written to it to several receivers at once, so a batch is
+ * read and compressed once however many devices it goes to.
+ *
+ * Written bytes are copied once into shared segments, and each receiver works through its own
+ * queue of them from a non-blocking Selector loop. Segments are direct buffers borrowed from the
+ * BufferPool, so batches sent one after another reuse them. A receiver can fall up to
+ * MAX_QUEUED_BYTES behind the fastest one before the writer waits for it, so a receiver that is
+ * briefly slow doesn't hold up the others. One that stays more than half of that behind for
+ * LAG_TIMEOUT_MS is dropped, so the others only ever wait on receivers that keep up; so is one
+ * that makes no progress for STALL_TIMEOUT_MS. The rest carry on.
+ *
+ * Reads collect the same reply from every receiver, e.g. the confirmation at the end of a
+ * batch. A receiver whose reply differs from the others is dropped.
+ */
+public class FanOutChannel implements ByteChannel {
+
+    private static final int SEGMENT_SIZE = 256 * 1024;
+    public static final long MAX_QUEUED_BYTES = 16L * 1024 * 1024;
+    private static final long STALL_TIMEOUT_MS = 15000;
+    private static final long LAG_TIMEOUT_MS = 10000;
+    private static final long SELECT_TIMEOUT_MS = 100;
+
+    public interface Listener {
+        void onReceiverDropped(int receiver, int remaining, IOException cause);
+    }
+
+    // A block of written bytes, shared by every receiver queue it is in.
+    private static class Segment {
+        final ByteBuffer data;
+        int references;
+
+        Segment(ByteBuffer data) {
+            this.data = data;
+        }
+    }
+
+    // A receiver's view of a segment, with its own position.
+    private static class Pending {
+        final Segment segment;
+        final ByteBuffer view;
+
+        Pending(Segment segment, ByteBuffer view) {
+            this.segment = segment;
+            this.view = view;
+        }
+    }
+
+    private class Receiver {
+        final int id;
+        final SocketChannel channel;
+        final SelectionKey key;
+        final Deque<Pending> queue = new ArrayDeque<>();
+        long queuedBytes;
+        long lastProgress = System.currentTimeMillis();
+        // When it last fell more than half a window behind the fastest receiver, or 0 while it keeps up.
+        long laggingSince;
+
+        Receiver(int id, SocketChannel channel) throws IOException {
+            this.id = id;
+            this.channel = channel;
+            channel.configureBlocking(false);
+            this.key = channel.register(selector, 0, this);
+        }
+    }
+
+    private final Selector selector;
+    private final List<Receiver> receivers = new ArrayList<>();
+    private final Listener listener;
+    private final long lagTimeoutMs;
+    // Collects small writes, such as frame headers, until there is a segment's worth.
+    private Segment current;
+    private boolean isOpen = true;
+
+    /**
+     * @param channels Connected receivers, each already past its handshake. They are switched to non-blocking mode.
+     */
+    public FanOutChannel(List<SocketChannel> channels, Listener listener) throws IOException {
+        this(channels, listener, LAG_TIMEOUT_MS);
+    }
+
+    FanOutChannel(List<SocketChannel> channels, Listener listener, long lagTimeoutMs) throws IOException {
+        this.selector = Selector.open();
+        this.listener = listener;
+        this.lagTimeoutMs = lagTimeoutMs;
+        for (int i = 0; i < channels.size(); i++) {
+            receivers.add(new Receiver(i, channels.get(i)));
+        }
+    }
+
+    public int receiverCount() {
+        return receivers.size();
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        ensureOpen();
+        int written = src.remaining();
+        while (src.hasRemaining()) {
+            if (current == null) {
+                current = new Segment(BufferPool.acquireDirect(SEGMENT_SIZE));
+            }
+            int count = Math.min(src.remaining(), current.data.remaining());
+            ByteBuffer slice = src.duplicate();
+            slice.limit(slice.position() + count);
+            current.data.put(slice);
+            src.position(src.position() + count);
+            if (!current.data.hasRemaining()) {
+                publish();
+            }
+        }
+        pump(false);
+        // Wait only as long as some receiver is more than a window behind.
+        while (mostQueued() > MAX_QUEUED_BYTES) {
+            pump(true);
+        }
+        return written;
+    }
+
+    /**
+     * Waits until every receiver has been sent everything written so far.
+     */
+    public void flush() throws IOException {
+        ensureOpen();
+        publish();
+        while (mostQueued() > 0) {
+            pump(true);
+        }
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        flush();
+        int length = dst.remaining();
+        List<Receiver> group = new ArrayList<>(receivers);
+        ByteBuffer[] replies = new ByteBuffer[group.size()];
+        for (int i = 0; i < replies.length; i++) {
+            replies[i] = ByteBuffer.allocate(length);
+            group.get(i).key.interestOps(SelectionKey.OP_READ);
+            group.get(i).lastProgress = System.currentTimeMillis();
+        }
+
+        int waiting = replies.length;
+        while (waiting > 0) {
+            selector.select(SELECT_TIMEOUT_MS);
+            selector.selectedKeys().clear();
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < replies.length; i++) {
+                Receiver receiver = group.get(i);
+                if (replies[i] == null || !replies[i].hasRemaining()) {
+                    continue;
+                }
+                try {
+                    int read = receiver.channel.read(replies[i]);
+                    if (read == -1) {
+                        throw new IOException("Receiver closed the connection");
+                    }
+                    if (read > 0) {
+                        receiver.lastProgress = now;
+                    } else if (now - receiver.lastProgress > STALL_TIMEOUT_MS) {
+                        throw new IOException("Receiver stopped answering");
+                    }
+                    if (!replies[i].hasRemaining()) {
+                        receiver.key.interestOps(0);
+                        waiting--;
+                    }
+                } catch (IOException e) {
+                    replies[i] = null;
+                    waiting--;
+                    drop(receiver, e);
+                }
+            }
+        }
+
+        ByteBuffer agreed = null;
+        for (int i = 0; i < replies.length; i++) {
+            if (replies[i] == null) {
+                continue;
+            }
+            replies[i].flip();
+            if (agreed == null) {
+                agreed = replies[i];
+            } else if (!agreed.equals(replies[i])) {
+                drop(group.get(i), new IOException("Receiver answered differently from the others"));
+            }
+        }
+        if (agreed == null) {
+            throw new IOException("All receivers dropped out");
+        }
+        dst.put(agreed);
+        return length;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return isOpen;
+    }
+
+    @Override
+    public void close() throws IOException {
+        isOpen = false;
+        for (Receiver receiver : receivers) {
+            receiver.channel.close();
+            for (Pending pending : receiver.queue) {
+                release(pending.segment);
+            }
+            receiver.queue.clear();
+        }
+        receivers.clear();
+        if (current != null) {
+            BufferPool.releaseDirect(current.data);
+            current = null;
+        }
+        selector.close();
+    }
+
+    private void ensureOpen() throws IOException {
+        if (!isOpen) {
+            throw new ClosedChannelException();
+        }
+        if (receivers.isEmpty()) {
+            throw new IOException("All receivers dropped out");
+        }
+    }
+
+    // Hands the segment being filled to every receiver.
+    private void publish() {
+        if (current == null || current.data.position() == 0) {
+            return;
+        }
+        current.data.flip();
+        long now = System.currentTimeMillis();
+        for (Receiver receiver : receivers) {
+            if (receiver.queue.isEmpty()) {
+                // Time spent with nothing to send doesn't count towards a stall.
+                receiver.lastProgress = now;
+            }
+            current.references++;
+            receiver.queue.add(new Pending(current, current.data.duplicate()));
+            receiver.queuedBytes += current.data.remaining();
+        }
+        if (current.references == 0) {
+            BufferPool.releaseDirect(current.data);
+        }
+        current = null;
+    }
+
+    // Writes whatever each receiver can take right now. With wait, first waits briefly for one of them to have room.
+    private void pump(boolean wait) throws IOException {
+        for (Receiver receiver : receivers) {
+            receiver.key.interestOps(receiver.queue.isEmpty() ? 0 : SelectionKey.OP_WRITE);
+        }
+        if (wait) {
+            selector.select(SELECT_TIMEOUT_MS);
+        } else {
+            selector.selectNow();
+        }
+        selector.selectedKeys().clear();
+
+        long now = System.currentTimeMillis();
+        for (Receiver receiver : new ArrayList<>(receivers)) {
+            if (receiver.queue.isEmpty()) {
+                continue;
+            }
+            try {
+                if (send(receiver) > 0) {
+                    receiver.lastProgress = now;
+                } else if (now - receiver.lastProgress > STALL_TIMEOUT_MS) {
+                    throw new IOException("Receiver stopped reading for " + STALL_TIMEOUT_MS / 1000 + " s");
+                }
+            } catch (IOException e) {
+                drop(receiver, e);
+            }
+        }
+        dropLaggards(now);
+        if (receivers.isEmpty()) {
+            throw new IOException("All receivers dropped out");
+        }
+    }
+
+    private long send(Receiver receiver) throws IOException {
+        long sent = 0;
+        while (!receiver.queue.isEmpty()) {
+            Pending pending = receiver.queue.peek();
+            int written = receiver.channel.write(pending.view);
+            sent += written;
+            receiver.queuedBytes -= written;
+            if (pending.view.hasRemaining()) {
+                break; // The socket buffer is full.
+            }
+            receiver.queue.poll();
+            release(pending.segment);
+        }
+        return sent;
+    }
+
+    // A receiver that keeps making some progress never stalls, but the writer would wait for it
+    // every time it reaches the window, so one that stays well behind the fastest is let go.
+    private void dropLaggards(long now) {
+        if (receivers.size() < 2) {
+            return;
+        }
+        long fewest = Long.MAX_VALUE;
+        for (Receiver receiver : receivers) {
+            fewest = Math.min(fewest, receiver.queuedBytes);
+        }
+        for (Receiver receiver : new ArrayList<>(receivers)) {
+            if (receiver.queuedBytes - fewest <= MAX_QUEUED_BYTES / 2) {
+                receiver.laggingSince = 0;
+            } else if (receiver.laggingSince == 0) {
+                receiver.laggingSince = now;
+            } else if (now - receiver.laggingSince > lagTimeoutMs) {
+                drop(receiver, new IOException("Receiver fell behind the others for " + lagTimeoutMs / 1000 + " s"));
+            }
+        }
+    }
+
+    private void drop(Receiver receiver, IOException cause) {
+        receivers.remove(receiver);
+        receiver.key.cancel();
+        try {
+            receiver.channel.close();
+        } catch (IOException ignored) {
+        }
+        for (Pending pending : receiver.queue) {
+            release(pending.segment);
+        }
+        receiver.queue.clear();
+        listener.onReceiverDropped(receiver.id, receivers.size(), cause);
+    }
+
+    private void release(Segment segment) {
+        if (--segment.references == 0) {
+            BufferPool.releaseDirect(segment.data);
+        }
+    }
+
+    private long mostQueued() {
+        long most = 0;
+        for (Receiver receiver : receivers) {
+            most = Math.max(most, receiver.queuedBytes);
+        }
+        return most;
+    }
+}
@@ -466,8 +466,7 @@ public class FileDeleteActivity extends Activity {
 
                 if (sourceFile.renameTo(destFile)) {
                     movedCount++;
-                    sendBroadcast(new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE, Uri.fromFile(sourceFile)));
-                    sendBroadcast(new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE, Uri.fromFile(destFile)));
+                    MediaStoreSync.getInstance(this).notifyMoved(sourceFile, destFile);
                 } else {
                     Log.w("FileDeleteActivity", "Failed to move file to recycle bin: " + sourceFile.getAbsolutePath());
                 }
@@ -367,18 +367,37 @@ public class FileHiderActivity extends Activity {
         @Override
         protected List<File> doInBackground(File... roots) {
             List<File> foundFiles = new ArrayList<>();
-            for (File root : roots) {
-                scanDirectory(root, foundFiles);
+            FileIndex index = FileIndex.getInstance(FileHiderActivity.this);
+            if (roots.length == 1 && index.isReady() && index.covers(FileHiderActivity.this, roots[0])) {
+                // Comes back newest first, without a stat per comparison.
+                addFilesFromIndex(index, roots[0], foundFiles);
+            } else {
+                for (File root : roots) {
+                    scanDirectory(root, foundFiles);
+                }
+                Collections.sort(foundFiles, new Comparator<File>() {
+						@Override
+						public int compare(File f1, File f2) {
+							return Long.compare(f2.lastModified(), f1.lastModified());
+						}
+					});
             }
-            Collections.sort(foundFiles, new Comparator<File>() {
-					@Override
-					public int compare(File f1, File f2) {
-						return Long.compare(f2.lastModified(), f1.lastModified());
-					}
-				});
+            // Keeps the index current for the next visit.
+            FileIndexer.refresh(FileHiderActivity.this);
             return foundFiles;
         }
 
+        private void addFilesFromIndex(FileIndex index, File root, List<File> fileList) {
+            publishProgress("Reading file index...");
+            StringBuilder selection = new StringBuilder(FileIndex.COLUMN_IS_DIR + " = 0");
+            List<String> selectionArgs = new ArrayList<>();
+            FileIndex.appendUnder(selection, selectionArgs, root.getAbsolutePath());
+            FileIndex.appendNotUnder(selection, selectionArgs, Environment.getExternalStorageDirectory().getAbsolutePath() + "/Android");
+            for (FileIndex.Entry entry : index.query(selection.toString(), selectionArgs.toArray(new String[0]), FileIndex.COLUMN_MTIME + " DESC")) {
+                fileList.add(entry.getFile());
+            }
+        }
+
         private void scanDirectory(File directory, List<File> fileList) {
             if (directory == null || !directory.isDirectory()) {
                 return;
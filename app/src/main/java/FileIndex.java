@@ -0,0 +1,683 @@
+package com.hfm.app;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A persistent index of every file and folder on the indexed volumes, so screens can answer
+ * "what changed today" or "what is under this folder" with a query instead of walking storage.
+ *
+ * One row per file or folder: path, parent folder, name, size, modification time, category and
+ * whether it is inside a hidden folder. FileIndexer fills it in the background; isReady tells
+ * whether a complete scan has finished, until then callers should walk the filesystem as before.
+ * The database uses write-ahead logging, so queries don't wait for the indexer's transactions.
+ *
+ * Names are also kept in an FTS4 table as trigrams (see nameGrams), so searchNames finds a
+ * substring of a name through the full-text index instead of a LIKE over every row.
+ */
+public class FileIndex extends SQLiteOpenHelper {
+
+    private static final String DATABASE_NAME = "file_index.db";
+    private static final int DATABASE_VERSION = 2;
+
+    public static final String TABLE_FILES = "files";
+    public static final String COLUMN_PATH = "path";
+    public static final String COLUMN_PARENT = "parent";
+    public static final String COLUMN_NAME = "name";
+    public static final String COLUMN_IS_DIR = "is_dir";
+    public static final String COLUMN_SIZE = "size";
+    public static final String COLUMN_MTIME = "mtime";
+    public static final String COLUMN_CATEGORY = "category";
+    // 1 for a folder whose name starts with a dot and for everything below one.
+    public static final String COLUMN_HIDDEN = "hidden";
+    private static final String COLUMN_GENERATION = "generation";
+
+    // FTS4 table of name trigrams; the docid is the _id of the row in files.
+    private static final String TABLE_NAMES = "names";
+
+    private static final String TABLE_META = "meta";
+    private static final String META_GENERATION = "generation";
+    private static final String META_LAST_FULL_SCAN = "last_full_scan";
+    private static final String META_LAST_SCAN_START = "last_scan_start";
+    private static final String META_LAST_FULL_WALK = "last_full_walk";
+
+    public static final int CATEGORY_IMAGES = 1;
+    public static final int CATEGORY_VIDEOS = 2;
+    public static final int CATEGORY_AUDIO = 3;
+    public static final int CATEGORY_DOCS = 4;
+    public static final int CATEGORY_SCRIPTS = 5;
+    public static final int CATEGORY_OTHER = 6;
+
+    private static final List<String> IMAGE_EXTENSIONS = Arrays.asList("jpg", "jpeg", "png", "gif", "bmp", "webp");
+    private static final List<String> VIDEO_EXTENSIONS = Arrays.asList("mp4", "3gp", "mkv", "webm", "avi");
+    private static final List<String> AUDIO_EXTENSIONS = Arrays.asList("mp3", "wav", "ogg", "m4a", "aac", "flac");
+    private static final List<String> SCRIPT_EXTENSIONS = Arrays.asList("json", "xml", "html", "js", "css", "java", "kt", "py", "c", "cpp", "h", "cs", "php", "rb", "go", "swift", "sh", "bat", "ps1", "ini", "cfg", "conf", "md", "prop", "gradle", "pro", "sql");
+    private static final List<String> DOC_EXTENSIONS = Arrays.asList("pdf", "doc", "docx", "xls", "xlsx", "ppt", "pptx", "txt", "rtf", "csv");
+
+    // Shortest text searched for with one edit allowed; each half needs a trigram of its own.
+    private static final int FUZZY_MIN_LENGTH = 6;
+    // Folders per query when listing what is below matching folders, two arguments each.
+    private static final int FOLDERS_PER_QUERY = 400;
+
+    public static final int MATCH_EXACT = 0;
+    public static final int MATCH_PREFIX = 1;
+    public static final int MATCH_WORD = 2;
+    public static final int MATCH_SUBSTRING = 3;
+    public static final int MATCH_OTHER = 4;
+
+    private static final String[] ENTRY_COLUMNS = {COLUMN_PATH, COLUMN_NAME, COLUMN_IS_DIR, COLUMN_SIZE, COLUMN_MTIME, COLUMN_CATEGORY};
+
+    /**
+     * A row of the index.
+     */
+    public static class Entry {
+        public final String path;
+        public final String name;
+        public final boolean isDirectory;
+        public final long size;
+        public final long lastModified;
+        public final int category;
+
+        Entry(String path, String name, boolean isDirectory, long size, long lastModified, int category) {
+            this.path = path;
+            this.name = name;
+            this.isDirectory = isDirectory;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.category = category;
+        }
+
+        public File getFile() {
+            return new File(path);
+        }
+    }
+
+    /**
+     * Writes rows in one transaction; used by FileIndexer. Rows are updated in place rather
+     * than replaced, so a file keeps its rowid across scans.
+     */
+    public class Writer {
+        private final SQLiteDatabase db;
+        private final long generation;
+        private final SQLiteStatement update;
+        private final SQLiteStatement insert;
+        private final SQLiteStatement touch;
+        private final SQLiteStatement insertName;
+        private boolean closed;
+
+        Writer(long generation) {
+            this.generation = generation;
+            db = getWritableDatabase();
+            db.beginTransaction();
+            update = db.compileStatement("UPDATE " + TABLE_FILES + " SET " + COLUMN_IS_DIR + " = ?, " + COLUMN_SIZE + " = ?, "
+                + COLUMN_MTIME + " = ?, " + COLUMN_CATEGORY + " = ?, " + COLUMN_HIDDEN + " = ?, " + COLUMN_GENERATION + " = ? WHERE "
+                + COLUMN_PATH + " = ?");
+            insert = db.compileStatement("INSERT INTO " + TABLE_FILES + " (" + COLUMN_IS_DIR + ", " + COLUMN_SIZE + ", " + COLUMN_MTIME
+                + ", " + COLUMN_CATEGORY + ", " + COLUMN_HIDDEN + ", " + COLUMN_GENERATION + ", " + COLUMN_PATH + ", " + COLUMN_PARENT
+                + ", " + COLUMN_NAME + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)");
+            touch = db.compileStatement("UPDATE " + TABLE_FILES + " SET " + COLUMN_GENERATION + " = ? WHERE " + COLUMN_PARENT
+                + " = ? AND " + COLUMN_IS_DIR + " = 0");
+            insertName = db.compileStatement("INSERT INTO " + TABLE_NAMES + " (docid, grams) VALUES (?, ?)");
+        }
+
+        public void put(String path, String parent, String name, boolean isDirectory, long size, long lastModified, boolean hidden) {
+            int category = isDirectory ? 0 : categoryOf(name);
+            bind(update, isDirectory, size, lastModified, category, hidden);
+            update.bindString(7, path);
+            if (update.executeUpdateDelete() == 0) {
+                bind(insert, isDirectory, size, lastModified, category, hidden);
+                insert.bindString(7, path);
+                insert.bindString(8, parent);
+                insert.bindString(9, name);
+                // A path keeps its name, so the trigrams only need writing with the row.
+                insertName.bindLong(1, insert.executeInsert());
+                insertName.bindString(2, nameGrams(name));
+                insertName.executeInsert();
+            }
+        }
+
+        /**
+         * Keeps the rows of the files directly in parent as they are, for a folder that hasn't
+         * changed since the last scan. Its subfolders have to be put or touched themselves.
+         */
+        public void touchFiles(String parent) {
+            touch.bindLong(1, generation);
+            touch.bindString(2, parent);
+            touch.executeUpdateDelete();
+        }
+
+        /**
+         * Deletes the row of path and, if it was a folder, of everything that was inside.
+         */
+        public void remove(String path) {
+            db.delete(TABLE_FILES, COLUMN_PATH + " = ? OR (" + COLUMN_PATH + " >= ? AND " + COLUMN_PATH + " < ?)",
+                new String[]{path, path + "/", path + "0"});
+        }
+
+        private void bind(SQLiteStatement statement, boolean isDirectory, long size, long lastModified, int category, boolean hidden) {
+            statement.bindLong(1, isDirectory ? 1 : 0);
+            statement.bindLong(2, size);
+            statement.bindLong(3, lastModified);
+            statement.bindLong(4, category);
+            statement.bindLong(5, hidden ? 1 : 0);
+            statement.bindLong(6, generation);
+        }
+
+        /**
+         * Commits what was put and ends the transaction.
+         */
+        public void commit() {
+            try {
+                db.setTransactionSuccessful();
+            } finally {
+                close();
+            }
+        }
+
+        /**
+         * Ends the transaction, discarding anything not committed. Does nothing after commit.
+         */
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            db.endTransaction();
+            update.close();
+            insert.close();
+            touch.close();
+            insertName.close();
+        }
+    }
+
+    private static FileIndex instance;
+
+    public static synchronized FileIndex getInstance(Context context) {
+        if (instance == null) {
+            instance = new FileIndex(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private FileIndex(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    }
+
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        db.enableWriteAheadLogging();
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_FILES + " ("
+            + "_id INTEGER PRIMARY KEY, "
+            + COLUMN_PATH + " TEXT NOT NULL UNIQUE, "
+            + COLUMN_PARENT + " TEXT NOT NULL, "
+            + COLUMN_NAME + " TEXT NOT NULL, "
+            + COLUMN_IS_DIR + " INTEGER NOT NULL, "
+            + COLUMN_SIZE + " INTEGER NOT NULL, "
+            + COLUMN_MTIME + " INTEGER NOT NULL, "
+            + COLUMN_CATEGORY + " INTEGER NOT NULL, "
+            + COLUMN_HIDDEN + " INTEGER NOT NULL, "
+            + COLUMN_GENERATION + " INTEGER NOT NULL)");
+        db.execSQL("CREATE INDEX files_parent ON " + TABLE_FILES + " (" + COLUMN_PARENT + ")");
+        db.execSQL("CREATE INDEX files_mtime ON " + TABLE_FILES + " (" + COLUMN_IS_DIR + ", " + COLUMN_MTIME + ")");
+        db.execSQL("CREATE INDEX files_category ON " + TABLE_FILES + " (" + COLUMN_CATEGORY + ", " + COLUMN_MTIME + ")");
+        db.execSQL("CREATE TABLE " + TABLE_META + " (key TEXT PRIMARY KEY, value INTEGER NOT NULL)");
+        db.execSQL("CREATE VIRTUAL TABLE " + TABLE_NAMES + " USING fts4(grams)");
+        // Rows leave files through scans, remove() and upgrades alike; the trigger keeps names in step.
+        db.execSQL("CREATE TRIGGER files_names_delete AFTER DELETE ON " + TABLE_FILES + " BEGIN DELETE FROM " + TABLE_NAMES
+            + " WHERE docid = old._id; END");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // The index can always be rebuilt from storage.
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_FILES);
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_META);
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_NAMES);
+        onCreate(db);
+    }
+
+    /**
+     * The category a file name belongs to, one of the CATEGORY_ constants.
+     */
+    public static int categoryOf(String fileName) {
+        String extension = "";
+        int i = fileName.lastIndexOf('.');
+        if (i > 0) {
+            extension = fileName.substring(i + 1).toLowerCase(Locale.ROOT);
+        }
+
+        if (IMAGE_EXTENSIONS.contains(extension)) return CATEGORY_IMAGES;
+        if (VIDEO_EXTENSIONS.contains(extension)) return CATEGORY_VIDEOS;
+        if (AUDIO_EXTENSIONS.contains(extension)) return CATEGORY_AUDIO;
+        if (SCRIPT_EXTENSIONS.contains(extension)) return CATEGORY_SCRIPTS;
+        if (DOC_EXTENSIONS.contains(extension)) return CATEGORY_DOCS;
+        return CATEGORY_OTHER;
+    }
+
+    /**
+     * Appends a condition matching everything below root, not root itself. A range on the path
+     * uses the path index, where LIKE 'root/%' could not, and needs no escaping.
+     */
+    public static void appendUnder(StringBuilder selection, List<String> selectionArgs, String root) {
+        if (selection.length() > 0) selection.append(" AND ");
+        selection.append(COLUMN_PATH + " >= ? AND " + COLUMN_PATH + " < ?");
+        selectionArgs.add(root + "/");
+        // '0' is the character after '/'.
+        selectionArgs.add(root + "0");
+    }
+
+    /**
+     * Appends a condition excluding everything below root.
+     */
+    public static void appendNotUnder(StringBuilder selection, List<String> selectionArgs, String root) {
+        if (selection.length() > 0) selection.append(" AND ");
+        selection.append("NOT (" + COLUMN_PATH + " >= ? AND " + COLUMN_PATH + " < ?)");
+        selectionArgs.add(root + "/");
+        selectionArgs.add(root + "0");
+    }
+
+    /**
+     * Appends a condition matching everything below any of roots.
+     */
+    public static void appendUnderAny(StringBuilder selection, List<String> selectionArgs, List<String> roots) {
+        if (selection.length() > 0) selection.append(" AND ");
+        selection.append('(');
+        for (int i = 0; i < roots.size(); i++) {
+            if (i > 0) selection.append(" OR ");
+            selection.append("(" + COLUMN_PATH + " >= ? AND " + COLUMN_PATH + " < ?)");
+            selectionArgs.add(roots.get(i) + "/");
+            selectionArgs.add(roots.get(i) + "0");
+        }
+        selection.append(')');
+    }
+
+    /**
+     * Appends a condition matching paths that contain text, ignoring ASCII case.
+     */
+    public static void appendPathContains(StringBuilder selection, List<String> selectionArgs, String text) {
+        if (selection.length() > 0) selection.append(" AND ");
+        selection.append(COLUMN_PATH + " LIKE ? ESCAPE '\\'");
+        selectionArgs.add(likeContains(text));
+    }
+
+    private static String likeContains(String text) {
+        return "%" + text.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_") + "%";
+    }
+
+    /**
+     * The tokens the names table holds for a file name: every three characters in a row of
+     * letters and digits, lower-cased, and runs shorter than three as they are. "IMG_2024.jpg"
+     * gives "img 202 024 jpg". A text of three or more letters or digits lies in a name only if
+     * all its trigrams do, which FTS answers from its index.
+     */
+    static String nameGrams(String name) {
+        Set<String> grams = new LinkedHashSet<>();
+        for (String run : runs(name.toLowerCase(Locale.ROOT))) {
+            if (run.length() < 3) {
+                grams.add(run);
+            }
+            for (int i = 0; i + 3 <= run.length(); i++) {
+                grams.add(run.substring(i, i + 3));
+            }
+        }
+        return join(grams);
+    }
+
+    // The trigrams a name must have to contain text, which is lower case.
+    private static Set<String> textGrams(String text) {
+        Set<String> grams = new LinkedHashSet<>();
+        for (String run : runs(text)) {
+            for (int i = 0; i + 3 <= run.length(); i++) {
+                grams.add(run.substring(i, i + 3));
+            }
+        }
+        return grams;
+    }
+
+    // The runs of letters and digits in text. Surrogates count as separators, as in the FTS tokens.
+    private static List<String> runs(String text) {
+        List<String> runs = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean inRun = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (inRun && start < 0) {
+                start = i;
+            } else if (!inRun && start >= 0) {
+                runs.add(text.substring(start, i));
+                start = -1;
+            }
+        }
+        return runs;
+    }
+
+    private static String join(Set<String> tokens) {
+        StringBuilder joined = new StringBuilder();
+        for (String token : tokens) {
+            if (joined.length() > 0) joined.append(' ');
+            joined.append(token);
+        }
+        return joined.toString();
+    }
+
+    /**
+     * How well name matches a search for text, one of the MATCH_ constants; lower is better.
+     * MATCH_OTHER covers names that only come close and files found through their folder.
+     */
+    public static int matchRank(String name, String text) {
+        String lowerName = name.toLowerCase(Locale.ROOT);
+        String lowerText = text.toLowerCase(Locale.ROOT);
+        int dot = lowerName.lastIndexOf('.');
+        if (lowerName.equals(lowerText) || (dot > 0 && lowerName.substring(0, dot).equals(lowerText))) {
+            return MATCH_EXACT;
+        }
+        int at = lowerName.indexOf(lowerText);
+        if (at == 0) {
+            return MATCH_PREFIX;
+        }
+        if (at < 0) {
+            return MATCH_OTHER;
+        }
+        for (; at > 0; at = lowerName.indexOf(lowerText, at + 1)) {
+            if (!Character.isLetterOrDigit(lowerName.charAt(at - 1))) {
+                return MATCH_WORD;
+            }
+        }
+        return MATCH_SUBSTRING;
+    }
+
+    // Whether text is a substring of name with at most one character inserted, deleted or
+    // replaced: the edit distance table of Sellers' algorithm, where a match may start anywhere.
+    static boolean containsWithinOneEdit(String name, String text) {
+        int[] previous = new int[name.length() + 1];
+        int[] current = new int[name.length() + 1];
+        for (int i = 1; i <= text.length(); i++) {
+            current[0] = i;
+            for (int j = 1; j <= name.length(); j++) {
+                int cost = text.charAt(i - 1) == name.charAt(j - 1) ? 0 : 1;
+                current[j] = Math.min(previous[j - 1] + cost, Math.min(previous[j], current[j - 1]) + 1);
+            }
+            int[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        for (int distance : previous) {
+            if (distance <= 1) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether a complete scan has finished, so queries can stand in for walking storage.
+     */
+    public boolean isReady() {
+        return getLastFullScan() > 0;
+    }
+
+    /**
+     * When the last complete scan finished, in milliseconds, or 0 if none has.
+     */
+    public long getLastFullScan() {
+        return getMeta(META_LAST_FULL_SCAN);
+    }
+
+    /**
+     * Whether path lies on a volume the index covers.
+     */
+    public boolean covers(Context context, File path) {
+        String absolute = path.getAbsolutePath();
+        for (File root : FileIndexer.getRoots(context)) {
+            String rootPath = root.getAbsolutePath();
+            if (absolute.equals(rootPath) || absolute.startsWith(rootPath + "/")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the matching rows.
+     *
+     * @param selection A WHERE clause over the COLUMN_ constants, or null for every row.
+     * @param orderBy   An ORDER BY clause, or null.
+     */
+    public List<Entry> query(String selection, String[] selectionArgs, String orderBy) {
+        List<Entry> entries = new ArrayList<>();
+        Cursor cursor = getReadableDatabase().query(TABLE_FILES, ENTRY_COLUMNS, selection, selectionArgs, null, null, orderBy);
+        try {
+            while (cursor.moveToNext()) {
+                entries.add(new Entry(cursor.getString(0), cursor.getString(1), cursor.getInt(2) != 0,
+                    cursor.getLong(3), cursor.getLong(4), cursor.getInt(5)));
+            }
+        } finally {
+            cursor.close();
+        }
+        return entries;
+    }
+
+    /**
+     * Rows whose name contains text, ignoring case, newest first. If none does and text has at
+     * least FUZZY_MIN_LENGTH characters, rows whose name contains it with one typo instead.
+     *
+     * @param selection Further conditions over the COLUMN_ constants, or null.
+     */
+    public List<Entry> searchNames(String text, String selection, String[] selectionArgs) {
+        String lowerText = text.toLowerCase(Locale.ROOT);
+        Set<String> grams = textGrams(lowerText);
+        List<Entry> candidates;
+        if (grams.isEmpty()) {
+            // Too short for a trigram: scan the names, which is still cheaper than the paths.
+            candidates = query(withSelection(COLUMN_NAME + " LIKE ? ESCAPE '\\'", selection),
+                withArgs(Collections.singletonList(likeContains(lowerText)), selectionArgs), COLUMN_MTIME + " DESC");
+        } else {
+            candidates = queryMatching(Collections.singletonList(join(grams)), selection, selectionArgs);
+        }
+
+        // The trigrams say nothing about what lies between the runs, or where they are.
+        List<Entry> matches = new ArrayList<>();
+        for (Entry entry : candidates) {
+            if (entry.name.toLowerCase(Locale.ROOT).contains(lowerText)) {
+                matches.add(entry);
+            }
+        }
+        if (!matches.isEmpty() || lowerText.length() < FUZZY_MIN_LENGTH) {
+            return matches;
+        }
+
+        // One edit leaves one half of the text untouched, so a fuzzy match contains either half.
+        int half = lowerText.length() / 2;
+        Set<String> left = textGrams(lowerText.substring(0, half));
+        Set<String> right = textGrams(lowerText.substring(half));
+        if (left.isEmpty() || right.isEmpty()) {
+            return matches;
+        }
+        for (Entry entry : queryMatching(Arrays.asList(join(left), join(right)), selection, selectionArgs)) {
+            if (containsWithinOneEdit(entry.name.toLowerCase(Locale.ROOT), lowerText)) {
+                matches.add(entry);
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Files whose name contains text, or that lie below a folder whose name does, newest first.
+     * Names are matched as in searchNames.
+     *
+     * @param selection Further conditions over the COLUMN_ constants, or null. They apply to the
+     *                  matching folders as well as to the files.
+     */
+    public List<Entry> searchFiles(String text, String selection, String[] selectionArgs) {
+        List<Entry> files = new ArrayList<>();
+        List<String> folders = new ArrayList<>();
+        Set<String> found = new HashSet<>();
+        for (Entry entry : searchNames(text, selection, selectionArgs)) {
+            if (entry.isDirectory) {
+                folders.add(entry.path);
+            } else {
+                files.add(entry);
+                found.add(entry.path);
+            }
+        }
+        if (folders.isEmpty()) {
+            return files;
+        }
+
+        for (int start = 0; start < folders.size(); start += FOLDERS_PER_QUERY) {
+            StringBuilder where = new StringBuilder(COLUMN_IS_DIR + " = 0");
+            List<String> args = new ArrayList<>();
+            appendUnderAny(where, args, folders.subList(start, Math.min(start + FOLDERS_PER_QUERY, folders.size())));
+            for (Entry entry : query(withSelection(where.toString(), selection), withArgs(args, selectionArgs), null)) {
+                // Nested matching folders and matching names find some files twice.
+                if (found.add(entry.path)) {
+                    files.add(entry);
+                }
+            }
+        }
+        Collections.sort(files, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry e1, Entry e2) {
+                return Long.compare(e2.lastModified, e1.lastModified);
+            }
+        });
+        return files;
+    }
+
+    // Rows whose trigrams match any of the FTS queries, newest first.
+    private List<Entry> queryMatching(List<String> matches, String selection, String[] selectionArgs) {
+        StringBuilder where = new StringBuilder("_id IN (");
+        for (int i = 0; i < matches.size(); i++) {
+            if (i > 0) where.append(" UNION ");
+            where.append("SELECT docid FROM " + TABLE_NAMES + " WHERE " + TABLE_NAMES + " MATCH ?");
+        }
+        where.append(')');
+        return query(withSelection(where.toString(), selection), withArgs(matches, selectionArgs), COLUMN_MTIME + " DESC");
+    }
+
+    private static String withSelection(String where, String selection) {
+        return selection == null ? where : where + " AND (" + selection + ")";
+    }
+
+    private static String[] withArgs(List<String> args, String[] selectionArgs) {
+        List<String> all = new ArrayList<>(args);
+        if (selectionArgs != null) {
+            all.addAll(Arrays.asList(selectionArgs));
+        }
+        return all.toArray(new String[0]);
+    }
+
+    /**
+     * The modification time of every indexed folder, keyed by path.
+     */
+    public Map<String, Long> queryFolderTimes() {
+        Map<String, Long> times = new HashMap<>();
+        Cursor cursor = getReadableDatabase().query(TABLE_FILES, new String[]{COLUMN_PATH, COLUMN_MTIME}, COLUMN_IS_DIR + " = 1",
+            null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                times.put(cursor.getString(0), cursor.getLong(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        return times;
+    }
+
+    /**
+     * Folders that have nothing in them.
+     */
+    public List<Entry> queryEmptyFolders(String selection, String[] selectionArgs) {
+        String empty = COLUMN_IS_DIR + " = 1 AND NOT EXISTS (SELECT 1 FROM " + TABLE_FILES + " c WHERE c." + COLUMN_PARENT
+            + " = " + TABLE_FILES + "." + COLUMN_PATH + ")";
+        return query(selection == null ? empty : empty + " AND " + selection, selectionArgs, null);
+    }
+
+    /**
+     * Starts a scan. Rows the scan puts are tagged with a new generation, so finishScan can drop
+     * everything it didn't see.
+     */
+    public long beginScan() {
+        long generation = getMeta(META_GENERATION) + 1;
+        setMeta(META_GENERATION, generation);
+        return generation;
+    }
+
+    /**
+     * The generation of the latest scan, for rows written between scans.
+     */
+    public long getGeneration() {
+        return getMeta(META_GENERATION);
+    }
+
+    /**
+     * When the last complete scan started, in milliseconds, or 0 if none has finished.
+     */
+    public long getLastScanStart() {
+        return getMeta(META_LAST_SCAN_START);
+    }
+
+    /**
+     * When the last scan that listed every folder finished, in milliseconds.
+     */
+    public long getLastFullWalk() {
+        return getMeta(META_LAST_FULL_WALK);
+    }
+
+    public Writer newWriter(long generation) {
+        return new Writer(generation);
+    }
+
+    /**
+     * Ends a complete scan: rows of files that no longer exist are deleted and the index is
+     * marked ready.
+     *
+     * @param scanStart When the scan started.
+     * @param fullWalk  Whether the scan listed every folder, rather than skipping unchanged ones.
+     */
+    public void finishScan(long generation, long scanStart, boolean fullWalk) {
+        getWritableDatabase().delete(TABLE_FILES, COLUMN_GENERATION + " < ?", new String[]{String.valueOf(generation)});
+        long now = System.currentTimeMillis();
+        setMeta(META_LAST_FULL_SCAN, now);
+        setMeta(META_LAST_SCAN_START, scanStart);
+        if (fullWalk) {
+            setMeta(META_LAST_FULL_WALK, now);
+        }
+    }
+
+    private long getMeta(String key) {
+        Cursor cursor = getReadableDatabase().query(TABLE_META, new String[]{"value"}, "key = ?", new String[]{key}, null, null, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void setMeta(String key, long value) {
+        ContentValues values = new ContentValues();
+        values.put("key", key);
+        values.put("value", value);
+        getWritableDatabase().insertWithOnConflict(TABLE_META, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+}
@@ -0,0 +1,337 @@
+package com.hfm.app;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Environment;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructStat;
+import android.util.Log;
+
+import androidx.localbroadcastmanager.content.LocalBroadcastManager;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Keeps the FileIndex current for internal storage and the SD card, on a background thread.
+ *
+ * A scan walks the volumes with one lstat() per entry instead of the isDirectory(), length() and
+ * lastModified() calls of a File walk, writing rows in transactions of BATCH_SIZE. Symbolic links
+ * are not followed. Adding, deleting or renaming an entry changes its folder's mtime, so once the
+ * index is complete a scan only lists folders whose mtime moved and just stats the others; its
+ * cost follows the number of folders and changes, not of files. Files rewritten in place don't
+ * touch their folder, so every FULL_WALK_INTERVAL_MS one scan lists everything again.
+ *
+ * Between scans the index follows changes as they happen: the app reports what it adds, deletes
+ * and moves through notifyChanged (MediaStoreSync forwards everything it is told), and the hot
+ * folders where other apps drop files are watched with a RecursiveFileObserver. Listeners are
+ * told through ACTION_INDEX_UPDATED after a scan or a batch of changes; a batch comes with
+ * EXTRA_CHANGED_PATHS, so listeners can tell the two apart and only redo what the batch touches.
+ * While files are being copied or downloaded, batches arrive every CHANGE_DEBOUNCE_MS.
+ */
+public class FileIndexer {
+
+    private static final String TAG = "FileIndexer";
+
+    public static final String ACTION_INDEX_UPDATED = "com.hfm.app.action.INDEX_UPDATED";
+    // String[] of the files and folders a batch of changes touched. Absent after a scan, which
+    // may have changed anything.
+    public static final String EXTRA_CHANGED_PATHS = "com.hfm.app.extra.CHANGED_PATHS";
+
+    private static final int BATCH_SIZE = 1000;
+    private static final long FULL_WALK_INTERVAL_MS = 7L * 24 * 60 * 60 * 1000;
+    // mtime has one second resolution: a folder changed within the second the last scan listed
+    // it may still show the time the scan saw.
+    private static final long MTIME_SLACK_MS = 2000;
+    private static final long CHANGE_DEBOUNCE_MS = 500;
+
+    // Folders where cameras, browsers and messengers keep adding files.
+    private static final String[] HOT_FOLDERS = {"DCIM", "Download", "Pictures", "WhatsApp", "Android/media/com.whatsapp/WhatsApp",
+        "Telegram"};
+
+    private static final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    private static final AtomicBoolean scanning = new AtomicBoolean(false);
+    private static final Set<String> pendingChanges = new LinkedHashSet<>();
+    private static boolean changesScheduled;
+    private static RecursiveFileObserver watcher;
+
+    // A folder waiting to be walked.
+    private static class Folder {
+        final String path;
+        final boolean hidden;
+        final long lastModified;
+
+        Folder(String path, boolean hidden, long lastModified) {
+            this.path = path;
+            this.hidden = hidden;
+            this.lastModified = lastModified;
+        }
+    }
+
+    private FileIndexer() {
+    }
+
+    /**
+     * The volumes the index covers: internal storage and the SD card, if there is one.
+     */
+    public static List<File> getRoots(Context context) {
+        List<File> roots = new ArrayList<>();
+        roots.add(Environment.getExternalStorageDirectory());
+        String sdCardPath = StorageUtils.getSdCardPath(context);
+        if (sdCardPath != null) {
+            roots.add(new File(sdCardPath));
+        }
+        return roots;
+    }
+
+    /**
+     * Starts watching the hot folders, if that hasn't happened yet, and a scan in the background
+     * unless one is already running.
+     */
+    public static void refresh(Context context) {
+        final Context appContext = context.getApplicationContext();
+        startWatching(appContext);
+        if (!scanning.compareAndSet(false, true)) {
+            return;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    scan(appContext);
+                    LocalBroadcastManager.getInstance(appContext).sendBroadcast(new Intent(ACTION_INDEX_UPDATED));
+                } catch (Exception e) {
+                    Log.e(TAG, "File index scan failed", e);
+                } finally {
+                    scanning.set(false);
+                }
+            }
+        });
+    }
+
+    /**
+     * Reports files or folders that were created, changed, deleted or moved away. They are
+     * applied in one batch once CHANGE_DEBOUNCE_MS have passed.
+     */
+    public static void notifyChanged(Context context, Collection<String> paths) {
+        final Context appContext = context.getApplicationContext();
+        synchronized (pendingChanges) {
+            pendingChanges.addAll(paths);
+            if (changesScheduled) {
+                return;
+            }
+            changesScheduled = true;
+        }
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                List<String> paths;
+                synchronized (pendingChanges) {
+                    paths = new ArrayList<>(pendingChanges);
+                    pendingChanges.clear();
+                    changesScheduled = false;
+                }
+                try {
+                    applyChanges(appContext, paths);
+                    Intent updated = new Intent(ACTION_INDEX_UPDATED);
+                    updated.putExtra(EXTRA_CHANGED_PATHS, paths.toArray(new String[0]));
+                    LocalBroadcastManager.getInstance(appContext).sendBroadcast(updated);
+                } catch (Exception e) {
+                    Log.e(TAG, "Updating the file index failed", e);
+                }
+            }
+        }, CHANGE_DEBOUNCE_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private static synchronized void startWatching(final Context context) {
+        if (watcher != null) {
+            return;
+        }
+        File externalStorage = Environment.getExternalStorageDirectory();
+        List<File> hotFolders = new ArrayList<>();
+        for (String name : HOT_FOLDERS) {
+            hotFolders.add(new File(externalStorage, name));
+        }
+        watcher = new RecursiveFileObserver(hotFolders, new RecursiveFileObserver.Listener() {
+            @Override
+            public void onChanged(String path) {
+                List<String> paths = new ArrayList<>();
+                paths.add(path);
+                notifyChanged(context, paths);
+            }
+        });
+        // Setting up the watches lists every hot folder, so not on the caller's thread.
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                watcher.startWatching();
+            }
+        });
+    }
+
+    private static void applyChanges(Context context, List<String> paths) {
+        FileIndex index = FileIndex.getInstance(context);
+        if (!index.isReady()) {
+            // The first scan will see everything anyway.
+            return;
+        }
+        FileIndex.Writer writer = index.newWriter(index.getGeneration());
+        try {
+            for (String path : paths) {
+                StructStat stat = lstat(path);
+                if (stat == null) {
+                    writer.remove(path);
+                    continue;
+                }
+                if (OsConstants.S_ISLNK(stat.st_mode)) {
+                    continue;
+                }
+                File file = new File(path);
+                String parent = file.getParent();
+                boolean isDirectory = OsConstants.S_ISDIR(stat.st_mode);
+                boolean hidden = isInHiddenFolder(parent) || (isDirectory && file.getName().startsWith("."));
+                writer.put(path, parent, file.getName(), isDirectory, isDirectory ? 0 : stat.st_size, stat.st_mtime * 1000, hidden);
+                if (isDirectory) {
+                    // A folder moved or copied in brings everything inside with it.
+                    Deque<Folder> folders = new ArrayDeque<>();
+                    folders.push(new Folder(path, hidden, stat.st_mtime * 1000));
+                    writer = walk(index, writer, index.getGeneration(), folders, null, 0);
+                }
+            }
+            writer.commit();
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static void scan(Context context) {
+        FileIndex index = FileIndex.getInstance(context);
+        long start = System.currentTimeMillis();
+        boolean incremental = index.isReady() && start - index.getLastFullWalk() < FULL_WALK_INTERVAL_MS;
+        // Folders listed by the last scan, with the mtime they had then.
+        Map<String, Long> knownFolders = incremental ? index.queryFolderTimes() : null;
+        long unchangedBefore = index.getLastScanStart() - MTIME_SLACK_MS;
+        long generation = index.beginScan();
+
+        FileIndex.Writer writer = index.newWriter(generation);
+        try {
+            for (File root : getRoots(context)) {
+                StructStat stat = lstat(root.getAbsolutePath());
+                if (stat == null) {
+                    continue;
+                }
+                Deque<Folder> folders = new ArrayDeque<>();
+                folders.push(new Folder(root.getAbsolutePath(), false, stat.st_mtime * 1000));
+                writer = walk(index, writer, generation, folders, knownFolders, unchangedBefore);
+            }
+            writer.commit();
+        } finally {
+            writer.close();
+        }
+        index.finishScan(generation, start, !incremental);
+        Log.d(TAG, (incremental ? "Incremental" : "Full") + " scan took " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Puts everything below the given folders. A folder whose mtime is the one in knownFolders,
+     * and older than unchangedBefore, is not listed: its files are kept as they are and only its
+     * subfolders are visited. Commits every BATCH_SIZE entries, so it returns the writer to go on with.
+     */
+    private static FileIndex.Writer walk(FileIndex index, FileIndex.Writer writer, long generation, Deque<Folder> folders,
+                                         Map<String, Long> knownFolders, long unchangedBefore) {
+        Map<String, List<String>> knownChildren = knownFolders != null ? childFolders(knownFolders) : null;
+        int count = 0;
+        while (!folders.isEmpty()) {
+            Folder folder = folders.pop();
+            Long known = knownFolders != null ? knownFolders.get(folder.path) : null;
+            boolean unchanged = known != null && known == folder.lastModified && folder.lastModified < unchangedBefore;
+
+            List<String> names = new ArrayList<>();
+            if (unchanged) {
+                writer.touchFiles(folder.path);
+                List<String> children = knownChildren.get(folder.path);
+                if (children != null) {
+                    names.addAll(children);
+                }
+            } else {
+                String[] listed = new File(folder.path).list();
+                if (listed == null) {
+                    continue;
+                }
+                for (String name : listed) {
+                    names.add(name);
+                }
+            }
+
+            for (String name : names) {
+                String path = folder.path + "/" + name;
+                StructStat stat = lstat(path);
+                if (stat == null || OsConstants.S_ISLNK(stat.st_mode)) {
+                    continue;
+                }
+                boolean isDirectory = OsConstants.S_ISDIR(stat.st_mode);
+                if (unchanged && !isDirectory) {
+                    continue;
+                }
+                boolean hidden = folder.hidden || (isDirectory && name.startsWith("."));
+                long lastModified = stat.st_mtime * 1000;
+                writer.put(path, folder.path, name, isDirectory, isDirectory ? 0 : stat.st_size, lastModified, hidden);
+                if (isDirectory) {
+                    folders.push(new Folder(path, hidden, lastModified));
+                }
+                if (++count % BATCH_SIZE == 0) {
+                    writer.commit();
+                    writer = index.newWriter(generation);
+                }
+            }
+        }
+        return writer;
+    }
+
+    // The names of the known subfolders of each known folder.
+    private static Map<String, List<String>> childFolders(Map<String, Long> knownFolders) {
+        Map<String, List<String>> children = new HashMap<>();
+        for (String path : knownFolders.keySet()) {
+            int slash = path.lastIndexOf('/');
+            String parent = path.substring(0, slash);
+            List<String> names = children.get(parent);
+            if (names == null) {
+                names = new ArrayList<>();
+                children.put(parent, names);
+            }
+            names.add(path.substring(slash + 1));
+        }
+        return children;
+    }
+
+    private static boolean isInHiddenFolder(String folder) {
+        for (String segment : folder.split("/")) {
+            if (segment.startsWith(".")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static StructStat lstat(String path) {
+        try {
+            return Os.lstat(path);
+        } catch (ErrnoException e) {
+            return null;
+        }
+    }
+}
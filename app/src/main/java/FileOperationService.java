@@ -7,7 +7,6 @@ import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
-import android.net.Uri;
 import android.os.Build;
 import android.os.IBinder;
 import android.util.Log;
@@ -17,13 +16,10 @@ import androidx.core.content.ContextCompat;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
 // --- UPDATE 1: Add necessary imports for Manifest and ContextCompat ---
@@ -95,15 +91,43 @@ public class FileOperationService extends Service {
         return START_NOT_STICKY;
     }
 
-    private void performOperation(List<File> sourceFiles, File destinationDir, ClipboardManager.Operation operation) {
+    private void performOperation(List<File> sourceFiles, File destinationDir, final ClipboardManager.Operation operation) {
         boolean success = true;
-        int totalFiles = countTotalFiles(sourceFiles);
-        final int[] processedFiles = {0};
+        final MediaStoreSync mediaStoreSync = MediaStoreSync.getInstance(this);
+        CopyEngine engine = new CopyEngine(getWorkerCount(sourceFiles, destinationDir), new CopyEngine.Target() {
+				@Override
+				public OutputStream openOutput(File dest) throws IOException {
+					return StorageUtils.getOutputStream(FileOperationService.this, dest);
+				}
+
+				@Override
+				public boolean createDirectory(File dir) {
+					return StorageUtils.createDirectory(FileOperationService.this, dir);
+				}
+
+				@Override
+				public BufferPool.Medium getMedium(File source, File dest) {
+					return StorageUtils.getCopyMedium(FileOperationService.this, source, dest);
+				}
+			}, new CopyEngine.Listener() {
+				@Override
+				public void onProgress(long bytesDone, long bytesTotal, File current) {
+					int progress = bytesTotal > 0 ? (int) (bytesDone * 100 / bytesTotal) : 0;
+					String verb = operation == ClipboardManager.Operation.MOVE ? "Moving: " : "Copying: ";
+					updateProgress(verb + current.getName(), progress);
+				}
+
+				@Override
+				public void onCopied(File dest) {
+					mediaStoreSync.notifyChanged(dest);
+				}
+			});
+        // Sources that couldn't be renamed are copied and deleted once every copy has succeeded.
+        List<File> movedByCopy = new ArrayList<>();
 
         try {
             for (File sourceFile : sourceFiles) {
                 if (isCancelled) {
-                    success = false;
                     break;
                 }
 
@@ -111,36 +135,51 @@ public class FileOperationService extends Service {
                     continue;
                 }
 
-                if (operation == ClipboardManager.Operation.COPY) {
-                    if (sourceFile.isDirectory()) {
-                        copyDirectory(sourceFile, new File(destinationDir, sourceFile.getName()), totalFiles, processedFiles);
-                    } else {
-                        copyFile(sourceFile, new File(destinationDir, sourceFile.getName()), totalFiles, processedFiles);
-                    }
-                } else if (operation == ClipboardManager.Operation.MOVE) {
-                    moveFile(sourceFile, destinationDir, totalFiles, processedFiles);
+                File dest = engine.reserve(new File(destinationDir, sourceFile.getName()));
+                // Within one filesystem a rename moves a whole folder at once, however large.
+                if (operation == ClipboardManager.Operation.MOVE && StorageUtils.isSameVolume(this, sourceFile, destinationDir)
+                    && sourceFile.renameTo(dest)) {
+                    updateProgress("Moving: " + sourceFile.getName(), 0);
+                    mediaStoreSync.notifyMoved(sourceFile, dest);
+                    continue;
+                }
+                engine.add(sourceFile, dest);
+                if (operation == ClipboardManager.Operation.MOVE) {
+                    movedByCopy.add(sourceFile);
+                }
+            }
+            engine.finish();
+            if (isCancelled) {
+                success = false;
+            } else {
+                for (File sourceFile : movedByCopy) {
+                    deleteRecursive(sourceFile);
                 }
             }
         } catch (IOException e) {
             Log.e(TAG, "File operation failed", e);
             success = false;
+        } catch (InterruptedException e) {
+            success = false;
         } finally {
+            engine.shutdown();
+            mediaStoreSync.flush();
             broadcastCompletion(success);
             stopSelf();
         }
     }
 
-
-    private int countTotalFiles(List<File> files) {
-        int count = 0;
-        if (files == null) return 0;
-        for (File file : files) {
-            if (file.isDirectory()) {
-                count += countTotalFiles(Arrays.asList(file.listFiles()));
+    /**
+     * Fewer workers when any source is on a different volume than the destination, since the SD
+     * card then limits the copy.
+     */
+    private int getWorkerCount(List<File> sourceFiles, File destinationDir) {
+        for (File sourceFile : sourceFiles) {
+            if (!StorageUtils.isSameVolume(this, sourceFile, destinationDir)) {
+                return CopyEngine.CROSS_VOLUME_WORKERS;
             }
-            count++;
         }
-        return count;
+        return CopyEngine.SAME_VOLUME_WORKERS;
     }
 
     private void updateProgress(String text, int progress) {
@@ -163,79 +202,6 @@ public class FileOperationService extends Service {
         LocalBroadcastManager.getInstance(this).sendBroadcast(intent);
     }
 
-    private void copyFile(File source, File dest, int total, int[] processed) throws IOException {
-        if (isCancelled) return;
-        processed[0]++;
-        int progress = (int) (((float) processed[0] / total) * 100);
-        updateProgress("Copying: " + source.getName(), progress);
-
-        if (dest.exists()) dest = getUniqueFile(dest);
-
-        InputStream in = null;
-        OutputStream out = null;
-        try {
-            in = new FileInputStream(source);
-            out = StorageUtils.getOutputStream(this, dest);
-            byte[] buf = new byte[8192];
-            int len;
-            while ((len = in.read(buf)) > 0) {
-                if (isCancelled) break;
-                out.write(buf, 0, len);
-            }
-        } finally {
-            if (in != null) in.close();
-            if (out != null) out.close();
-            scanFile(dest);
-        }
-    }
-
-    private void copyDirectory(File source, File dest, int total, int[] processed) throws IOException {
-        if (isCancelled) return;
-        processed[0]++;
-        int progress = (int) (((float) processed[0] / total) * 100);
-        updateProgress("Creating folder: " + source.getName(), progress);
-
-        if (dest.exists()) dest = getUniqueFile(dest);
-        if (!StorageUtils.createDirectory(this, dest)) {
-            throw new IOException("Failed to create destination directory: " + dest.getAbsolutePath());
-        }
-        scanFile(dest);
-
-        File[] files = source.listFiles();
-        if (files != null) {
-            for (File file : files) {
-                if (isCancelled) break;
-                if (file.isDirectory()) {
-                    copyDirectory(file, new File(dest, file.getName()), total, processed);
-                } else {
-                    copyFile(file, new File(dest, file.getName()), total, processed);
-                }
-            }
-        }
-    }
-
-    private void moveFile(File source, File destDir, int total, int[] processed) throws IOException {
-        File newFile = new File(destDir, source.getName());
-        if (newFile.exists()) newFile = getUniqueFile(newFile);
-
-        if (source.renameTo(newFile)) {
-            processed[0]++;
-            int progress = (int) (((float) processed[0] / total) * 100);
-            updateProgress("Moving: " + source.getName(), progress);
-            scanFile(source);
-            scanFile(newFile);
-        } else {
-            if (source.isDirectory()) {
-                copyDirectory(source, newFile, total, processed);
-            } else {
-                copyFile(source, newFile, total, processed);
-            }
-            if (!isCancelled) {
-                deleteRecursive(source);
-            }
-        }
-    }
-
     private void deleteRecursive(File fileOrDirectory) {
         if (fileOrDirectory.isDirectory()) {
             File[] children = fileOrDirectory.listFiles();
@@ -246,36 +212,8 @@ public class FileOperationService extends Service {
             }
         }
         if (StorageUtils.deleteFile(this, fileOrDirectory)) {
-            scanFile(fileOrDirectory);
-        }
-    }
-
-    private File getUniqueFile(File file) {
-        String parentPath = file.getParent();
-        String fileName = file.getName();
-        String extension = "";
-        String baseName = fileName;
-
-        int dotIndex = fileName.lastIndexOf('.');
-        if (dotIndex > 0) {
-            baseName = fileName.substring(0, dotIndex);
-            extension = fileName.substring(dotIndex);
+            MediaStoreSync.getInstance(this).notifyChanged(fileOrDirectory);
         }
-
-        int count = 1;
-        File newFile = file;
-        while (newFile.exists()) {
-            newFile = new File(parentPath, baseName + " (" + count + ")" + extension);
-            count++;
-        }
-        return newFile;
-    }
-
-    private void scanFile(File file) {
-        Intent mediaScanIntent = new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE);
-        Uri contentUri = Uri.fromFile(file);
-        mediaScanIntent.setData(contentUri);
-        sendBroadcast(mediaScanIntent);
     }
 
     private Notification createNotification(String content, int progress) {
@@ -312,6 +250,8 @@ public class FileOperationService extends Service {
     @Override
     public void onDestroy() {
         super.onDestroy();
+        // Idle pooled buffers are only worth keeping while a transfer or copy may need them.
+        BufferPool.clear();
         isCancelled = true;
         if (operationThread != null) {
             operationThread.interrupt();
@@ -17,27 +17,22 @@ import androidx.core.app.NotificationCompat;
 import androidx.core.content.ContextCompat;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
-import org.json.JSONObject;
-
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
 
 // --- UPDATE 1: Add necessary imports for Manifest and ContextCompat ---
 import android.Manifest;
@@ -47,13 +42,22 @@ public class FileTransferService extends Service {
     private static final String TAG = "FileTransferService";
     private static final int SOCKET_TIMEOUT = 5000;
     public static final int PORT = 8988;
+    // A broadcasting sender listens here for the receivers joining it.
+    public static final int BROADCAST_PORT = 8989;
 
     // --- Actions ---
     public static final String ACTION_SEND_FILES = "com.hfm.app.SEND_FILES";
     public static final String ACTION_RECEIVE_FILES = "com.hfm.app.RECEIVE_FILES";
+    public static final String ACTION_BROADCAST_FILES = "com.hfm.app.BROADCAST_FILES";
+    public static final String ACTION_JOIN_BROADCAST = "com.hfm.app.JOIN_BROADCAST";
+    // Sent once a broadcasting sender listens on BROADCAST_PORT, so receivers can be let in.
+    public static final String ACTION_BROADCAST_LISTENING = "com.hfm.app.BROADCAST_LISTENING";
     public static final String ACTION_PAUSE_TRANSFER = "com.hfm.app.PAUSE_TRANSFER";
     public static final String ACTION_RESUME_TRANSFER = "com.hfm.app.RESUME_TRANSFER";
     public static final String ACTION_CANCEL_TRANSFER = "com.hfm.app.CANCEL_TRANSFER";
+    public static final String ACTION_SET_RATE_LIMIT = "com.hfm.app.SET_RATE_LIMIT";
+    public static final String ACTION_PRIORITIZE_FILE = "com.hfm.app.PRIORITIZE_FILE";
+    public static final String ACTION_QUEUE_CHANGED = "com.hfm.app.QUEUE_CHANGED";
     public static final String ACTION_UPDATE_PROGRESS = "com.hfm.app.UPDATE_PROGRESS";
     public static final String ACTION_TRANSFER_COMPLETE = "com.hfm.app.TRANSFER_COMPLETE";
     public static final String ACTION_TRANSFER_ERROR = "com.hfm.app.TRANSFER_ERROR";
@@ -67,16 +71,44 @@ public class FileTransferService extends Service {
     public static final String EXTRA_TRANSFER_SPEED = "transfer_speed";
     public static final String EXTRA_FILE_INDEX = "file_index";
     public static final String EXTRA_ERROR_MESSAGE = "error_message";
+    public static final String EXTRA_STREAM_SPEEDS = "stream_speeds";
+    // MB/s over the whole batch, sent with ACTION_TRANSFER_COMPLETE.
+    public static final String EXTRA_AVERAGE_SPEED = "average_speed";
+    // Bytes per second, or RateLimiter.UNLIMITED.
+    public static final String EXTRA_RATE_LIMIT = "rate_limit";
+    public static final String EXTRA_QUEUE_ORDER = "queue_order";
+    public static final String EXTRA_QUEUE_LANES = "queue_lanes";
+    public static final String EXTRA_SKIP_EXISTING = "skip_existing";
 
 
     private static final int NOTIFICATION_ID = 101;
     private static final String CHANNEL_ID = "FileTransferChannel";
     public static final String PUBLIC_SAVE_FOLDER_NAME = "Hfm Shared";
 
+    // --- Resuming interrupted transfers ---
+    private static final String JOURNAL_DIR_NAME = "transfer_journal";
+    private static final String PARTIAL_SUFFIX = ".hfmpart";
+    private static final String FINGERPRINT_CACHE_NAME = "fingerprints.cache";
+    private static final long JOURNAL_MAX_AGE_MS = 7L * 24 * 60 * 60 * 1000;
+    private static final int MAX_RECONNECT_ATTEMPTS = 5;
+    private static final long RECONNECT_DELAY_MS = 2000;
+    private static final long RECONNECT_WAIT_MS = 60000;
+
+    // --- Broadcasting to several receivers ---
+    private static final int MAX_BROADCAST_RECEIVERS = 10;
+    // Receivers may keep joining until none has for this long.
+    private static final long BROADCAST_JOIN_WINDOW_MS = 15000;
+    // A receiver that hasn't answered the handshake by then is left out.
+    private static final long BROADCAST_HANDSHAKE_TIMEOUT_MS = 10000;
+
     private volatile boolean isPaused = false;
     private volatile boolean isCancelled = false;
     private Thread transferThread;
-    private long lastPosition = 0;
+    // Set while receiving, so pause and cancel reach its event loop.
+    private volatile ReceiveServer receiveServer;
+    // Set while sending, so the queue screen can reorder the batch and change its speed limit.
+    private volatile TransferQueue sendQueue;
+    private volatile RateLimiter sendRateLimiter;
     
     // --- UPDATE 2: Add a flag to track if we can show notifications ---
     private boolean canShowNotification = false;
@@ -101,27 +133,65 @@ public class FileTransferService extends Service {
                     }
                     final ArrayList<String> filesToSend = intent.getStringArrayListExtra(EXTRA_FILE_PATHS);
                     final String host = intent.getStringExtra(EXTRA_GROUP_OWNER_ADDRESS);
-                    startTransferThread(new ClientRunnable(host, filesToSend));
+                    startTransferThread(new ClientRunnable(host, filesToSend, false,
+                            intent.getLongExtra(EXTRA_RATE_LIMIT, RateLimiter.UNLIMITED),
+                            intent.getBooleanExtra(EXTRA_SKIP_EXISTING, true)));
                     break;
                 case ACTION_RECEIVE_FILES:
                     if (canShowNotification) {
                         startForeground(NOTIFICATION_ID, createNotification("Waiting to receive...", 0));
                     }
-                    startTransferThread(new ServerRunnable());
+                    startTransferThread(new ServerRunnable(null));
+                    break;
+                case ACTION_BROADCAST_FILES:
+                    if (canShowNotification) {
+                        startForeground(NOTIFICATION_ID, createNotification("Waiting for receivers to join...", 0));
+                    }
+                    final ArrayList<String> filesToBroadcast = intent.getStringArrayListExtra(EXTRA_FILE_PATHS);
+                    startTransferThread(new ClientRunnable(null, filesToBroadcast, true,
+                            intent.getLongExtra(EXTRA_RATE_LIMIT, RateLimiter.UNLIMITED), false));
+                    break;
+                case ACTION_JOIN_BROADCAST:
+                    if (canShowNotification) {
+                        startForeground(NOTIFICATION_ID, createNotification("Joining broadcast...", 0));
+                    }
+                    startTransferThread(new ServerRunnable(intent.getStringExtra(EXTRA_GROUP_OWNER_ADDRESS)));
                     break;
                 case ACTION_PAUSE_TRANSFER:
                     isPaused = true;
+                    if (receiveServer != null) {
+                        receiveServer.setPaused(true);
+                    }
                     break;
                 case ACTION_RESUME_TRANSFER:
                     isPaused = false;
+                    if (receiveServer != null) {
+                        receiveServer.setPaused(false);
+                    }
                     if (transferThread != null && transferThread.getState() == Thread.State.WAITING) {
                         synchronized (transferThread) {
                             transferThread.notify();
                         }
                     }
                     break;
+                case ACTION_SET_RATE_LIMIT:
+                    RateLimiter limiter = sendRateLimiter;
+                    if (limiter != null) {
+                        limiter.setRate(intent.getLongExtra(EXTRA_RATE_LIMIT, RateLimiter.UNLIMITED));
+                        broadcastQueue();
+                    }
+                    break;
+                case ACTION_PRIORITIZE_FILE:
+                    TransferQueue queue = sendQueue;
+                    if (queue != null && queue.prioritize(intent.getIntExtra(EXTRA_FILE_INDEX, -1))) {
+                        broadcastQueue();
+                    }
+                    break;
                 case ACTION_CANCEL_TRANSFER:
                     isCancelled = true;
+                    if (receiveServer != null) {
+                        receiveServer.stop();
+                    }
                     if (transferThread != null) {
                         transferThread.interrupt();
                     }
@@ -132,6 +202,25 @@ public class FileTransferService extends Service {
         return START_NOT_STICKY;
     }
 
+    /**
+     * Returns whether the group owner at host is broadcasting, i.e. waiting for receivers to join.
+     * Connects over the network, so it must not be called on the main thread.
+     */
+    public static boolean isBroadcasting(String host) {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, BROADCAST_PORT), SOCKET_TIMEOUT);
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
     private void startTransferThread(Runnable runnable) {
         if (transferThread != null && transferThread.isAlive()) {
             Log.w(TAG, "Transfer already in progress.");
@@ -139,7 +228,6 @@ public class FileTransferService extends Service {
         }
         isCancelled = false;
         isPaused = false;
-        lastPosition = 0;
         transferThread = new Thread(runnable);
         transferThread.start();
     }
@@ -152,96 +240,43 @@ public class FileTransferService extends Service {
     }
 
 
-    private class ServerRunnable implements Runnable {
+    private class ServerRunnable implements Runnable, ReceiveServer.Listener {
+        private int fileIndex = 0;
+        private int receivedCount = 0;
+        // Set when joining a broadcast, which this side connects to instead of waiting for.
+        private final String broadcastHost;
+
+        ServerRunnable(String broadcastHost) {
+            this.broadcastHost = broadcastHost;
+        }
+
         @Override
         public void run() {
-            ServerSocketChannel serverSocketChannel = null;
-            SocketChannel clientChannel = null;
-            Map<File, String> receivedFiles = new HashMap<>();
-
             try {
-                serverSocketChannel = ServerSocketChannel.open();
-                serverSocketChannel.socket().bind(new InetSocketAddress(PORT));
-                clientChannel = serverSocketChannel.accept();
-                clientChannel.configureBlocking(true);
-                int fileIndex = 0;
-
-                while (!isCancelled && clientChannel.isConnected()) {
-                    ByteBuffer lengthBuffer = ByteBuffer.allocate(4);
-                    boolean isStreamFinished = false;
-                    while (lengthBuffer.hasRemaining()) {
-                        int read = clientChannel.read(lengthBuffer);
-                        if (read == -1) {
-                            isStreamFinished = true;
-                            break;
-                        } else if (read == 0) {
-                            Thread.sleep(10);
-                            continue;
-                        }
-                    }
-                    if (isStreamFinished) {
-                        break;
-                    }
-                    lengthBuffer.flip();
-                    int metadataLength = lengthBuffer.getInt();
-
-                    if (metadataLength == 0) {
-                        Log.i(TAG, "End of transmission marker received. Closing connection.");
-                        break;
-                    }
-
-                    if (metadataLength < 0 || metadataLength > 10000) { // Sanity check
-                        throw new IOException("Invalid metadata length received: " + metadataLength);
-                    }
-
-                    ByteBuffer metadataBuffer = ByteBuffer.allocate(metadataLength);
-                    while (metadataBuffer.hasRemaining()) {
-                        int read = clientChannel.read(metadataBuffer);
-                        if (read == -1) {
-                            throw new IOException("Connection closed while reading metadata.");
-                        }
-                        if (read == 0) {
-                            Thread.sleep(10);
-                            continue;
-                        }
-                    }
-                    metadataBuffer.flip();
-                    String metadataJson = StandardCharsets.UTF_8.decode(metadataBuffer).toString();
-
-                    JSONObject metadata = new JSONObject(metadataJson);
-                    String fileName = metadata.getString("fileName");
-
-                    File tempFile = File.createTempFile("hfm_received_", ".lz4", getCacheDir());
-
-                    receiveFile(clientChannel, tempFile, fileName, fileIndex);
-                    if (isCancelled) {
-                        break;
-                    }
-
-                    receivedFiles.put(tempFile, fileName);
-                    Log.i(TAG, "File " + fileName + " received successfully. Waiting for next file...");
-                    fileIndex++;
+                File journalDir = new File(getFilesDir(), JOURNAL_DIR_NAME);
+                TransferJournal.pruneOlderThan(journalDir, JOURNAL_MAX_AGE_MS);
+                File publicDir = new File(Environment.getExternalStorageDirectory(), PUBLIC_SAVE_FOLDER_NAME);
+                if (!publicDir.exists()) {
+                    publicDir.mkdirs();
                 }
 
-                if (!isCancelled) {
-                    for (Map.Entry<File, String> entry : receivedFiles.entrySet()) {
-                        File tempFile = entry.getKey();
-                        String finalFileName = entry.getValue();
-                        File publicDir = new File(Environment.getExternalStorageDirectory(), PUBLIC_SAVE_FOLDER_NAME);
-                        if (!publicDir.exists()) {
-                            publicDir.mkdirs();
-                        }
-                        File finalFile = new File(publicDir, finalFileName);
-                        if (finalFile.exists()) {
-                            finalFile.delete();
-                        }
-
-                        updateNotification("Decompressing " + finalFileName, -1);
-                        decompressFile(tempFile, finalFile);
-                    }
+                ReceiveServer server = new ReceiveServer(publicDir, journalDir, PARTIAL_SUFFIX,
+                        new File(getFilesDir(), FINGERPRINT_CACHE_NAME), RECONNECT_WAIT_MS, this);
+                receiveServer = server;
+                if (broadcastHost != null) {
+                    // A broadcast can't be resumed, as the other receivers have moved on.
+                    server.addConnection(SocketChannel.open(new InetSocketAddress(broadcastHost, BROADCAST_PORT)));
+                    updateNotification("Receiving broadcast...", -1);
+                } else {
+                    server.listen(PORT);
+                }
+                server.setPaused(isPaused);
+                if (isCancelled) {
+                    server.stop();
                 }
+                server.serve();
 
-                if (!isCancelled && !receivedFiles.isEmpty()) {
+                if (!isCancelled && receivedCount > 0) {
                     LocalBroadcastManager.getInstance(FileTransferService.this).sendBroadcast(new Intent(ACTION_TRANSFER_COMPLETE));
                 }
 
@@ -251,87 +286,122 @@ public class FileTransferService extends Service {
                 errorIntent.putExtra(EXTRA_ERROR_MESSAGE, getStackTraceAsString(e));
                 LocalBroadcastManager.getInstance(FileTransferService.this).sendBroadcast(errorIntent);
             } finally {
-                for (File tempFile : receivedFiles.keySet()) {
-                    if (tempFile.exists()) {
-                        tempFile.delete();
-                    }
-                }
-                try {
-                    if (clientChannel != null) clientChannel.close();
-                    if (serverSocketChannel != null) serverSocketChannel.close();
-                } catch (Exception e) {
-                    Log.e(TAG, "Error closing server sockets", e);
-                }
+                receiveServer = null;
                 stopSelf();
             }
         }
+
+        @Override
+        public ChunkedTransfer.Listener onFileStarted(String path, long size) {
+            return new ProgressListener("Receiving", path, size, fileIndex++);
+        }
+
+        @Override
+        public PackedTransfer.Listener onPackStarted(List<PackedTransfer.Entry> entries, long packSize) {
+            fileIndex += entries.size();
+            // The receiving screen shows a single progress view, so only the pack as a whole is reported.
+            return new PackProgressListener("Receiving", entries, packSize, null);
+        }
+
+        @Override
+        public void onFilesReceived(int count) {
+            receivedCount += count;
+        }
+
+        @Override
+        public void onSessionFailed(IOException cause) {
+            // The journals are kept, so the sender can reconnect and resume.
+            Log.w(TAG, "Connection lost. Waiting for the sender to reconnect.", cause);
+            updateNotification("Connection lost. Waiting to resume...", -1);
+        }
     }
 
-    private class ClientRunnable implements Runnable {
+    private class ClientRunnable implements Runnable, BatchSender.Listener {
         private String host;
         private ArrayList<String> filePaths;
-
-        public ClientRunnable(String host, ArrayList<String> filePaths) {
+        private InetSocketAddress address;
+        private TransferJournal batchJournal;
+        private BatchSender sender;
+        // Sends to every receiver that joins, instead of to the group owner at host.
+        private final boolean isBroadcast;
+        // Caps the whole batch, over every connection it uses.
+        private final RateLimiter rateLimiter;
+        private final TransferQueue queue;
+        // Offer files to the receiver first and leave out those it already has.
+        private final boolean skipExisting;
+
+        ClientRunnable(String host, ArrayList<String> filePaths, boolean isBroadcast, long rateLimit, boolean skipExisting) {
             this.host = host;
             this.filePaths = filePaths;
+            this.isBroadcast = isBroadcast;
+            this.rateLimiter = new RateLimiter(rateLimit);
+            this.queue = new TransferQueue(filePaths);
+            this.skipExisting = skipExisting;
         }
 
         @Override
         public void run() {
             SocketChannel socketChannel = null;
             try {
-                socketChannel = SocketChannel.open();
-                socketChannel.connect(new InetSocketAddress(host, PORT));
-                socketChannel.configureBlocking(true);
-
-                for (int i = 0; i < filePaths.size(); i++) {
-                    if (isCancelled) break;
-                    String path = filePaths.get(i);
-                    File originalFile = new File(path);
-                    File tempFile = null;
-
-                    try {
-                        tempFile = File.createTempFile("hfm_sending_", ".lz4", getCacheDir());
-
-                        if (!originalFile.exists()) {
-                            Log.w(TAG, "File to send does not exist: " + path);
-                            continue;
-                        }
-
-                        updateNotification("Compressing " + originalFile.getName(), -1);
-                        compressFile(originalFile, tempFile);
-
-                        JSONObject metadata = new JSONObject();
-                        metadata.put("fileName", originalFile.getName());
-                        byte[] metadataBytes = metadata.toString().getBytes(StandardCharsets.UTF_8);
-
-                        ByteBuffer lengthBuffer = ByteBuffer.allocate(4).putInt(metadataBytes.length);
-                        lengthBuffer.flip();
-                        while (lengthBuffer.hasRemaining()) {
-                            socketChannel.write(lengthBuffer);
-                        }
-
-                        ByteBuffer metadataBuffer = ByteBuffer.wrap(metadataBytes);
-                        while (metadataBuffer.hasRemaining()) {
-                            socketChannel.write(metadataBuffer);
-                        }
+                if (!isBroadcast) {
+                    address = new InetSocketAddress(host, PORT);
+                }
 
-                        sendFile(socketChannel, tempFile, originalFile.getName(), i);
-                    } finally {
-                        if (tempFile != null && tempFile.exists()) {
-                            tempFile.delete();
+                // The same selection of files maps to the same journal, so re-sending a batch that
+                // was interrupted earlier resumes it.
+                ArrayList<String> batchKey = new ArrayList<>();
+                for (String path : filePaths) {
+                    File file = new File(path);
+                    batchKey.add(path + ":" + file.length() + ":" + file.lastModified());
+                }
+                File journalDir = new File(getFilesDir(), JOURNAL_DIR_NAME);
+                String batchId = (isBroadcast ? "broadcast_" : "send_") + TransferJournal.idFor(batchKey.toArray(new String[0]));
+                boolean isResuming = new File(journalDir, batchId + ".journal").exists();
+                batchJournal = TransferJournal.open(journalDir, batchId, filePaths.size());
+                sender = new BatchSender(filePaths, batchJournal, queue, address, rateLimiter, this);
+                sender.setResuming(isResuming);
+                sender.setSkipExisting(skipExisting);
+                sendQueue = queue;
+                sendRateLimiter = rateLimiter;
+                broadcastQueue();
+
+                if (isBroadcast) {
+                    broadcastSession();
+                } else {
+                    int attempt = 0;
+                    while (true) {
+                        int confirmedBefore = batchJournal.doneCount();
+                        try {
+                            socketChannel = SocketChannel.open();
+                            socketChannel.connect(address);
+                            socketChannel.configureBlocking(true);
+                            ByteChannel channel = new RateLimitedChannel(socketChannel, rateLimiter);
+                            TransferProtocol protocol = new TransferProtocol(channel);
+                            protocol.handshakeAsSender();
+                            sender.send(channel, protocol);
+                            break;
+                        } catch (IOException e) {
+                            if (batchJournal.doneCount() > confirmedBefore) {
+                                attempt = 0; // The session made progress, so the link is worth retrying.
+                            }
+                            if (isCancelled || ++attempt > MAX_RECONNECT_ATTEMPTS) {
+                                throw e;
+                            }
+                            Log.w(TAG, "Connection lost. Reconnecting, attempt " + attempt, e);
+                            updateNotification("Connection lost. Reconnecting...", -1);
+                            socketChannel.close();
+                            sender.setResuming(true);
+                            Thread.sleep(RECONNECT_DELAY_MS * attempt);
                         }
                     }
                 }
 
                 if (!isCancelled) {
-                    ByteBuffer goodbyeBuffer = ByteBuffer.allocate(4).putInt(0);
-                    goodbyeBuffer.flip();
-                    while (goodbyeBuffer.hasRemaining()) {
-                        socketChannel.write(goodbyeBuffer);
-                    }
-                    Log.i(TAG, "All files sent. Goodbye signal sent.");
-                    LocalBroadcastManager.getInstance(FileTransferService.this).sendBroadcast(new Intent(ACTION_TRANSFER_COMPLETE));
+                    batchJournal.delete();
+                    Log.i(TAG, "All files sent: " + sender.getStats());
+                    Intent completeIntent = new Intent(ACTION_TRANSFER_COMPLETE);
+                    completeIntent.putExtra(EXTRA_AVERAGE_SPEED, sender.getStats().getMbPerSecond());
+                    LocalBroadcastManager.getInstance(FileTransferService.this).sendBroadcast(completeIntent);
                 }
 
             } catch (Exception e) {
@@ -340,6 +410,11 @@ public class FileTransferService extends Service {
                 errorIntent.putExtra(EXTRA_ERROR_MESSAGE, getStackTraceAsString(e));
                 LocalBroadcastManager.getInstance(FileTransferService.this).sendBroadcast(errorIntent);
             } finally {
+                sendQueue = null;
+                sendRateLimiter = null;
+                if (batchJournal != null) {
+                    batchJournal.close();
+                }
                 if (socketChannel != null) {
                     try {
                         socketChannel.close();
@@ -350,133 +425,245 @@ public class FileTransferService extends Service {
                 stopSelf();
             }
         }
-    }
 
-    private void sendFile(SocketChannel socketChannel, File file, String displayName, int fileIndex) throws Exception {
-        FileInputStream fis = new FileInputStream(file);
-        long fileSize = file.length();
+        // Waits for receivers to join, then sends the batch to all of them over one FanOutChannel.
+        private void broadcastSession() throws Exception {
+            List<SocketChannel> channels = new ArrayList<>();
+            List<TransferProtocol> members = new ArrayList<>();
+            ServerSocketChannel server = ServerSocketChannel.open();
+            try {
+                server.socket().bind(new InetSocketAddress(BROADCAST_PORT));
+                LocalBroadcastManager.getInstance(FileTransferService.this).sendBroadcast(new Intent(ACTION_BROADCAST_LISTENING));
+                // Wait as long as it takes for the first receiver, then while others keep joining.
+                while (!isCancelled && channels.size() < MAX_BROADCAST_RECEIVERS) {
+                    SocketChannel channel = acceptWithTimeout(server, BROADCAST_JOIN_WINDOW_MS);
+                    if (channel == null) {
+                        if (channels.isEmpty()) {
+                            continue;
+                        }
+                        break;
+                    }
+                    try {
+                        TransferProtocol member = new TransferProtocol(channel);
+                        handshakeWithTimeout(channel, member, BROADCAST_HANDSHAKE_TIMEOUT_MS);
+                        channels.add(channel);
+                        members.add(member);
+                        updateNotification(channels.size() + " receivers joined. Starting soon...", -1);
+                    } catch (IOException e) {
+                        // E.g. a device that only checked whether a broadcast is running, or one that went silent.
+                        channel.close();
+                    }
+                }
+            } finally {
+                server.close();
+            }
 
-        ByteBuffer lengthBuffer = ByteBuffer.allocate(8).putLong(fileSize);
-        lengthBuffer.flip();
-        while (lengthBuffer.hasRemaining()) {
-            socketChannel.write(lengthBuffer);
+            FanOutChannel fanOut = new FanOutChannel(channels, new FanOutChannel.Listener() {
+                @Override
+                public void onReceiverDropped(int receiver, int remaining, IOException cause) {
+                    Log.w(TAG, "Receiver " + receiver + " dropped out of the broadcast. " + remaining + " left.", cause);
+                }
+            });
+            try {
+                if (isCancelled) {
+                    return;
+                }
+                Log.i(TAG, "Broadcasting to " + channels.size() + " receivers.");
+                // Every receiver gets the same bytes, so nothing that needs an answer from a single one is used.
+                ByteChannel channel = new RateLimitedChannel(fanOut, rateLimiter);
+                TransferProtocol group = TransferProtocol.forGroup(channel, members,
+                        TransferProtocol.CAP_RESUME | TransferProtocol.CAP_PARALLEL | TransferProtocol.CAP_DEDUP);
+                sender.send(channel, group);
+            } finally {
+                fanOut.close();
+            }
         }
 
-        long position = 0;
-        long startTime = System.currentTimeMillis();
-        long bytesSentInSecond = 0;
+        @Override
+        public boolean isCancelled() {
+            return isCancelled;
+        }
 
-        byte[] buffer = new byte[8192];
-        int len;
-        while ((len = fis.read(buffer)) > 0 && !isCancelled) {
-            while (isPaused) {
-                synchronized (transferThread) {
-                    transferThread.wait(100);
-                }
-            }
-            ByteBuffer writeBuffer = ByteBuffer.wrap(buffer, 0, len);
-            while (writeBuffer.hasRemaining()) {
-                socketChannel.write(writeBuffer);
-            }
+        @Override
+        public void onItemStarted(int rootIndex) {
+            broadcastQueue();
+        }
 
-            position += len;
-            bytesSentInSecond += len;
+        @Override
+        public void onSkipped(FileTreeWalker.Item item) {
+            long size = item.file.length();
+            broadcastProgress(item.relativePath, size, size, 0, item.rootIndex, null);
+        }
 
-            long currentTime = System.currentTimeMillis();
-            if (currentTime - startTime >= 1000) {
-                double speed = (double) bytesSentInSecond / (1024 * 1024);
-                broadcastProgress(displayName, position, fileSize, speed, fileIndex);
-                updateNotification("Sending: " + displayName, (int) ((position * 100) / fileSize));
-                startTime = currentTime;
-                bytesSentInSecond = 0;
+        @Override
+        public ParallelTransfer.Listener onFileStarted(FileTreeWalker.Item item, long size) {
+            return new ProgressListener("Sending", item.relativePath, size, item.rootIndex);
+        }
+
+        @Override
+        public PackedTransfer.Listener onPackStarted(List<PackedTransfer.Entry> entries, List<Integer> rootIndices, long packSize) {
+            return new PackProgressListener("Sending", entries, packSize, rootIndices);
+        }
+    }
+
+    // Waits up to timeoutMs for a connection, e.g. for the sender to come back after the link dropped.
+    private SocketChannel acceptWithTimeout(ServerSocketChannel server, long timeoutMs) throws IOException {
+        Selector selector = Selector.open();
+        try {
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+            long deadline = System.currentTimeMillis() + timeoutMs;
+            while (!isCancelled && System.currentTimeMillis() < deadline) {
+                selector.select(500);
+                selector.selectedKeys().clear();
+                SocketChannel channel = server.accept();
+                if (channel != null) {
+                    channel.configureBlocking(true);
+                    return channel;
+                }
             }
+            return null;
+        } finally {
+            // Closing the selector deregisters the server so it can go back to blocking mode.
+            selector.close();
+            server.configureBlocking(true);
         }
-        broadcastProgress(displayName, position, fileSize, 0, fileIndex);
-        fis.close();
     }
 
-    private void receiveFile(SocketChannel socketChannel, File file, String displayName, int fileIndex) throws Exception {
-        ByteBuffer lengthBuffer = ByteBuffer.allocate(8);
-        while (lengthBuffer.hasRemaining()) {
-            int read = socketChannel.read(lengthBuffer);
-            if (read == -1) {
-                throw new IOException("Connection closed prematurely while reading file length.");
-            } else if (read == 0) {
-                Thread.sleep(10);
-                continue;
+    // Handshakes as the sender, giving up if the receiver hasn't answered within timeoutMs.
+    private static void handshakeWithTimeout(SocketChannel channel, TransferProtocol protocol, long timeoutMs) throws IOException {
+        protocol.writeHello();
+        ByteBuffer hello = ByteBuffer.allocate(TransferProtocol.HELLO_SIZE);
+        Selector selector = Selector.open();
+        try {
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ);
+            long deadline = System.currentTimeMillis() + timeoutMs;
+            while (hello.hasRemaining()) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new SocketTimeoutException("Receiver did not answer the handshake");
+                }
+                selector.select(remaining);
+                selector.selectedKeys().clear();
+                if (channel.read(hello) == -1) {
+                    throw new EOFException("Receiver closed the connection during the handshake");
+                }
             }
+        } finally {
+            // Closing the selector deregisters the channel so it can go back to blocking mode.
+            selector.close();
+            channel.configureBlocking(true);
         }
-        lengthBuffer.flip();
-        long fileSize = lengthBuffer.getLong();
+        hello.flip();
+        protocol.acceptHello(hello);
+    }
 
-        if (fileSize < 0) { // Sanity check
-			throw new IOException("Invalid file size received: " + fileSize);
+    // Bridges the transfer engines to the pause/cancel flags, progress broadcasts and the notification.
+    // Parallel transfers report from several threads, hence the synchronized callbacks.
+    private class ProgressListener implements ParallelTransfer.Listener {
+        private final String verb;
+        private final String displayName;
+        private final long fileSize;
+        private final int fileIndex;
+        private long startTime = System.currentTimeMillis();
+        private long bytesAtStartTime = 0;
+        private double[] streamSpeeds;
+
+        ProgressListener(String verb, String displayName, long fileSize, int fileIndex) {
+            this.verb = verb;
+            this.displayName = displayName;
+            this.fileSize = fileSize;
+            this.fileIndex = fileIndex;
         }
 
-        FileOutputStream fos = new FileOutputStream(file);
-        long position = 0;
-        long startTime = System.currentTimeMillis();
-        long bytesReceivedInSecond = 0;
+        @Override
+        public boolean isCancelled() {
+            return isCancelled;
+        }
 
-        byte[] buffer = new byte[8192];
-        while (position < fileSize && !isCancelled) {
-            while (isPaused) {
+        @Override
+        public boolean isPaused() {
+            return isPaused;
+        }
+
+        @Override
+        public void awaitIfPaused() throws InterruptedException {
+            while (isPaused && !isCancelled) {
                 synchronized (transferThread) {
                     transferThread.wait(100);
                 }
             }
+        }
 
-            int bytesToRead = (int) Math.min(buffer.length, fileSize - position);
-            int read = socketChannel.read(ByteBuffer.wrap(buffer, 0, bytesToRead));
-
-            if (read == -1) {
-                break; // Connection closed
-            }
-
-            fos.write(buffer, 0, read);
-
-            position += read;
-            bytesReceivedInSecond += read;
+        @Override
+        public synchronized void onStreamStats(double[] mbPerSecond) {
+            streamSpeeds = mbPerSecond;
+        }
 
+        @Override
+        public synchronized void onProgress(long bytesDone) {
             long currentTime = System.currentTimeMillis();
-            if (currentTime - startTime >= 1000) {
-                double speed = (double) bytesReceivedInSecond / (1024 * 1024);
-                broadcastProgress(displayName, position, fileSize, speed, fileIndex);
-                updateNotification("Receiving: " + displayName, (int) ((position * 100) / fileSize));
+            if (currentTime - startTime >= 1000 || bytesDone == fileSize) {
+                double seconds = Math.max(currentTime - startTime, 1) / 1000.0;
+                double speed = (bytesDone - bytesAtStartTime) / (1024.0 * 1024) / seconds;
+                boolean isDone = bytesDone == fileSize;
+                broadcastProgress(displayName, bytesDone, fileSize, isDone ? 0 : speed, fileIndex, isDone ? null : streamSpeeds);
+                if (fileSize > 0) {
+                    updateNotification(verb + ": " + displayName, (int) ((bytesDone * 100) / fileSize));
+                }
                 startTime = currentTime;
-                bytesReceivedInSecond = 0;
+                bytesAtStartTime = bytesDone;
             }
         }
-        broadcastProgress(displayName, position, fileSize, 0, fileIndex);
-        fos.close();
-        if (position < fileSize) {
-            throw new IOException("File transfer was incomplete. Expected " + fileSize + " bytes but got " + position);
-        }
     }
 
-    private void compressFile(File source, File dest) throws Exception {
-        FileInputStream fis = new FileInputStream(source);
-        FileOutputStream fos = new FileOutputStream(dest);
-        CompressionUtils.compress(fis, fos);
-        fis.close();
-        fos.close();
+    // Progress of a pack is reported for the pack as a whole. When fileIndices is given, each
+    // file's queue row is also completed as soon as its last byte has gone through.
+    private class PackProgressListener extends ProgressListener implements PackedTransfer.Listener {
+        private final List<PackedTransfer.Entry> entries;
+        private final List<Integer> fileIndices;
+
+        PackProgressListener(String verb, List<PackedTransfer.Entry> entries, long packSize, List<Integer> fileIndices) {
+            super(verb, entries.size() + " files", packSize, -1);
+            this.entries = entries;
+            this.fileIndices = fileIndices;
+        }
+
+        @Override
+        public void onEntryDone(int entry) {
+            if (fileIndices == null) {
+                return;
+            }
+            PackedTransfer.Entry done = entries.get(entry);
+            broadcastProgress(done.name, done.size, done.size, 0, fileIndices.get(entry), null);
+        }
     }
 
-    private void decompressFile(File source, File dest) throws Exception {
-        FileInputStream fis = new FileInputStream(source);
-        FileOutputStream fos = new FileOutputStream(dest);
-        CompressionUtils.decompress(fis, fos);
-        fis.close();
-        fos.close();
+    // Tells the queue screen the order the batch goes out in, each item's lane and the speed limit.
+    private void broadcastQueue() {
+        TransferQueue queue = sendQueue;
+        RateLimiter limiter = sendRateLimiter;
+        if (queue == null || limiter == null) {
+            return;
+        }
+        Intent intent = new Intent(ACTION_QUEUE_CHANGED);
+        intent.putExtra(EXTRA_QUEUE_ORDER, queue.order());
+        intent.putExtra(EXTRA_QUEUE_LANES, queue.lanes());
+        intent.putExtra(EXTRA_RATE_LIMIT, limiter.getRate());
+        LocalBroadcastManager.getInstance(this).sendBroadcast(intent);
     }
 
-    private void broadcastProgress(String fileName, long transferred, long total, double speed, int fileIndex) {
+    private void broadcastProgress(String fileName, long transferred, long total, double speed, int fileIndex, double[] streamSpeeds) {
         Intent intent = new Intent(ACTION_UPDATE_PROGRESS);
         intent.putExtra(EXTRA_FILE_NAME, fileName);
         intent.putExtra(EXTRA_BYTES_TRANSFERRED, transferred);
         intent.putExtra(EXTRA_TOTAL_BYTES, total);
         intent.putExtra(EXTRA_TRANSFER_SPEED, speed);
         intent.putExtra(EXTRA_FILE_INDEX, fileIndex);
+        if (streamSpeeds != null) {
+            intent.putExtra(EXTRA_STREAM_SPEEDS, streamSpeeds);
+        }
         LocalBroadcastManager.getInstance(this).sendBroadcast(intent);
     }
 
@@ -517,7 +704,12 @@ public class FileTransferService extends Service {
     @Override
     public void onDestroy() {
         super.onDestroy();
+        // Idle pooled buffers are only worth keeping while a transfer or copy may need them.
+        BufferPool.clear();
         isCancelled = true;
+        if (receiveServer != null) {
+            receiveServer.stop();
+        }
         if (transferThread != null) {
             transferThread.interrupt();
         }
@@ -0,0 +1,185 @@
+package com.hfm.app;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Walks the files and folders picked for a transfer lazily, one directory listing at a time, so
+ * the first file can be on the wire long before a large folder such as DCIM has been scanned.
+ *
+ * Each file comes with its path relative to the picked item, starting with the picked folder's
+ * own name (e.g. "DCIM/Camera/IMG_1.jpg"), so the receiver can rebuild the tree. Directory
+ * entries are visited in name order, so walking the same tree twice gives the same sequence.
+ */
+public class FileTreeWalker {
+
+    /**
+     * A file to send and where it came from.
+     */
+    public static class Item {
+        public final File file;
+        public final String relativePath;
+        // Index of the picked file or folder this file belongs to.
+        public final int rootIndex;
+
+        Item(File file, String relativePath, int rootIndex) {
+            this.file = file;
+            this.relativePath = relativePath;
+            this.rootIndex = rootIndex;
+        }
+    }
+
+    /**
+     * Decides which picked item is walked next, e.g. to let some of them go first.
+     */
+    public interface RootOrder {
+        // Returns the index of the next picked item, or -1 once every item has been handed out.
+        int nextRoot();
+
+        // Called as a session starts: items handed out before that are not in done go out again.
+        void restart(BitSet done);
+    }
+
+    // A directory being walked: its sorted entries and how far we got.
+    private static class Level {
+        final File[] entries;
+        final String prefix;
+        int next;
+
+        Level(File[] entries, String prefix) {
+            this.entries = entries;
+            this.prefix = prefix;
+        }
+    }
+
+    private final List<String> roots;
+    private final BitSet skipRoots;
+    private final RootOrder order;
+    private final Deque<Level> levels = new ArrayDeque<>();
+    private int nextRoot = 0;
+    private int currentRoot = -1;
+    private Item peeked;
+
+    /**
+     * @param roots     The picked files and folders.
+     * @param skipRoots Indices of picked items that are already done and should not be walked.
+     */
+    public FileTreeWalker(List<String> roots, BitSet skipRoots) {
+        this(roots, skipRoots, null);
+    }
+
+    /**
+     * @param order Which picked item to walk next, or null to walk them in the order given.
+     */
+    public FileTreeWalker(List<String> roots, BitSet skipRoots, RootOrder order) {
+        this.roots = roots;
+        this.skipRoots = skipRoots;
+        this.order = order;
+    }
+
+    public boolean hasNext() {
+        return peek() != null;
+    }
+
+    /**
+     * Returns the next file without moving past it, or null at the end of the walk.
+     */
+    public Item peek() {
+        if (peeked == null) {
+            peeked = advance();
+        }
+        return peeked;
+    }
+
+    public Item next() {
+        Item item = peek();
+        if (item == null) {
+            throw new NoSuchElementException();
+        }
+        peeked = null;
+        return item;
+    }
+
+    private Item advance() {
+        while (true) {
+            Level level = levels.peek();
+            if (level == null) {
+                if (!startNextRoot()) {
+                    return null;
+                }
+                continue;
+            }
+            if (level.next >= level.entries.length) {
+                levels.pop();
+                continue;
+            }
+            File entry = level.entries[level.next++];
+            String relativePath = level.prefix + entry.getName();
+            if (entry.isDirectory()) {
+                pushDirectory(entry, relativePath + "/");
+            } else if (entry.isFile()) {
+                return new Item(entry, relativePath, currentRoot);
+            }
+        }
+    }
+
+    private boolean startNextRoot() {
+        while (true) {
+            int index = order != null ? order.nextRoot() : nextRoot++;
+            if (index < 0 || index >= roots.size()) {
+                return false;
+            }
+            if (skipRoots.get(index)) {
+                continue;
+            }
+            File root = new File(roots.get(index));
+            currentRoot = index;
+            if (root.isDirectory()) {
+                pushDirectory(root, root.getName() + "/");
+                return true;
+            } else if (root.isFile()) {
+                // A single picked file is walked as a one-entry level.
+                levels.push(new Level(new File[]{root}, ""));
+                return true;
+            }
+        }
+    }
+
+    private void pushDirectory(File dir, String prefix) {
+        File[] entries = dir.listFiles();
+        if (entries == null) {
+            return; // Unreadable, e.g. a protected folder.
+        }
+        Arrays.sort(entries);
+        levels.push(new Level(entries, prefix));
+    }
+
+    /**
+     * Maps a relative path received from a peer to a file under baseDir, creating its parent
+     * folders. Absolute paths and "." or ".." segments are rejected, so a peer cannot write
+     * outside baseDir.
+     */
+    public static File resolve(File baseDir, String relativePath) throws IOException {
+        File file = baseDir;
+        for (String segment : relativePath.split("/")) {
+            if (segment.isEmpty() || segment.equals(".") || segment.equals("..") || segment.indexOf('\\') >= 0) {
+                throw new IOException("Invalid path received: " + relativePath);
+            }
+            file = new File(file, segment);
+        }
+        if (file == baseDir) {
+            throw new IOException("Invalid path received: " + relativePath);
+        }
+        File parent = file.getParentFile();
+        if (!parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Could not create folder " + parent);
+        }
+        return file;
+    }
+}
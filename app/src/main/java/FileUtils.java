@@ -3,12 +3,11 @@ package com.hfm.app;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.Context;
-import android.content.Intent;
 import android.database.Cursor;
-import android.net.Uri;
 import android.provider.MediaStore;
 import android.util.Log;
 import java.io.File;
+import java.util.Arrays;
 
 public class FileUtils {
 
@@ -16,10 +15,10 @@ public class FileUtils {
 
     /**
      * Deletes a file from internal storage using the most reliable method available.
-     * It first tries to delete via the Android MediaStore's ContentResolver, which is the
-     * preferred method. If that fails (e.g., the file is not in the MediaStore), it
-     * falls back to a direct file system deletion and then triggers a media scan to
-     * ensure the system's index is updated.
+     * It first deletes the file directly and hands its path to MediaStoreSync, which removes
+     * the MediaStore rows of many deleted files in one batch. If the direct delete fails
+     * (e.g., scoped storage doesn't let us touch another app's media), it falls back to
+     * deleting via the Android MediaStore's ContentResolver, which removes file and row.
      *
      * @param context The application context.
      * @param file    The file to be deleted.
@@ -30,6 +29,11 @@ public class FileUtils {
             return true;
         }
 
+        if (file.delete()) {
+            MediaStoreSync.getInstance(context).notifyChanged(file);
+            return true;
+        }
+
         String path = file.getAbsolutePath();
         ContentResolver resolver = context.getContentResolver();
         String where = MediaStore.Files.FileColumns.DATA + " = ?";
@@ -39,18 +43,13 @@ public class FileUtils {
             int rowsDeleted = resolver.delete(MediaStore.Files.getContentUri("external"), where, selectionArgs);
             if (rowsDeleted > 0) {
                 Log.d(TAG, "Successfully deleted file via ContentResolver: " + path);
+                FileIndexer.notifyChanged(context, Arrays.asList(path));
                 return true;
             }
         } catch (Exception e) {
             Log.e(TAG, "Error deleting file via ContentResolver for path: " + path, e);
         }
 
-        if (file.delete()) {
-            Log.d(TAG, "Successfully deleted file directly. Requesting media scan for: " + path);
-            context.sendBroadcast(new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE, Uri.fromFile(file)));
-            return true;
-        }
-
         return false;
     }
 
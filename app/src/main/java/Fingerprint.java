@@ -0,0 +1,71 @@
+package com.hfm.app;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * A cheap identity for a file's content: its size, its modification time and a SHA-1 over the
+ * size, the first 64 KB and the last 64 KB. Reading at most 128 KB keeps it fast for large videos.
+ * The ends alone miss an edit in the middle of a file of unchanged size, such as a document or a
+ * database, but such an edit moves the modification time, so the two are only trusted together.
+ */
+public class Fingerprint {
+
+    public static final int HASH_SIZE = 20;
+    private static final int SAMPLE_SIZE = 64 * 1024;
+
+    public final long size;
+    public final long lastModified;
+    public final byte[] hash;
+
+    public Fingerprint(long size, long lastModified, byte[] hash) {
+        this.size = size;
+        this.lastModified = lastModified;
+        this.hash = hash;
+    }
+
+    public static Fingerprint of(File file) throws IOException {
+        long size = file.length();
+        long lastModified = file.lastModified();
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not available", e);
+        }
+        for (int i = 7; i >= 0; i--) {
+            digest.update((byte) (size >>> (i * 8)));
+        }
+
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        byte[] buffer = BufferPool.acquire(SAMPLE_SIZE);
+        try {
+            int head = (int) Math.min(SAMPLE_SIZE, size);
+            in.readFully(buffer, 0, head);
+            digest.update(buffer, 0, head);
+            if (size > SAMPLE_SIZE) {
+                // For files under 128 KB the tail overlaps the head, which is harmless.
+                int tail = (int) Math.min(SAMPLE_SIZE, size - SAMPLE_SIZE);
+                in.seek(size - tail);
+                in.readFully(buffer, 0, tail);
+                digest.update(buffer, 0, tail);
+            }
+        } finally {
+            in.close();
+            BufferPool.release(buffer);
+        }
+        return new Fingerprint(size, lastModified, digest.digest());
+    }
+
+    /**
+     * Whether both fingerprints describe the same content. Modification times are compared to
+     * the second, as some file systems keep no more.
+     */
+    public boolean sameContentAs(Fingerprint other) {
+        return size == other.size && lastModified / 1000 == other.lastModified / 1000 && Arrays.equals(hash, other.hash);
+    }
+}
@@ -0,0 +1,230 @@
+package com.hfm.app;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers the fingerprints of files the receiver already has, keyed by path, so answering a
+ * deduplication offer only reads files that are new or changed since the last session.
+ *
+ * Stored as [int version][int count] followed by [UTF path][long size][long lastModified][hash]
+ * per file. A cached fingerprint is reused only while the file's size and modification time
+ * still match it.
+ *
+ * Safe to use from several threads. Files are hashed and the folder is listed without holding
+ * the cache's lock, so a thread answering an offer never holds up one that only adds a file.
+ */
+public class FingerprintCache {
+
+    private static final int VERSION = 1;
+
+    private final File cacheFile;
+    private final Map<String, Fingerprint> fingerprints = new HashMap<>();
+    // Held while the folder is listed, so it is listed once.
+    private final Object listingLock = new Object();
+    private Map<Long, List<File>> filesBySize;
+    // Files added while the folder was being listed, which the listing may have missed.
+    private List<File> addedWhileListing;
+    private boolean dirty = false;
+
+    private FingerprintCache(File cacheFile) {
+        this.cacheFile = cacheFile;
+    }
+
+    /**
+     * Loads the cache, starting empty if it is missing or unreadable.
+     */
+    public static FingerprintCache load(File cacheFile) {
+        FingerprintCache cache = new FingerprintCache(cacheFile);
+        if (!cacheFile.exists()) {
+            return cache;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)));
+            try {
+                if (in.readInt() == VERSION) {
+                    int count = in.readInt();
+                    for (int i = 0; i < count; i++) {
+                        String path = in.readUTF();
+                        long size = in.readLong();
+                        long lastModified = in.readLong();
+                        byte[] hash = new byte[Fingerprint.HASH_SIZE];
+                        in.readFully(hash);
+                        cache.fingerprints.put(path, new Fingerprint(size, lastModified, hash));
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            // A damaged cache only costs re-reading the files.
+            cache.fingerprints.clear();
+        }
+        return cache;
+    }
+
+    /**
+     * Returns the file's fingerprint, computing it only if the cached one is missing or stale.
+     */
+    public Fingerprint get(File file) throws IOException {
+        String path = file.getAbsolutePath();
+        long size = file.length();
+        long lastModified = file.lastModified();
+        Fingerprint cached;
+        synchronized (this) {
+            cached = fingerprints.get(path);
+        }
+        if (cached != null && cached.size == size && cached.lastModified == lastModified) {
+            return cached;
+        }
+        Fingerprint fingerprint = Fingerprint.of(file);
+        synchronized (this) {
+            fingerprints.put(path, fingerprint);
+            dirty = true;
+        }
+        return fingerprint;
+    }
+
+    /**
+     * Returns the files under dir with the given size. The folder is listed once per cache
+     * instance, on the first call, and only stat'ed, not read.
+     *
+     * @param ignoredSuffix Files ending in this (e.g. unfinished downloads) are left out.
+     */
+    public List<File> filesOfSize(File dir, long size, String ignoredSuffix) {
+        synchronized (listingLock) {
+            boolean listed;
+            synchronized (this) {
+                listed = filesBySize != null;
+                if (!listed) {
+                    addedWhileListing = new ArrayList<>();
+                }
+            }
+            if (!listed) {
+                Map<Long, List<File>> bySize = list(dir, ignoredSuffix);
+                List<File> added;
+                synchronized (this) {
+                    added = addedWhileListing;
+                    addedWhileListing = null;
+                    filesBySize = bySize;
+                }
+                for (File file : added) {
+                    addFile(file);
+                }
+            }
+        }
+        synchronized (this) {
+            List<File> files = filesBySize.get(size);
+            return files != null ? new ArrayList<>(files) : Collections.<File>emptyList();
+        }
+    }
+
+    private static Map<Long, List<File>> list(File dir, String ignoredSuffix) {
+        Map<Long, List<File>> bySize = new HashMap<>();
+        Deque<File> pending = new ArrayDeque<>();
+        pending.push(dir);
+        while (!pending.isEmpty()) {
+            File[] entries = pending.pop().listFiles();
+            if (entries == null) {
+                continue;
+            }
+            for (File entry : entries) {
+                if (entry.isDirectory()) {
+                    pending.push(entry);
+                } else if (!entry.getName().endsWith(ignoredSuffix)) {
+                    addBySize(bySize, entry, entry.length());
+                }
+            }
+        }
+        return bySize;
+    }
+
+    /**
+     * Registers a file that appeared in the folder after it was listed.
+     */
+    public void addFile(File file) {
+        long size = file.length();
+        synchronized (this) {
+            if (filesBySize != null) {
+                addBySize(filesBySize, file, size);
+            } else if (addedWhileListing != null) {
+                addedWhileListing.add(file);
+            }
+        }
+    }
+
+    private static void addBySize(Map<Long, List<File>> bySize, File file, long size) {
+        List<File> files = bySize.get(size);
+        if (files == null) {
+            files = new ArrayList<>();
+            bySize.put(size, files);
+        }
+        if (!files.contains(file)) {
+            files.add(file);
+        }
+    }
+
+    /**
+     * Writes the cache back if it changed, dropping entries for files that no longer exist.
+     */
+    public void save() throws IOException {
+        Map<String, Fingerprint> snapshot;
+        synchronized (this) {
+            if (!dirty) {
+                return;
+            }
+            snapshot = new HashMap<>(fingerprints);
+            dirty = false;
+        }
+        try {
+            write(snapshot);
+        } catch (IOException e) {
+            synchronized (this) {
+                dirty = true;
+            }
+            throw e;
+        }
+    }
+
+    private void write(Map<String, Fingerprint> fingerprints) throws IOException {
+        File tempFile = new File(cacheFile.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+        try {
+            List<Map.Entry<String, Fingerprint>> live = new ArrayList<>();
+            for (Map.Entry<String, Fingerprint> entry : fingerprints.entrySet()) {
+                if (new File(entry.getKey()).exists()) {
+                    live.add(entry);
+                }
+            }
+            out.writeInt(VERSION);
+            out.writeInt(live.size());
+            for (Map.Entry<String, Fingerprint> entry : live) {
+                Fingerprint fingerprint = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeLong(fingerprint.size);
+                out.writeLong(fingerprint.lastModified);
+                out.write(fingerprint.hash);
+            }
+        } finally {
+            out.close();
+        }
+        // Replace the old cache in one step so a crash never leaves a half-written one.
+        if (!tempFile.renameTo(cacheFile)) {
+            tempFile.delete();
+            throw new IOException("Could not save the fingerprint cache");
+        }
+    }
+}
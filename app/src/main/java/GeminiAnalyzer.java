@@ -39,6 +39,7 @@ public class GeminiAnalyzer {
     // --- THIS IS THE CORRECTED ENDPOINT AS YOU INSTRUCTED ---
     private static final String GEMINI_API_ENDPOINT = "https://generativelanguage.googleapis.com/v1beta/models/gemini-2.0-flash:generateContent";
     private static final long MAX_TEXT_PAYLOAD_SIZE = 250000; // Limit text sent to API
+    private static final int READ_BUFFER_SIZE = 8192;
 
     private Context context;
     private TextView resultTextView;
@@ -293,13 +294,17 @@ public class GeminiAnalyzer {
         try {
             StringBuilder text = new StringBuilder();
             FileInputStream fis = new FileInputStream(textFile);
-            byte[] buffer = new byte[8192];
-            int bytesRead;
-            while ((bytesRead = fis.read(buffer)) != -1) {
-                text.append(new String(buffer, 0, bytesRead));
-                if (text.length() > MAX_TEXT_PAYLOAD_SIZE) {
-                    break;
+            byte[] buffer = BufferPool.acquire(READ_BUFFER_SIZE);
+            try {
+                int bytesRead;
+                while ((bytesRead = fis.read(buffer)) != -1) {
+                    text.append(new String(buffer, 0, bytesRead));
+                    if (text.length() > MAX_TEXT_PAYLOAD_SIZE) {
+                        break;
+                    }
                 }
+            } finally {
+                BufferPool.release(buffer);
             }
             fis.close();
 
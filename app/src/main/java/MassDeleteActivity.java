@@ -55,9 +55,8 @@ import java.util.Comparator;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Set;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -82,8 +81,43 @@ public class MassDeleteActivity extends Activity implements MassDeleteAdapter.On
     private TextView deletionProgressText;
     private BroadcastReceiver deleteCompletionReceiver;
     private BroadcastReceiver compressionBroadcastReceiver;
+    private BroadcastReceiver indexUpdatedReceiver;
 
-    private final ExecutorService searchExecutor = Executors.newSingleThreadExecutor();
+    private final SearchSession<QueryParameters, MassDeleteAdapter.SearchResult> searchSession = new SearchSession<>(
+        new SearchSession.Searcher<QueryParameters, MassDeleteAdapter.SearchResult>() {
+            @Override
+            public List<MassDeleteAdapter.SearchResult> search(SearchSession.Search<QueryParameters> search) {
+                return runSearch(search);
+            }
+
+            @Override
+            public List<MassDeleteAdapter.SearchResult> refine(List<MassDeleteAdapter.SearchResult> previous,
+                                                               SearchSession.Search<QueryParameters> search) {
+                // Every way of searching here matches the text against the path.
+                List<MassDeleteAdapter.SearchResult> results = new ArrayList<>();
+                for (MassDeleteAdapter.SearchResult result : previous) {
+                    if (result.getPath() != null && result.getPath().toLowerCase(Locale.ROOT).contains(search.text)) {
+                        results.add(result);
+                    }
+                }
+                return results;
+            }
+
+            @Override
+            public void show(SearchSession.Search<QueryParameters> search, List<MassDeleteAdapter.SearchResult> results) {
+                updateUIWithResults(search, results);
+            }
+
+            @Override
+            public String pathOf(MassDeleteAdapter.SearchResult result) {
+                return result.getPath();
+            }
+
+            @Override
+            public boolean couldMatch(String path, String text) {
+                return path.toLowerCase(Locale.ROOT).contains(text);
+            }
+        });
     private List<MassDeleteAdapter.SearchResult> mResultsPendingPermission;
     private Runnable mPendingOperation;
 
@@ -140,7 +174,9 @@ public class MassDeleteActivity extends Activity implements MassDeleteAdapter.On
 				@Override public void onTextChanged(CharSequence s, int start, int before, int count) {
 					fetchFolderSuggestions(s.toString());
 				}
-				@Override public void afterTextChanged(Editable s) {}
+				@Override public void afterTextChanged(Editable s) {
+					scheduleQuery(s.toString());
+				}
 			});
 
         searchInput.setOnItemClickListener(new AdapterView.OnItemClickListener() {
@@ -190,44 +226,76 @@ public class MassDeleteActivity extends Activity implements MassDeleteAdapter.On
 			});
     }
 
-    private void executeQuery(final String query) {
-        searchExecutor.execute(new Runnable() {
+    /**
+     * Searches as the user types, once the text settles. Clearing the text clears the results
+     * rather than listing every file.
+     */
+    private void scheduleQuery(String query) {
+        if (query.trim().isEmpty()) {
+            searchSession.cancel();
+            displayList.clear();
+            adapter.updateData(displayList);
+            return;
+        }
+        QueryParameters params = parseQuery(query);
+        searchSession.searchSoon(params, currentFilterType, params.folderPath);
+    }
+
+    private void executeQuery(String query) {
+        QueryParameters params = parseQuery(query);
+        searchSession.search(params, currentFilterType, params.folderPath);
+    }
+
+    /**
+     * Searches again without the cached results, after files were deleted, moved or added.
+     */
+    private void refreshQuery() {
+        searchSession.clearCache();
+        executeQuery(searchInput.getText().toString());
+    }
+
+    private List<MassDeleteAdapter.SearchResult> runSearch(SearchSession.Search<QueryParameters> search) {
+        final MediaStoreQuery mediaQuery = newMediaStoreQuery(search.params);
+        search.onCancel(new Runnable() {
 				@Override
 				public void run() {
-					final QueryParameters params = parseQuery(query);
-					List<MassDeleteAdapter.SearchResult> mediaStoreResults = executeQueryWithMediaStore(params);
-
-					if (!mediaStoreResults.isEmpty()) {
-						updateUIWithResults(mediaStoreResults, params);
-					} else {
-						runOnUiThread(new Runnable() {
-								@Override
-								public void run() {
-									Toast.makeText(MassDeleteActivity.this, "MediaStore found nothing. Starting deep scan...", Toast.LENGTH_SHORT).show();
-								}
-							});
-						List<MassDeleteAdapter.SearchResult> fileSystemResults = performFallbackFileSearch(params);
-						updateUIWithResults(fileSystemResults, params);
-					}
+					mediaQuery.cancel();
+				}
+			});
+        List<MassDeleteAdapter.SearchResult> mediaStoreResults = streamMediaStoreResults(search, mediaQuery);
+        if (search.isCancelled()) {
+            return null;
+        }
+        if (!mediaStoreResults.isEmpty()) {
+            return mediaStoreResults;
+        }
+        runOnUiThread(new Runnable() {
+				@Override
+				public void run() {
+					Toast.makeText(MassDeleteActivity.this, "MediaStore found nothing. Starting deep scan...", Toast.LENGTH_SHORT).show();
 				}
 			});
+        List<MassDeleteAdapter.SearchResult> fileSystemResults = performFallbackFileSearch(search);
+        if (search.isCancelled()) {
+            return null;
+        }
+        updateUIWithResults(search, fileSystemResults);
+        return fileSystemResults;
     }
 
-    private void updateUIWithResults(final List<MassDeleteAdapter.SearchResult> results, final QueryParameters params) {
+    private void updateUIWithResults(final SearchSession.Search<QueryParameters> search, final List<MassDeleteAdapter.SearchResult> results) {
         runOnUiThread(new Runnable() {
 				@Override
 				public void run() {
-					displayList.clear();
-					displayList.addAll(results);
-
-					if (params.startRange != -1 && params.endRange != -1) {
-						int start = Math.max(0, params.startRange - 1);
-						int end = Math.min(displayList.size() - 1, params.endRange - 1);
-						for (int i = start; i <= end; i++) {
-							displayList.get(i).setExcluded(false);
-						}
+					if (search.isCancelled()) {
+						return;
 					}
-
+					// Cached results come back with whatever was selected the last time.
+					for (MassDeleteAdapter.SearchResult result : results) {
+						result.setExcluded(true);
+					}
+					displayList.clear();
+					appendResults(results, search.params);
 					adapter.updateData(displayList);
 					if (results.isEmpty()) {
 						Toast.makeText(MassDeleteActivity.this, "No files found.", Toast.LENGTH_SHORT).show();
@@ -236,10 +304,25 @@ public class MassDeleteActivity extends Activity implements MassDeleteAdapter.On
 			});
     }
 
-    private List<MassDeleteAdapter.SearchResult> executeQueryWithMediaStore(QueryParameters params) {
+    /**
+     * Adds results after those already in displayList, selecting the ones whose position falls
+     * in the query's range.
+     */
+    private void appendResults(List<MassDeleteAdapter.SearchResult> results, QueryParameters params) {
+        int offset = displayList.size();
+        displayList.addAll(results);
+        if (params.startRange != -1 && params.endRange != -1) {
+            int start = Math.max(offset, params.startRange - 1);
+            int end = Math.min(displayList.size() - 1, params.endRange - 1);
+            for (int i = start; i <= end; i++) {
+                displayList.get(i).setExcluded(false);
+            }
+        }
+    }
+
+    private MediaStoreQuery newMediaStoreQuery(QueryParameters params) {
         StringBuilder selection = new StringBuilder();
         List<String> selectionArgs = new ArrayList<>();
-        Uri queryUri = MediaStore.Files.getContentUri("external");
         addFilterClauses(selection, selectionArgs);
 
         if (params.folderPath != null && !params.folderPath.isEmpty()) {
@@ -248,40 +331,71 @@ public class MassDeleteActivity extends Activity implements MassDeleteAdapter.On
             selectionArgs.add("%" + params.folderPath + "%");
         }
 
-        List<MassDeleteAdapter.SearchResult> results = new ArrayList<>();
         String[] projection = {
             MediaStore.Files.FileColumns._ID,
             MediaStore.Files.FileColumns.MEDIA_TYPE,
-            MediaStore.Files.FileColumns.DATE_MODIFIED,
-            MediaStore.Files.FileColumns.DISPLAY_NAME
+            MediaStore.Files.FileColumns.DISPLAY_NAME,
+            MediaStore.Files.FileColumns.DATA
         };
-        Cursor cursor = getContentResolver().query(queryUri, projection, selection.toString(),
-												   selectionArgs.toArray(new String[0]), MediaStore.Files.FileColumns.DATE_MODIFIED + " DESC");
-
-        if (cursor != null) {
-            int idColumn = cursor.getColumnIndexOrThrow(MediaStore.Files.FileColumns._ID);
-            int mediaTypeColumn = cursor.getColumnIndexOrThrow(MediaStore.Files.FileColumns.MEDIA_TYPE);
-            int displayNameColumn = cursor.getColumnIndexOrThrow(MediaStore.Files.FileColumns.DISPLAY_NAME);
-            while (cursor.moveToNext()) {
-                long id = cursor.getLong(idColumn);
-                int mediaType = cursor.getInt(mediaTypeColumn);
-                String displayName = cursor.getString(displayNameColumn);
-                Uri contentUri;
-                if (mediaType == MediaStore.Files.FileColumns.MEDIA_TYPE_IMAGE) {
-                    contentUri = ContentUris.withAppendedId(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, id);
-                } else if (mediaType == MediaStore.Files.FileColumns.MEDIA_TYPE_VIDEO) {
-                    contentUri = ContentUris.withAppendedId(MediaStore.Video.Media.EXTERNAL_CONTENT_URI, id);
-                } else {
-                    contentUri = ContentUris.withAppendedId(queryUri, id);
-                }
-                results.add(new MassDeleteAdapter.SearchResult(contentUri, id, displayName));
-            }
-            cursor.close();
-        }
-        return results;
+        return new MediaStoreQuery(getContentResolver(), MediaStore.Files.getContentUri("external"), projection,
+            selection.toString(), selectionArgs.toArray(new String[0]));
+    }
+
+    /**
+     * Runs the MediaStore query on the calling thread, replacing the list with its first page
+     * and adding every further page as it is read.
+     *
+     * @return Every result found.
+     */
+    private List<MassDeleteAdapter.SearchResult> streamMediaStoreResults(final SearchSession.Search<QueryParameters> search,
+                                                                        MediaStoreQuery mediaQuery) {
+        runOnUiThread(new Runnable() {
+				@Override
+				public void run() {
+					if (!search.isCancelled()) {
+						displayList.clear();
+						adapter.updateData(displayList);
+					}
+				}
+			});
+        final Uri queryUri = MediaStore.Files.getContentUri("external");
+        final List<MassDeleteAdapter.SearchResult> found = new ArrayList<>();
+        mediaQuery.run(new MediaStoreQuery.RowReader<MassDeleteAdapter.SearchResult>() {
+				@Override
+				public MassDeleteAdapter.SearchResult read(Cursor cursor) {
+					long id = cursor.getLong(0);
+					int mediaType = cursor.getInt(1);
+					Uri contentUri;
+					if (mediaType == MediaStore.Files.FileColumns.MEDIA_TYPE_IMAGE) {
+						contentUri = ContentUris.withAppendedId(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, id);
+					} else if (mediaType == MediaStore.Files.FileColumns.MEDIA_TYPE_VIDEO) {
+						contentUri = ContentUris.withAppendedId(MediaStore.Video.Media.EXTERNAL_CONTENT_URI, id);
+					} else {
+						contentUri = ContentUris.withAppendedId(queryUri, id);
+					}
+					return new MassDeleteAdapter.SearchResult(contentUri, id, cursor.getString(2), cursor.getString(3));
+				}
+			}, new MediaStoreQuery.PageListener<MassDeleteAdapter.SearchResult>() {
+				@Override
+				public void onPage(final List<MassDeleteAdapter.SearchResult> results) {
+					found.addAll(results);
+					runOnUiThread(new Runnable() {
+							@Override
+							public void run() {
+								if (!search.isCancelled()) {
+									int start = displayList.size();
+									appendResults(results, search.params);
+									adapter.notifyItemRangeInserted(start, results.size());
+								}
+							}
+						});
+				}
+			});
+        return found;
     }
 
-    private List<MassDeleteAdapter.SearchResult> performFallbackFileSearch(QueryParameters params) {
+    private List<MassDeleteAdapter.SearchResult> performFallbackFileSearch(SearchSession.Search<QueryParameters> search) {
+        QueryParameters params = search.params;
         List<MassDeleteAdapter.SearchResult> results = new ArrayList<>();
         File externalStorage = Environment.getExternalStorageDirectory();
 
@@ -294,9 +408,16 @@ public class MassDeleteActivity extends Activity implements MassDeleteAdapter.On
         rootsToScan.add(new File(externalStorage, "Pictures"));
         rootsToScan.add(new File(externalStorage, "DCIM/Camera"));
 
+        FileIndex index = FileIndex.getInstance(this);
+        if (index.isReady() && index.covers(this, externalStorage)) {
+            // Already newest first.
+            return searchIndex(index, rootsToScan, params);
+        }
+        FileIndexer.refresh(this);
+
         for (File root : rootsToScan) {
             if (root.exists() && root.isDirectory()) {
-                scanDirectory(root, params, results);
+                scanDirectory(search, root, params, results);
             }
         }
 
@@ -311,14 +432,46 @@ public class MassDeleteActivity extends Activity implements MassDeleteAdapter.On
         return results;
     }
 
-    private void scanDirectory(File directory, QueryParameters params, List<MassDeleteAdapter.SearchResult> results) {
+    private List<MassDeleteAdapter.SearchResult> searchIndex(FileIndex index, List<File> roots, QueryParameters params) {
+        StringBuilder selection = new StringBuilder();
+        List<String> selectionArgs = new ArrayList<>();
+        List<String> rootPaths = new ArrayList<>();
+        for (File root : roots) {
+            rootPaths.add(root.getAbsolutePath());
+        }
+        FileIndex.appendUnderAny(selection, selectionArgs, rootPaths);
+        List<FileIndex.Entry> entries;
+        if (params.folderPath != null && !params.folderPath.contains("/")) {
+            // Names and folder names through the name index; the range positions stay newest first.
+            entries = index.searchFiles(params.folderPath, selection.toString(), selectionArgs.toArray(new String[0]));
+        } else {
+            if (params.folderPath != null) {
+                FileIndex.appendPathContains(selection, selectionArgs, params.folderPath);
+            }
+            entries = index.query(FileIndex.COLUMN_IS_DIR + " = 0 AND " + selection, selectionArgs.toArray(new String[0]),
+                FileIndex.COLUMN_MTIME + " DESC");
+        }
+
+        List<MassDeleteAdapter.SearchResult> results = new ArrayList<>();
+        for (FileIndex.Entry entry : entries) {
+            if (isFileTypeMatch(entry.name)) {
+                File file = entry.getFile();
+                results.add(new MassDeleteAdapter.SearchResult(Uri.fromFile(file), entry.lastModified, entry.name, entry.path));
+            }
+        }
+        return results;
+    }
+
+    private void scanDirectory(SearchSession.Search<QueryParameters> search, File directory, QueryParameters params,
+                               List<MassDeleteAdapter.SearchResult> results) {
+        if (search.isCancelled()) return;
         File[] files = directory.listFiles();
         if (files == null) return;
 
         for (File file : files) {
             if (file.isDirectory()) {
                 if (params.folderPath == null || file.getAbsolutePath().toLowerCase().contains(params.folderPath.toLowerCase())) {
-                    scanDirectory(file, params, results);
+                    scanDirectory(search, file, params, results);
                 }
             } else {
                 boolean folderMatch = (params.folderPath == null) ||
@@ -326,7 +479,7 @@ public class MassDeleteActivity extends Activity implements MassDeleteAdapter.On
 
                 if (folderMatch) {
                     if (isFileTypeMatch(file.getName())) {
-                        results.add(new MassDeleteAdapter.SearchResult(Uri.fromFile(file), file.lastModified(), file.getName()));
+                        results.add(new MassDeleteAdapter.SearchResult(Uri.fromFile(file), file.lastModified(), file.getName(), file.getAbsolutePath()));
                     }
                 }
             }
@@ -571,8 +724,7 @@ public class MassDeleteActivity extends Activity implements MassDeleteAdapter.On
 
                 if (sourceFile.renameTo(destFile)) {
                     movedCount++;
-                    sendBroadcast(new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE, Uri.fromFile(sourceFile)));
-                    sendBroadcast(new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE, Uri.fromFile(destFile)));
+                    MediaStoreSync.getInstance(this).notifyMoved(sourceFile, destFile);
                 } else {
                     Log.w(TAG, "Failed to move file to recycle bin: " + sourceFile.getAbsolutePath());
                 }
@@ -580,7 +732,7 @@ public class MassDeleteActivity extends Activity implements MassDeleteAdapter.On
         }
 
         Toast.makeText(this, movedCount + " file(s) moved to Recycle Bin.", Toast.LENGTH_LONG).show();
-        executeQuery(searchInput.getText().toString());
+        refreshQuery();
     }
 
     private void performDelete(final List<MassDeleteAdapter.SearchResult> toDelete) {
@@ -743,7 +895,7 @@ public class MassDeleteActivity extends Activity implements MassDeleteAdapter.On
                 Toast.makeText(MassDeleteActivity.this, "Deletion complete. " + deletedCount + " files removed.", Toast.LENGTH_LONG).show();
 
                 deletionProgressLayout.setVisibility(View.GONE);
-                executeQuery(searchInput.getText().toString()); // Refresh the list
+                refreshQuery(); // Refresh the list
             }
         };
         LocalBroadcastManager.getInstance(this).registerReceiver(deleteCompletionReceiver, new IntentFilter(DeleteService.ACTION_DELETE_COMPLETE));
@@ -754,21 +906,38 @@ public class MassDeleteActivity extends Activity implements MassDeleteAdapter.On
                 boolean success = intent.getBooleanExtra(CompressionService.EXTRA_SUCCESS, false);
                 if (success) {
                     // Refresh the current view to show the new zip file
-                    executeQuery(searchInput.getText().toString());
+                    refreshQuery();
                 }
             }
         };
         LocalBroadcastManager.getInstance(this).registerReceiver(compressionBroadcastReceiver, new IntentFilter(CompressionService.ACTION_COMPRESSION_COMPLETE));
+
+        indexUpdatedReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                String[] changedPaths = intent.getStringArrayExtra(FileIndexer.EXTRA_CHANGED_PATHS);
+                if (changedPaths != null) {
+                    searchSession.forgetChanged(Arrays.asList(changedPaths));
+                } else {
+                    searchSession.clearCache();
+                }
+            }
+        };
+        LocalBroadcastManager.getInstance(this).registerReceiver(indexUpdatedReceiver, new IntentFilter(FileIndexer.ACTION_INDEX_UPDATED));
     }
 
     @Override
     protected void onDestroy() {
+        searchSession.cancel();
         if (deleteCompletionReceiver != null) {
             LocalBroadcastManager.getInstance(this).unregisterReceiver(deleteCompletionReceiver);
         }
         if (compressionBroadcastReceiver != null) {
             LocalBroadcastManager.getInstance(this).unregisterReceiver(compressionBroadcastReceiver);
         }
+        if (indexUpdatedReceiver != null) {
+            LocalBroadcastManager.getInstance(this).unregisterReceiver(indexUpdatedReceiver);
+        }
         super.onDestroy();
     }
 
@@ -306,17 +306,20 @@ public class MassDeleteAdapter extends RecyclerView.Adapter<MassDeleteAdapter.It
         private final Uri uri;
         private final long mediaStoreId;
         private final String displayName;
+        private final String path;
         private boolean isExcluded;
 
-        public SearchResult(Uri uri, long mediaStoreId, String displayName) {
+        public SearchResult(Uri uri, long mediaStoreId, String displayName, String path) {
             this.uri = uri;
             this.mediaStoreId = mediaStoreId;
             this.displayName = displayName;
+            this.path = path;
             this.isExcluded = true;
         }
         public Uri getUri() { return uri; }
         public long getMediaStoreId() { return mediaStoreId; }
         public String getDisplayName() { return displayName; }
+        public String getPath() { return path; }
         public boolean isExcluded() { return isExcluded; }
         public void setExcluded(boolean excluded) { isExcluded = excluded; }
     }
@@ -1,7 +1,6 @@
 package com.hfm.app;
 
 import android.app.Activity;
-import android.content.ContentResolver;
 import android.content.Intent;
 import android.database.Cursor;
 import android.net.Uri;
@@ -34,6 +33,7 @@ public class MediaPickerActivity extends Activity {
     private MediaPickerAdapter adapter;
     private List<File> mediaFileList = new ArrayList<>();
     private String categoryType;
+    private ScanMediaTask scanTask;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -54,7 +54,16 @@ public class MediaPickerActivity extends Activity {
         setupListeners();
         updateTitle();
 
-        new ScanMediaTask().execute(categoryType);
+        scanTask = new ScanMediaTask();
+        scanTask.execute(categoryType);
+    }
+
+    @Override
+    protected void onDestroy() {
+        if (scanTask != null) {
+            scanTask.cancelQuery();
+        }
+        super.onDestroy();
     }
 
     private void initializeViews() {
@@ -135,7 +144,22 @@ public class MediaPickerActivity extends Activity {
         selectionCountTextView.setText(count + " files selected");
     }
 
-    private class ScanMediaTask extends AsyncTask<String, Void, List<File>> {
+    /**
+     * Reads the category newest first through a MediaStoreQuery and shows every page as soon as
+     * it is read, instead of waiting for the whole library.
+     */
+    private class ScanMediaTask extends AsyncTask<String, List<File>, Integer> {
+
+        private volatile MediaStoreQuery query;
+        private boolean shown;
+
+        void cancelQuery() {
+            cancel(false);
+            MediaStoreQuery running = query;
+            if (running != null) {
+                running.cancel();
+            }
+        }
 
         @Override
         protected void onPreExecute() {
@@ -145,10 +169,8 @@ public class MediaPickerActivity extends Activity {
         }
 
         @Override
-        protected List<File> doInBackground(String... params) {
+        protected Integer doInBackground(String... params) {
             String category = params[0];
-            List<File> foundFiles = new ArrayList<>();
-            ContentResolver contentResolver = getContentResolver();
 
             Uri queryUri;
             String[] projection = {MediaStore.MediaColumns.DATA};
@@ -177,48 +199,56 @@ public class MediaPickerActivity extends Activity {
                     };
                     break;
                 default:
-                    return foundFiles; // Return empty for unknown category
+                    return 0; // Nothing for an unknown category
+            }
+
+            query = new MediaStoreQuery(getContentResolver(), queryUri, projection, selection, selectionArgs);
+            if (isCancelled()) {
+                return 0;
             }
+            return query.run(new MediaStoreQuery.RowReader<File>() {
+					@Override
+					public File read(Cursor cursor) {
+						String path = cursor.getString(0);
+						if (path == null) {
+							return null;
+						}
+						File file = new File(path);
+						// Check if file exists and is not empty
+						return file.exists() && file.length() > 0 ? file : null;
+					}
+				}, new MediaStoreQuery.PageListener<File>() {
+					@Override
+					@SuppressWarnings("unchecked")
+					public void onPage(List<File> results) {
+						publishProgress(results);
+					}
+				});
+        }
 
-            Cursor cursor = contentResolver.query(queryUri, projection, selection, selectionArgs, MediaStore.MediaColumns.DATE_MODIFIED + " DESC");
-
-            if (cursor != null) {
-                try {
-                    int dataColumnIndex = cursor.getColumnIndexOrThrow(MediaStore.MediaColumns.DATA);
-                    while (cursor.moveToNext()) {
-                        String path = cursor.getString(dataColumnIndex);
-                        File file = new File(path);
-                        if (file.exists() && file.length() > 0) { // Check if file exists and is not empty
-                            foundFiles.add(file);
-                        }
-                    }
-                } finally {
-                    cursor.close();
-                }
+        @Override
+        protected void onProgressUpdate(List<File>... pages) {
+            for (List<File> page : pages) {
+                mediaFileList.addAll(page);
+                adapter.addFiles(page);
+            }
+            if (!shown) {
+                // The first page is enough to start picking.
+                shown = true;
+                loadingView.setVisibility(View.GONE);
+                mediaRecyclerView.setVisibility(View.VISIBLE);
             }
-            return foundFiles;
         }
 
         @Override
-        protected void onPostExecute(List<File> result) {
-            super.onPostExecute(result);
+        protected void onPostExecute(Integer found) {
+            super.onPostExecute(found);
             loadingView.setVisibility(View.GONE);
             mediaRecyclerView.setVisibility(View.VISIBLE);
 
-            if (result.isEmpty()) {
+            if (found == 0) {
                 Toast.makeText(MediaPickerActivity.this, "No files found for this category.", Toast.LENGTH_LONG).show();
-            } else {
-                mediaFileList.clear();
-                mediaFileList.addAll(result);
-                adapter = new MediaPickerAdapter(MediaPickerActivity.this, mediaFileList, new MediaPickerAdapter.OnItemClickListener() {
-						@Override
-						public void onSelectionChanged() {
-							updateSelectionCount();
-						}
-					});
-                mediaRecyclerView.setAdapter(adapter);
             }
         }
     }
 }
-
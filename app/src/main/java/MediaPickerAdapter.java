@@ -156,6 +156,17 @@ public class MediaPickerAdapter extends RecyclerView.Adapter<MediaPickerAdapter.
         return fileList;
     }
 
+    /**
+     * Adds files after the ones already shown.
+     */
+    public void addFiles(List<File> files) {
+        int start = fileList.size();
+        for (File file : files) {
+            fileList.add(new FileItem(file));
+        }
+        notifyItemRangeInserted(start, files.size());
+    }
+
     public static class FileViewHolder extends RecyclerView.ViewHolder {
         ImageView thumbnailImage;
         TextView fileName;
@@ -0,0 +1,176 @@
+package com.hfm.app;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads MediaStore rows newest first, one page at a time, handing every page to a listener as
+ * soon as it is read.
+ *
+ * Pages are cut with a keyset rather than an OFFSET: each page asks for the rows that sort
+ * after the (date_modified, _id) of the last row of the previous one, so the provider hands over
+ * only the rows of that page, where OFFSET n reads and throws away n rows again for every page.
+ * _id breaks ties between rows modified in the same second, so no row is skipped or repeated.
+ * Rows without a date sort and page as 0, the value the cursor reads for them.
+ *
+ * A query can be cancelled from any thread; run stops before the next page, or the next row.
+ */
+public class MediaStoreQuery {
+
+    private static final String TAG = "MediaStoreQuery";
+
+    // Small enough to stay well inside a CursorWindow, large enough to keep round trips few.
+    public static final int PAGE_SIZE = 1000;
+
+    private static final String ID = MediaStore.MediaColumns._ID;
+    private static final String DATE_MODIFIED = MediaStore.MediaColumns.DATE_MODIFIED;
+    // What rows are sorted and paged by. A NULL date must compare as the 0 getLong returns for it,
+    // or the keyset filter would leave those rows out.
+    private static final String SORT_DATE = "IFNULL(" + DATE_MODIFIED + ", 0)";
+
+    /**
+     * Turns the current row of the cursor into a result, or null to leave the row out. Columns
+     * are in the order of the projection the query was made with.
+     */
+    public interface RowReader<T> {
+        T read(Cursor cursor);
+    }
+
+    public interface PageListener<T> {
+        /**
+         * Called on the thread that runs the query with the results of one page, newest first.
+         * Pages whose rows were all left out are not reported.
+         */
+        void onPage(List<T> results);
+    }
+
+    private final ContentResolver resolver;
+    private final Uri uri;
+    private final String[] projection;
+    private final String selection;
+    private final String[] selectionArgs;
+    private final int idColumn;
+    private final int dateColumn;
+    private volatile boolean cancelled;
+
+    /**
+     * @param selection A WHERE clause over the columns of uri, or null for every row.
+     */
+    public MediaStoreQuery(ContentResolver resolver, Uri uri, String[] projection, String selection, String[] selectionArgs) {
+        this.resolver = resolver;
+        this.uri = uri;
+        this.selection = selection;
+        this.selectionArgs = selectionArgs;
+        // The keyset columns are read from every row; add them behind the caller's columns.
+        List<String> columns = new ArrayList<>(Arrays.asList(projection));
+        if (!columns.contains(ID)) {
+            columns.add(ID);
+        }
+        if (!columns.contains(DATE_MODIFIED)) {
+            columns.add(DATE_MODIFIED);
+        }
+        this.projection = columns.toArray(new String[0]);
+        idColumn = columns.indexOf(ID);
+        dateColumn = columns.indexOf(DATE_MODIFIED);
+    }
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Runs the query on the calling thread, reporting every page to listener.
+     *
+     * @return The number of results reported. Check isCancelled to tell a cancelled query from
+     *         one that ran to the end.
+     */
+    public <T> int run(RowReader<T> reader, PageListener<T> listener) {
+        int reported = 0;
+        long lastDate = 0;
+        long lastId = 0;
+        boolean firstPage = true;
+        while (!cancelled) {
+            StringBuilder where = new StringBuilder();
+            List<String> args = new ArrayList<>();
+            if (selection != null && !selection.isEmpty()) {
+                where.append('(').append(selection).append(')');
+                if (selectionArgs != null) {
+                    args.addAll(Arrays.asList(selectionArgs));
+                }
+            }
+            if (!firstPage) {
+                if (where.length() > 0) where.append(" AND ");
+                where.append("(" + SORT_DATE + " < ? OR (" + SORT_DATE + " = ? AND " + ID + " < ?))");
+                args.add(String.valueOf(lastDate));
+                args.add(String.valueOf(lastDate));
+                args.add(String.valueOf(lastId));
+            }
+
+            Cursor cursor;
+            try {
+                cursor = queryPage(where.length() > 0 ? where.toString() : null, args.toArray(new String[0]));
+            } catch (Exception e) {
+                Log.e(TAG, "MediaStore query failed for " + uri, e);
+                return reported;
+            }
+            if (cursor == null) {
+                return reported;
+            }
+
+            List<T> page = new ArrayList<>();
+            int rows = 0;
+            try {
+                while (!cancelled && cursor.moveToNext()) {
+                    rows++;
+                    lastDate = cursor.getLong(dateColumn);
+                    lastId = cursor.getLong(idColumn);
+                    T result = reader.read(cursor);
+                    if (result != null) {
+                        page.add(result);
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+            if (cancelled) {
+                return reported;
+            }
+            if (!page.isEmpty()) {
+                listener.onPage(page);
+                reported += page.size();
+            }
+            if (rows < PAGE_SIZE) {
+                return reported;
+            }
+            firstPage = false;
+        }
+        return reported;
+    }
+
+    private Cursor queryPage(String where, String[] args) {
+        String order = SORT_DATE + " DESC, " + ID + " DESC";
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+            // Since Android 11 the MediaStore rejects a LIMIT tucked into the sort order.
+            Bundle queryArgs = new Bundle();
+            queryArgs.putString(ContentResolver.QUERY_ARG_SQL_SELECTION, where);
+            queryArgs.putStringArray(ContentResolver.QUERY_ARG_SQL_SELECTION_ARGS, args);
+            queryArgs.putString(ContentResolver.QUERY_ARG_SQL_SORT_ORDER, order);
+            queryArgs.putString(ContentResolver.QUERY_ARG_SQL_LIMIT, String.valueOf(PAGE_SIZE));
+            return resolver.query(uri, projection, queryArgs, null);
+        }
+        return resolver.query(uri, projection, where, args, order + " LIMIT " + PAGE_SIZE);
+    }
+}
@@ -0,0 +1,218 @@
+package com.hfm.app;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.media.MediaScannerConnection;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Keeps the MediaStore in step with what the app adds, deletes and moves, in batches.
+ *
+ * Callers report changed paths as they go and the paths are collected on a background thread.
+ * Once nothing new has come in for DEBOUNCE_MS (or MAX_DELAY_MS after the first path, or when
+ * MAX_PENDING paths are waiting), the batch is applied: rows of paths that no longer exist are
+ * deleted with one query per BATCH_SIZE paths, and the rest go to the media scanner in a single
+ * MediaScannerConnection call. Deleting 5,000 files used to send 5,000 scan broadcasts, each
+ * waking the media scanner and every gallery listening to it.
+ *
+ * Every reported path is passed on to FileIndexer as well, so the file index follows along.
+ */
+public class MediaStoreSync {
+
+    private static final String TAG = "MediaStoreSync";
+
+    private static final long DEBOUNCE_MS = 500;
+    private static final long MAX_DELAY_MS = 3000;
+    private static final int MAX_PENDING = 2000;
+    // Stays well below SQLite's limit of 999 arguments per statement.
+    private static final int BATCH_SIZE = 500;
+
+    private static MediaStoreSync instance;
+
+    private final Context context;
+    private final Handler handler;
+    // Only touched on the handler thread. A set, so a path reported twice is handled once.
+    private final Set<String> pending = new LinkedHashSet<>();
+    // Folders that were moved away; the rows of everything that was inside go too.
+    private final Set<String> pendingTrees = new LinkedHashSet<>();
+    private long firstPendingAt;
+
+    private final Runnable flushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flushPending();
+        }
+    };
+
+    public static synchronized MediaStoreSync getInstance(Context context) {
+        if (instance == null) {
+            instance = new MediaStoreSync(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private MediaStoreSync(Context context) {
+        this.context = context;
+        HandlerThread thread = new HandlerThread(TAG);
+        thread.start();
+        handler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * Reports a file or folder that was created, changed or deleted.
+     */
+    public void notifyChanged(File file) {
+        notifyChanged(Arrays.asList(file.getAbsolutePath()));
+    }
+
+    /**
+     * Reports several changed paths at once.
+     */
+    public void notifyChanged(final List<String> paths) {
+        if (paths.isEmpty()) {
+            return;
+        }
+        FileIndexer.notifyChanged(context, paths);
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (pending.isEmpty() && pendingTrees.isEmpty()) {
+                    firstPendingAt = SystemClock.uptimeMillis();
+                }
+                pending.addAll(paths);
+                schedule();
+            }
+        });
+    }
+
+    /**
+     * Reports a file or folder that was renamed from source to dest.
+     */
+    public void notifyMoved(File source, final File dest) {
+        final List<String> paths = new ArrayList<>();
+        paths.add(source.getAbsolutePath());
+        addTree(dest, paths);
+        final String tree = dest.isDirectory() ? source.getAbsolutePath() : null;
+        FileIndexer.notifyChanged(context, Arrays.asList(source.getAbsolutePath(), dest.getAbsolutePath()));
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (pending.isEmpty() && pendingTrees.isEmpty()) {
+                    firstPendingAt = SystemClock.uptimeMillis();
+                }
+                pending.addAll(paths);
+                if (tree != null) {
+                    pendingTrees.add(tree);
+                }
+                schedule();
+            }
+        });
+    }
+
+    /**
+     * Applies whatever is pending without waiting for the debounce, e.g. when an operation ends.
+     */
+    public void flush() {
+        handler.removeCallbacks(flushRunnable);
+        handler.post(flushRunnable);
+    }
+
+    private void schedule() {
+        handler.removeCallbacks(flushRunnable);
+        long waited = SystemClock.uptimeMillis() - firstPendingAt;
+        if (pending.size() >= MAX_PENDING || waited >= MAX_DELAY_MS) {
+            flushPending();
+        } else {
+            handler.postDelayed(flushRunnable, Math.min(DEBOUNCE_MS, MAX_DELAY_MS - waited));
+        }
+    }
+
+    private void flushPending() {
+        for (String tree : pendingTrees) {
+            // The provider deletes the files of deleted rows, so a folder created again at the
+            // old path is left to the scanner.
+            if (new File(tree).exists()) {
+                pending.add(tree);
+            } else {
+                deleteTree(tree);
+            }
+        }
+        pendingTrees.clear();
+        if (pending.isEmpty()) {
+            return;
+        }
+        List<String> existing = new ArrayList<>();
+        List<String> missing = new ArrayList<>();
+        for (String path : pending) {
+            if (new File(path).exists()) {
+                existing.add(path);
+            } else {
+                missing.add(path);
+            }
+        }
+        pending.clear();
+
+        for (int i = 0; i < missing.size(); i += BATCH_SIZE) {
+            List<String> batch = missing.subList(i, Math.min(missing.size(), i + BATCH_SIZE));
+            if (!deleteRows(batch)) {
+                // A scan of a missing path removes its row too, just more slowly.
+                existing.addAll(batch);
+            }
+        }
+        if (!existing.isEmpty()) {
+            MediaScannerConnection.scanFile(context, existing.toArray(new String[0]), null, null);
+        }
+    }
+
+    private boolean deleteRows(List<String> paths) {
+        StringBuilder where = new StringBuilder(MediaStore.Files.FileColumns.DATA).append(" IN (");
+        for (int i = 0; i < paths.size(); i++) {
+            where.append(i == 0 ? "?" : ",?");
+        }
+        where.append(')');
+        try {
+            ContentResolver resolver = context.getContentResolver();
+            resolver.delete(MediaStore.Files.getContentUri("external"), where.toString(), paths.toArray(new String[0]));
+            return true;
+        } catch (Exception e) {
+            Log.e(TAG, "Bulk MediaStore delete failed, scanning instead", e);
+            return false;
+        }
+    }
+
+    private void deleteTree(String path) {
+        // A range on the path instead of LIKE, so '%' and '_' in folder names need no escaping.
+        String where = MediaStore.Files.FileColumns.DATA + " >= ? AND " + MediaStore.Files.FileColumns.DATA + " < ?";
+        try {
+            context.getContentResolver().delete(MediaStore.Files.getContentUri("external"), where,
+                new String[]{path + "/", path + "0"});
+        } catch (Exception e) {
+            Log.e(TAG, "MediaStore delete failed for folder: " + path, e);
+        }
+    }
+
+    // The scanner walks folders itself since Android 10; before that every file is listed.
+    private static void addTree(File file, List<String> paths) {
+        paths.add(file.getAbsolutePath());
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q && file.isDirectory()) {
+            File[] children = file.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    addTree(child, paths);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,287 @@
+package com.hfm.app;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Sends a large file over several TCP connections at once, because a single stream rarely
+ * fills a Wi-Fi Direct link.
+ *
+ * The file is cut into ChunkedTransfer.CHUNK_SIZE chunks; chunk i covers the bytes starting at
+ * i * CHUNK_SIZE, so the chunk size and count announced in the metadata header are the chunk map.
+ * Every data connection opens with the 8-byte stream token from that header and then carries
+ * ordinary ChunkedTransfer chunks in whatever order the sender's streams claim them. The
+ * receiver writes each chunk at its offset with a positional FileChannel write and records it
+ * in the file's TransferJournal, so chunks it already confirmed are never sent again.
+ *
+ * The sender starts with the stream count that worked best for the previous file and keeps
+ * adding streams while each one raises the measured throughput.
+ */
+public class ParallelTransfer {
+
+    public static final long PARALLEL_THRESHOLD = 64L * 1024 * 1024;
+    public static final int MIN_STREAMS = 2;
+    public static final int MAX_STREAMS = 8;
+
+    private static final long SAMPLE_INTERVAL_MS = 1000;
+    // A stream is only kept if it raised throughput by at least this factor.
+    private static final double MIN_GAIN = 1.10;
+    private static final long STALL_TIMEOUT_MS = 30000;
+
+    /**
+     * Progress listener that also receives per-stream throughput, in MB/s, once per second.
+     */
+    public interface Listener extends ChunkedTransfer.Listener {
+        void onStreamStats(double[] mbPerSecond);
+    }
+
+    private final InetSocketAddress address;
+    private final RateLimiter rateLimiter;
+    private int preferredStreams = MIN_STREAMS;
+
+    public ParallelTransfer(InetSocketAddress address) {
+        this(address, null);
+    }
+
+    /**
+     * @param rateLimiter Shared by every data connection, so it caps their total, or null.
+     */
+    public ParallelTransfer(InetSocketAddress address, RateLimiter rateLimiter) {
+        this.address = address;
+        this.rateLimiter = rateLimiter;
+    }
+
+    public static boolean shouldUse(long fileSize) {
+        return fileSize >= PARALLEL_THRESHOLD;
+    }
+
+    public static long newStreamToken() {
+        return new SecureRandom().nextLong();
+    }
+
+    /**
+     * Sends every chunk not in skip over parallel data connections. The caller must already
+     * have announced the file and its stream token on the control connection.
+     *
+     * @return The number of raw bytes the receiver now has, including the skipped chunks.
+     */
+    public long send(FileChannel file, long fileSize, BitSet skip, CompressionPolicy.Codec codec, long token, Listener listener) throws IOException, InterruptedException {
+        Upload upload = new Upload(file, fileSize, skip, codec, token, listener);
+        try {
+            return upload.run();
+        } finally {
+            upload.close();
+        }
+    }
+
+    // Per-stream MB/s since the previous sample.
+    private static double[] sampleSpeeds(List<? extends StreamCounter> streams, double seconds) {
+        List<Double> speeds = new ArrayList<>();
+        for (StreamCounter stream : streams) {
+            long bytes = stream.bytes.get();
+            if (bytes == 0 && !stream.isAlive()) {
+                continue; // Rejected connection
+            }
+            speeds.add((bytes - stream.bytesAtLastSample) / (1024.0 * 1024) / seconds);
+            stream.bytesAtLastSample = bytes;
+        }
+        double[] result = new double[speeds.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = speeds.get(i);
+        }
+        return result;
+    }
+
+    private static class StreamCounter extends Thread {
+        final AtomicLong bytes = new AtomicLong();
+        long bytesAtLastSample;
+    }
+
+    private class Upload {
+        private final long token;
+        private final Listener listener;
+        private final long fileSize;
+        private final FileChannel fileChannel;
+        private final CompressionPolicy.Codec codec;
+        private final int[] pendingChunks;
+        private final AtomicInteger nextChunk = new AtomicInteger();
+        private final AtomicLong bytesSent;
+        private final AtomicReference<Exception> failure = new AtomicReference<>();
+        private final List<SendStream> streams = new ArrayList<>();
+        private volatile boolean aborted = false;
+
+        Upload(FileChannel file, long fileSize, BitSet skip, CompressionPolicy.Codec codec, long token, Listener listener) {
+            this.token = token;
+            this.listener = listener;
+            this.fileSize = fileSize;
+            this.fileChannel = file;
+            this.codec = codec;
+            this.bytesSent = new AtomicLong(ChunkedTransfer.bytesCovered(skip, fileSize));
+
+            int chunkCount = ChunkedTransfer.chunkCount(fileSize);
+            pendingChunks = new int[chunkCount - skip.cardinality()];
+            int next = 0;
+            for (int i = skip.nextClearBit(0); i < chunkCount; i = skip.nextClearBit(i + 1)) {
+                pendingChunks[next++] = i;
+            }
+        }
+
+        long run() throws IOException, InterruptedException {
+            if (pendingChunks.length == 0) {
+                return bytesSent.get();
+            }
+            for (int i = 0; i < Math.min(preferredStreams, pendingChunks.length); i++) {
+                startStream();
+            }
+
+            long lastSampleTime = System.currentTimeMillis();
+            long bytesAtLastSample = 0;
+            double rateBeforeLastStream = -1;
+            boolean probing = true;
+
+            while (hasLiveStream()) {
+                streams.get(streams.size() - 1).join(200);
+                if (failure.get() != null || listener.isCancelled()) {
+                    break;
+                }
+
+                long now = System.currentTimeMillis();
+                if (now - lastSampleTime < SAMPLE_INTERVAL_MS) {
+                    continue;
+                }
+                double seconds = (now - lastSampleTime) / 1000.0;
+                long bytes = bytesSent.get();
+                double rate = (bytes - bytesAtLastSample) / seconds;
+                listener.onStreamStats(sampleSpeeds(streams, seconds));
+                lastSampleTime = now;
+                bytesAtLastSample = bytes;
+
+                // Skip the tuning step while paused or once there is no work left to spread out.
+                if (!probing || listener.isPaused() || pendingChunks.length - nextChunk.get() < activeStreams()) {
+                    continue;
+                }
+                if (rateBeforeLastStream < 0 || rate >= rateBeforeLastStream * MIN_GAIN) {
+                    rateBeforeLastStream = rate;
+                    if (activeStreams() < MAX_STREAMS) {
+                        startStream();
+                    } else {
+                        probing = false;
+                    }
+                } else {
+                    // The newest stream didn't pay for itself; let it finish its chunk and stop.
+                    streams.get(streams.size() - 1).retired = true;
+                    probing = false;
+                }
+                preferredStreams = Math.max(MIN_STREAMS, activeStreams());
+            }
+
+            if (failure.get() != null || listener.isCancelled()) {
+                aborted = true;
+            }
+            for (SendStream stream : streams) {
+                stream.join();
+            }
+            if (failure.get() != null) {
+                throw new IOException("Parallel send failed: " + failure.get().getMessage(), failure.get());
+            }
+            return bytesSent.get();
+        }
+
+        private void startStream() {
+            SendStream stream = new SendStream();
+            streams.add(stream);
+            stream.start();
+        }
+
+        private boolean hasLiveStream() {
+            for (SendStream stream : streams) {
+                if (stream.isAlive()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private int activeStreams() {
+            int count = 0;
+            for (SendStream stream : streams) {
+                if (stream.isAlive() && !stream.retired) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        void close() {
+            aborted = true;
+            for (SendStream stream : streams) {
+                stream.closeChannel();
+            }
+        }
+
+        private class SendStream extends StreamCounter {
+            volatile boolean retired = false;
+            private SocketChannel channel;
+
+            @Override
+            public void run() {
+                ChunkedTransfer.ChunkBuffer chunk = null;
+                try {
+                    channel = SocketChannel.open();
+                    channel.connect(address);
+                    ByteBuffer hello = ByteBuffer.allocate(8).putLong(token);
+                    hello.flip();
+                    ChunkedTransfer.writeFully(channel, hello);
+
+                    ByteChannel out = rateLimiter != null ? new RateLimitedChannel(channel, rateLimiter) : channel;
+                    chunk = new ChunkedTransfer.ChunkBuffer(codec);
+                    while (!retired && !aborted && !listener.isCancelled()) {
+                        listener.awaitIfPaused();
+                        int next = nextChunk.getAndIncrement();
+                        if (next >= pendingChunks.length) {
+                            break;
+                        }
+                        chunk.index = pendingChunks[next];
+                        chunk.length = ChunkedTransfer.chunkLength(fileSize, chunk.index);
+                        ChunkedTransfer.sendChunk(fileChannel, out, chunk);
+
+                        bytes.addAndGet(chunk.length);
+                        listener.onProgress(bytesSent.addAndGet(chunk.length));
+                    }
+                    if (!aborted && !listener.isCancelled()) {
+                        ChunkedTransfer.writeEndOfFile(out, chunk);
+                    }
+                } catch (Exception e) {
+                    if (!aborted) {
+                        failure.compareAndSet(null, e);
+                    }
+                } finally {
+                    closeChannel();
+                    if (chunk != null) {
+                        chunk.release();
+                    }
+                }
+            }
+
+            synchronized void closeChannel() {
+                if (channel != null) {
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        }
+    }
+}
@@ -411,8 +411,7 @@ public class PdfViewerActivity extends Activity {
 
         if (sourceFile.renameTo(destFile)) {
             Toast.makeText(this, "File moved to Recycle Bin.", Toast.LENGTH_SHORT).show();
-            sendBroadcast(new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE, Uri.fromFile(sourceFile)));
-            sendBroadcast(new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE, Uri.fromFile(destFile)));
+            MediaStoreSync.getInstance(this).notifyMoved(sourceFile, destFile);
             Intent resultIntent = new Intent();
             resultIntent.putExtra(RESULT_FILE_DELETED, true);
             setResult(Activity.RESULT_OK, resultIntent);
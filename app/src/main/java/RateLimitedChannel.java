@@ -0,0 +1,70 @@
+package com.hfm.app;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+
+/**
+ * Paces writes to a channel with a RateLimiter. Writes are split into SLICE_SIZE pieces so a
+ * large chunk goes out evenly instead of in one burst followed by a long pause. Reads are not
+ * limited.
+ */
+public class RateLimitedChannel implements ByteChannel {
+
+    public static final int SLICE_SIZE = 64 * 1024;
+
+    private final ByteChannel channel;
+    private final RateLimiter limiter;
+
+    public RateLimitedChannel(ByteChannel channel, RateLimiter limiter) {
+        this.channel = channel;
+        this.limiter = limiter;
+    }
+
+    /**
+     * The channel being paced, e.g. to hand a file to it with transferTo after calling acquire.
+     */
+    public ByteChannel unwrap() {
+        return channel;
+    }
+
+    public void acquire(long bytes) throws IOException {
+        try {
+            limiter.acquire(bytes);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while rate limited");
+        }
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        int written = 0;
+        while (src.hasRemaining()) {
+            int slice = Math.min(src.remaining(), SLICE_SIZE);
+            acquire(slice);
+            ByteBuffer part = src.duplicate();
+            part.limit(part.position() + slice);
+            ChunkedTransfer.writeFully(channel, part);
+            src.position(part.position());
+            written += slice;
+        }
+        return written;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        return channel.read(dst);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,67 @@
+package com.hfm.app;
+
+/**
+ * A token bucket that caps the throughput of one transfer, shared by every connection the
+ * transfer writes to, so a bulk send can leave room on the link for other work.
+ *
+ * Tokens are bytes and refill at the configured rate, up to BURST_SECONDS worth. A writer may
+ * take more than is available; the debt is paid off by waiting, so large writes are paced
+ * exactly rather than rejected. The rate can be changed while writers are waiting.
+ */
+public class RateLimiter {
+
+    public static final long UNLIMITED = 0;
+    // How much of the rate may go out at once after an idle moment.
+    private static final double BURST_SECONDS = 0.25;
+
+    private long bytesPerSecond;
+    private double available;
+    private long lastRefill = System.nanoTime();
+
+    /**
+     * @param bytesPerSecond The initial rate, or UNLIMITED.
+     */
+    public RateLimiter(long bytesPerSecond) {
+        setRate(bytesPerSecond);
+    }
+
+    public synchronized long getRate() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * Changes the rate. Writers already waiting continue at the new rate.
+     */
+    public synchronized void setRate(long bytesPerSecond) {
+        refill();
+        this.bytesPerSecond = Math.max(UNLIMITED, bytesPerSecond);
+        // Debt is kept, so lowering the rate can't be used to skip it, but a new rate starts without a burst.
+        available = Math.min(available, 0);
+        notifyAll();
+    }
+
+    /**
+     * Takes the given number of bytes from the bucket, waiting until the debt is paid off.
+     */
+    public synchronized void acquire(long bytes) throws InterruptedException {
+        if (bytesPerSecond == UNLIMITED) {
+            return;
+        }
+        refill();
+        available -= bytes;
+        while (available < 0 && bytesPerSecond != UNLIMITED) {
+            long waitMs = (long) Math.ceil(-available * 1000 / bytesPerSecond);
+            wait(Math.max(1, waitMs));
+            refill();
+        }
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        if (bytesPerSecond != UNLIMITED) {
+            double capacity = bytesPerSecond * BURST_SECONDS;
+            available = Math.min(capacity, available + (now - lastRefill) / 1e9 * bytesPerSecond);
+        }
+        lastRefill = now;
+    }
+}
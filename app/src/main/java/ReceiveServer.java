@@ -0,0 +1,1064 @@
+package com.hfm.app;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Receives transfers from any number of senders on a single thread driven by a Selector.
+ *
+ * Every connection is a small state machine that asks for the next run of bytes it needs (a
+ * frame, a chunk header, a payload) and moves on once the socket has delivered them, so several
+ * sessions, and the parallel data streams of their large files, share one event loop instead of
+ * each blocking a thread. Compressed chunks are decoded on a small worker pool. A connection
+ * that has no free chunk buffer stops reading until one comes back, and pausing works the same
+ * way: paused connections simply lose their interest in OP_READ.
+ *
+ * A connection that opens with TransferProtocol.MAGIC is a session. Any other connection is a
+ * parallel data stream and opens with the stream token of the file it carries.
+ */
+public class ReceiveServer {
+
+    private static final int MAX_WORKERS = 4;
+    private static final long STALL_TIMEOUT_MS = 30000;
+    private static final long SELECT_TIMEOUT_MS = 500;
+    private static final long SAMPLE_INTERVAL_MS = 1000;
+
+    /**
+     * Reports what arrives. Called on the event loop thread.
+     */
+    public interface Listener {
+        ChunkedTransfer.Listener onFileStarted(String path, long size);
+
+        PackedTransfer.Listener onPackStarted(List<PackedTransfer.Entry> entries, long packSize);
+
+        // Files now complete on disk, whether received, already there or copied locally.
+        void onFilesReceived(int count);
+
+        // The session's journals are kept, so the sender can reconnect and resume.
+        void onSessionFailed(IOException cause);
+    }
+
+    private enum State {
+        IDENTIFY, HELLO, TOKEN, FRAME_LENGTH, FRAME, OFFER_LENGTH, OFFER, PACK_INDEX_LENGTH, PACK_INDEX,
+        CHUNK_HEADER, PAYLOAD, RAW_PAYLOAD, WAITING
+    }
+
+    private final File dir;
+    private final File journalDir;
+    private final String partialSuffix;
+    private final File fingerprintCacheFile;
+    private final long reconnectWaitMs;
+    private final Listener listener;
+
+    private final Selector selector;
+    private ServerSocketChannel server;
+    private final ExecutorService workers;
+    private final int maxBuffers;
+    private int buffersCreated = 0;
+    private final Deque<ChunkedTransfer.ChunkBuffer> freeBuffers = new ArrayDeque<>();
+    private final Deque<Connection> waitingForBuffer = new ArrayDeque<>();
+    // Work finished by the workers, applied on the event loop thread.
+    private final Queue<Runnable> completions = new ConcurrentLinkedQueue<>();
+    private final List<Connection> connections = new ArrayList<>();
+    private final Map<Long, FileReceive> parallelFiles = new HashMap<>();
+    // Loaded by the first offer; read by the event loop to register received files.
+    private volatile FingerprintCache fingerprintCache;
+    private volatile boolean isPaused = false;
+    private volatile boolean isStopped = false;
+
+    private boolean hadSession = false;
+    private IOException lastFailure;
+    private long idleSince = System.currentTimeMillis();
+
+    /**
+     * @param dir                  Where received files go.
+     * @param fingerprintCacheFile Where fingerprints of files in dir are cached for answering offers.
+     * @param reconnectWaitMs      How long to wait for a sender whose session failed to come back.
+     */
+    public ReceiveServer(File dir, File journalDir, String partialSuffix, File fingerprintCacheFile, long reconnectWaitMs, Listener listener) throws IOException {
+        this.dir = dir;
+        this.journalDir = journalDir;
+        this.partialSuffix = partialSuffix;
+        this.fingerprintCacheFile = fingerprintCacheFile;
+        this.reconnectWaitMs = reconnectWaitMs;
+        this.listener = listener;
+        this.selector = Selector.open();
+        int workerCount = Math.max(1, Math.min(MAX_WORKERS, Runtime.getRuntime().availableProcessors() - 1));
+        this.workers = Executors.newFixedThreadPool(workerCount);
+        // One buffer per worker plus a few for chunks still downloading.
+        this.maxBuffers = workerCount + 4;
+    }
+
+    /**
+     * Accepts senders on the given port.
+     */
+    public void listen(int port) throws IOException {
+        server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress(port));
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * Receives over a connection this side opened, e.g. to a broadcasting sender.
+     */
+    public void addConnection(SocketChannel channel) throws IOException {
+        connections.add(new Connection(channel));
+    }
+
+    public void setPaused(boolean paused) {
+        isPaused = paused;
+        selector.wakeup();
+    }
+
+    public void stop() {
+        isStopped = true;
+        selector.wakeup();
+    }
+
+    /**
+     * Runs the event loop until every sender has said goodbye, or stop() is called.
+     *
+     * @throws IOException if a session failed and its sender did not come back in time.
+     */
+    public void serve() throws IOException {
+        try {
+            long lastSample = System.currentTimeMillis();
+            while (!isStopped) {
+                updateInterest();
+                selector.select(SELECT_TIMEOUT_MS);
+                for (SelectionKey key : selector.selectedKeys()) {
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        SocketChannel channel;
+                        while ((channel = server.accept()) != null) {
+                            connections.add(new Connection(channel));
+                        }
+                        continue;
+                    }
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isWritable()) {
+                            connection.flush();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            connection.readAvailable();
+                        }
+                    } catch (IOException e) {
+                        connection.fail(e);
+                    }
+                }
+                selector.selectedKeys().clear();
+
+                Runnable completion;
+                while ((completion = completions.poll()) != null) {
+                    completion.run();
+                }
+
+                long now = System.currentTimeMillis();
+                if (now - lastSample >= SAMPLE_INTERVAL_MS) {
+                    sampleStreams((now - lastSample) / 1000.0);
+                    lastSample = now;
+                }
+                checkStalls(now);
+                if (isFinished(now)) {
+                    return;
+                }
+            }
+        } finally {
+            close();
+        }
+    }
+
+    // Done once no session is left and none is expected back.
+    private boolean isFinished(long now) throws IOException {
+        for (Connection connection : connections) {
+            if (connection.isSession()) {
+                idleSince = now;
+                return false;
+            }
+        }
+        if (!hadSession) {
+            return false;
+        }
+        if (lastFailure == null) {
+            return true;
+        }
+        if (server == null || now - idleSince > reconnectWaitMs) {
+            throw lastFailure;
+        }
+        return false;
+    }
+
+    private void updateInterest() {
+        for (Connection connection : connections) {
+            int ops = 0;
+            if (connection.wantsRead && !connection.closeAfterFlush && !isPaused) {
+                ops |= SelectionKey.OP_READ;
+            }
+            if (connection.out.hasPending()) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            if (connection.key.isValid() && connection.key.interestOps() != ops) {
+                connection.key.interestOps(ops);
+            }
+        }
+    }
+
+    private void checkStalls(long now) {
+        for (Connection connection : new ArrayList<>(connections)) {
+            if (isPaused) {
+                connection.lastActivity = now;
+                if (connection.file != null) {
+                    connection.file.lastProgress = now;
+                }
+                continue;
+            }
+            // A session between files may wait as long as its sender needs, e.g. to walk a large folder.
+            boolean isWaitingForData = connection.state != State.FRAME_LENGTH || connection.input.position() > 0;
+            boolean isOrphanStream = connection.protocol == null && connection.state == State.WAITING && connection.file == null;
+            boolean isStalledInFile = connection.isSession() && connection.file != null && connection.file.isParallel
+                    && now - connection.file.lastProgress > STALL_TIMEOUT_MS;
+            if (isOrphanStream && now - connection.lastActivity > STALL_TIMEOUT_MS) {
+                // Its file never showed up, or finished before the stream arrived.
+                connection.close();
+            } else if (isStalledInFile) {
+                connection.fail(new IOException("Timed out waiting for parallel data streams."));
+            } else if (connection.wantsRead && isWaitingForData && now - connection.lastActivity > STALL_TIMEOUT_MS) {
+                connection.fail(new IOException("Connection stalled for " + STALL_TIMEOUT_MS / 1000 + " s"));
+            }
+        }
+    }
+
+    private void sampleStreams(double seconds) {
+        for (FileReceive file : parallelFiles.values()) {
+            if (!(file.progress instanceof ParallelTransfer.Listener)) {
+                continue;
+            }
+            List<Connection> streams = file.streams;
+            double[] speeds = new double[streams.size()];
+            for (int i = 0; i < speeds.length; i++) {
+                Connection stream = streams.get(i);
+                speeds[i] = (stream.bytes - stream.bytesAtLastSample) / (1024.0 * 1024) / seconds;
+                stream.bytesAtLastSample = stream.bytes;
+            }
+            ((ParallelTransfer.Listener) file.progress).onStreamStats(speeds);
+        }
+    }
+
+    private void close() {
+        for (Connection connection : new ArrayList<>(connections)) {
+            connection.close();
+            connection.abortTransfers();
+        }
+        try {
+            if (server != null) {
+                server.close();
+            }
+            selector.close();
+        } catch (IOException ignored) {
+        }
+        workers.shutdown();
+        try {
+            // Let decodes in flight finish before their files are left behind.
+            if (workers.awaitTermination(30, TimeUnit.SECONDS)) {
+                for (ChunkedTransfer.ChunkBuffer buffer : freeBuffers) {
+                    buffer.release();
+                }
+                freeBuffers.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (fingerprintCache != null) {
+            try {
+                fingerprintCache.save();
+            } catch (IOException ignored) {
+                // Only costs re-reading the files next time.
+            }
+        }
+    }
+
+    private ChunkedTransfer.ChunkBuffer takeBuffer() {
+        ChunkedTransfer.ChunkBuffer buffer = freeBuffers.poll();
+        if (buffer == null && buffersCreated < maxBuffers) {
+            buffersCreated++;
+            // The codec only matters for checks the server does itself, so every buffer can serve any file.
+            buffer = new ChunkedTransfer.ChunkBuffer(CompressionPolicy.Codec.LZ4, true);
+        }
+        return buffer;
+    }
+
+    private void returnBuffer(ChunkedTransfer.ChunkBuffer buffer) {
+        Connection waiting = waitingForBuffer.poll();
+        if (waiting != null && waiting.key.isValid()) {
+            waiting.startPayload(buffer);
+        } else {
+            freeBuffers.push(buffer);
+        }
+    }
+
+    private synchronized FingerprintCache fingerprintCache() {
+        if (fingerprintCache == null) {
+            fingerprintCache = FingerprintCache.load(fingerprintCacheFile);
+        }
+        return fingerprintCache;
+    }
+
+    // Collects written bytes until the socket can take them, so replies never block the loop.
+    private static class OutboundBuffer implements ByteChannel {
+        private ByteBuffer data = ByteBuffer.allocate(256);
+
+        @Override
+        public int write(ByteBuffer src) {
+            int length = src.remaining();
+            if (data.remaining() < length) {
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(data.capacity() * 2, data.position() + length));
+                data.flip();
+                larger.put(data);
+                data = larger;
+            }
+            data.put(src);
+            return length;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            throw new IOException("Replies are only written");
+        }
+
+        boolean hasPending() {
+            return data.position() > 0;
+        }
+
+        void flushTo(SocketChannel channel) throws IOException {
+            data.flip();
+            try {
+                channel.write(data);
+            } finally {
+                data.compact();
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private class Connection {
+        final SocketChannel channel;
+        final SelectionKey key;
+        final OutboundBuffer out = new OutboundBuffer();
+        final ByteBuffer small = ByteBuffer.allocate(ChunkedTransfer.HEADER_SIZE);
+        ByteBuffer input = small;
+        State state = State.IDENTIFY;
+        boolean wantsRead = true;
+        boolean closeAfterFlush = false;
+        long lastActivity = System.currentTimeMillis();
+        long bytes;
+        long bytesAtLastSample;
+
+        // Set once the connection turned out to be a session.
+        TransferProtocol protocol;
+        final TransferProtocol.Header frame = new TransferProtocol.Header();
+        ByteBuffer frameBuffer;
+        // Journals of finished files are kept until the sender says goodbye, so a file whose
+        // confirmation was lost with the connection is recognised as complete when announced again.
+        final List<TransferJournal> finishedJournals = new ArrayList<>();
+        int offerCount;
+
+        // What the chunks being read belong to: a file, for sessions and data streams, or a pack.
+        FileReceive file;
+        PackReceive pack;
+        long token;
+        final ChunkedTransfer.ChunkBuffer meta = new ChunkedTransfer.ChunkBuffer(CompressionPolicy.Codec.RAW);
+        ChunkedTransfer.ChunkBuffer chunk;
+        long rawOffset;
+        long rawRemaining;
+
+        Connection(SocketChannel channel) throws IOException {
+            this.channel = channel;
+            channel.configureBlocking(false);
+            this.key = channel.register(selector, SelectionKey.OP_READ, this);
+            small.limit(4);
+        }
+
+        // Connections not yet identified count as sessions, so the server waits for them.
+        boolean isSession() {
+            return protocol != null || state == State.IDENTIFY || state == State.HELLO;
+        }
+
+        void expect(State next, int length) {
+            small.clear();
+            small.limit(length);
+            expect(next, small);
+        }
+
+        void expect(State next, ByteBuffer buffer) {
+            state = next;
+            input = buffer;
+            wantsRead = true;
+        }
+
+        void pause() {
+            state = State.WAITING;
+            wantsRead = false;
+        }
+
+        void readAvailable() throws IOException {
+            while (wantsRead && !isPaused && key.isValid()) {
+                long read;
+                if (state == State.RAW_PAYLOAD) {
+                    read = readRaw();
+                } else {
+                    read = channel.read(input);
+                    if (read == -1) {
+                        throw new EOFException("Connection closed prematurely.");
+                    }
+                }
+                if (read == 0) {
+                    return;
+                }
+                lastActivity = System.currentTimeMillis();
+                bytes += read;
+                if (state == State.RAW_PAYLOAD ? rawRemaining == 0 : !input.hasRemaining()) {
+                    advance();
+                }
+            }
+        }
+
+        // Chunks of a RAW file go from the socket to the file with transferFrom.
+        private long readRaw() throws IOException {
+            long read = file.channel.transferFrom(channel, rawOffset, rawRemaining);
+            if (read == 0) {
+                // transferFrom can't tell an empty socket from a closed one, so look at one byte.
+                ByteBuffer probe = ByteBuffer.allocate(1);
+                int probed = channel.read(probe);
+                if (probed == -1) {
+                    throw new EOFException("Connection closed prematurely.");
+                }
+                if (probed == 0) {
+                    return 0;
+                }
+                probe.flip();
+                file.channel.write(probe, rawOffset);
+                read = 1;
+            }
+            rawOffset += read;
+            rawRemaining -= read;
+            return read;
+        }
+
+        private void advance() throws IOException {
+            input.flip();
+            switch (state) {
+                case IDENTIFY:
+                    if (input.getInt(0) == TransferProtocol.MAGIC) {
+                        // Keep the magic and read the rest of the hello behind it.
+                        input.position(4);
+                        input.limit(TransferProtocol.HELLO_SIZE);
+                        state = State.HELLO;
+                    } else {
+                        input.position(4);
+                        input.limit(8);
+                        state = State.TOKEN;
+                    }
+                    break;
+                case HELLO:
+                    hadSession = true;
+                    protocol = new TransferProtocol(out);
+                    protocol.acceptHello(input);
+                    protocol.writeHello();
+                    flush();
+                    expect(State.FRAME_LENGTH, 4);
+                    break;
+                case TOKEN:
+                    token = input.getLong();
+                    pause();
+                    FileReceive owner = parallelFiles.get(token);
+                    if (owner != null) {
+                        owner.attach(this);
+                    }
+                    // Otherwise the stream came before its file's frame was read; the file claims it later.
+                    break;
+                case FRAME_LENGTH:
+                    int length = TransferProtocol.checkFrameLength(input.getInt());
+                    if (frameBuffer == null) {
+                        frameBuffer = ByteBuffer.allocate(TransferProtocol.MAX_FRAME_SIZE);
+                    }
+                    frameBuffer.clear();
+                    frameBuffer.limit(length);
+                    expect(State.FRAME, frameBuffer);
+                    break;
+                case FRAME:
+                    onFrame(TransferProtocol.parseFrame(input, frame));
+                    break;
+                case OFFER_LENGTH:
+                    int offerLength = input.getInt();
+                    TransferProtocol.checkOfferLength(offerCount, offerLength);
+                    expect(State.OFFER, ByteBuffer.allocate(offerLength));
+                    break;
+                case OFFER:
+                    answerOffer(TransferProtocol.parseOffer(input, offerCount));
+                    break;
+                case PACK_INDEX_LENGTH:
+                    int indexLength = input.getInt();
+                    PackedTransfer.checkIndexLength(frame.fileCount, indexLength);
+                    expect(State.PACK_INDEX, ByteBuffer.allocate(indexLength));
+                    break;
+                case PACK_INDEX:
+                    pack = new PackReceive(this, frame.codec, frame.transferId, frame.resume, PackedTransfer.parseIndex(input, frame.fileCount));
+                    expect(State.CHUNK_HEADER, ChunkedTransfer.HEADER_SIZE);
+                    break;
+                case CHUNK_HEADER:
+                    onChunkHeader();
+                    break;
+                case PAYLOAD:
+                    onPayload();
+                    break;
+                case RAW_PAYLOAD:
+                    // Read back from the page cache, so a chunk corrupted on the way is sent again, not journaled.
+                    if (file.hasRawChecksums && ChunkedTransfer.checksumAt(file.channel,
+                            ChunkedTransfer.chunkOffset(meta.index), meta.length, meta) != meta.checksum) {
+                        throw new IOException("Checksum mismatch in chunk " + meta.index);
+                    }
+                    int stored = file.journal.markDone(meta.index) ? meta.length : 0;
+                    expect(State.CHUNK_HEADER, ChunkedTransfer.HEADER_SIZE);
+                    file.onStored(stored);
+                    break;
+                default:
+                    throw new IllegalStateException("Nothing to read in state " + state);
+            }
+        }
+
+        private void onFrame(TransferProtocol.Header header) throws IOException {
+            switch (header.frameType) {
+                case TransferProtocol.FRAME_GOODBYE:
+                    for (TransferJournal journal : finishedJournals) {
+                        journal.delete();
+                    }
+                    finishedJournals.clear();
+                    // Confirm that everything arrived so the sender can forget the batch.
+                    protocol.writeGoodbye();
+                    lastFailure = null;
+                    closeAfterFlush = true;
+                    pause();
+                    flush();
+                    return;
+                case TransferProtocol.FRAME_OFFER:
+                    offerCount = header.fileCount;
+                    expect(State.OFFER_LENGTH, 4);
+                    return;
+                default:
+                    break;
+            }
+            if (header.chunkSize != ChunkedTransfer.CHUNK_SIZE) {
+                throw new IOException("Unsupported chunk size: " + header.chunkSize);
+            }
+            if (header.transferId == null) {
+                throw new IOException("Header without a transfer id received");
+            }
+            if (header.frameType == TransferProtocol.FRAME_PACK) {
+                expect(State.PACK_INDEX_LENGTH, 4);
+            } else {
+                if (header.parallel && server == null) {
+                    throw new IOException("Parallel streams can't be used in a broadcast");
+                }
+                file = new FileReceive(this, header);
+                if (file.isParallel) {
+                    pause();
+                    file.claimStreams();
+                } else {
+                    expect(State.CHUNK_HEADER, ChunkedTransfer.HEADER_SIZE);
+                }
+                file.maybeFinish();
+            }
+        }
+
+        private void onChunkHeader() throws IOException {
+            if (pack != null) {
+                if (!ChunkedTransfer.parseHeader(input, pack.streamSize, pack.codec, meta)) {
+                    pause();
+                    pack.finish();
+                    return;
+                }
+            } else if (!ChunkedTransfer.parseHeader(input, file.size, file.codec, meta)) {
+                if (protocol != null) {
+                    pause();
+                    file.streamEnded = true;
+                    file.maybeFinish();
+                } else {
+                    // A data stream is done; its file completes once every stream's chunks are stored.
+                    close();
+                }
+                return;
+            }
+            if (pack == null && file.codec == CompressionPolicy.Codec.RAW) {
+                rawOffset = ChunkedTransfer.chunkOffset(meta.index);
+                rawRemaining = meta.length;
+                state = State.RAW_PAYLOAD;
+                return;
+            }
+            ChunkedTransfer.ChunkBuffer buffer = takeBuffer();
+            if (buffer == null) {
+                pause();
+                waitingForBuffer.add(this);
+            } else {
+                startPayload(buffer);
+            }
+        }
+
+        void startPayload(ChunkedTransfer.ChunkBuffer buffer) {
+            chunk = buffer;
+            chunk.index = meta.index;
+            chunk.length = meta.length;
+            chunk.encodedLength = meta.encodedLength;
+            chunk.checksum = meta.checksum;
+            expect(State.PAYLOAD, ChunkedTransfer.payloadBuffer(chunk));
+        }
+
+        private void onPayload() throws IOException {
+            ChunkedTransfer.ChunkBuffer payload = chunk;
+            chunk = null;
+            expect(State.CHUNK_HEADER, ChunkedTransfer.HEADER_SIZE);
+            if (pack != null) {
+                // Pack chunks carry several files back to back, so they are unpacked in order, here.
+                try {
+                    pack.write(payload);
+                } finally {
+                    returnBuffer(payload);
+                }
+            } else {
+                file.decode(payload);
+            }
+        }
+
+        private void answerOffer(final List<TransferProtocol.OfferEntry> offer) {
+            pause();
+            // Hashing candidates reads files, so it runs on a worker.
+            workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    BitSet have = null;
+                    IOException failure = null;
+                    try {
+                        have = findExisting(offer);
+                    } catch (IOException e) {
+                        failure = e;
+                    }
+                    final BitSet answer = have;
+                    final IOException error = failure;
+                    completions.add(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (!key.isValid()) {
+                                return;
+                            }
+                            try {
+                                if (error != null) {
+                                    throw error;
+                                }
+                                ChunkedTransfer.writeBitSet(out, answer);
+                                flush();
+                                expect(State.FRAME_LENGTH, 4);
+                                listener.onFilesReceived(answer.cardinality());
+                            } catch (IOException e) {
+                                fail(e);
+                            }
+                        }
+                    });
+                    selector.wakeup();
+                }
+            });
+        }
+
+        void flush() throws IOException {
+            out.flushTo(channel);
+            if (!out.hasPending() && closeAfterFlush) {
+                close();
+            }
+        }
+
+        void close() {
+            if (connections.remove(this)) {
+                meta.release();
+            }
+            waitingForBuffer.remove(this);
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+            if (chunk != null) {
+                returnBuffer(chunk);
+                chunk = null;
+            }
+            if (file != null && protocol == null) {
+                file.streams.remove(this);
+            }
+        }
+
+        // Ends the session, or the session a data stream belongs to, keeping its journals for a resume.
+        void fail(IOException cause) {
+            if (!connections.contains(this)) {
+                return;
+            }
+            close();
+            if (protocol == null) {
+                // A data stream takes down the session of the file it was carrying, if that is still going.
+                if (file != null && !file.isClosed) {
+                    file.session.fail(cause);
+                }
+                return;
+            }
+            abortTransfers();
+            lastFailure = cause;
+            listener.onSessionFailed(cause);
+        }
+
+        void abortTransfers() {
+            if (protocol == null) {
+                return;
+            }
+            if (file != null) {
+                file.abort();
+                file = null;
+            }
+            if (pack != null) {
+                pack.abort();
+                pack = null;
+            }
+            for (TransferJournal journal : finishedJournals) {
+                journal.close();
+            }
+        }
+    }
+
+    // A file announced by a session, arriving over the session itself or over parallel data streams.
+    private class FileReceive {
+        final Connection session;
+        final String path;
+        final long size;
+        final long lastModified;
+        final int permissions;
+        final CompressionPolicy.Codec codec;
+        final boolean isParallel;
+        // Whether the sender puts the checksum of RAW chunks in their headers.
+        final boolean hasRawChecksums;
+        final long token;
+        final File finalFile;
+        final File partFile;
+        final TransferJournal journal;
+        final boolean wasAlreadyComplete;
+        final RandomAccessFile target;
+        final FileChannel channel;
+        final ChunkedTransfer.Listener progress;
+        final List<Connection> streams = new ArrayList<>();
+        long done;
+        int inFlight = 0;
+        boolean streamEnded = false;
+        boolean isClosed = false;
+        long lastProgress = System.currentTimeMillis();
+
+        FileReceive(Connection session, TransferProtocol.Header header) throws IOException {
+            if (header.path == null) {
+                throw new IOException("File header without a name received");
+            }
+            this.session = session;
+            this.path = header.path;
+            this.size = header.size;
+            this.lastModified = header.lastModified;
+            this.permissions = header.permissions;
+            this.codec = header.codec;
+            this.isParallel = header.parallel;
+            this.hasRawChecksums = session.protocol.supports(TransferProtocol.CAP_RAW_CHECKSUM);
+            this.token = header.streamToken;
+
+            // Files from a sent folder keep their place in its tree.
+            finalFile = FileTreeWalker.resolve(dir, path);
+            partFile = new File(finalFile.getParentFile(), finalFile.getName() + partialSuffix);
+            journal = TransferJournal.open(journalDir, header.transferId, ChunkedTransfer.chunkCount(size));
+            boolean isResuming = header.resume;
+            // A finished file is announced again when its confirmation was lost with the connection.
+            wasAlreadyComplete = isResuming && journal.isComplete() && finalFile.exists() && !partFile.exists();
+            if (!wasAlreadyComplete && (!isResuming || !partFile.exists())) {
+                journal.reset();
+            }
+            if (isResuming) {
+                // Tell the sender which chunks it can skip.
+                ChunkedTransfer.writeBitSet(session.out, journal.snapshot());
+                session.flush();
+            }
+
+            // Chunks are written straight to their offset in the partial file as they arrive.
+            target = new RandomAccessFile(wasAlreadyComplete ? finalFile : partFile, "rw");
+            target.setLength(size);
+            channel = target.getChannel();
+            done = ChunkedTransfer.bytesCovered(journal.snapshot(), size);
+            progress = listener.onFileStarted(path, size);
+            if (isParallel) {
+                parallelFiles.put(token, this);
+            }
+        }
+
+        // Takes over the data streams that arrived before this file's frame was read.
+        void claimStreams() {
+            for (Connection connection : new ArrayList<>(connections)) {
+                if (connection.protocol == null && connection.state == State.WAITING && connection.file == null
+                        && connection.token == token) {
+                    attach(connection);
+                }
+            }
+        }
+
+        void attach(Connection stream) {
+            stream.file = this;
+            streams.add(stream);
+            stream.expect(State.CHUNK_HEADER, ChunkedTransfer.HEADER_SIZE);
+        }
+
+        void decode(final ChunkedTransfer.ChunkBuffer chunk) {
+            inFlight++;
+            workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    int stored = 0;
+                    IOException failure = null;
+                    try {
+                        stored = ChunkedTransfer.storeChunk(channel, journal, chunk);
+                    } catch (IOException e) {
+                        failure = e;
+                    }
+                    final int storedBytes = stored;
+                    final IOException error = failure;
+                    completions.add(new Runnable() {
+                        @Override
+                        public void run() {
+                            inFlight--;
+                            returnBuffer(chunk);
+                            if (isClosed) {
+                                return;
+                            }
+                            if (error != null) {
+                                session.fail(error);
+                                return;
+                            }
+                            try {
+                                onStored(storedBytes);
+                            } catch (IOException e) {
+                                session.fail(e);
+                            }
+                        }
+                    });
+                    selector.wakeup();
+                }
+            });
+        }
+
+        void onStored(int stored) throws IOException {
+            if (stored > 0) {
+                done += stored;
+                lastProgress = System.currentTimeMillis();
+                progress.onProgress(done);
+            }
+            maybeFinish();
+        }
+
+        void maybeFinish() throws IOException {
+            if (isClosed || inFlight > 0 || !(isParallel ? journal.isComplete() : streamEnded)) {
+                return;
+            }
+            isClosed = true;
+            target.close();
+            if (!journal.isComplete()) {
+                throw new IOException("File transfer was incomplete. Expected " + size + " bytes but got " + done);
+            }
+            if (!wasAlreadyComplete) {
+                if (finalFile.exists()) {
+                    finalFile.delete();
+                }
+                if (!partFile.renameTo(finalFile)) {
+                    throw new IOException("Could not move " + path + " into place.");
+                }
+                if (lastModified > 0) {
+                    finalFile.setLastModified(lastModified);
+                }
+                TransferProtocol.applyPermissions(finalFile, permissions);
+                FingerprintCache cache = fingerprintCache;
+                if (cache != null) {
+                    // Later offers can then be answered from it.
+                    cache.addFile(finalFile);
+                }
+            }
+            journal.close();
+            session.finishedJournals.add(journal);
+            if (isParallel) {
+                // The data streams still send their end-of-file headers and then close.
+                parallelFiles.remove(token);
+            }
+            session.file = null;
+            session.expect(State.FRAME_LENGTH, 4);
+            listener.onFilesReceived(1);
+        }
+
+        void abort() {
+            if (isClosed) {
+                return;
+            }
+            isClosed = true;
+            try {
+                target.close();
+            } catch (IOException ignored) {
+            }
+            journal.close();
+            if (isParallel) {
+                parallelFiles.remove(token);
+                for (Connection stream : new ArrayList<>(streams)) {
+                    stream.close();
+                }
+            }
+        }
+    }
+
+    // A pack announced by a session, unpacked into its files as its chunks arrive.
+    private class PackReceive {
+        final Connection session;
+        final CompressionPolicy.Codec codec;
+        final List<PackedTransfer.Entry> entries;
+        final TransferJournal journal;
+        final long streamSize;
+        final PackedTransfer.Unpacker unpacker;
+        final PackedTransfer.Listener progress;
+        int expectedIndex = 0;
+        long done = 0;
+
+        PackReceive(Connection session, CompressionPolicy.Codec codec, String transferId, boolean isResuming, List<PackedTransfer.Entry> entries) throws IOException {
+            this.session = session;
+            this.codec = codec;
+            this.entries = entries;
+            journal = TransferJournal.open(journalDir, transferId, entries.size());
+            if (!isResuming) {
+                journal.reset();
+            } else {
+                // Tell the sender which files of the pack it can skip.
+                ChunkedTransfer.writeBitSet(session.out, journal.snapshot());
+                session.flush();
+            }
+            BitSet skip = journal.snapshot();
+            streamSize = PackedTransfer.totalSize(entries, skip);
+            progress = listener.onPackStarted(entries, streamSize);
+            unpacker = new PackedTransfer.Unpacker(entries, skip, dir, partialSuffix, journal, progress);
+            unpacker.finishEmptyEntries();
+        }
+
+        void write(ChunkedTransfer.ChunkBuffer chunk) throws IOException {
+            if (chunk.index != expectedIndex++) {
+                throw new IOException("Pack chunk " + chunk.index + " arrived out of order");
+            }
+            ChunkedTransfer.decode(chunk);
+            unpacker.write(chunk.raw, chunk.length);
+            done += chunk.length;
+            progress.onProgress(done);
+        }
+
+        void finish() throws IOException {
+            unpacker.close();
+            journal.close();
+            if (!journal.isComplete()) {
+                throw new IOException("Pack transfer was incomplete. Got " + journal.doneCount() + " of " + entries.size() + " files");
+            }
+            session.finishedJournals.add(journal);
+            session.pack = null;
+            session.expect(State.FRAME_LENGTH, 4);
+            listener.onFilesReceived(entries.size());
+        }
+
+        void abort() {
+            unpacker.close();
+            journal.close();
+        }
+    }
+
+    // Tells the sender which offered files are already here. A file counts if it is at its
+    // target path, or if a copy with the same content is anywhere in the download folder, in
+    // which case it is copied locally instead of over the air. Runs on a worker; the cache does
+    // its own locking, so hashing and copying here never hold up the event loop.
+    private BitSet findExisting(List<TransferProtocol.OfferEntry> offer) throws IOException {
+        FingerprintCache cache = fingerprintCache();
+        BitSet have = new BitSet(offer.size());
+        for (int i = 0; i < offer.size(); i++) {
+            TransferProtocol.OfferEntry entry = offer.get(i);
+            File target = FileTreeWalker.resolve(dir, entry.path);
+            if (target.isFile() && target.length() == entry.fingerprint.size
+                    && cache.get(target).sameContentAs(entry.fingerprint)) {
+                have.set(i);
+                continue;
+            }
+            for (File candidate : cache.filesOfSize(dir, entry.fingerprint.size, partialSuffix)) {
+                if (!candidate.equals(target) && candidate.isFile()
+                        && cache.get(candidate).sameContentAs(entry.fingerprint)) {
+                    copyLocally(candidate, target, entry.fingerprint.lastModified);
+                    cache.addFile(target);
+                    have.set(i);
+                    break;
+                }
+            }
+        }
+        return have;
+    }
+
+    private void copyLocally(File source, File target, long lastModified) throws IOException {
+        File partFile = new File(target.getParentFile(), target.getName() + partialSuffix);
+        FileChannel in = new FileInputStream(source).getChannel();
+        try {
+            FileChannel out = new RandomAccessFile(partFile, "rw").getChannel();
+            try {
+                out.truncate(0);
+                ChunkedTransfer.transferToFully(in, 0, in.size(), out);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        if (target.exists()) {
+            target.delete();
+        }
+        if (!partFile.renameTo(target)) {
+            throw new IOException("Could not move " + target.getName() + " into place.");
+        }
+        if (lastModified > 0) {
+            target.setLastModified(lastModified);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.hfm.app;
+
+import android.os.FileObserver;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Watches folder trees for files being created, written, deleted or moved. A FileObserver only
+ * covers one folder, so there is one per folder below the roots, and folders created later are
+ * watched as they appear.
+ *
+ * Every watch costs an inotify watch, which the system limits per user, so at most MAX_WATCHES
+ * folders are watched; anything beyond that is left to the next scan.
+ */
+public class RecursiveFileObserver {
+
+    private static final String TAG = "RecursiveFileObserver";
+
+    private static final int MAX_WATCHES = 1024;
+    private static final int MASK = FileObserver.CREATE | FileObserver.CLOSE_WRITE | FileObserver.DELETE
+        | FileObserver.MOVED_FROM | FileObserver.MOVED_TO | FileObserver.DELETE_SELF;
+
+    public interface Listener {
+        /**
+         * Called on a FileObserver thread with the path of a file or folder that changed.
+         */
+        void onChanged(String path);
+    }
+
+    private final List<File> roots;
+    private final Listener listener;
+    private final Map<String, FileObserver> observers = new HashMap<>();
+
+    public RecursiveFileObserver(List<File> roots, Listener listener) {
+        this.roots = roots;
+        this.listener = listener;
+    }
+
+    public void startWatching() {
+        for (File root : roots) {
+            if (root.isDirectory()) {
+                watchTree(root.getAbsolutePath());
+            }
+        }
+    }
+
+    public synchronized void stopWatching() {
+        for (FileObserver observer : observers.values()) {
+            observer.stopWatching();
+        }
+        observers.clear();
+    }
+
+    private void watchTree(String root) {
+        Deque<String> folders = new ArrayDeque<>();
+        folders.push(root);
+        while (!folders.isEmpty()) {
+            String folder = folders.pop();
+            if (!watch(folder)) {
+                Log.w(TAG, "Watch limit reached, not watching below " + folder);
+                return;
+            }
+            File[] children = new File(folder).listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    if (child.isDirectory()) {
+                        folders.push(child.getAbsolutePath());
+                    }
+                }
+            }
+        }
+    }
+
+    private synchronized boolean watch(final String folder) {
+        if (observers.containsKey(folder)) {
+            return true;
+        }
+        if (observers.size() >= MAX_WATCHES) {
+            return false;
+        }
+        FileObserver observer = new FileObserver(folder, MASK) {
+            @Override
+            public void onEvent(int event, String name) {
+                int type = event & FileObserver.ALL_EVENTS;
+                if (type == FileObserver.DELETE_SELF) {
+                    unwatch(folder);
+                    listener.onChanged(folder);
+                    return;
+                }
+                if (name == null) {
+                    return;
+                }
+                String path = folder + "/" + name;
+                if ((type == FileObserver.CREATE || type == FileObserver.MOVED_TO) && new File(path).isDirectory()) {
+                    watchTree(path);
+                } else if (type == FileObserver.MOVED_FROM) {
+                    // The watches follow a moved folder, and would report its files under the old path.
+                    unwatchTree(path);
+                }
+                listener.onChanged(path);
+            }
+        };
+        observer.startWatching();
+        observers.put(folder, observer);
+        return true;
+    }
+
+    private synchronized void unwatchTree(String root) {
+        Iterator<Map.Entry<String, FileObserver>> it = observers.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, FileObserver> entry = it.next();
+            if (entry.getKey().equals(root) || entry.getKey().startsWith(root + "/")) {
+                entry.getValue().stopWatching();
+                it.remove();
+            }
+        }
+    }
+
+    private synchronized void unwatch(String folder) {
+        FileObserver observer = observers.remove(folder);
+        if (observer != null) {
+            observer.stopWatching();
+        }
+    }
+}
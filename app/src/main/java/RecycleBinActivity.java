@@ -151,7 +151,9 @@ public class RecycleBinActivity extends Activity {
 			.setPositiveButton("Empty", new DialogInterface.OnClickListener() {
 				@Override
 				public void onClick(DialogInterface dialog, int which) {
-					deleteRecursive(folder);
+					List<String> deleted = new ArrayList<>();
+					deleteRecursive(folder, deleted);
+					MediaStoreSync.getInstance(RecycleBinActivity.this).notifyChanged(deleted);
 					refreshList();
 				}
 			})
@@ -159,16 +161,18 @@ public class RecycleBinActivity extends Activity {
 			.show();
     }
 
-    private void deleteRecursive(File fileOrDirectory) {
+    private void deleteRecursive(File fileOrDirectory, List<String> deleted) {
         if (fileOrDirectory.isDirectory()) {
             File[] children = fileOrDirectory.listFiles();
             if (children != null) {
                 for (File child : children) {
-                    deleteRecursive(child);
+                    deleteRecursive(child, deleted);
                 }
             }
         }
-        fileOrDirectory.delete();
+        if (fileOrDirectory.delete()) {
+            deleted.add(fileOrDirectory.getAbsolutePath());
+        }
     }
 
     private void handleBackNavigation() {
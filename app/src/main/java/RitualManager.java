@@ -218,17 +218,20 @@ public class RitualManager {
 
                     FileInputStream fis = new FileInputStream(originalFile);
                     FileOutputStream fos = new FileOutputStream(encryptedFile);
-                    byte[] buffer = new byte[8192];
-                    int bytesRead;
-                    while ((bytesRead = fis.read(buffer)) != -1) {
-                        byte[] output = cipher.update(buffer, 0, bytesRead);
-                        if (output != null) {
-                            fos.write(output);
+                    byte[] buffer = BufferPool.acquire(StorageUtils.getCopyMedium(context, originalFile, encryptedFile));
+                    byte[] output = BufferPool.acquire(cipher.getOutputSize(buffer.length));
+                    try {
+                        int bytesRead;
+                        while ((bytesRead = fis.read(buffer)) != -1) {
+                            fos.write(output, 0, cipher.update(buffer, 0, bytesRead, output));
                         }
-                    }
-                    byte[] finalBytes = cipher.doFinal();
-                    if (finalBytes != null) {
-                        fos.write(finalBytes);
+                        byte[] finalBytes = cipher.doFinal();
+                        if (finalBytes != null) {
+                            fos.write(finalBytes);
+                        }
+                    } finally {
+                        BufferPool.release(buffer);
+                        BufferPool.release(output);
                     }
                     fis.close();
                     fos.flush();
@@ -329,17 +332,20 @@ public class RitualManager {
 
                     FileInputStream fis = new FileInputStream(encryptedFile);
                     FileOutputStream fos = new FileOutputStream(restoredFile);
-                    byte[] buffer = new byte[8192];
-                    int bytesRead;
-                    while ((bytesRead = fis.read(buffer)) != -1) {
-                        byte[] output = cipher.update(buffer, 0, bytesRead);
-                        if (output != null) {
-                            fos.write(output);
+                    byte[] buffer = BufferPool.acquire(StorageUtils.getCopyMedium(context, encryptedFile, restoredFile));
+                    byte[] output = BufferPool.acquire(cipher.getOutputSize(buffer.length));
+                    try {
+                        int bytesRead;
+                        while ((bytesRead = fis.read(buffer)) != -1) {
+                            fos.write(output, 0, cipher.update(buffer, 0, bytesRead, output));
                         }
-                    }
-                    byte[] finalBytes = cipher.doFinal();
-                    if (finalBytes != null) {
-                        fos.write(finalBytes);
+                        byte[] finalBytes = cipher.doFinal();
+                        if (finalBytes != null) {
+                            fos.write(finalBytes);
+                        }
+                    } finally {
+                        BufferPool.release(buffer);
+                        BufferPool.release(output);
                     }
                     fis.close();
                     fos.flush();
@@ -58,11 +58,11 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -87,6 +87,7 @@ public class SearchActivity extends Activity implements SearchAdapter.OnItemClic
     private TextView deletionProgressText;
     private BroadcastReceiver deleteCompletionReceiver;
     private BroadcastReceiver compressionBroadcastReceiver;
+    private BroadcastReceiver indexUpdatedReceiver;
 
     private static final int CATEGORY_IMAGES = 1;
     private static final int CATEGORY_VIDEOS = 2;
@@ -94,7 +95,36 @@ public class SearchActivity extends Activity implements SearchAdapter.OnItemClic
     private static final int CATEGORY_DOCS = 4;
     private static final int CATEGORY_OTHER = 5;
 
-    private final ExecutorService searchExecutor = Executors.newSingleThreadExecutor();
+    private final SearchSession<QueryParameters, SearchResult> searchSession = new SearchSession<>(
+        new SearchSession.Searcher<QueryParameters, SearchResult>() {
+            @Override
+            public List<SearchResult> search(SearchSession.Search<QueryParameters> search) {
+                return runSearch(search);
+            }
+
+            @Override
+            public List<SearchResult> refine(List<SearchResult> previous, SearchSession.Search<QueryParameters> search) {
+                return refineResults(previous, search);
+            }
+
+            @Override
+            public void show(SearchSession.Search<QueryParameters> search, List<SearchResult> results) {
+                updateUIWithResults(search, results);
+            }
+
+            @Override
+            public String pathOf(SearchResult result) {
+                return result.getPath();
+            }
+
+            @Override
+            public boolean couldMatch(String path, String text) {
+                // The index also finds names one typo away from the text.
+                String lowerPath = path.toLowerCase(Locale.ROOT);
+                return lowerPath.contains(text)
+                    || FileIndex.containsWithinOneEdit(lowerPath.substring(lowerPath.lastIndexOf('/') + 1), text);
+            }
+        });
 
     private static final Pattern FILE_BASE_NAME_PATTERN = Pattern.compile("^(IMG|VID|PANO|DSC)_\\d{8}_\\d{6}");
 
@@ -177,7 +207,9 @@ public class SearchActivity extends Activity implements SearchAdapter.OnItemClic
 				@Override public void onTextChanged(CharSequence s, int start, int before, int count) {
 					fetchFolderSuggestions(s.toString());
 				}
-				@Override public void afterTextChanged(Editable s) {}
+				@Override public void afterTextChanged(Editable s) {
+					scheduleQuery(s.toString());
+				}
 			});
 
         searchInput.setOnItemClickListener(new AdapterView.OnItemClickListener() {
@@ -237,34 +269,125 @@ public class SearchActivity extends Activity implements SearchAdapter.OnItemClic
 			});
     }
 
-    private void executeQuery(final String query) {
-        searchExecutor.execute(new Runnable() {
+    /**
+     * Searches as the user types, once the text settles. Clearing the text clears the results
+     * rather than listing every file.
+     */
+    private void scheduleQuery(String query) {
+        if (query.trim().isEmpty()) {
+            searchSession.cancel();
+            displayList.clear();
+            adapter.updateData(displayList);
+            return;
+        }
+        QueryParameters params = parseQuery(query);
+        searchSession.searchSoon(params, filterKey(params), params.folderPath);
+    }
+
+    private void executeQuery(String query) {
+        QueryParameters params = parseQuery(query);
+        searchSession.search(params, filterKey(params), params.folderPath);
+    }
+
+    /**
+     * Searches again without the cached results, after files were deleted, moved or added.
+     */
+    private void refreshQuery() {
+        searchSession.clearCache();
+        executeQuery(searchInput.getText().toString());
+    }
+
+    // What besides the text decides which files match.
+    private String filterKey(QueryParameters params) {
+        return currentFilterType + ":" + params.startTimeSeconds + ":" + params.endTimeSeconds;
+    }
+
+    private List<SearchResult> runSearch(SearchSession.Search<QueryParameters> search) {
+        QueryParameters params = search.params;
+        FileIndex index = FileIndex.getInstance(this);
+        if (index.isReady()) {
+            List<SearchResult> results = searchIndex(index, params);
+            updateUIWithResults(search, results);
+            return results;
+        }
+
+        final MediaStoreQuery mediaQuery = newMediaStoreQuery(params);
+        search.onCancel(new Runnable() {
 				@Override
 				public void run() {
-					final QueryParameters params = parseQuery(query);
-					List<SearchResult> mediaStoreResults = executeQueryWithMediaStore(params);
-
-					if (!mediaStoreResults.isEmpty()) {
-						updateUIWithResults(mediaStoreResults);
-					} else {
-						runOnUiThread(new Runnable() {
-								@Override
-								public void run() {
-									Toast.makeText(SearchActivity.this, "MediaStore found nothing. Starting deep scan...", Toast.LENGTH_SHORT).show();
-								}
-							});
-						List<SearchResult> fileSystemResults = performFallbackFileSearch(params);
-						updateUIWithResults(fileSystemResults);
-					}
+					mediaQuery.cancel();
 				}
 			});
+        List<SearchResult> mediaStoreResults = streamMediaStoreResults(search, mediaQuery);
+        if (search.isCancelled()) {
+            return null;
+        }
+        if (!mediaStoreResults.isEmpty()) {
+            return mediaStoreResults;
+        }
+        runOnUiThread(new Runnable() {
+				@Override
+				public void run() {
+					Toast.makeText(SearchActivity.this, "MediaStore found nothing. Starting deep scan...", Toast.LENGTH_SHORT).show();
+				}
+			});
+        List<SearchResult> fileSystemResults = performFallbackFileSearch(search);
+        if (search.isCancelled()) {
+            return null;
+        }
+        updateUIWithResults(search, fileSystemResults);
+        return fileSystemResults;
     }
 
-    private void updateUIWithResults(final List<SearchResult> results) {
+    /**
+     * Narrows results of a shorter text down to those matching search, the way the search that
+     * found them would have: by file and folder name below the volume for the index, by path
+     * otherwise.
+     */
+    private List<SearchResult> refineResults(List<SearchResult> previous, SearchSession.Search<QueryParameters> search) {
+        String text = search.text;
+        FileIndex index = FileIndex.getInstance(this);
+        boolean byName = index.isReady() && !text.contains("/");
+        List<String> rootPaths = new ArrayList<>();
+        for (File root : FileIndexer.getRoots(this)) {
+            rootPaths.add(root.getAbsolutePath() + "/");
+        }
+
+        List<SearchResult> results = new ArrayList<>();
+        List<Integer> ranks = new ArrayList<>();
+        for (SearchResult result : previous) {
+            String path = result.getPath();
+            if (path == null) {
+                continue;
+            }
+            if (byName) {
+                for (String rootPath : rootPaths) {
+                    if (path.startsWith(rootPath)) {
+                        path = path.substring(rootPath.length());
+                        break;
+                    }
+                }
+            }
+            if (path.toLowerCase(Locale.ROOT).contains(text)) {
+                results.add(result);
+                ranks.add(FileIndex.matchRank(result.getDisplayName(), text));
+            }
+        }
+        return index.isReady() ? rankWithinDays(results, ranks) : results;
+    }
+
+    private void updateUIWithResults(final SearchSession.Search<QueryParameters> search, final List<SearchResult> results) {
         final List<Object> groupedList = processAndGroupResults(results);
         runOnUiThread(new Runnable() {
 				@Override
 				public void run() {
+					if (search.isCancelled()) {
+						return;
+					}
+					// Cached results come back with whatever was selected the last time.
+					for (SearchResult result : results) {
+						result.setExcluded(true);
+					}
 					displayList.clear();
 					displayList.addAll(groupedList);
 					adapter.updateData(displayList);
@@ -275,6 +398,27 @@ public class SearchActivity extends Activity implements SearchAdapter.OnItemClic
 			});
     }
 
+    /**
+     * Adds results after those already shown, continuing the last date group if the first
+     * results belong to it.
+     */
+    private void appendResults(List<Object> groupedList) {
+        if (!groupedList.isEmpty() && groupedList.get(0) instanceof DateHeader) {
+            String firstDate = ((DateHeader) groupedList.get(0)).getDateString();
+            for (int i = displayList.size() - 1; i >= 0; i--) {
+                if (displayList.get(i) instanceof DateHeader) {
+                    if (((DateHeader) displayList.get(i)).getDateString().equals(firstDate)) {
+                        groupedList = groupedList.subList(1, groupedList.size());
+                    }
+                    break;
+                }
+            }
+        }
+        int start = displayList.size();
+        displayList.addAll(groupedList);
+        adapter.notifyItemRangeInserted(start, groupedList.size());
+    }
+
     private List<Object> processAndGroupResults(List<SearchResult> flatResults) {
         List<Object> groupedList = new ArrayList<>();
         if (flatResults.isEmpty()) {
@@ -296,15 +440,9 @@ public class SearchActivity extends Activity implements SearchAdapter.OnItemClic
         return groupedList;
     }
 
-    // ===================================================================
-    // === THIS METHOD IS UPDATED TO FIX THE CURSORWINDOW CRASH ===
-    // It now queries the MediaStore in smaller batches to avoid memory overflow
-    // but still returns one single, complete list. Your app logic is unchanged.
-    // ===================================================================
-    private List<SearchResult> executeQueryWithMediaStore(QueryParameters params) {
+    private MediaStoreQuery newMediaStoreQuery(QueryParameters params) {
         StringBuilder selection = new StringBuilder();
         List<String> selectionArgs = new ArrayList<>();
-        Uri queryUri = MediaStore.Files.getContentUri("external");
         addFilterClauses(selection, selectionArgs);
 
         if (params.startTimeSeconds != -1 && params.endTimeSeconds != -1) {
@@ -320,7 +458,6 @@ public class SearchActivity extends Activity implements SearchAdapter.OnItemClic
             selectionArgs.add("%" + params.folderPath + "%");
         }
 
-        List<SearchResult> results = new ArrayList<>();
         String[] projection = {
             MediaStore.Files.FileColumns._ID,
             MediaStore.Files.FileColumns.MEDIA_TYPE,
@@ -328,63 +465,64 @@ public class SearchActivity extends Activity implements SearchAdapter.OnItemClic
             MediaStore.Files.FileColumns.DISPLAY_NAME,
             MediaStore.Files.FileColumns.DATA
         };
+        return new MediaStoreQuery(getContentResolver(), MediaStore.Files.getContentUri("external"), projection,
+            selection.toString(), selectionArgs.toArray(new String[0]));
+    }
 
-        final int limit = 2000; // Process records in batches of 2000 to stay within memory limits.
-        int offset = 0;
-        String baseSortOrder = MediaStore.Files.FileColumns.DATE_MODIFIED + " DESC";
-
-        while (true) {
-            String sortOrder = baseSortOrder + " LIMIT " + limit + " OFFSET " + offset;
-            Cursor cursor = null;
-            try {
-                cursor = getContentResolver().query(queryUri, projection, selection.toString(),
-                                                   selectionArgs.toArray(new String[0]), sortOrder);
-
-                if (cursor == null || cursor.getCount() == 0) {
-                    // No more results, so we are done.
-                    break;
-                }
-
-                int idColumn = cursor.getColumnIndexOrThrow(MediaStore.Files.FileColumns._ID);
-                int mediaTypeColumn = cursor.getColumnIndexOrThrow(MediaStore.Files.FileColumns.MEDIA_TYPE);
-                int dateModifiedColumn = cursor.getColumnIndexOrThrow(MediaStore.Files.FileColumns.DATE_MODIFIED);
-                int displayNameColumn = cursor.getColumnIndexOrThrow(MediaStore.Files.FileColumns.DISPLAY_NAME);
-                int dataColumn = cursor.getColumnIndexOrThrow(MediaStore.Files.FileColumns.DATA);
-
-                while (cursor.moveToNext()) {
-                    long id = cursor.getLong(idColumn);
-                    int mediaType = cursor.getInt(mediaTypeColumn);
-                    long dateModifiedSeconds = cursor.getLong(dateModifiedColumn);
-                    String displayName = cursor.getString(displayNameColumn);
-                    String path = cursor.getString(dataColumn);
-                    Uri contentUri;
-                    if (mediaType == MediaStore.Files.FileColumns.MEDIA_TYPE_IMAGE) {
-                        contentUri = ContentUris.withAppendedId(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, id);
-                    } else if (mediaType == MediaStore.Files.FileColumns.MEDIA_TYPE_VIDEO) {
-                        contentUri = ContentUris.withAppendedId(MediaStore.Video.Media.EXTERNAL_CONTENT_URI, id);
-                    } else {
-                        contentUri = ContentUris.withAppendedId(queryUri, id);
-                    }
-                    results.add(new SearchResult(contentUri, id, dateModifiedSeconds * 1000, displayName, path));
-                }
-
-                if (cursor.getCount() < limit) {
-                    // This was the last page of results, so we can stop.
-                    break;
-                }
-
-                offset += limit; // Prepare to query the next page of results.
-
-            } finally {
-                if (cursor != null) {
-                    cursor.close(); // Important to close the cursor for each batch.
-                }
-            }
-        }
-        return results;
+    /**
+     * Runs the MediaStore query on the calling thread, replacing the results on screen with its
+     * first page and adding every further page as it is read, so the newest results show while
+     * older ones are still being fetched.
+     *
+     * @return Every result found.
+     */
+    private List<SearchResult> streamMediaStoreResults(final SearchSession.Search<QueryParameters> search, MediaStoreQuery mediaQuery) {
+        runOnUiThread(new Runnable() {
+				@Override
+				public void run() {
+					if (!search.isCancelled()) {
+						displayList.clear();
+						adapter.updateData(displayList);
+					}
+				}
+			});
+        final Uri queryUri = MediaStore.Files.getContentUri("external");
+        final List<SearchResult> found = new ArrayList<>();
+        mediaQuery.run(new MediaStoreQuery.RowReader<SearchResult>() {
+				@Override
+				public SearchResult read(Cursor cursor) {
+					long id = cursor.getLong(0);
+					int mediaType = cursor.getInt(1);
+					Uri contentUri;
+					if (mediaType == MediaStore.Files.FileColumns.MEDIA_TYPE_IMAGE) {
+						contentUri = ContentUris.withAppendedId(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, id);
+					} else if (mediaType == MediaStore.Files.FileColumns.MEDIA_TYPE_VIDEO) {
+						contentUri = ContentUris.withAppendedId(MediaStore.Video.Media.EXTERNAL_CONTENT_URI, id);
+					} else {
+						contentUri = ContentUris.withAppendedId(queryUri, id);
+					}
+					return new SearchResult(contentUri, id, cursor.getLong(2) * 1000, cursor.getString(3), cursor.getString(4));
+				}
+			}, new MediaStoreQuery.PageListener<SearchResult>() {
+				@Override
+				public void onPage(List<SearchResult> results) {
+					found.addAll(results);
+					final List<Object> groupedList = processAndGroupResults(results);
+					runOnUiThread(new Runnable() {
+							@Override
+							public void run() {
+								if (!search.isCancelled()) {
+									appendResults(groupedList);
+								}
+							}
+						});
+				}
+			});
+        return found;
     }
 
-    private List<SearchResult> performFallbackFileSearch(QueryParameters params) {
+    private List<SearchResult> performFallbackFileSearch(SearchSession.Search<QueryParameters> search) {
+        QueryParameters params = search.params;
         List<SearchResult> results = new ArrayList<>();
         File externalStorage = Environment.getExternalStorageDirectory();
 
@@ -397,9 +535,12 @@ public class SearchActivity extends Activity implements SearchAdapter.OnItemClic
         rootsToScan.add(new File(externalStorage, "Pictures"));
         rootsToScan.add(new File(externalStorage, "DCIM/Camera"));
 
+        // Searches go to the index once it is ready.
+        FileIndexer.refresh(this);
+
         for (File root : rootsToScan) {
             if (root.exists() && root.isDirectory()) {
-                scanDirectory(root, params, results);
+                scanDirectory(search, root, params, results);
             }
         }
 
@@ -412,14 +553,98 @@ public class SearchActivity extends Activity implements SearchAdapter.OnItemClic
         return results;
     }
 
-    private void scanDirectory(File directory, QueryParameters params, List<SearchResult> results) {
+    /**
+     * Searches every indexed volume, outside hidden folders. Text in the query is looked up in
+     * the name index, matching file names and the names of folders the files are in; within a
+     * day, better matches come first.
+     */
+    private List<SearchResult> searchIndex(FileIndex index, QueryParameters params) {
+        StringBuilder selection = new StringBuilder(FileIndex.COLUMN_HIDDEN + " = 0");
+        List<String> selectionArgs = new ArrayList<>();
+        List<String> rootPaths = new ArrayList<>();
+        for (File root : FileIndexer.getRoots(this)) {
+            rootPaths.add(root.getAbsolutePath());
+        }
+        FileIndex.appendUnderAny(selection, selectionArgs, rootPaths);
+        if (params.startTimeSeconds != -1) {
+            selection.append(" AND " + FileIndex.COLUMN_MTIME + " >= ? AND " + FileIndex.COLUMN_MTIME + " <= ?");
+            selectionArgs.add(String.valueOf(params.startTimeSeconds * 1000));
+            selectionArgs.add(String.valueOf(params.endTimeSeconds * 1000));
+        }
+
+        List<FileIndex.Entry> entries;
+        if (params.folderPath == null) {
+            entries = index.query(FileIndex.COLUMN_IS_DIR + " = 0 AND " + selection, selectionArgs.toArray(new String[0]),
+                FileIndex.COLUMN_MTIME + " DESC");
+        } else if (params.folderPath.contains("/")) {
+            // Spans folders, so no single name holds it.
+            FileIndex.appendPathContains(selection, selectionArgs, params.folderPath);
+            entries = index.query(FileIndex.COLUMN_IS_DIR + " = 0 AND " + selection, selectionArgs.toArray(new String[0]),
+                FileIndex.COLUMN_MTIME + " DESC");
+        } else {
+            entries = index.searchFiles(params.folderPath, selection.toString(), selectionArgs.toArray(new String[0]));
+        }
+
+        List<SearchResult> results = new ArrayList<>();
+        List<Integer> ranks = new ArrayList<>();
+        for (FileIndex.Entry entry : entries) {
+            if (isFileTypeMatch(entry.name)) {
+                File file = entry.getFile();
+                results.add(new SearchResult(Uri.fromFile(file), entry.lastModified, entry.lastModified, entry.name, entry.path));
+                ranks.add(params.folderPath == null ? FileIndex.MATCH_EXACT : FileIndex.matchRank(entry.name, params.folderPath));
+            }
+        }
+        return rankWithinDays(results, ranks);
+    }
+
+    /**
+     * Orders results that are grouped by day, newest day first, by rank and then time within
+     * each day, keeping the date headers of processAndGroupResults in one piece.
+     */
+    private List<SearchResult> rankWithinDays(List<SearchResult> results, final List<Integer> ranks) {
+        final Map<SearchResult, Integer> rankOf = new IdentityHashMap<>();
+        for (int i = 0; i < results.size(); i++) {
+            rankOf.put(results.get(i), ranks.get(i));
+        }
+        Comparator<SearchResult> byRank = new Comparator<SearchResult>() {
+			@Override
+			public int compare(SearchResult r1, SearchResult r2) {
+				int byMatch = Integer.compare(rankOf.get(r1), rankOf.get(r2));
+				return byMatch != 0 ? byMatch : Long.compare(r2.getLastModifiedForGrouping(), r1.getLastModifiedForGrouping());
+			}
+		};
+
+        List<SearchResult> ranked = new ArrayList<>(results.size());
+        Calendar calendar = Calendar.getInstance();
+        int start = 0;
+        while (start < results.size()) {
+            calendar.setTimeInMillis(results.get(start).getLastModifiedForGrouping());
+            int day = calendar.get(Calendar.YEAR) * 400 + calendar.get(Calendar.DAY_OF_YEAR);
+            int end = start + 1;
+            while (end < results.size()) {
+                calendar.setTimeInMillis(results.get(end).getLastModifiedForGrouping());
+                if (calendar.get(Calendar.YEAR) * 400 + calendar.get(Calendar.DAY_OF_YEAR) != day) {
+                    break;
+                }
+                end++;
+            }
+            List<SearchResult> sameDay = new ArrayList<>(results.subList(start, end));
+            Collections.sort(sameDay, byRank);
+            ranked.addAll(sameDay);
+            start = end;
+        }
+        return ranked;
+    }
+
+    private void scanDirectory(SearchSession.Search<QueryParameters> search, File directory, QueryParameters params, List<SearchResult> results) {
+        if (search.isCancelled()) return;
         File[] files = directory.listFiles();
         if (files == null) return;
 
         for (File file : files) {
             if (file.isDirectory()) {
                 if (params.folderPath == null || file.getAbsolutePath().toLowerCase().contains(params.folderPath.toLowerCase())) {
-                    scanDirectory(file, params, results);
+                    scanDirectory(search, file, params, results);
                 }
             } else {
                 boolean dateMatch = (params.startTimeSeconds == -1) ||
@@ -739,8 +964,7 @@ public class SearchActivity extends Activity implements SearchAdapter.OnItemClic
 
                     if (sourceFile.renameTo(destFile)) {
                         movedCount++;
-                        sendBroadcast(new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE, Uri.fromFile(sourceFile)));
-                        sendBroadcast(new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE, Uri.fromFile(destFile)));
+                        MediaStoreSync.getInstance(this).notifyMoved(sourceFile, destFile);
                     } else {
                         Log.w(TAG, "Failed to move file to recycle bin: " + sourceFile.getAbsolutePath());
                     }
@@ -749,7 +973,7 @@ public class SearchActivity extends Activity implements SearchAdapter.OnItemClic
         }
 
         Toast.makeText(this, movedCount + " file(s) moved to Recycle Bin.", Toast.LENGTH_LONG).show();
-        executeQuery(searchInput.getText().toString());
+        refreshQuery();
     }
 
     private List<SearchResult> findSiblingFiles(SearchResult originalResult) {
@@ -1103,7 +1327,7 @@ public class SearchActivity extends Activity implements SearchAdapter.OnItemClic
                 Toast.makeText(SearchActivity.this, "Deletion complete. " + deletedCount + " files removed.", Toast.LENGTH_LONG).show();
 
                 deletionProgressLayout.setVisibility(View.GONE);
-                executeQuery(searchInput.getText().toString());
+                refreshQuery();
             }
         };
         LocalBroadcastManager.getInstance(this).registerReceiver(deleteCompletionReceiver, new IntentFilter(DeleteService.ACTION_DELETE_COMPLETE));
@@ -1113,21 +1337,40 @@ public class SearchActivity extends Activity implements SearchAdapter.OnItemClic
             public void onReceive(Context context, Intent intent) {
                 boolean success = intent.getBooleanExtra(CompressionService.EXTRA_SUCCESS, false);
                 if (success) {
-                    executeQuery(searchInput.getText().toString());
+                    refreshQuery();
                 }
             }
         };
         LocalBroadcastManager.getInstance(this).registerReceiver(compressionBroadcastReceiver, new IntentFilter(CompressionService.ACTION_COMPRESSION_COMPLETE));
+
+        indexUpdatedReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                String[] changedPaths = intent.getStringArrayExtra(FileIndexer.EXTRA_CHANGED_PATHS);
+                if (changedPaths != null) {
+                    searchSession.forgetChanged(Arrays.asList(changedPaths));
+                } else {
+                    // After a scan cached results may be missing anything, or come from the
+                    // MediaStore while the index wasn't ready, and refine by the wrong rules.
+                    searchSession.clearCache();
+                }
+            }
+        };
+        LocalBroadcastManager.getInstance(this).registerReceiver(indexUpdatedReceiver, new IntentFilter(FileIndexer.ACTION_INDEX_UPDATED));
     }
 
     @Override
     protected void onDestroy() {
+        searchSession.cancel();
         if (deleteCompletionReceiver != null) {
             LocalBroadcastManager.getInstance(this).unregisterReceiver(deleteCompletionReceiver);
         }
         if (compressionBroadcastReceiver != null) {
             LocalBroadcastManager.getInstance(this).unregisterReceiver(compressionBroadcastReceiver);
         }
+        if (indexUpdatedReceiver != null) {
+            LocalBroadcastManager.getInstance(this).unregisterReceiver(indexUpdatedReceiver);
+        }
         super.onDestroy();
     }
 
@@ -0,0 +1,317 @@
+package com.hfm.app;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Search-as-you-type for the search screens.
+ *
+ * Typing is debounced: a search starts once the text has not changed for DEBOUNCE_MS. Starting
+ * a search cancels the one before it, which stops at its next check and whose results are never
+ * shown, so fast typing doesn't queue up full scans. Searches run on a pool rather than one
+ * thread, so a new search doesn't wait for a cancelled one to notice.
+ *
+ * The results of the last CACHE_SIZE finished searches are kept, so going back to one of them,
+ * e.g. by backspacing, shows its results at once. A search whose text contains the text of a
+ * cached search with the same filters can only find a subset of that search's results, so it is
+ * answered by narrowing them down instead of searching again. When files change, forgetChanged
+ * drops only the cached results the changes could affect.
+ *
+ * @param <P> The parsed query.
+ * @param <R> A result.
+ */
+public class SearchSession<P, R> {
+
+    public static final long DEBOUNCE_MS = 300;
+    private static final int CACHE_SIZE = 8;
+    // Bigger result lists aren't worth the memory; searching again is still correct.
+    private static final int MAX_CACHED_RESULTS = 50000;
+
+    /**
+     * What a screen does for a search. Everything here runs on a background thread; results
+     * are posted to the UI by the screen, which drops them if the search was cancelled by then.
+     */
+    public interface Searcher<P, R> {
+        /**
+         * Searches and shows what is found, as it likes, e.g. page by page.
+         *
+         * @return Every result, or null if the search was cancelled.
+         */
+        List<R> search(Search<P> search);
+
+        /**
+         * The results among previous, which a search for a shorter text found, that match this
+         * search, in the order to show them.
+         */
+        List<R> refine(List<R> previous, Search<P> search);
+
+        /**
+         * Shows results of an earlier search, from the cache or refined.
+         */
+        void show(Search<P> search, List<R> results);
+
+        /**
+         * The path of the file a result stands for, or null if it has none.
+         */
+        String pathOf(R result);
+
+        /**
+         * Whether a file at path could be found by a search for text, filters aside. May say yes
+         * too often, never too rarely.
+         */
+        boolean couldMatch(String path, String text);
+    }
+
+    /**
+     * One search. The filter key stands for everything besides the text that decides which
+     * results match, such as the file type or the date range.
+     */
+    public static class Search<P> {
+        public final P params;
+        public final String filterKey;
+        // Lower case, trimmed; "" for none.
+        public final String text;
+        private final List<Runnable> cancelListeners = new ArrayList<>();
+        private volatile boolean cancelled;
+
+        Search(P params, String filterKey, String text) {
+            this.params = params;
+            this.filterKey = filterKey;
+            this.text = text == null ? "" : text.trim().toLowerCase(Locale.ROOT);
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        /**
+         * Runs listener when the search is cancelled, or now if it already is.
+         */
+        public void onCancel(Runnable listener) {
+            synchronized (cancelListeners) {
+                if (!cancelled) {
+                    cancelListeners.add(listener);
+                    return;
+                }
+            }
+            listener.run();
+        }
+
+        void cancel() {
+            List<Runnable> listeners;
+            synchronized (cancelListeners) {
+                if (cancelled) {
+                    return;
+                }
+                cancelled = true;
+                listeners = new ArrayList<>(cancelListeners);
+                cancelListeners.clear();
+            }
+            for (Runnable listener : listeners) {
+                listener.run();
+            }
+        }
+
+        String cacheKey() {
+            return filterKey + '\n' + text;
+        }
+    }
+
+    private static class CachedResults<R> {
+        final String filterKey;
+        final String text;
+        final List<R> results;
+
+        CachedResults(String filterKey, String text, List<R> results) {
+            this.filterKey = filterKey;
+            this.text = text;
+            this.results = results;
+        }
+    }
+
+    private final Searcher<P, R> searcher;
+    private final Executor executor;
+    // Made on first use, so searches that aren't debounced don't need a main looper.
+    private Handler handler;
+    // Least recently used first.
+    private final Map<String, CachedResults<R>> cache = new LinkedHashMap<String, CachedResults<R>>(CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedResults<R>> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+    // Only touched on the UI thread.
+    private Search<P> current;
+    private Runnable pendingSearch;
+
+    public SearchSession(Searcher<P, R> searcher) {
+        this(searcher, Executors.newCachedThreadPool());
+    }
+
+    // For tests, which run searches on their own thread.
+    SearchSession(Searcher<P, R> searcher, Executor executor) {
+        this.searcher = searcher;
+        this.executor = executor;
+    }
+
+    /**
+     * Searches once the text has stopped changing for DEBOUNCE_MS. Call on the UI thread.
+     */
+    public void searchSoon(final P params, final String filterKey, final String text) {
+        cancelPending();
+        pendingSearch = new Runnable() {
+            @Override
+            public void run() {
+                search(params, filterKey, text);
+            }
+        };
+        if (handler == null) {
+            handler = new Handler(Looper.getMainLooper());
+        }
+        handler.postDelayed(pendingSearch, DEBOUNCE_MS);
+    }
+
+    /**
+     * Searches now, cancelling the search before. Call on the UI thread.
+     */
+    public void search(P params, String filterKey, String text) {
+        cancel();
+        final Search<P> search = new Search<>(params, filterKey, text);
+        current = search;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                runSearch(search);
+            }
+        });
+    }
+
+    /**
+     * Cancels the pending and the running search. Call on the UI thread.
+     */
+    public void cancel() {
+        cancelPending();
+        if (current != null) {
+            current.cancel();
+            current = null;
+        }
+    }
+
+    private void cancelPending() {
+        if (pendingSearch != null) {
+            handler.removeCallbacks(pendingSearch);
+            pendingSearch = null;
+        }
+    }
+
+    /**
+     * Forgets every cached result, e.g. after files were deleted or added.
+     */
+    public void clearCache() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    /**
+     * Forgets the cached results that changes to the given files or folders could have made
+     * wrong: those holding a result at or below one of the paths, which may be gone or different
+     * now, and those of a search that could find one of the paths, which may be new. The others
+     * stay cached.
+     */
+    public void forgetChanged(Collection<String> paths) {
+        synchronized (cache) {
+            Iterator<CachedResults<R>> iterator = cache.values().iterator();
+            while (iterator.hasNext()) {
+                if (isAffected(iterator.next(), paths)) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    private boolean isAffected(CachedResults<R> cached, Collection<String> paths) {
+        for (String path : paths) {
+            if (searcher.couldMatch(path, cached.text)) {
+                return true;
+            }
+        }
+        for (R result : cached.results) {
+            String resultPath = searcher.pathOf(result);
+            if (resultPath == null) {
+                continue;
+            }
+            for (String path : paths) {
+                if (resultPath.equals(path) || resultPath.startsWith(path + "/")) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void runSearch(Search<P> search) {
+        if (search.isCancelled()) {
+            return;
+        }
+        CachedResults<R> cached;
+        synchronized (cache) {
+            cached = cache.get(search.cacheKey());
+        }
+        if (cached != null) {
+            searcher.show(search, cached.results);
+            return;
+        }
+
+        CachedResults<R> base = findNarrowest(search);
+        if (base != null) {
+            List<R> refined = searcher.refine(base.results, search);
+            // With nothing left the search itself may still find looser matches.
+            if (!refined.isEmpty()) {
+                if (!search.isCancelled()) {
+                    remember(search, refined);
+                    searcher.show(search, refined);
+                }
+                return;
+            }
+        }
+
+        List<R> results = searcher.search(search);
+        if (results != null && !search.isCancelled()) {
+            remember(search, results);
+        }
+    }
+
+    // The smallest cached result list of a search that found everything this one can.
+    private CachedResults<R> findNarrowest(Search<P> search) {
+        CachedResults<R> narrowest = null;
+        synchronized (cache) {
+            for (CachedResults<R> cached : cache.values()) {
+                if (cached.filterKey.equals(search.filterKey) && search.text.contains(cached.text)
+                    && (narrowest == null || cached.results.size() < narrowest.results.size())) {
+                    narrowest = cached;
+                }
+            }
+        }
+        return narrowest;
+    }
+
+    private void remember(Search<P> search, List<R> results) {
+        if (results.size() > MAX_CACHED_RESULTS) {
+            return;
+        }
+        synchronized (cache) {
+            cache.put(search.cacheKey(), new CachedResults<>(search.filterKey, search.text, results));
+        }
+    }
+}
@@ -8,6 +8,7 @@ import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.net.Uri;
 import android.net.wifi.p2p.WifiP2pConfig;
@@ -24,6 +25,8 @@ import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.Button;
+import android.widget.CheckBox;
+import android.widget.CompoundButton;
 import android.widget.ImageView;
 import android.widget.TextView;
 import android.widget.Toast;
@@ -49,7 +52,10 @@ public class ShareHubActivity extends FragmentActivity implements WifiP2pManager
 
     private static final String TAG = "ShareHubActivity";
     private static final int CATEGORY_PICKER_REQUEST_CODE = 200;
+    private static final int BROADCAST_PICKER_REQUEST_CODE = 201;
     public static final String ACTION_DISCONNECT_WIFI_P2P = "com.hfm.app.DISCONNECT_WIFI_P2P";
+    private static final String PREFERENCES_NAME = "ShareHubPrefs";
+    private static final String SKIP_EXISTING_KEY = "SkipExisting";
 
     // --- FIX 2: Modern permission handling launchers ---
     private ActivityResultLauncher<Intent> storagePermissionLauncher;
@@ -68,10 +74,13 @@ public class ShareHubActivity extends FragmentActivity implements WifiP2pManager
     private DeviceListAdapter deviceListAdapter;
 
     private TextView statusTextView;
-    private Button sendButton, receiveButton;
+    private Button sendButton, receiveButton, broadcastButton;
+    private CheckBox skipExistingCheckBox;
     private RecyclerView devicesRecyclerView;
 
     private boolean isTransferInProgress = false;
+    // This device hosts the group and sends one batch to every device that joins it.
+    private boolean isBroadcasting = false;
     private BroadcastReceiver disconnectReceiver;
 
 
@@ -96,6 +105,9 @@ public class ShareHubActivity extends FragmentActivity implements WifiP2pManager
         statusTextView = findViewById(R.id.status_text);
         sendButton = findViewById(R.id.button_send);
         receiveButton = findViewById(R.id.button_receive);
+        broadcastButton = findViewById(R.id.button_broadcast);
+        skipExistingCheckBox = findViewById(R.id.checkbox_skip_existing);
+        skipExistingCheckBox.setChecked(getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE).getBoolean(SKIP_EXISTING_KEY, true));
         devicesRecyclerView = findViewById(R.id.devices_recycler_view);
 
         deviceListAdapter = new DeviceListAdapter(this, peers);
@@ -232,6 +244,22 @@ public class ShareHubActivity extends FragmentActivity implements WifiP2pManager
 					createGroup();
 				}
 			});
+
+        broadcastButton.setOnClickListener(new View.OnClickListener() {
+				@Override
+				public void onClick(View v) {
+					startBroadcast();
+				}
+			});
+
+        skipExistingCheckBox.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+				@Override
+				public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+					SharedPreferences.Editor editor = getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE).edit();
+					editor.putBoolean(SKIP_EXISTING_KEY, isChecked);
+					editor.apply();
+				}
+			});
     }
 
     private void setupDisconnectReceiver() {
@@ -240,10 +268,15 @@ public class ShareHubActivity extends FragmentActivity implements WifiP2pManager
             public void onReceive(Context context, Intent intent) {
                 if (ACTION_DISCONNECT_WIFI_P2P.equals(intent.getAction())) {
                     disconnect();
+                } else if (FileTransferService.ACTION_BROADCAST_LISTENING.equals(intent.getAction()) && isBroadcasting) {
+                    // Only now can devices that join tell the broadcast from a plain receiver.
+                    createGroup();
                 }
             }
         };
-        LocalBroadcastManager.getInstance(this).registerReceiver(disconnectReceiver, new IntentFilter(ACTION_DISCONNECT_WIFI_P2P));
+        IntentFilter filter = new IntentFilter(ACTION_DISCONNECT_WIFI_P2P);
+        filter.addAction(FileTransferService.ACTION_BROADCAST_LISTENING);
+        LocalBroadcastManager.getInstance(this).registerReceiver(disconnectReceiver, filter);
     }
 
 
@@ -252,6 +285,10 @@ public class ShareHubActivity extends FragmentActivity implements WifiP2pManager
     }
 
     public void setTransferStatus(boolean status) {
+        if (!status && isTransferInProgress) {
+            // A broadcast ends with its transfer, not when the group is briefly empty while receivers join.
+            isBroadcasting = false;
+        }
         this.isTransferInProgress = status;
     }
 
@@ -286,17 +323,44 @@ public class ShareHubActivity extends FragmentActivity implements WifiP2pManager
         manager.createGroup(channel, new WifiP2pManager.ActionListener() {
 				@Override
 				public void onSuccess() {
-					statusTextView.setText("Hosting. Ready to receive files.");
+					statusTextView.setText(isBroadcasting ? "Hosting a broadcast. Devices can join now." : "Hosting. Ready to receive files.");
 					Toast.makeText(ShareHubActivity.this, "Device is now discoverable.", Toast.LENGTH_SHORT).show();
 				}
 
 				@Override
 				public void onFailure(int reason) {
 					Toast.makeText(ShareHubActivity.this, "Could not create group: " + reason, Toast.LENGTH_SHORT).show();
+					if (isBroadcasting) {
+						// No one can join, so don't leave the sender waiting for receivers.
+						Intent cancelIntent = new Intent(ShareHubActivity.this, FileTransferService.class);
+						cancelIntent.setAction(FileTransferService.ACTION_CANCEL_TRANSFER);
+						startService(cancelIntent);
+						isBroadcasting = false;
+					}
 				}
 			});
     }
 
+    // The group is only created once the service listens for receivers, see setupDisconnectReceiver.
+    private void startBroadcast() {
+        isBroadcasting = true;
+        Intent intent = new Intent(this, CategoryPickerActivity.class);
+        startActivityForResult(intent, BROADCAST_PICKER_REQUEST_CODE);
+    }
+
+    private void joinBroadcast(String host) {
+        isTransferInProgress = true;
+        statusTextView.setText("Joined a broadcast. Waiting for files...");
+        Intent serviceIntent = new Intent(this, FileTransferService.class);
+        serviceIntent.setAction(FileTransferService.ACTION_JOIN_BROADCAST);
+        serviceIntent.putExtra(FileTransferService.EXTRA_GROUP_OWNER_ADDRESS, host);
+        startService(serviceIntent);
+
+        Intent progressIntent = new Intent(this, TransferProgressActivity.class);
+        progressIntent.setAction(FileTransferService.ACTION_RECEIVE_FILES);
+        startActivity(progressIntent);
+    }
+
     @Override
     public void onPeersAvailable(WifiP2pDeviceList peerList) {
         List<WifiP2pDevice> refreshedPeers = new ArrayList<WifiP2pDevice>(peerList.getDeviceList());
@@ -334,16 +398,38 @@ public class ShareHubActivity extends FragmentActivity implements WifiP2pManager
 
     @Override
     public void onConnectionInfoAvailable(final WifiP2pInfo info) {
-        if (isTransferInProgress) {
+        if (isTransferInProgress || isBroadcasting) {
+            // A broadcasting group owner is the sender, so devices joining it don't start a receive.
             return;
         }
 
         this.connectionInfo = info;
 
         if (info.groupFormed && !info.isGroupOwner) {
-            statusTextView.setText("Connected. Select files to send.");
-            Intent intent = new Intent(this, CategoryPickerActivity.class);
-            startActivityForResult(intent, CATEGORY_PICKER_REQUEST_CODE);
+            // The group owner may be broadcasting, in which case this device joins as a receiver.
+            statusTextView.setText("Connected. Checking for a broadcast...");
+            final String host = info.groupOwnerAddress.getHostAddress();
+            new Thread(new Runnable() {
+					@Override
+					public void run() {
+						final boolean isBroadcast = FileTransferService.isBroadcasting(host);
+						runOnUiThread(new Runnable() {
+								@Override
+								public void run() {
+									if (isTransferInProgress) {
+										return;
+									}
+									if (isBroadcast) {
+										joinBroadcast(host);
+									} else {
+										statusTextView.setText("Connected. Select files to send.");
+										Intent intent = new Intent(ShareHubActivity.this, CategoryPickerActivity.class);
+										startActivityForResult(intent, CATEGORY_PICKER_REQUEST_CODE);
+									}
+								}
+							});
+					}
+				}).start();
         } else if (info.groupFormed) {
             isTransferInProgress = true;
             statusTextView.setText("Connected. Waiting for files...");
@@ -361,6 +447,24 @@ public class ShareHubActivity extends FragmentActivity implements WifiP2pManager
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
         super.onActivityResult(requestCode, resultCode, data);
+        if (requestCode == BROADCAST_PICKER_REQUEST_CODE) {
+            ArrayList<String> filePaths = resultCode == RESULT_OK ? data.getStringArrayListExtra("picked_files") : null;
+            if (filePaths == null || filePaths.isEmpty()) {
+                isBroadcasting = false;
+                return;
+            }
+            isTransferInProgress = true;
+            statusTextView.setText("Preparing the broadcast...");
+            Intent serviceIntent = new Intent(this, FileTransferService.class);
+            serviceIntent.setAction(FileTransferService.ACTION_BROADCAST_FILES);
+            serviceIntent.putStringArrayListExtra(FileTransferService.EXTRA_FILE_PATHS, filePaths);
+            startService(serviceIntent);
+
+            Intent progressIntent = new Intent(ShareHubActivity.this, TransferProgressActivity.class);
+            progressIntent.putStringArrayListExtra(FileTransferService.EXTRA_FILE_PATHS, filePaths);
+            startActivity(progressIntent);
+            return;
+        }
         if (requestCode == CATEGORY_PICKER_REQUEST_CODE && resultCode == RESULT_OK) {
             ArrayList<String> filePaths = data.getStringArrayListExtra("picked_files");
             if (filePaths != null && !filePaths.isEmpty()) {
@@ -370,6 +474,7 @@ public class ShareHubActivity extends FragmentActivity implements WifiP2pManager
                     serviceIntent.setAction(FileTransferService.ACTION_SEND_FILES);
                     serviceIntent.putStringArrayListExtra(FileTransferService.EXTRA_FILE_PATHS, filePaths);
                     serviceIntent.putExtra(FileTransferService.EXTRA_GROUP_OWNER_ADDRESS, this.connectionInfo.groupOwnerAddress.getHostAddress());
+                    serviceIntent.putExtra(FileTransferService.EXTRA_SKIP_EXISTING, skipExistingCheckBox.isChecked());
                     startService(serviceIntent);
 
                     Intent progressIntent = new Intent(ShareHubActivity.this, TransferProgressActivity.class);
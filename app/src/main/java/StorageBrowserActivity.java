@@ -1199,8 +1199,7 @@ public class StorageBrowserActivity extends Activity implements StorageBrowserAd
                     }
                     if (sourceFile.renameTo(destFile)) {
                         movedCount++;
-                        scanFile(sourceFile);
-                        scanFile(destFile);
+                        MediaStoreSync.getInstance(StorageBrowserActivity.this).notifyMoved(sourceFile, destFile);
                     } else {
                         Log.w(TAG, "Failed to move file to recycle bin: " + sourceFile.getAbsolutePath());
                     }
@@ -1218,12 +1217,5 @@ public class StorageBrowserActivity extends Activity implements StorageBrowserAd
             }
             refreshCurrentDirectory();
         }
-
-        private void scanFile(File file) {
-            Intent mediaScanIntent = new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE);
-            Uri contentUri = Uri.fromFile(file);
-            mediaScanIntent.setData(contentUri);
-            sendBroadcast(mediaScanIntent);
-        }
     }
 }
@@ -382,7 +382,15 @@ public class StorageMapActivity extends Activity {
 
         @Override
         protected List<JSONObject> doInBackground(File... files) {
-            scanDirectory(files[0]);
+            FileIndex index = FileIndex.getInstance(StorageMapActivity.this);
+            if (index.isReady() && index.covers(StorageMapActivity.this, files[0])) {
+                publishProgress("Reading file index...");
+                addFilesFromIndex(index, files[0]);
+            } else {
+                scanDirectory(files[0]);
+            }
+            // Keeps the index current for the next visit.
+            FileIndexer.refresh(StorageMapActivity.this);
 
             List<JSONObject> finalResults = new ArrayList<>();
             for (int i = 0; i < categoryTitles.size(); i++) {
@@ -406,6 +414,34 @@ public class StorageMapActivity extends Activity {
             return finalResults;
         }
 
+        private void addFilesFromIndex(FileIndex index, File root) {
+            // The same files scanDirectory finds: no hidden folders, no app data, nothing empty.
+            StringBuilder selection = new StringBuilder(FileIndex.COLUMN_IS_DIR + " = 0 AND " + FileIndex.COLUMN_HIDDEN + " = 0 AND "
+                + FileIndex.COLUMN_SIZE + " > 0");
+            List<String> selectionArgs = new ArrayList<>();
+            String rootPath = root.getAbsolutePath();
+            FileIndex.appendUnder(selection, selectionArgs, rootPath);
+            FileIndex.appendNotUnder(selection, selectionArgs, rootPath + "/Android/data");
+            FileIndex.appendNotUnder(selection, selectionArgs, rootPath + "/Android/obb");
+
+            for (FileIndex.Entry entry : index.query(selection.toString(), selectionArgs.toArray(new String[0]), null)) {
+                addFile(entry.name, entry.size, entry.path);
+            }
+        }
+
+        private void addFile(String name, long size, String path) {
+            try {
+                int category = getFileCategory(name);
+                JSONObject fileObject = new JSONObject();
+                fileObject.put("name", name);
+                fileObject.put("value", size);
+                fileObject.put("path", path);
+                childrenArrays.get(category).put(fileObject);
+            } catch (JSONException e) {
+                Log.e(TAG, "JSON Exception during file scan", e);
+            }
+        }
+
         private void scanDirectory(File directory) {
             if (directory == null || !directory.isDirectory() || directory.isHidden()) {
                 return;
@@ -425,16 +461,7 @@ public class StorageMapActivity extends Activity {
                     } else {
                         long fileSize = file.length();
                         if (fileSize > 0) {
-                            try {
-                                int category = getFileCategory(file.getName());
-                                JSONObject fileObject = new JSONObject();
-                                fileObject.put("name", file.getName());
-                                fileObject.put("value", fileSize);
-                                fileObject.put("path", file.getAbsolutePath());
-                                childrenArrays.get(category).put(fileObject);
-                            } catch (JSONException e) {
-                                Log.e(TAG, "JSON Exception during file scan", e);
-                            }
+                            addFile(file.getName(), fileSize, file.getAbsolutePath());
                         }
                     }
                 }
@@ -9,6 +9,8 @@ import android.os.Build;
 import android.os.storage.StorageManager;
 import android.os.storage.StorageVolume;
 import android.provider.DocumentsContract;
+import android.system.ErrnoException;
+import android.system.Os;
 import android.util.Log;
 import androidx.documentfile.provider.DocumentFile;
 import java.io.File;
@@ -116,7 +118,7 @@ public class StorageUtils {
             if (docFile != null && docFile.exists()) {
                 if (docFile.delete()) {
                     Log.d(TAG, "Successfully deleted via SAF: " + file.getAbsolutePath());
-                    context.sendBroadcast(new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE, Uri.fromFile(file)));
+                    MediaStoreSync.getInstance(context).notifyChanged(file);
                     return true;
                 } else {
                     Log.e(TAG, "SAF delete returned false for: " + file.getAbsolutePath());
@@ -141,6 +143,32 @@ public class StorageUtils {
         deleteFile(context, fileOrDirectory);
     }
 
+    /**
+     * Whether file and dir are on the same filesystem, so file can be renamed into dir instead of
+     * copied. Compares the device ids from stat(); if either can't be read, it falls back to
+     * whether both or neither are on the SD card.
+     */
+    public static boolean isSameVolume(Context context, File file, File dir) {
+        try {
+            return Os.stat(file.getAbsolutePath()).st_dev == Os.stat(dir.getAbsolutePath()).st_dev;
+        } catch (ErrnoException e) {
+            return isFileOnSdCard(context, file) == isFileOnSdCard(context, dir);
+        }
+    }
+
+    /**
+     * The medium that bounds a copy from source to dest, to size its buffer. Writes to the SD card
+     * go through the Storage Access Framework (see getOutputStream); reads from it are direct.
+     */
+    public static BufferPool.Medium getCopyMedium(Context context, File source, File dest) {
+        if (isFileOnSdCard(context, dest)) {
+            return BufferPool.Medium.SAF;
+        } else if (isFileOnSdCard(context, source)) {
+            return BufferPool.Medium.SD_CARD;
+        }
+        return BufferPool.Medium.INTERNAL;
+    }
+
     public static String getSdCardPath(Context context) {
         File[] storageVolumes = context.getExternalFilesDirs(null);
         if (storageVolumes.length > 1 && storageVolumes[1] != null) {
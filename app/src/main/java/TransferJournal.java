@@ -0,0 +1,162 @@
+package com.hfm.app;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.BitSet;
+import java.util.regex.Pattern;
+
+/**
+ * Remembers which units of a transfer (chunks of a file, or files of a batch) are done, so an
+ * interrupted Wi-Fi Direct transfer can pick up where it stopped instead of starting over.
+ *
+ * The journal is an append-only file: an int holding the unit count followed by one int per
+ * completed unit. A torn trailing record from a crash is simply ignored on the next open.
+ */
+public class TransferJournal {
+
+    // What idFor returns, optionally behind the prefix that tells packs and batches apart.
+    private static final Pattern ID_PATTERN = Pattern.compile("(pack_|send_|broadcast_)?[0-9a-f]{40}");
+
+    private final File file;
+    private final int unitCount;
+    private final BitSet done = new BitSet();
+    private RandomAccessFile log;
+
+    private TransferJournal(File file, int unitCount) {
+        this.file = file;
+        this.unitCount = unitCount;
+    }
+
+    /**
+     * Opens the journal for the given id, creating it (or starting it over if it was written
+     * for a different unit count) as needed.
+     *
+     * @throws IOException if the id is not one idFor made, e.g. a path a peer sent to escape dir.
+     */
+    public static TransferJournal open(File dir, String id, int unitCount) throws IOException {
+        if (!isValidId(id)) {
+            throw new IOException("Invalid transfer id: " + id);
+        }
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        TransferJournal journal = new TransferJournal(new File(dir, id + ".journal"), unitCount);
+        journal.load();
+        return journal;
+    }
+
+    /**
+     * Whether id has the form of an id made by idFor, with or without a prefix, and so is safe
+     * to use as a file name.
+     */
+    public static boolean isValidId(String id) {
+        return id != null && ID_PATTERN.matcher(id).matches();
+    }
+
+    /**
+     * Returns a stable, file-name-safe id for the given parts.
+     */
+    public static String idFor(String... parts) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            for (String part : parts) {
+                digest.update(part.getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+            }
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not available", e);
+        }
+    }
+
+    /**
+     * Deletes journals that have not been touched for maxAgeMs, e.g. from transfers that were abandoned.
+     */
+    public static void pruneOlderThan(File dir, long maxAgeMs) {
+        File[] journals = dir.listFiles();
+        if (journals == null) {
+            return;
+        }
+        long cutoff = System.currentTimeMillis() - maxAgeMs;
+        for (File journal : journals) {
+            if (journal.getName().endsWith(".journal") && journal.lastModified() < cutoff) {
+                journal.delete();
+            }
+        }
+    }
+
+    private void load() throws IOException {
+        log = new RandomAccessFile(file, "rw");
+        if (log.length() >= 4 && log.readInt() == unitCount) {
+            long records = (log.length() - 4) / 4;
+            for (long i = 0; i < records; i++) {
+                int index = log.readInt();
+                if (index >= 0 && index < unitCount) {
+                    done.set(index);
+                }
+            }
+            // Drop a partially written record so new ones stay aligned.
+            log.setLength(4 + records * 4);
+            log.seek(log.length());
+        } else {
+            reset();
+        }
+    }
+
+    public synchronized boolean isDone(int index) {
+        return done.get(index);
+    }
+
+    /**
+     * Records a unit as done.
+     *
+     * @return false if it had already been recorded.
+     */
+    public synchronized boolean markDone(int index) throws IOException {
+        if (done.get(index)) {
+            return false;
+        }
+        log.writeInt(index);
+        done.set(index);
+        return true;
+    }
+
+    public synchronized int doneCount() {
+        return done.cardinality();
+    }
+
+    public synchronized boolean isComplete() {
+        return done.cardinality() == unitCount;
+    }
+
+    public synchronized BitSet snapshot() {
+        return (BitSet) done.clone();
+    }
+
+    public synchronized void reset() throws IOException {
+        done.clear();
+        log.setLength(0);
+        log.seek(0);
+        log.writeInt(unitCount);
+    }
+
+    public synchronized void close() {
+        try {
+            log.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    public synchronized void delete() {
+        close();
+        file.delete();
+    }
+}
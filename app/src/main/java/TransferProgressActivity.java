@@ -38,8 +38,16 @@ public class TransferProgressActivity extends Activity {
 
     // --- Common Views ---
     private TextView transferStatusTitle;
+    private TextView streamStatsTextView;
     private Button pauseResumeButton;
     private Button cancelButton;
+    private Button speedLimitButton;
+
+    // Speed limits to step through, in bytes per second.
+    private static final long[] SPEED_LIMITS = {
+        RateLimiter.UNLIMITED, 20L * 1024 * 1024, 5L * 1024 * 1024, 1024 * 1024, 256 * 1024
+    };
+    private long speedLimit = RateLimiter.UNLIMITED;
 
     private BroadcastReceiver progressReceiver;
 
@@ -82,8 +90,10 @@ public class TransferProgressActivity extends Activity {
 
         // Common Views
         transferStatusTitle = findViewById(R.id.transfer_status_title);
+        streamStatsTextView = findViewById(R.id.stream_stats_text);
         pauseResumeButton = findViewById(R.id.button_pause_resume);
         cancelButton = findViewById(R.id.button_cancel);
+        speedLimitButton = findViewById(R.id.button_speed_limit);
     }
 
     private void setupViewsBasedOnRole() {
@@ -93,9 +103,19 @@ public class TransferProgressActivity extends Activity {
             queueRecyclerView.setVisibility(View.VISIBLE);
             transferStatusTitle.setText("Sending Files...");
 
-            queueAdapter = new TransferQueueAdapter(this, filePaths);
+            // Tapping a file that hasn't started moves it to the front of the queue.
+            queueAdapter = new TransferQueueAdapter(this, filePaths, new TransferQueueAdapter.OnItemClickListener() {
+					@Override
+					public void onItemClick(int fileIndex) {
+						Intent intent = new Intent(TransferProgressActivity.this, FileTransferService.class);
+						intent.setAction(FileTransferService.ACTION_PRIORITIZE_FILE);
+						intent.putExtra(FileTransferService.EXTRA_FILE_INDEX, fileIndex);
+						startService(intent);
+					}
+				});
             queueRecyclerView.setLayoutManager(new LinearLayoutManager(this));
             queueRecyclerView.setAdapter(queueAdapter);
+            speedLimitButton.setVisibility(View.VISIBLE);
         } else {
             // RECEIVER MODE: Show the single file progress
             singleFileProgressView.setVisibility(View.VISIBLE);
@@ -120,6 +140,23 @@ public class TransferProgressActivity extends Activity {
 				}
 			});
 
+        speedLimitButton.setOnClickListener(new View.OnClickListener() {
+				@Override
+				public void onClick(View v) {
+					int next = 0;
+					for (int i = 0; i < SPEED_LIMITS.length; i++) {
+						if (SPEED_LIMITS[i] == speedLimit) {
+							next = (i + 1) % SPEED_LIMITS.length;
+						}
+					}
+					Intent intent = new Intent(TransferProgressActivity.this, FileTransferService.class);
+					intent.setAction(FileTransferService.ACTION_SET_RATE_LIMIT);
+					intent.putExtra(FileTransferService.EXTRA_RATE_LIMIT, SPEED_LIMITS[next]);
+					startService(intent);
+					updateSpeedLimit(SPEED_LIMITS[next]);
+				}
+			});
+
         cancelButton.setOnClickListener(new View.OnClickListener() {
 				@Override
 				public void onClick(View v) {
@@ -167,6 +204,34 @@ public class TransferProgressActivity extends Activity {
     }
 
 
+    private void updateSpeedLimit(long bytesPerSecond) {
+        speedLimit = bytesPerSecond;
+        if (bytesPerSecond == RateLimiter.UNLIMITED) {
+            speedLimitButton.setText("Speed limit: Off");
+        } else {
+            speedLimitButton.setText("Speed limit: " + Formatter.formatShortFileSize(this, bytesPerSecond) + "/s");
+        }
+    }
+
+    // Shows the speed of each connection while a large file is split across several of them.
+    private void updateStreamStats(double[] streamSpeeds) {
+        if (streamSpeeds == null || streamSpeeds.length < 2) {
+            streamStatsTextView.setVisibility(View.GONE);
+            return;
+        }
+        StringBuilder stats = new StringBuilder();
+        stats.append(streamSpeeds.length).append(" streams: ");
+        for (int i = 0; i < streamSpeeds.length; i++) {
+            if (i > 0) {
+                stats.append(" | ");
+            }
+            stats.append(String.format(Locale.US, "%.1f", streamSpeeds[i]));
+        }
+        stats.append(" MB/s");
+        streamStatsTextView.setText(stats.toString());
+        streamStatsTextView.setVisibility(View.VISIBLE);
+    }
+
     private void setupBroadcastReceiver() {
         progressReceiver = new BroadcastReceiver() {
             @Override
@@ -181,11 +246,12 @@ public class TransferProgressActivity extends Activity {
                     long total = intent.getLongExtra(FileTransferService.EXTRA_TOTAL_BYTES, 0);
                     double speed = intent.getDoubleExtra(FileTransferService.EXTRA_TRANSFER_SPEED, 0.0);
                     String fileName = intent.getStringExtra(FileTransferService.EXTRA_FILE_NAME);
+                    updateStreamStats(intent.getDoubleArrayExtra(FileTransferService.EXTRA_STREAM_SPEEDS));
 
                     if (isSender) {
                         int fileIndex = intent.getIntExtra(FileTransferService.EXTRA_FILE_INDEX, -1);
                         if (fileIndex != -1) {
-                            queueAdapter.updateFileProgress(fileIndex, transferred, total);
+                            queueAdapter.updateFileProgress(fileIndex, transferred, total, speed);
                         }
                     } else {
                         // Receiver updates the single file view
@@ -198,15 +264,30 @@ public class TransferProgressActivity extends Activity {
                             progressBar.setProgress((int) ((transferred * 100) / total));
                         }
                     }
+                } else if (FileTransferService.ACTION_QUEUE_CHANGED.equals(action)) {
+                    if (isSender) {
+                        queueAdapter.setQueue(intent.getIntArrayExtra(FileTransferService.EXTRA_QUEUE_ORDER),
+                                intent.getIntArrayExtra(FileTransferService.EXTRA_QUEUE_LANES));
+                        updateSpeedLimit(intent.getLongExtra(FileTransferService.EXTRA_RATE_LIMIT, RateLimiter.UNLIMITED));
+                    }
                 } else if (FileTransferService.ACTION_TRANSFER_COMPLETE.equals(action)) {
                     isTransferComplete = true;
+                    updateStreamStats(null);
+                    speedLimitButton.setVisibility(View.GONE);
                     pauseResumeButton.setVisibility(View.GONE);
                     cancelButton.setText("Done");
                     transferStatusTitle.setText("Transfer Complete");
-                    Toast.makeText(context, "All files transferred.", Toast.LENGTH_SHORT).show();
+                    double averageSpeed = intent.getDoubleExtra(FileTransferService.EXTRA_AVERAGE_SPEED, 0.0);
+                    if (averageSpeed > 0) {
+                        Toast.makeText(context, String.format(Locale.US, "All files transferred at %.1f MB/s.", averageSpeed), Toast.LENGTH_SHORT).show();
+                    } else {
+                        Toast.makeText(context, "All files transferred.", Toast.LENGTH_SHORT).show();
+                    }
 
                 } else if (FileTransferService.ACTION_TRANSFER_ERROR.equals(action)) {
                     isTransferComplete = true;
+                    updateStreamStats(null);
+                    speedLimitButton.setVisibility(View.GONE);
                     pauseResumeButton.setVisibility(View.GONE);
                     cancelButton.setText("Done");
                     transferStatusTitle.setText("Transfer Failed");
@@ -224,6 +305,7 @@ public class TransferProgressActivity extends Activity {
 
         IntentFilter filter = new IntentFilter();
         filter.addAction(FileTransferService.ACTION_UPDATE_PROGRESS);
+        filter.addAction(FileTransferService.ACTION_QUEUE_CHANGED);
         filter.addAction(FileTransferService.ACTION_TRANSFER_COMPLETE);
         filter.addAction(FileTransferService.ACTION_TRANSFER_ERROR);
         LocalBroadcastManager.getInstance(this).registerReceiver(progressReceiver, filter);
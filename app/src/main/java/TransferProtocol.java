@@ -0,0 +1,506 @@
+package com.hfm.app;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Binary framing of the control connection of a Wi-Fi Direct transfer.
+ *
+ * A connection starts with both sides sending a hello, [int MAGIC][short version][int capabilities],
+ * the sender first. Each side then uses the lower of the two versions and only the capabilities
+ * both have, so a newer peer can keep talking to an older one.
+ *
+ * Every header after that is a frame, [int length][byte frameType][fields], where each field is
+ * [byte tag][byte valueType][value]. The value type says how long the value is, so a reader skips
+ * fields it doesn't know and new fields can be added without a version bump.
+ *
+ * Frames are assembled and parsed in direct buffers owned by the connection, and read into a
+ * reused Header, so announcing a file allocates little beyond its name.
+ */
+public class TransferProtocol {
+
+    public static final int MAGIC = 0x48464D54; // "HFMT"
+    public static final int VERSION = 1;
+    private static final int MIN_VERSION = 1;
+
+    // --- Capabilities ---
+    public static final int CAP_RESUME = 1;
+    public static final int CAP_PARALLEL = 1 << 1;
+    public static final int CAP_PACK = 1 << 2;
+    public static final int CAP_LZ4_HC = 1 << 3;
+    public static final int CAP_DEDUP = 1 << 4;
+    // RAW chunks carry the CRC32 of their bytes; older senders send 0 there.
+    public static final int CAP_RAW_CHECKSUM = 1 << 5;
+    private static final int LOCAL_CAPABILITIES = CAP_RESUME | CAP_PARALLEL | CAP_PACK | CAP_LZ4_HC | CAP_DEDUP | CAP_RAW_CHECKSUM;
+
+    // --- Frame types ---
+    public static final byte FRAME_FILE = 1;
+    public static final byte FRAME_PACK = 2;
+    public static final byte FRAME_GOODBYE = 3;
+    public static final byte FRAME_OFFER = 4;
+
+    // --- Field tags ---
+    private static final byte FIELD_PATH = 1;
+    private static final byte FIELD_SIZE = 2;
+    private static final byte FIELD_MTIME = 3;
+    private static final byte FIELD_PERMISSIONS = 4;
+    private static final byte FIELD_CODEC = 5;
+    private static final byte FIELD_CHUNK_SIZE = 6;
+    private static final byte FIELD_CHUNK_COUNT = 7;
+    private static final byte FIELD_TRANSFER_ID = 8;
+    private static final byte FIELD_RESUME = 9;
+    private static final byte FIELD_STREAM_TOKEN = 10;
+    private static final byte FIELD_FILE_COUNT = 11;
+
+    // --- Value types ---
+    private static final byte TYPE_BYTE = 1;
+    private static final byte TYPE_INT = 2;
+    private static final byte TYPE_LONG = 3;
+    private static final byte TYPE_STRING = 4;
+
+    // --- Permission bits ---
+    public static final int PERMISSION_READ = 4;
+    public static final int PERMISSION_WRITE = 2;
+    public static final int PERMISSION_EXECUTE = 1;
+
+    public static final int HELLO_SIZE = 10;
+    public static final int MAX_FRAME_SIZE = 16 * 1024;
+    public static final int MAX_OFFER_FILES = 1024;
+    private static final int MAX_PATH_BYTES = 4096;
+
+    /**
+     * The fields of one frame. Fields a frame doesn't carry keep their defaults.
+     */
+    public static class Header {
+        public byte frameType;
+        public String path;
+        public long size;
+        public long lastModified;
+        public int permissions = PERMISSION_READ | PERMISSION_WRITE;
+        public CompressionPolicy.Codec codec = CompressionPolicy.Codec.LZ4;
+        public int chunkSize = ChunkedTransfer.CHUNK_SIZE;
+        public int chunkCount;
+        public String transferId;
+        public boolean resume;
+        // Set only when the file comes over parallel data connections.
+        public boolean parallel;
+        public long streamToken;
+        public int fileCount;
+
+        public void clear() {
+            frameType = 0;
+            path = null;
+            size = 0;
+            lastModified = 0;
+            permissions = PERMISSION_READ | PERMISSION_WRITE;
+            codec = CompressionPolicy.Codec.LZ4;
+            chunkSize = ChunkedTransfer.CHUNK_SIZE;
+            chunkCount = 0;
+            transferId = null;
+            resume = false;
+            parallel = false;
+            streamToken = 0;
+            fileCount = 0;
+        }
+    }
+
+    /**
+     * A file the sender offers in a deduplication round, identified by where it would go and what it holds.
+     */
+    public static class OfferEntry {
+        public final String path;
+        public final Fingerprint fingerprint;
+
+        public OfferEntry(String path, Fingerprint fingerprint) {
+            this.path = path;
+            this.fingerprint = fingerprint;
+        }
+    }
+
+    private final ByteChannel channel;
+    private final ByteBuffer outBuffer = ByteBuffer.allocateDirect(MAX_FRAME_SIZE);
+    private final ByteBuffer inBuffer = ByteBuffer.allocateDirect(MAX_FRAME_SIZE);
+    private int version;
+    private int capabilities;
+
+    public TransferProtocol(ByteChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Creates the protocol for a channel that reaches several receivers at once, each of which
+     * has already done its own handshake. Only what all of them support is used.
+     *
+     * @param excludedCapabilities Capabilities that need a conversation with a single receiver and so can't be used.
+     */
+    public static TransferProtocol forGroup(ByteChannel channel, List<TransferProtocol> members, int excludedCapabilities) {
+        TransferProtocol group = new TransferProtocol(channel);
+        group.version = VERSION;
+        group.capabilities = LOCAL_CAPABILITIES & ~excludedCapabilities;
+        for (TransferProtocol member : members) {
+            group.version = Math.min(group.version, member.version);
+            group.capabilities &= member.capabilities;
+        }
+        return group;
+    }
+
+    public static int permissionsOf(File file) {
+        return (file.canRead() ? PERMISSION_READ : 0)
+                | (file.canWrite() ? PERMISSION_WRITE : 0)
+                | (file.canExecute() ? PERMISSION_EXECUTE : 0);
+    }
+
+    /**
+     * Applies what the app can control of the sender's permissions to a received file.
+     */
+    public static void applyPermissions(File file, int permissions) {
+        if ((permissions & PERMISSION_EXECUTE) != 0) {
+            file.setExecutable(true);
+        }
+        if ((permissions & PERMISSION_WRITE) == 0) {
+            file.setReadOnly();
+        }
+    }
+
+    public void handshakeAsSender() throws IOException {
+        writeHello();
+        readHello();
+    }
+
+    public void handshakeAsReceiver() throws IOException {
+        readHello();
+        writeHello();
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns whether both peers have the given capability.
+     */
+    public boolean supports(int capability) {
+        return (capabilities & capability) != 0;
+    }
+
+    public void writeHello() throws IOException {
+        outBuffer.clear();
+        outBuffer.putInt(MAGIC).putShort((short) VERSION).putInt(LOCAL_CAPABILITIES);
+        outBuffer.flip();
+        ChunkedTransfer.writeFully(channel, outBuffer);
+    }
+
+    private void readHello() throws IOException {
+        inBuffer.clear();
+        inBuffer.limit(HELLO_SIZE);
+        ChunkedTransfer.readFully(channel, inBuffer);
+        inBuffer.flip();
+        acceptHello(inBuffer);
+    }
+
+    /**
+     * Takes the version and capabilities to use from the peer's hello, for callers that read it themselves.
+     */
+    public void acceptHello(ByteBuffer hello) throws IOException {
+        if (hello.getInt() != MAGIC) {
+            throw new IOException("Peer does not speak the transfer protocol");
+        }
+        int peerVersion = hello.getShort() & 0xFFFF;
+        if (peerVersion < MIN_VERSION) {
+            throw new IOException("Peer protocol version " + peerVersion + " is no longer supported");
+        }
+        version = Math.min(VERSION, peerVersion);
+        capabilities = LOCAL_CAPABILITIES & hello.getInt();
+    }
+
+    public void writeFile(Header header) throws IOException {
+        beginFrame(FRAME_FILE);
+        putString(FIELD_PATH, header.path);
+        putLong(FIELD_SIZE, header.size);
+        putLong(FIELD_MTIME, header.lastModified);
+        putByte(FIELD_PERMISSIONS, header.permissions);
+        putByte(FIELD_CODEC, header.codec.id);
+        putInt(FIELD_CHUNK_SIZE, header.chunkSize);
+        putInt(FIELD_CHUNK_COUNT, header.chunkCount);
+        putString(FIELD_TRANSFER_ID, header.transferId);
+        putByte(FIELD_RESUME, header.resume ? 1 : 0);
+        if (header.parallel) {
+            putLong(FIELD_STREAM_TOKEN, header.streamToken);
+        }
+        endFrame();
+    }
+
+    public void writePack(Header header) throws IOException {
+        beginFrame(FRAME_PACK);
+        putInt(FIELD_FILE_COUNT, header.fileCount);
+        putByte(FIELD_CODEC, header.codec.id);
+        putInt(FIELD_CHUNK_SIZE, header.chunkSize);
+        putString(FIELD_TRANSFER_ID, header.transferId);
+        putByte(FIELD_RESUME, header.resume ? 1 : 0);
+        endFrame();
+    }
+
+    /**
+     * Offers files before sending them: an OFFER frame carrying the count, then
+     * [int byteLength] and per file [short pathLength][UTF-8 path][long size][long lastModified][hash].
+     * The receiver answers with a chunk-set style BitSet of the files it already has.
+     */
+    public void writeOffer(List<OfferEntry> entries) throws IOException {
+        beginFrame(FRAME_OFFER);
+        putInt(FIELD_FILE_COUNT, entries.size());
+        endFrame();
+
+        List<byte[]> paths = new ArrayList<>(entries.size());
+        int length = 0;
+        for (OfferEntry entry : entries) {
+            byte[] path = entry.path.getBytes(StandardCharsets.UTF_8);
+            if (path.length > MAX_PATH_BYTES) {
+                throw new IOException("Path too long to send: " + entry.path);
+            }
+            paths.add(path);
+            length += 2 + path.length + 16 + Fingerprint.HASH_SIZE;
+        }
+        ByteBuffer body = ByteBuffer.allocate(4 + length);
+        body.putInt(length);
+        for (int i = 0; i < entries.size(); i++) {
+            Fingerprint fingerprint = entries.get(i).fingerprint;
+            body.putShort((short) paths.get(i).length).put(paths.get(i));
+            body.putLong(fingerprint.size).putLong(fingerprint.lastModified).put(fingerprint.hash);
+        }
+        body.flip();
+        ChunkedTransfer.writeFully(channel, body);
+    }
+
+    /**
+     * Reads the file list that follows an OFFER frame.
+     */
+    public List<OfferEntry> readOffer(Header header) throws IOException {
+        inBuffer.clear();
+        inBuffer.limit(4);
+        ChunkedTransfer.readFully(channel, inBuffer);
+        inBuffer.flip();
+        int length = inBuffer.getInt();
+        checkOfferLength(header.fileCount, length);
+
+        ByteBuffer body = ByteBuffer.allocate(length);
+        ChunkedTransfer.readFully(channel, body);
+        body.flip();
+        return parseOffer(body, header.fileCount);
+    }
+
+    /**
+     * Checks the byte length announced for an offer of count files before it is read.
+     */
+    public static void checkOfferLength(int count, int length) throws IOException {
+        if (count > MAX_OFFER_FILES || length < 0 || length > count * (2 + MAX_PATH_BYTES + 16 + Fingerprint.HASH_SIZE)) {
+            throw new IOException("Invalid offer received: " + count + " files in " + length + " bytes");
+        }
+    }
+
+    public static List<OfferEntry> parseOffer(ByteBuffer body, int count) throws IOException {
+        List<OfferEntry> entries = new ArrayList<>(count);
+        try {
+            for (int i = 0; i < count; i++) {
+                int pathLength = body.getShort() & 0xFFFF;
+                if (pathLength > MAX_PATH_BYTES) {
+                    throw new IOException("Invalid path length in offer: " + pathLength);
+                }
+                byte[] path = new byte[pathLength];
+                body.get(path);
+                long size = body.getLong();
+                long lastModified = body.getLong();
+                byte[] hash = new byte[Fingerprint.HASH_SIZE];
+                body.get(hash);
+                entries.add(new OfferEntry(new String(path, StandardCharsets.UTF_8), new Fingerprint(size, lastModified, hash)));
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated offer received", e);
+        }
+        return entries;
+    }
+
+    public void writeGoodbye() throws IOException {
+        beginFrame(FRAME_GOODBYE);
+        endFrame();
+    }
+
+    /**
+     * Reads the next frame into header, which is cleared first.
+     *
+     * @throws IOException if the frame is malformed or of an unknown type.
+     */
+    public Header readFrame(Header header) throws IOException {
+        inBuffer.clear();
+        inBuffer.limit(4);
+        ChunkedTransfer.readFully(channel, inBuffer);
+        inBuffer.flip();
+        int length = checkFrameLength(inBuffer.getInt());
+        inBuffer.clear();
+        inBuffer.limit(length);
+        ChunkedTransfer.readFully(channel, inBuffer);
+        inBuffer.flip();
+        return parseFrame(inBuffer, header);
+    }
+
+    /**
+     * Checks the length that precedes a frame, for callers that read frames themselves.
+     *
+     * @return The length.
+     */
+    public static int checkFrameLength(int length) throws IOException {
+        if (length < 1 || length > MAX_FRAME_SIZE) {
+            throw new IOException("Invalid frame length received: " + length);
+        }
+        return length;
+    }
+
+    /**
+     * Parses a frame, without its length, into header, which is cleared first.
+     */
+    public static Header parseFrame(ByteBuffer frame, Header header) throws IOException {
+        header.clear();
+        try {
+            header.frameType = frame.get();
+            if (header.frameType < FRAME_FILE || header.frameType > FRAME_OFFER) {
+                throw new IOException("Unknown frame type received: " + header.frameType);
+            }
+            while (frame.hasRemaining()) {
+                readField(frame, header);
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated frame received", e);
+        }
+        return header;
+    }
+
+    private static void readField(ByteBuffer frame, Header header) throws IOException {
+        byte tag = frame.get();
+        byte type = frame.get();
+        long number = 0;
+        String string = null;
+        switch (type) {
+            case TYPE_BYTE:
+                number = frame.get() & 0xFF;
+                break;
+            case TYPE_INT:
+                number = frame.getInt();
+                break;
+            case TYPE_LONG:
+                number = frame.getLong();
+                break;
+            case TYPE_STRING:
+                int length = frame.getShort() & 0xFFFF;
+                if (length > frame.remaining()) {
+                    throw new IOException("Truncated frame received");
+                }
+                byte[] bytes = new byte[length];
+                frame.get(bytes);
+                string = new String(bytes, StandardCharsets.UTF_8);
+                break;
+            default:
+                // Without its type the field's length is unknown, so the rest of the frame can't be parsed.
+                throw new IOException("Unknown field type " + type + " in frame");
+        }
+
+        switch (tag) {
+            case FIELD_PATH:
+                header.path = requireString(tag, string);
+                break;
+            case FIELD_SIZE:
+                header.size = requireNonNegative(tag, number);
+                break;
+            case FIELD_MTIME:
+                header.lastModified = number;
+                break;
+            case FIELD_PERMISSIONS:
+                header.permissions = (int) number;
+                break;
+            case FIELD_CODEC:
+                header.codec = CompressionPolicy.Codec.fromId((int) number);
+                break;
+            case FIELD_CHUNK_SIZE:
+                header.chunkSize = (int) number;
+                break;
+            case FIELD_CHUNK_COUNT:
+                header.chunkCount = (int) requireNonNegative(tag, number);
+                break;
+            case FIELD_TRANSFER_ID:
+                header.transferId = requireString(tag, string);
+                // The receiver names its journal after the id, so it must not be able to name a path.
+                if (!TransferJournal.isValidId(header.transferId)) {
+                    throw new IOException("Invalid transfer id received");
+                }
+                break;
+            case FIELD_RESUME:
+                header.resume = number != 0;
+                break;
+            case FIELD_STREAM_TOKEN:
+                header.parallel = true;
+                header.streamToken = number;
+                break;
+            case FIELD_FILE_COUNT:
+                header.fileCount = (int) requireNonNegative(tag, number);
+                break;
+            default:
+                // A field from a newer peer; its value has been skipped above.
+                break;
+        }
+    }
+
+    private static String requireString(byte tag, String value) throws IOException {
+        if (value == null) {
+            throw new IOException("Field " + tag + " must be a string");
+        }
+        return value;
+    }
+
+    private static long requireNonNegative(byte tag, long value) throws IOException {
+        if (value < 0) {
+            throw new IOException("Field " + tag + " must not be negative: " + value);
+        }
+        return value;
+    }
+
+    private void beginFrame(byte frameType) {
+        outBuffer.clear();
+        outBuffer.position(4);
+        outBuffer.put(frameType);
+    }
+
+    private void endFrame() throws IOException {
+        outBuffer.putInt(0, outBuffer.position() - 4);
+        outBuffer.flip();
+        ChunkedTransfer.writeFully(channel, outBuffer);
+    }
+
+    private void putByte(byte tag, int value) {
+        outBuffer.put(tag).put(TYPE_BYTE).put((byte) value);
+    }
+
+    private void putInt(byte tag, int value) {
+        outBuffer.put(tag).put(TYPE_INT).putInt(value);
+    }
+
+    private void putLong(byte tag, long value) {
+        outBuffer.put(tag).put(TYPE_LONG).putLong(value);
+    }
+
+    private void putString(byte tag, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xFFFF) {
+            throw new IOException("Field " + tag + " is too long to send");
+        }
+        try {
+            outBuffer.put(tag).put(TYPE_STRING).putShort((short) bytes.length).put(bytes);
+        } catch (BufferOverflowException e) {
+            throw new IOException("Frame too large to send", e);
+        }
+    }
+}
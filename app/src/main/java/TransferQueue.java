@@ -0,0 +1,111 @@
+package com.hfm.app;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Decides the order in which the picked files and folders of a batch go out.
+ *
+ * Every picked item is put in a lane: LANE_PRIORITY for items the user moved to the front,
+ * LANE_SMALL for single files up to SMALL_FILE_LIMIT, and LANE_BULK for everything else, i.e.
+ * large files and folders. Lanes are served in that order and items keep their picked order
+ * within a lane, so a few quick files are not stuck behind a backup of the camera folder. An
+ * item that hasn't started yet can be moved to the priority lane while the batch is running.
+ * When the connection drops, the items that started but were never confirmed go back to the
+ * front of their lanes, so the next session sends them again in the same order.
+ */
+public class TransferQueue implements FileTreeWalker.RootOrder {
+
+    public static final int LANE_PRIORITY = 0;
+    public static final int LANE_SMALL = 1;
+    public static final int LANE_BULK = 2;
+    public static final long SMALL_FILE_LIMIT = 16L * 1024 * 1024;
+
+    private final int[] lanes;
+    // Items already handed to the walker, in the order they were taken.
+    private final List<Integer> started = new ArrayList<>();
+    private final List<List<Integer>> waiting = new ArrayList<>();
+
+    public TransferQueue(List<String> paths) {
+        lanes = new int[paths.size()];
+        for (int lane = LANE_PRIORITY; lane <= LANE_BULK; lane++) {
+            waiting.add(new ArrayList<Integer>());
+        }
+        for (int i = 0; i < paths.size(); i++) {
+            File file = new File(paths.get(i));
+            lanes[i] = file.isFile() && file.length() <= SMALL_FILE_LIMIT ? LANE_SMALL : LANE_BULK;
+            waiting.get(lanes[i]).add(i);
+        }
+    }
+
+    @Override
+    public synchronized int nextRoot() {
+        for (List<Integer> lane : waiting) {
+            if (!lane.isEmpty()) {
+                int index = lane.remove(0);
+                started.add(index);
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public synchronized void restart(BitSet done) {
+        List<Integer> confirmed = new ArrayList<>();
+        // Every started item was taken from the front of its lane, so putting the unconfirmed
+        // ones back in reverse keeps each lane in the order it was served in.
+        for (int i = started.size() - 1; i >= 0; i--) {
+            int index = started.get(i);
+            if (done.get(index)) {
+                confirmed.add(0, index);
+            } else {
+                waiting.get(lanes[index]).add(0, index);
+            }
+        }
+        started.clear();
+        started.addAll(confirmed);
+    }
+
+    /**
+     * Moves a picked item that hasn't started yet to the end of the priority lane.
+     *
+     * @return false if the item already started, so the order did not change.
+     */
+    public synchronized boolean prioritize(int index) {
+        if (index < 0 || index >= lanes.length || lanes[index] == LANE_PRIORITY
+                || !waiting.get(lanes[index]).remove(Integer.valueOf(index))) {
+            return false;
+        }
+        lanes[index] = LANE_PRIORITY;
+        waiting.get(LANE_PRIORITY).add(index);
+        return true;
+    }
+
+    /**
+     * Returns the indices of all picked items in the order they go out: those already started,
+     * then the waiting ones lane by lane.
+     */
+    public synchronized int[] order() {
+        int[] order = new int[lanes.length];
+        int next = 0;
+        for (int index : started) {
+            order[next++] = index;
+        }
+        for (List<Integer> lane : waiting) {
+            for (int index : lane) {
+                order[next++] = index;
+            }
+        }
+        return order;
+    }
+
+    /**
+     * Returns the lane of each picked item, by index.
+     */
+    public synchronized int[] lanes() {
+        return lanes.clone();
+    }
+}
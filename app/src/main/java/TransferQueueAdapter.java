@@ -19,6 +19,13 @@ public class TransferQueueAdapter extends RecyclerView.Adapter<TransferQueueAdap
 
     private final Context context;
     private final List<QueueItem> queueItems;
+    // Positions of the rows: indices into queueItems, in the order the files go out.
+    private final List<Integer> order;
+    private final OnItemClickListener listener;
+
+    public interface OnItemClickListener {
+        void onItemClick(int fileIndex);
+    }
 
     // Data class to hold state for each item in the queue
     public static class QueueItem {
@@ -27,6 +34,8 @@ public class TransferQueueAdapter extends RecyclerView.Adapter<TransferQueueAdap
         long bytesTransferred;
         long totalBytes;
         int progress;
+        int lane = TransferQueue.LANE_BULK;
+        double speed;
 
         QueueItem(String filePath) {
             this.fileName = new File(filePath).getName();
@@ -37,10 +46,13 @@ public class TransferQueueAdapter extends RecyclerView.Adapter<TransferQueueAdap
         }
     }
 
-    public TransferQueueAdapter(Context context, ArrayList<String> filePaths) {
+    public TransferQueueAdapter(Context context, ArrayList<String> filePaths, OnItemClickListener listener) {
         this.context = context;
+        this.listener = listener;
         this.queueItems = new ArrayList<>();
+        this.order = new ArrayList<>();
         for (String path : filePaths) {
+            this.order.add(this.queueItems.size());
             this.queueItems.add(new QueueItem(path));
         }
     }
@@ -54,19 +66,37 @@ public class TransferQueueAdapter extends RecyclerView.Adapter<TransferQueueAdap
 
     @Override
     public void onBindViewHolder(@NonNull ViewHolder holder, int position) {
-        QueueItem item = queueItems.get(position);
+        final int fileIndex = order.get(position);
+        QueueItem item = queueItems.get(fileIndex);
         holder.fileNameTextView.setText(item.fileName);
-        holder.statusTextView.setText(item.status);
+        if ("Pending".equals(item.status) && item.lane == TransferQueue.LANE_PRIORITY) {
+            holder.statusTextView.setText("Pending (priority)");
+        } else {
+            holder.statusTextView.setText(item.status);
+        }
         holder.fileProgressBar.setProgress(item.progress);
 
         if (item.totalBytes > 0) {
             String transferredStr = Formatter.formatFileSize(context, item.bytesTransferred);
             String totalStr = Formatter.formatFileSize(context, item.totalBytes);
-            holder.progressDetailsTextView.setText(String.format(Locale.US, "%s / %s", transferredStr, totalStr));
+            String details = String.format(Locale.US, "%s / %s", transferredStr, totalStr);
+            if (item.speed > 0 && item.bytesTransferred < item.totalBytes) {
+                details += String.format(Locale.US, " - %.1f MB/s", item.speed);
+            }
+            holder.progressDetailsTextView.setText(details);
             holder.progressDetailsTextView.setVisibility(View.VISIBLE);
         } else {
             holder.progressDetailsTextView.setVisibility(View.GONE);
         }
+
+        holder.itemView.setOnClickListener(new View.OnClickListener() {
+				@Override
+				public void onClick(View v) {
+					if (listener != null) {
+						listener.onItemClick(fileIndex);
+					}
+				}
+			});
     }
 
     @Override
@@ -74,11 +104,12 @@ public class TransferQueueAdapter extends RecyclerView.Adapter<TransferQueueAdap
         return queueItems.size();
     }
 
-    public void updateFileProgress(int fileIndex, long transferred, long total) {
+    public void updateFileProgress(int fileIndex, long transferred, long total, double speed) {
         if (fileIndex >= 0 && fileIndex < queueItems.size()) {
             QueueItem item = queueItems.get(fileIndex);
             item.bytesTransferred = transferred;
             item.totalBytes = total;
+            item.speed = speed;
             item.status = "Sending...";
             if (total > 0) {
                 item.progress = (int) ((transferred * 100) / total);
@@ -86,7 +117,7 @@ public class TransferQueueAdapter extends RecyclerView.Adapter<TransferQueueAdap
             if (transferred == total && total > 0) {
                 item.status = "Complete";
             }
-            notifyItemChanged(fileIndex);
+            notifyItemChanged(order.indexOf(fileIndex));
         }
     }
 
@@ -94,8 +125,26 @@ public class TransferQueueAdapter extends RecyclerView.Adapter<TransferQueueAdap
         if (fileIndex >= 0 && fileIndex < queueItems.size()) {
             QueueItem item = queueItems.get(fileIndex);
             item.status = status;
-            notifyItemChanged(fileIndex);
+            notifyItemChanged(order.indexOf(fileIndex));
+        }
+    }
+
+    /**
+     * Shows the files in the order they go out, with the lane each one is in.
+     *
+     * @param newOrder File indices in sending order.
+     * @param lanes    Lane of each file, by file index.
+     */
+    public void setQueue(int[] newOrder, int[] lanes) {
+        if (newOrder == null || lanes == null || newOrder.length != queueItems.size() || lanes.length != queueItems.size()) {
+            return;
+        }
+        order.clear();
+        for (int i = 0; i < newOrder.length; i++) {
+            order.add(newOrder[i]);
+            queueItems.get(i).lane = lanes[i];
         }
+        notifyDataSetChanged();
     }
 
     public static class ViewHolder extends RecyclerView.ViewHolder {
@@ -0,0 +1,66 @@
+package com.hfm.app;
+
+import java.util.Locale;
+
+/**
+ * Totals for one batch: how many files and bytes went out, how long it took, and how long the
+ * receiver waited for the first byte of file data, e.g. while folders were scanned and offers
+ * answered. Bytes are file bytes, before compression, so the throughput is what the user sees.
+ */
+public class TransferStats {
+
+    private long startNanos = -1;
+    private long firstByteNanos = -1;
+    private long endNanos = -1;
+    private int files;
+    private long bytes;
+
+    // Counts from the first call; later sessions of the same batch add to it.
+    synchronized void start() {
+        if (startNanos < 0) {
+            startNanos = System.nanoTime();
+        }
+    }
+
+    synchronized void markFirstByte() {
+        if (firstByteNanos < 0) {
+            firstByteNanos = System.nanoTime();
+        }
+    }
+
+    synchronized void add(int files, long bytes) {
+        this.files += files;
+        this.bytes += bytes;
+        endNanos = System.nanoTime();
+    }
+
+    public synchronized int getFiles() {
+        return files;
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized long getElapsedMs() {
+        return startNanos < 0 || endNanos < 0 ? 0 : (endNanos - startNanos) / 1000000;
+    }
+
+    /**
+     * Milliseconds from the start of the batch to the first byte of file data, or -1 if none was sent.
+     */
+    public synchronized long getFirstByteMs() {
+        return firstByteNanos < 0 ? -1 : (firstByteNanos - startNanos) / 1000000;
+    }
+
+    public synchronized double getMbPerSecond() {
+        long elapsedMs = getElapsedMs();
+        return elapsedMs == 0 ? 0 : bytes / (1024.0 * 1024) / (elapsedMs / 1000.0);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "%d files, %.1f MB in %.1f s (%.1f MB/s), first byte after %d ms",
+                files, bytes / (1024.0 * 1024), getElapsedMs() / 1000.0, getMbPerSecond(), getFirstByteMs());
+    }
+}
@@ -0,0 +1,389 @@
+package com.hfm.app;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * A batch sent over loopback to a ReceiveServer, including a connection that drops mid-batch.
+ */
+public class BatchSenderTest {
+
+    private static final int FILE_SIZE = 200 * 1024;
+
+    @Test
+    public void droppedSessionResumesWithEveryUnconfirmedItem() throws Exception {
+        File dir = Files.createTempDirectory("batch").toFile();
+        try {
+            File sendDir = new File(dir, "send");
+            File folder = new File(sendDir, "folder");
+            folder.mkdirs();
+            List<String> paths = new ArrayList<>();
+            Random random = new Random(13);
+            for (int i = 0; i < 6; i++) {
+                File file = new File(sendDir, "file" + i);
+                writeRandom(file, FILE_SIZE, random);
+                paths.add(file.getPath());
+            }
+            writeRandom(new File(folder, "inner"), FILE_SIZE, random);
+            paths.add(1, folder.getPath());
+
+            Receiver receiver = new Receiver(dir);
+            TransferJournal batchJournal = TransferJournal.open(new File(dir, "send_journal"), TransferJournal.idFor("batch"), paths.size());
+            BatchSender sender = new BatchSender(paths, batchJournal, new TransferQueue(paths), null, null, new QuietSendListener());
+            try {
+                // Drops once part of the first files is out, so items were handed out but not confirmed.
+                try {
+                    sendSession(sender, receiver.address, 3 * FILE_SIZE / 2, -1);
+                    fail("The connection should have dropped");
+                } catch (IOException expected) {
+                }
+                sender.setResuming(true);
+                sendSession(sender, receiver.address, Long.MAX_VALUE, -1);
+            } finally {
+                batchJournal.close();
+            }
+            receiver.await();
+            assertReceived(paths, sendDir, receiver.dir);
+        } finally {
+            deleteRecursively(dir);
+        }
+    }
+
+    @Test
+    public void corruptedRawChunkIsSentAgain() throws Exception {
+        File dir = Files.createTempDirectory("batch").toFile();
+        try {
+            File sendDir = new File(dir, "send");
+            sendDir.mkdirs();
+            File file = new File(sendDir, "video.mp4");
+            writeRandom(file, 3 * ChunkedTransfer.CHUNK_SIZE + 100, new Random(14));
+            List<String> paths = Arrays.asList(file.getPath());
+
+            Receiver receiver = new Receiver(dir);
+            TransferJournal batchJournal = TransferJournal.open(new File(dir, "send_journal"), TransferJournal.idFor("raw"), paths.size());
+            BatchSender sender = new BatchSender(paths, batchJournal, null, null, null, new QuietSendListener());
+            sender.setForcedCodec(CompressionPolicy.Codec.RAW);
+            try {
+                // One flipped byte in the middle of the second chunk's bytes.
+                try {
+                    sendSession(sender, receiver.address, Long.MAX_VALUE, ChunkedTransfer.CHUNK_SIZE + ChunkedTransfer.CHUNK_SIZE / 2);
+                    fail("The corrupted chunk should have ended the session");
+                } catch (IOException expected) {
+                }
+                sender.setResuming(true);
+                sendSession(sender, receiver.address, Long.MAX_VALUE, -1);
+            } finally {
+                batchJournal.close();
+            }
+            receiver.await();
+            assertReceived(paths, sendDir, receiver.dir);
+        } finally {
+            deleteRecursively(dir);
+        }
+    }
+
+    @Test
+    public void smallFileWithALongPathIsSentOnItsOwn() throws Exception {
+        File dir = Files.createTempDirectory("batch").toFile();
+        try {
+            File sendDir = new File(dir, "send");
+            // Too long for a pack index, short enough for a single-file frame.
+            File deep = new File(sendDir, "folder");
+            for (int i = 0; i < 6; i++) {
+                deep = new File(deep, String.format("%0200d", i));
+            }
+            deep.mkdirs();
+            Random random = new Random(15);
+            writeRandom(new File(deep, "long"), 1000, random);
+            for (int i = 0; i < 3; i++) {
+                writeRandom(new File(sendDir, "folder/short" + i), 1000, random);
+            }
+            File folder = new File(sendDir, "folder");
+            List<String> paths = Arrays.asList(folder.getPath());
+
+            Receiver receiver = new Receiver(dir);
+            TransferJournal batchJournal = TransferJournal.open(new File(dir, "send_journal"), TransferJournal.idFor("long"), paths.size());
+            BatchSender sender = new BatchSender(paths, batchJournal, null, null, null, new QuietSendListener());
+            try {
+                sendSession(sender, receiver.address, Long.MAX_VALUE, -1);
+            } finally {
+                batchJournal.close();
+            }
+            receiver.await();
+            for (File sent : Arrays.asList(new File(deep, "long"), new File(folder, "short0"), new File(folder, "short2"))) {
+                File received = new File(receiver.dir, sent.getPath().substring(sendDir.getPath().length() + 1));
+                assertTrue(received + " was not received", received.isFile());
+                assertArrayEquals(Files.readAllBytes(sent.toPath()), Files.readAllBytes(received.toPath()));
+            }
+        } finally {
+            deleteRecursively(dir);
+        }
+    }
+
+    @Test
+    public void everyPickedItemInAPackIsReportedAsStarted() throws Exception {
+        File dir = Files.createTempDirectory("batch").toFile();
+        try {
+            File sendDir = new File(dir, "send");
+            sendDir.mkdirs();
+            List<String> paths = new ArrayList<>();
+            Random random = new Random(16);
+            for (int i = 0; i < 4; i++) {
+                File file = new File(sendDir, "small" + i);
+                writeRandom(file, 1000, random);
+                paths.add(file.getPath());
+            }
+
+            Receiver receiver = new Receiver(dir);
+            TransferJournal batchJournal = TransferJournal.open(new File(dir, "send_journal"), TransferJournal.idFor("started"), paths.size());
+            final List<Integer> started = new ArrayList<>();
+            BatchSender sender = new BatchSender(paths, batchJournal, null, null, null, new QuietSendListener() {
+                @Override
+                public void onItemStarted(int rootIndex) {
+                    started.add(rootIndex);
+                }
+            });
+            try {
+                sendSession(sender, receiver.address, Long.MAX_VALUE, -1);
+            } finally {
+                batchJournal.close();
+            }
+            receiver.await();
+            assertEquals(Arrays.asList(0, 1, 2, 3), started);
+        } finally {
+            deleteRecursively(dir);
+        }
+    }
+
+    private static void assertReceived(List<String> paths, File sendDir, File receiveDir) throws IOException {
+        for (String path : paths) {
+            File sent = new File(path);
+            if (sent.isDirectory()) {
+                sent = new File(sent, "inner");
+            }
+            File received = new File(receiveDir, sent.getPath().substring(sendDir.getPath().length() + 1));
+            assertTrue(received + " was not received", received.isFile());
+            assertArrayEquals(Files.readAllBytes(sent.toPath()), Files.readAllBytes(received.toPath()));
+        }
+    }
+
+    private static void sendSession(BatchSender sender, InetSocketAddress address, long dropAfter, long corruptAt) throws Exception {
+        SocketChannel socket = SocketChannel.open(address);
+        try {
+            ByteChannel channel = new FaultyChannel(socket, dropAfter, corruptAt);
+            TransferProtocol protocol = new TransferProtocol(channel);
+            protocol.handshakeAsSender();
+            sender.send(channel, protocol);
+        } finally {
+            socket.close();
+        }
+    }
+
+    // A ReceiveServer on a loopback port, receiving into dir/received.
+    private static class Receiver {
+        final File dir;
+        final InetSocketAddress address;
+        private final Thread thread;
+        private final Exception[] failure = new Exception[1];
+
+        Receiver(File baseDir) throws IOException {
+            dir = new File(baseDir, "received");
+            dir.mkdirs();
+            int port = freePort();
+            final ReceiveServer server = new ReceiveServer(dir, new File(baseDir, "receive_journal"), ".part",
+                    new File(baseDir, "fingerprints.cache"), 10000, new QuietReceiveListener());
+            server.listen(port);
+            address = new InetSocketAddress("127.0.0.1", port);
+            thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        server.serve();
+                    } catch (Exception e) {
+                        failure[0] = e;
+                    }
+                }
+            });
+            thread.start();
+        }
+
+        void await() throws Exception {
+            thread.join(30000);
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+        }
+    }
+
+    private static int freePort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+
+    private static void writeRandom(File file, int size, Random random) throws IOException {
+        byte[] data = new byte[size];
+        random.nextBytes(data);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    // Flips the byte at corruptAt, if not -1, and closes the connection once dropAfter bytes have
+    // been written, like a lost link.
+    private static class FaultyChannel implements ByteChannel {
+        private final SocketChannel socket;
+        private final long dropAfter;
+        private final long corruptAt;
+        private long written;
+
+        FaultyChannel(SocketChannel socket, long dropAfter, long corruptAt) {
+            this.socket = socket;
+            this.dropAfter = dropAfter;
+            this.corruptAt = corruptAt;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            if (written >= dropAfter) {
+                socket.close();
+                throw new IOException("Connection dropped");
+            }
+            ByteBuffer slice = src.duplicate();
+            slice.limit(slice.position() + (int) Math.min(src.remaining(), dropAfter - written));
+            if (corruptAt >= written && corruptAt < written + slice.remaining()) {
+                ByteBuffer copy = ByteBuffer.allocate(slice.remaining());
+                copy.put(slice.duplicate()).flip();
+                int at = (int) (corruptAt - written);
+                copy.put(at, (byte) ~copy.get(at));
+                slice = copy;
+            }
+            int count = socket.write(slice);
+            src.position(src.position() + count);
+            written += count;
+            return count;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            return socket.read(dst);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return socket.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    private static class QuietProgress implements PackedTransfer.Listener, ParallelTransfer.Listener {
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public boolean isPaused() {
+            return false;
+        }
+
+        @Override
+        public void awaitIfPaused() {
+        }
+
+        @Override
+        public void onProgress(long bytesDone) {
+        }
+
+        @Override
+        public void onEntryDone(int entry) {
+        }
+
+        @Override
+        public void onStreamStats(double[] mbPerSecond) {
+        }
+    }
+
+    private static class QuietSendListener implements BatchSender.Listener {
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public void onItemStarted(int rootIndex) {
+        }
+
+        @Override
+        public void onSkipped(FileTreeWalker.Item item) {
+        }
+
+        @Override
+        public ParallelTransfer.Listener onFileStarted(FileTreeWalker.Item item, long size) {
+            return new QuietProgress();
+        }
+
+        @Override
+        public PackedTransfer.Listener onPackStarted(List<PackedTransfer.Entry> entries, List<Integer> rootIndices, long packSize) {
+            return new QuietProgress();
+        }
+    }
+
+    private static class QuietReceiveListener implements ReceiveServer.Listener {
+        @Override
+        public ChunkedTransfer.Listener onFileStarted(String path, long size) {
+            return new QuietProgress();
+        }
+
+        @Override
+        public PackedTransfer.Listener onPackStarted(List<PackedTransfer.Entry> entries, long packSize) {
+            return new QuietProgress();
+        }
+
+        @Override
+        public void onFilesReceived(int count) {
+        }
+
+        @Override
+        public void onSessionFailed(IOException cause) {
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.hfm.app;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Chunk headers as the receiver parses them.
+ */
+public class ChunkedTransferTest {
+
+    private static final long FILE_SIZE = 3L * ChunkedTransfer.CHUNK_SIZE + 100;
+
+    @Test
+    public void headerRoundTrip() throws IOException {
+        ChunkedTransfer.ChunkBuffer chunk = new ChunkedTransfer.ChunkBuffer(CompressionPolicy.Codec.LZ4, false);
+        assertTrue(ChunkedTransfer.parseHeader(header(3, 100, 60, 0xCAFEBABE), FILE_SIZE, CompressionPolicy.Codec.LZ4, chunk));
+        assertEquals(3, chunk.index);
+        assertEquals(100, chunk.length);
+        assertEquals(60, chunk.encodedLength);
+        assertEquals(0xCAFEBABE, chunk.checksum);
+    }
+
+    @Test
+    public void rawChunksCarryTheChecksumOfTheirBytes() throws IOException, InterruptedException {
+        byte[] data = new byte[2 * ChunkedTransfer.CHUNK_SIZE + 10];
+        new Random(15).nextBytes(data);
+        File file = File.createTempFile("raw", ".bin");
+        RandomAccessFile access = new RandomAccessFile(file, "rw");
+        try {
+            access.write(data);
+            FileChannel channel = access.getChannel();
+            MemoryChannel out = new MemoryChannel();
+            ChunkedTransfer.send(channel, data.length, new BitSet(), CompressionPolicy.Codec.RAW, out, new QuietListener());
+
+            ByteBuffer stream = ByteBuffer.wrap(out.toByteArray());
+            ChunkedTransfer.ChunkBuffer chunk = new ChunkedTransfer.ChunkBuffer(CompressionPolicy.Codec.RAW);
+            try {
+                for (int index = 0; index < ChunkedTransfer.chunkCount(data.length); index++) {
+                    assertTrue(ChunkedTransfer.parseHeader(stream, data.length, CompressionPolicy.Codec.RAW, chunk));
+                    CRC32 crc = new CRC32();
+                    crc.update(data, (int) ChunkedTransfer.chunkOffset(index), chunk.length);
+                    assertEquals((int) crc.getValue(), chunk.checksum);
+                    assertEquals(chunk.checksum, ChunkedTransfer.checksumAt(channel, ChunkedTransfer.chunkOffset(index), chunk.length, chunk));
+                    stream.position(stream.position() + chunk.length);
+                }
+            } finally {
+                chunk.release();
+            }
+        } finally {
+            access.close();
+            file.delete();
+        }
+    }
+
+    @Test
+    public void endOfFileHeaderEndsTheFile() throws IOException {
+        ChunkedTransfer.ChunkBuffer chunk = new ChunkedTransfer.ChunkBuffer(CompressionPolicy.Codec.RAW, false);
+        assertFalse(ChunkedTransfer.parseHeader(header(ChunkedTransfer.END_OF_FILE, 0, 0, 0), FILE_SIZE, CompressionPolicy.Codec.RAW, chunk));
+    }
+
+    @Test
+    public void headersThatDontFitTheFileAreRejected() {
+        int full = ChunkedTransfer.CHUNK_SIZE;
+        int[][] invalid = {
+            {-2, full, full},
+            {4, 100, 100},          // past the last chunk
+            {0, 100, 100},          // not the length of chunk 0
+            {3, full, full},        // the last chunk is shorter
+            {0, full + 1, full},
+            {0, 0, 0},
+            {0, full, 0},
+            {0, full, Integer.MAX_VALUE},
+            {1, full, -1},
+        };
+        for (int[] header : invalid) {
+            TransferProtocolTest.assertRejected(header(header[0], header[1], header[2], 0), parser(CompressionPolicy.Codec.LZ4));
+        }
+    }
+
+    @Test
+    public void compressedChunkOfARawFileIsRejected() {
+        TransferProtocolTest.assertRejected(header(3, 100, 50, 0), parser(CompressionPolicy.Codec.RAW));
+    }
+
+    @Test
+    public void randomHeadersNeverFailWithRuntimeExceptions() {
+        Random random = new Random(12);
+        for (int round = 0; round < 20000; round++) {
+            byte[] bytes = new byte[ChunkedTransfer.HEADER_SIZE];
+            random.nextBytes(bytes);
+            TransferProtocolTest.parseQuietly(ByteBuffer.wrap(bytes), parser(CompressionPolicy.Codec.LZ4));
+        }
+    }
+
+    private static TransferProtocolTest.Parser parser(final CompressionPolicy.Codec codec) {
+        return new TransferProtocolTest.Parser() {
+            @Override
+            public void parse(ByteBuffer buffer) throws IOException {
+                ChunkedTransfer.parseHeader(buffer, FILE_SIZE, codec, new ChunkedTransfer.ChunkBuffer(codec, false));
+            }
+        };
+    }
+
+    private static ByteBuffer header(int index, int rawLength, int encodedLength, int checksum) {
+        ByteBuffer header = ByteBuffer.allocate(ChunkedTransfer.HEADER_SIZE);
+        header.putInt(index).putInt(rawLength).putInt(encodedLength).putInt(checksum);
+        header.flip();
+        return header;
+    }
+
+    private static class QuietListener implements ChunkedTransfer.Listener {
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public boolean isPaused() {
+            return false;
+        }
+
+        @Override
+        public void awaitIfPaused() {
+        }
+
+        @Override
+        public void onProgress(long bytesDone) {
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.hfm.app;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Codecs looked up by name, and blocks going through each of them and back.
+ */
+public class CodecRegistryTest {
+
+    @Test
+    public void codecsAreFoundByTheirNames() {
+        for (BlockCodec codec : CodecRegistry.all()) {
+            assertEquals(codec.getName(), CodecRegistry.get(codec.getName()).getName());
+        }
+        assertEquals(9, CodecRegistry.get("lz4-hc-9").getLevel());
+        assertEquals(6, CodecRegistry.get("deflate-6").getLevel());
+        assertEquals(3, CodecRegistry.get("zstd-3").getLevel());
+        assertEquals(6, CodecRegistry.UseCase.ARCHIVE.getLevel());
+    }
+
+    @Test
+    public void unknownNamesAndLevelsAreRefused() {
+        for (String name : new String[] {"snappy", "deflate-10", "zstd-0", "lz4-hc-x"}) {
+            try {
+                CodecRegistry.get(name);
+                fail(name + " should have been refused");
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void deflateRoundTrip() throws IOException {
+        assertRoundTrip(CodecRegistry.get("deflate-6"), text(256 * 1024));
+    }
+
+    @Test
+    public void zstdRoundTrip() throws IOException {
+        assertRoundTrip(CodecRegistry.zstd(3), text(256 * 1024));
+        byte[] random = new byte[64 * 1024];
+        new Random(3).nextBytes(random);
+        assertRoundTrip(CodecRegistry.zstd(3), random);
+    }
+
+    @Test
+    public void zstdDictionaryShrinksSmallRecords() throws IOException {
+        List<byte[]> samples = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            samples.add(record(i).getBytes(StandardCharsets.UTF_8));
+        }
+        byte[] dictionary = CodecRegistry.trainZstdDictionary(samples, 8 * 1024);
+        BlockCodec plain = CodecRegistry.zstd(3);
+        BlockCodec primed = CodecRegistry.zstd(3, dictionary);
+
+        byte[] block = record(5000).getBytes(StandardCharsets.UTF_8);
+        assertRoundTrip(primed, block);
+        assertTrue(compressedLength(primed, block) < compressedLength(plain, block));
+    }
+
+    @Test
+    public void corruptBlockIsReportedAsIOException() {
+        BlockCodec codec = CodecRegistry.zstd(3);
+        byte[] data = text(16 * 1024);
+        byte[] compressed = new byte[codec.maxCompressedLength(data.length)];
+        int length = codec.compress(data, data.length, compressed);
+        compressed[length / 2] ^= (byte) 0xff;
+        try {
+            codec.decompress(compressed, length, new byte[data.length], data.length);
+            fail("A corrupt block should not decode");
+        } catch (IOException expected) {
+        }
+    }
+
+    private static void assertRoundTrip(BlockCodec codec, byte[] data) throws IOException {
+        byte[] compressed = new byte[codec.maxCompressedLength(data.length)];
+        int length = codec.compress(data, data.length, compressed);
+        byte[] restored = new byte[data.length];
+        codec.decompress(compressed, length, restored, data.length);
+        assertArrayEquals(codec.getName(), data, restored);
+    }
+
+    private static int compressedLength(BlockCodec codec, byte[] data) {
+        return codec.compress(data, data.length, new byte[codec.maxCompressedLength(data.length)]);
+    }
+
+    private static byte[] text(int size) {
+        Random random = new Random(7);
+        String[] words = {"transfer", "chunk", "receiver", "journal", "folder", "photo", "backup"};
+        StringBuilder out = new StringBuilder();
+        while (out.length() < size) {
+            out.append(words[random.nextInt(words.length)]).append(random.nextInt(10) == 0 ? '\n' : ' ');
+        }
+        return Arrays.copyOf(out.toString().getBytes(StandardCharsets.UTF_8), size);
+    }
+
+    private static String record(int i) {
+        Random random = new Random(i);
+        return "{\"id\":" + (1000000 + random.nextInt(9000000)) + ",\"from\":\"user" + random.nextInt(20)
+                + "\",\"type\":\"" + (random.nextBoolean() ? "text" : "image") + "\",\"timestamp\":"
+                + (1600000000000L + random.nextInt(1000000000)) + ",\"read\":" + random.nextBoolean() + "}";
+    }
+}
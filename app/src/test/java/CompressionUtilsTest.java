@@ -0,0 +1,122 @@
+package com.hfm.app;
+
+import net.jpountz.lz4.LZ4FrameInputStream;
+import net.jpountz.lz4.LZ4FrameOutputStream;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * LZ4 frames written and read on several threads, and exchanged with lz4-java's frame streams.
+ */
+public class CompressionUtilsTest {
+
+    // Spans several frame blocks and ends in a partial one; half text, half incompressible.
+    private static final int SIZE = 3 * CompressionUtils.FRAME_BLOCK_SIZE + 12345;
+
+    @Test
+    public void roundTripOnOneAndSeveralThreads() throws IOException {
+        byte[] data = sampleData(SIZE);
+        for (int threads : new int[] {1, 4}) {
+            assertArrayEquals(data, decompress(compress(data, threads), threads));
+        }
+        assertArrayEquals(new byte[0], decompress(compress(new byte[0], 4), 4));
+    }
+
+    @Test
+    public void framesWeWriteAreReadByLZ4FrameInputStream() throws IOException {
+        byte[] data = sampleData(SIZE);
+        InputStream in = new LZ4FrameInputStream(new ByteArrayInputStream(compress(data, 4)));
+        assertArrayEquals(data, readAll(in));
+    }
+
+    @Test
+    public void framesLZ4FrameOutputStreamWritesAreRead() throws IOException {
+        byte[] data = sampleData(SIZE);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        LZ4FrameOutputStream frame = new LZ4FrameOutputStream(out, LZ4FrameOutputStream.BLOCKSIZE.SIZE_64KB);
+        frame.write(data);
+        frame.close();
+        assertArrayEquals(data, decompress(out.toByteArray(), 4));
+
+        out = new ByteArrayOutputStream();
+        frame = new LZ4FrameOutputStream(out, LZ4FrameOutputStream.BLOCKSIZE.SIZE_4MB, data.length,
+                LZ4FrameOutputStream.FLG.Bits.BLOCK_INDEPENDENCE, LZ4FrameOutputStream.FLG.Bits.BLOCK_CHECKSUM,
+                LZ4FrameOutputStream.FLG.Bits.CONTENT_CHECKSUM, LZ4FrameOutputStream.FLG.Bits.CONTENT_SIZE);
+        frame.write(data);
+        frame.close();
+        assertArrayEquals(data, decompress(out.toByteArray(), 4));
+    }
+
+    @Test
+    public void concatenatedAndSkippableFramesAreRead() throws IOException {
+        byte[] first = sampleData(1000);
+        byte[] second = sampleData(CompressionUtils.FRAME_BLOCK_SIZE + 1);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write(compress(first, 1));
+        // A skippable frame of 3 bytes: magic 0x184D2A5F and length, little-endian.
+        stream.write(new byte[] {0x5F, 0x2A, 0x4D, 0x18, 3, 0, 0, 0, 1, 2, 3});
+        stream.write(compress(second, 1));
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write(first);
+        expected.write(second);
+        assertArrayEquals(expected.toByteArray(), decompress(stream.toByteArray(), 4));
+    }
+
+    @Test
+    public void corruptBlockIsReported() throws IOException {
+        byte[] compressed = compress(sampleData(SIZE), 4);
+        compressed[compressed.length / 2] ^= (byte) 0xff;
+        try {
+            decompress(compressed, 4);
+            fail("A corrupt frame should not decode");
+        } catch (IOException expected) {
+        }
+    }
+
+    private static byte[] compress(byte[] data, int threads) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CompressionUtils.compress(new ByteArrayInputStream(data), out, threads);
+        return out.toByteArray();
+    }
+
+    private static byte[] decompress(byte[] compressed, int threads) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CompressionUtils.decompress(new ByteArrayInputStream(compressed), out, threads);
+        return out.toByteArray();
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int count;
+        while ((count = in.read(buffer)) > 0) {
+            out.write(buffer, 0, count);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    private static byte[] sampleData(int size) {
+        byte[] data = new byte[size];
+        Random random = new Random(size);
+        byte[] line = "2024-05-01 12:00:00 INFO TransferService sent chunk to receiver\n".getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < size / 2; i++) {
+            data[i] = line[i % line.length];
+        }
+        byte[] noise = new byte[size - size / 2];
+        random.nextBytes(noise);
+        System.arraycopy(noise, 0, data, size / 2, noise.length);
+        return data;
+    }
+}
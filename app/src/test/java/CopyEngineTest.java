@@ -0,0 +1,191 @@
+package com.hfm.app;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Destination names, and what is left behind when a copy is cancelled or fails.
+ */
+public class CopyEngineTest {
+
+    @Test
+    public void clashingNamesGetNumbered() throws Exception {
+        File dir = Files.createTempDirectory("copy").toFile();
+        CopyEngine engine = new CopyEngine(1, new FileTarget(null), new QuietListener());
+        try {
+            new File(dir, "photo.jpg").createNewFile();
+            assertEquals(new File(dir, "photo (1).jpg"), engine.reserve(new File(dir, "photo.jpg")));
+            // Reserved but not written yet still counts as taken.
+            assertEquals(new File(dir, "photo (2).jpg"), engine.reserve(new File(dir, "photo.jpg")));
+            assertEquals(new File(dir, "notes"), engine.reserve(new File(dir, "notes")));
+            assertEquals(new File(dir, "notes (1)"), engine.reserve(new File(dir, "notes")));
+            new File(dir, ".nomedia").createNewFile();
+            assertEquals(new File(dir, ".nomedia (1)"), engine.reserve(new File(dir, ".nomedia")));
+        } finally {
+            engine.shutdown();
+            deleteRecursively(dir);
+        }
+    }
+
+    @Test
+    public void cancelledCopyLeavesNoPartialFile() throws Exception {
+        File dir = Files.createTempDirectory("copy").toFile();
+        File source = writeFile(new File(dir, "source"), 4 * 1024 * 1024);
+        File dest = new File(dir, "dest");
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch cancelled = new CountDownLatch(1);
+        CopyEngine engine = new CopyEngine(1, new FileTarget(new Fault() {
+            @Override
+            public void beforeWrite() throws IOException {
+                writing.countDown();
+                try {
+                    cancelled.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+        }), new QuietListener());
+        try {
+            engine.add(source, engine.reserve(dest));
+            assertTrue(writing.await(10, TimeUnit.SECONDS));
+            engine.cancel();
+            cancelled.countDown();
+            engine.finish();
+            assertFalse(dest.exists());
+        } finally {
+            engine.shutdown();
+            deleteRecursively(dir);
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void failedCopyIsReportedAndLeavesNoPartialFile() throws Exception {
+        assertFailureCleanedUp(new IOException("Disk full"));
+    }
+
+    @Test(timeout = 30000)
+    public void runtimeExceptionFailsTheCopyInsteadOfHangingIt() throws Exception {
+        assertFailureCleanedUp(new SecurityException("Permission revoked"));
+    }
+
+    // Fails the second write of the first file, then queues more files than the queue holds, so
+    // the copy only ends if the failure reaches add or finish.
+    private static void assertFailureCleanedUp(final Exception cause) throws Exception {
+        File dir = Files.createTempDirectory("copy").toFile();
+        File sources = new File(dir, "sources");
+        sources.mkdirs();
+        File first = writeFile(new File(sources, "first"), 1024 * 1024);
+        for (int i = 0; i < 300; i++) {
+            writeFile(new File(sources, "small" + i), 10);
+        }
+        final int[] writes = new int[1];
+        CopyEngine engine = new CopyEngine(1, new FileTarget(new Fault() {
+            @Override
+            public void beforeWrite() throws IOException {
+                if (++writes[0] == 2) {
+                    if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    }
+                    throw (RuntimeException) cause;
+                }
+            }
+        }), new QuietListener());
+        File dest = new File(dir, "dest");
+        try {
+            engine.add(first, engine.reserve(new File(dest, "first")));
+            for (File source : sources.listFiles()) {
+                if (!source.equals(first)) {
+                    engine.add(source, engine.reserve(new File(dest, source.getName())));
+                }
+            }
+            engine.finish();
+            fail("The failure should have been reported");
+        } catch (IOException e) {
+            assertTrue(e == cause || e.getCause() == cause);
+        } finally {
+            engine.shutdown();
+        }
+        assertFalse(new File(dest, "first").exists());
+        deleteRecursively(dir);
+    }
+
+    private interface Fault {
+        void beforeWrite() throws IOException;
+    }
+
+    // Writes plain files, through a stream like the SAF gives, so the copy goes through write().
+    private static class FileTarget implements CopyEngine.Target {
+        private final Fault fault;
+
+        FileTarget(Fault fault) {
+            this.fault = fault;
+        }
+
+        @Override
+        public OutputStream openOutput(File dest) throws IOException {
+            dest.getParentFile().mkdirs();
+            return new FilterOutputStream(new FileOutputStream(dest)) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    if (fault != null) {
+                        fault.beforeWrite();
+                    }
+                    out.write(b, off, len);
+                }
+            };
+        }
+
+        @Override
+        public boolean createDirectory(File dir) {
+            return dir.mkdirs() || dir.isDirectory();
+        }
+
+        @Override
+        public BufferPool.Medium getMedium(File source, File dest) {
+            return BufferPool.Medium.SAF;
+        }
+    }
+
+    private static class QuietListener implements CopyEngine.Listener {
+        @Override
+        public void onProgress(long bytesDone, long bytesTotal, File current) {
+        }
+
+        @Override
+        public void onCopied(File dest) {
+        }
+    }
+
+    private static File writeFile(File file, int size) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[size]);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
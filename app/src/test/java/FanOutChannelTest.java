@@ -0,0 +1,132 @@
+package com.hfm.app;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * One stream sent to several loopback receivers, some of which keep up and some of which don't.
+ */
+public class FanOutChannelTest {
+
+    private static final int SIZE = 48 * 1024 * 1024;
+    private static final int WRITE_SIZE = 64 * 1024;
+
+    @Test
+    public void everyReceiverGetsEveryByte() throws Exception {
+        byte[] data = randomData(SIZE / 4);
+        List<Reader> readers = send(data, new long[] {0, 0, 0}, 10000, new ArrayList<Integer>());
+        for (Reader reader : readers) {
+            assertArrayEquals(data, reader.received());
+        }
+    }
+
+    @Test
+    public void receiverThatStaysBehindIsDroppedAndTheOthersCarryOn() throws Exception {
+        byte[] data = randomData(SIZE);
+        List<Integer> dropped = new ArrayList<>();
+        // The second receiver keeps making progress, so only falling behind can get it dropped.
+        List<Reader> readers = send(data, new long[] {0, 20}, 1000, dropped);
+
+        assertEquals(Arrays.asList(1), dropped);
+        assertArrayEquals(data, readers.get(0).received());
+        assertTrue(readers.get(1).received().length < data.length);
+    }
+
+    // Sends data to one receiver per entry of pauses, each sleeping that many ms between reads.
+    private static List<Reader> send(byte[] data, long[] pauses, long lagTimeoutMs, final List<Integer> dropped) throws Exception {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress("127.0.0.1", 0));
+        List<SocketChannel> channels = new ArrayList<>();
+        List<Reader> readers = new ArrayList<>();
+        try {
+            for (long pause : pauses) {
+                channels.add(SocketChannel.open(server.getLocalAddress()));
+                Reader reader = new Reader(server.accept(), data.length, pause);
+                reader.start();
+                readers.add(reader);
+            }
+        } finally {
+            server.close();
+        }
+
+        FanOutChannel fanOut = new FanOutChannel(channels, new FanOutChannel.Listener() {
+            @Override
+            public void onReceiverDropped(int receiver, int remaining, IOException cause) {
+                dropped.add(receiver);
+            }
+        }, lagTimeoutMs);
+        try {
+            for (int offset = 0; offset < data.length; offset += WRITE_SIZE) {
+                fanOut.write(ByteBuffer.wrap(data, offset, Math.min(WRITE_SIZE, data.length - offset)));
+            }
+            fanOut.flush();
+        } finally {
+            fanOut.close();
+        }
+        for (Reader reader : readers) {
+            reader.join(30000);
+        }
+        return readers;
+    }
+
+    private static byte[] randomData(int size) {
+        byte[] data = new byte[size];
+        new Random(21).nextBytes(data);
+        return data;
+    }
+
+    private static class Reader extends Thread {
+        private final SocketChannel channel;
+        private final long pauseMs;
+        private final ByteBuffer buffer;
+
+        Reader(SocketChannel channel, int size, long pauseMs) {
+            this.channel = channel;
+            this.pauseMs = pauseMs;
+            this.buffer = ByteBuffer.allocate(size);
+        }
+
+        @Override
+        public void run() {
+            try {
+                ByteBuffer window = ByteBuffer.allocate(WRITE_SIZE);
+                while (buffer.hasRemaining()) {
+                    window.clear();
+                    window.limit(Math.min(window.capacity(), buffer.remaining()));
+                    if (channel.read(window) < 0) {
+                        break;
+                    }
+                    window.flip();
+                    buffer.put(window);
+                    if (pauseMs > 0) {
+                        Thread.sleep(pauseMs);
+                    }
+                }
+            } catch (IOException | InterruptedException e) {
+                // Dropped by the sender; the test checks how much arrived.
+            } finally {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        byte[] received() {
+            return Arrays.copyOf(buffer.array(), buffer.position());
+        }
+    }
+}
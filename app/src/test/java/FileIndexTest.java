@@ -0,0 +1,74 @@
+package com.hfm.app;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The name tokens the full-text search is built on, and how names are ranked and fuzzily matched.
+ */
+public class FileIndexTest {
+
+    @Test
+    public void namesAreCutIntoTrigramsOfEachRun() {
+        assertEquals("img 202 024 jpg", FileIndex.nameGrams("IMG_2024.jpg"));
+        // Runs shorter than three are kept whole, repeated trigrams once.
+        assertEquals("a b1 aaa", FileIndex.nameGrams("a-b1-aaaa"));
+        assertEquals("ümb mbr bra ra1", FileIndex.nameGrams("Ümbra1"));
+        assertEquals("", FileIndex.nameGrams("..."));
+    }
+
+    @Test
+    public void everySubstringHasItsTrigramsInTheName() {
+        Random random = new Random(5);
+        String alphabet = "abcAB12_. -é";
+        for (int n = 0; n < 2000; n++) {
+            StringBuilder name = new StringBuilder();
+            for (int i = 0; i < 1 + random.nextInt(20); i++) {
+                name.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+            Set<String> tokens = new HashSet<>(Arrays.asList(FileIndex.nameGrams(name.toString()).split(" ")));
+            int start = random.nextInt(name.length());
+            String text = name.substring(start, start + random.nextInt(name.length() - start + 1)).toLowerCase(Locale.ROOT);
+            // The trigrams searchNames asks FTS for: those inside runs of letters and digits.
+            for (String run : text.split("[^\\p{L}\\p{Nd}]+")) {
+                for (int i = 0; i + 3 <= run.length(); i++) {
+                    assertTrue(name + " lacks " + run.substring(i, i + 3), tokens.contains(run.substring(i, i + 3)));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void closerMatchesRankFirst() {
+        assertEquals(FileIndex.MATCH_EXACT, FileIndex.matchRank("Report.pdf", "report"));
+        assertEquals(FileIndex.MATCH_EXACT, FileIndex.matchRank("report.pdf", "REPORT.PDF"));
+        assertEquals(FileIndex.MATCH_PREFIX, FileIndex.matchRank("report-2024.pdf", "report"));
+        assertEquals(FileIndex.MATCH_WORD, FileIndex.matchRank("annual_report.pdf", "report"));
+        assertEquals(FileIndex.MATCH_SUBSTRING, FileIndex.matchRank("myreport.pdf", "report"));
+        // A later occurrence at a word start still counts as a word match.
+        assertEquals(FileIndex.MATCH_WORD, FileIndex.matchRank("xreport report.pdf", "report"));
+        assertEquals(FileIndex.MATCH_OTHER, FileIndex.matchRank("reprot.pdf", "report"));
+    }
+
+    @Test
+    public void oneTypoIsForgivenAnywhereInTheName() {
+        assertTrue(FileIndex.containsWithinOneEdit("holiday_photos", "photos"));
+        assertTrue(FileIndex.containsWithinOneEdit("holiday_photos", "phoyos"));
+        assertTrue(FileIndex.containsWithinOneEdit("holiday_photos", "photoos"));
+        assertTrue(FileIndex.containsWithinOneEdit("holiday_photos", "phtos"));
+        assertFalse(FileIndex.containsWithinOneEdit("holiday_photos", "phtoos"));
+        assertFalse(FileIndex.containsWithinOneEdit("holiday_photos", "invoice"));
+        // The match may end the name or start it.
+        assertTrue(FileIndex.containsWithinOneEdit("invoice", "invoicex"));
+        assertTrue(FileIndex.containsWithinOneEdit("invoice", "xnvoice"));
+    }
+}
@@ -0,0 +1,90 @@
+package com.hfm.app;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * What the receiver may treat as a file it already has.
+ */
+public class FingerprintTest {
+
+    private static final int SIZE = 512 * 1024;
+
+    @Test
+    public void identicalCopyMatches() throws IOException {
+        File original = createFile(1, 1_600_000_000_000L);
+        File copy = createFile(1, 1_600_000_000_000L);
+        try {
+            assertTrue(Fingerprint.of(original).sameContentAs(Fingerprint.of(copy)));
+        } finally {
+            original.delete();
+            copy.delete();
+        }
+    }
+
+    @Test
+    public void editInTheMiddleDoesNotMatch() throws IOException {
+        File original = createFile(2, 1_600_000_000_000L);
+        File edited = createFile(2, 1_600_000_000_000L);
+        try {
+            RandomAccessFile out = new RandomAccessFile(edited, "rw");
+            try {
+                out.seek(SIZE / 2);
+                out.write(new byte[] {1, 2, 3, 4});
+            } finally {
+                out.close();
+            }
+            edited.setLastModified(1_600_000_060_000L);
+            assertFalse(Fingerprint.of(original).sameContentAs(Fingerprint.of(edited)));
+        } finally {
+            original.delete();
+            edited.delete();
+        }
+    }
+
+    @Test
+    public void sameEndsWithAnotherModificationTimeDoNotMatch() throws IOException {
+        File original = createFile(3, 1_600_000_000_000L);
+        File other = createFile(3, 1_600_000_002_000L);
+        try {
+            assertFalse(Fingerprint.of(original).sameContentAs(Fingerprint.of(other)));
+        } finally {
+            original.delete();
+            other.delete();
+        }
+    }
+
+    @Test
+    public void modificationTimesAreComparedToTheSecond() throws IOException {
+        File original = createFile(4, 1_600_000_000_123L);
+        File copy = createFile(4, 1_600_000_000_000L);
+        try {
+            assertTrue(Fingerprint.of(original).sameContentAs(Fingerprint.of(copy)));
+        } finally {
+            original.delete();
+            copy.delete();
+        }
+    }
+
+    private static File createFile(int seed, long lastModified) throws IOException {
+        byte[] data = new byte[SIZE];
+        new Random(seed).nextBytes(data);
+        File file = File.createTempFile("fingerprint", ".bin");
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        file.setLastModified(lastModified);
+        return file;
+    }
+}
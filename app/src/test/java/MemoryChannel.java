@@ -0,0 +1,64 @@
+package com.hfm.app;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.util.Arrays;
+
+/**
+ * A ByteChannel over memory: reads return what was written, in order, and end of stream once
+ * everything has been read.
+ */
+class MemoryChannel implements ByteChannel {
+
+    private byte[] data = new byte[256];
+    private int writePosition;
+    private int readPosition;
+    private boolean open = true;
+
+    MemoryChannel() {
+    }
+
+    MemoryChannel(byte[] bytes) {
+        data = bytes.clone();
+        writePosition = bytes.length;
+    }
+
+    /**
+     * Everything written so far, including what has already been read.
+     */
+    byte[] toByteArray() {
+        return Arrays.copyOf(data, writePosition);
+    }
+
+    @Override
+    public int read(ByteBuffer dst) {
+        if (readPosition == writePosition) {
+            return -1;
+        }
+        int count = Math.min(dst.remaining(), writePosition - readPosition);
+        dst.put(data, readPosition, count);
+        readPosition += count;
+        return count;
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        int count = src.remaining();
+        if (writePosition + count > data.length) {
+            data = Arrays.copyOf(data, Math.max(data.length * 2, writePosition + count));
+        }
+        src.get(data, writePosition, count);
+        writePosition += count;
+        return count;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() {
+        open = false;
+    }
+}
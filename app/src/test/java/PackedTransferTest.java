@@ -0,0 +1,122 @@
+package com.hfm.app;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Round trips and malformed input for the index that precedes a pack.
+ */
+public class PackedTransferTest {
+
+    @Test
+    public void indexRoundTrip() throws IOException {
+        List<PackedTransfer.Entry> sent = sampleEntries();
+        ByteBuffer index = indexBody(sent);
+        List<PackedTransfer.Entry> received = PackedTransfer.parseIndex(index, sent.size());
+
+        assertEquals(sent.size(), received.size());
+        for (int i = 0; i < sent.size(); i++) {
+            assertEquals(sent.get(i).name, received.get(i).name);
+            assertEquals(sent.get(i).size, received.get(i).size);
+            assertEquals(sent.get(i).lastModified, received.get(i).lastModified);
+        }
+        assertEquals(0, index.remaining());
+    }
+
+    @Test
+    public void indexLengthsOutsideTheLimitsAreRejected() throws IOException {
+        PackedTransfer.checkIndexLength(0, 0);
+        PackedTransfer.checkIndexLength(PackedTransfer.MAX_PACK_FILES, 100);
+        int[][] invalid = {
+            {-1, 0},
+            {PackedTransfer.MAX_PACK_FILES + 1, 100},
+            {1, -1},
+            {1, Integer.MAX_VALUE},
+            {0, 1},
+        };
+        for (int[] index : invalid) {
+            try {
+                PackedTransfer.checkIndexLength(index[0], index[1]);
+                fail("Index of " + index[0] + " files in " + index[1] + " bytes was accepted");
+            } catch (IOException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void entriesTooLargeToPackAreRejected() {
+        ByteBuffer index = ByteBuffer.allocate(2 + 1 + 16);
+        index.putShort((short) 1).put((byte) 'a').putLong(PackedTransfer.SMALL_FILE_LIMIT + 1).putLong(0);
+        index.flip();
+        TransferProtocolTest.assertRejected(index, indexParser(1));
+
+        index = ByteBuffer.allocate(2 + 1 + 16);
+        index.putShort((short) 1).put((byte) 'a').putLong(-1).putLong(0);
+        index.flip();
+        TransferProtocolTest.assertRejected(index, indexParser(1));
+    }
+
+    @Test
+    public void overlongNamesAreRejected() {
+        ByteBuffer index = ByteBuffer.allocate(2 + 16);
+        index.putShort((short) 0x8000);
+        index.flip();
+        TransferProtocolTest.assertRejected(index, indexParser(1));
+    }
+
+    @Test
+    public void truncatedIndexesAreRejected() throws IOException {
+        List<PackedTransfer.Entry> entries = sampleEntries();
+        byte[] bytes = TransferProtocolTest.toArray(indexBody(entries));
+        for (int cut = 0; cut < bytes.length; cut++) {
+            TransferProtocolTest.assertRejected(ByteBuffer.wrap(bytes, 0, cut), indexParser(entries.size()));
+        }
+    }
+
+    @Test
+    public void mutatedIndexesNeverFailWithRuntimeExceptions() throws IOException {
+        Random random = new Random(11);
+        List<PackedTransfer.Entry> entries = sampleEntries();
+        byte[] original = TransferProtocolTest.toArray(indexBody(entries));
+        for (int round = 0; round < 20000; round++) {
+            byte[] bytes = TransferProtocolTest.mutate(original, random);
+            TransferProtocolTest.parseQuietly(ByteBuffer.wrap(bytes), indexParser(entries.size()));
+        }
+    }
+
+    private static TransferProtocolTest.Parser indexParser(final int fileCount) {
+        return new TransferProtocolTest.Parser() {
+            @Override
+            public void parse(ByteBuffer buffer) throws IOException {
+                PackedTransfer.parseIndex(buffer, fileCount);
+            }
+        };
+    }
+
+    private static List<PackedTransfer.Entry> sampleEntries() {
+        List<PackedTransfer.Entry> entries = new ArrayList<>();
+        entries.add(new PackedTransfer.Entry("notes.txt", 120, 1_650_000_000_000L, null));
+        entries.add(new PackedTransfer.Entry("WhatsApp/Media/Stickers/ä ö ü.webp", PackedTransfer.SMALL_FILE_LIMIT, 0, null));
+        entries.add(new PackedTransfer.Entry("empty", 0, -1, null));
+        return entries;
+    }
+
+    // The index as writeIndex sends it, after its length prefix.
+    private static ByteBuffer indexBody(List<PackedTransfer.Entry> entries) throws IOException {
+        MemoryChannel channel = new MemoryChannel();
+        PackedTransfer.writeIndex(channel, entries);
+        ByteBuffer index = ByteBuffer.wrap(channel.toByteArray());
+        int length = index.getInt();
+        PackedTransfer.checkIndexLength(entries.size(), length);
+        assertEquals(length, index.remaining());
+        return index;
+    }
+}
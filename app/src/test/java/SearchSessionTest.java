@@ -0,0 +1,136 @@
+package com.hfm.app;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Which searches are answered from the cache, which by narrowing a cached search down, and
+ * which need a search of their own.
+ */
+public class SearchSessionTest {
+
+    private static final List<String> FILES = Arrays.asList(
+        "/sdcard/DCIM/holiday.jpg", "/sdcard/DCIM/holiday2.jpg", "/sdcard/Download/invoice.pdf", "/sdcard/Music/day.mp3");
+
+    @Test
+    public void longerTextIsNarrowedFromTheCachedResults() {
+        RecordingSearcher searcher = new RecordingSearcher();
+        SearchSession<Void, String> session = new SearchSession<>(searcher, new DirectExecutor());
+
+        assertEquals(Arrays.asList("search day"), searcher.calls(session, "all", "day"));
+        assertEquals(Arrays.asList("refine holiday from 3", "show holiday"), searcher.calls(session, "all", "holiday"));
+        // "holiday2" contains both cached texts; the one with fewer results is narrowed.
+        assertEquals(Arrays.asList("refine holiday2 from 2", "show holiday2"), searcher.calls(session, "all", "holiday2"));
+        assertEquals(Arrays.asList("show holiday"), searcher.calls(session, "all", "Holiday "));
+    }
+
+    @Test
+    public void otherFiltersOrTextsThatDontContainACachedOneAreSearched() {
+        RecordingSearcher searcher = new RecordingSearcher();
+        SearchSession<Void, String> session = new SearchSession<>(searcher, new DirectExecutor());
+
+        searcher.calls(session, "all", "holiday");
+        assertEquals(Arrays.asList("search holiday2"), searcher.calls(session, "images", "holiday2"));
+        // "holi" is shorter, so it can find more than "holiday" did.
+        assertEquals(Arrays.asList("search holi"), searcher.calls(session, "all", "holi"));
+    }
+
+    @Test
+    public void emptyNarrowingFallsBackToASearch() {
+        RecordingSearcher searcher = new RecordingSearcher();
+        SearchSession<Void, String> session = new SearchSession<>(searcher, new DirectExecutor());
+
+        searcher.calls(session, "all", "day");
+        // Nothing cached has it, but a search may still find looser matches.
+        assertEquals(Arrays.asList("refine dayz from 3", "search dayz"), searcher.calls(session, "all", "dayz"));
+    }
+
+    @Test
+    public void clearedCacheIsSearchedAgain() {
+        RecordingSearcher searcher = new RecordingSearcher();
+        SearchSession<Void, String> session = new SearchSession<>(searcher, new DirectExecutor());
+
+        searcher.calls(session, "all", "day");
+        session.clearCache();
+        assertEquals(Arrays.asList("search holiday"), searcher.calls(session, "all", "holiday"));
+    }
+
+    @Test
+    public void changesOnlyForgetTheSearchesTheyAffect() {
+        RecordingSearcher searcher = new RecordingSearcher();
+        SearchSession<Void, String> session = new SearchSession<>(searcher, new DirectExecutor());
+        searcher.calls(session, "all", "holiday");
+        searcher.calls(session, "all", "invoice");
+        searcher.calls(session, "all", "mp3");
+
+        // A new file that "invoice" could find, and a folder holding one of the holiday results.
+        session.forgetChanged(Arrays.asList("/sdcard/Download/invoice2.pdf"));
+        session.forgetChanged(Arrays.asList("/sdcard/DCIM"));
+        assertEquals(Arrays.asList("search invoice"), searcher.calls(session, "all", "invoice"));
+        assertEquals(Arrays.asList("search holiday"), searcher.calls(session, "all", "holiday"));
+        assertEquals(Arrays.asList("show mp3"), searcher.calls(session, "all", "mp3"));
+    }
+
+    // Matches the text anywhere in the path, and records what the session asks of it.
+    private static class RecordingSearcher implements SearchSession.Searcher<Void, String> {
+        private final List<String> calls = new ArrayList<>();
+
+        // Searches, which the direct executor runs right away, and returns the calls it made.
+        List<String> calls(SearchSession<Void, String> session, String filterKey, String text) {
+            calls.clear();
+            session.search(null, filterKey, text);
+            return new ArrayList<>(calls);
+        }
+
+        @Override
+        public List<String> search(SearchSession.Search<Void> search) {
+            calls.add("search " + search.text);
+            return refine(FILES, search.text);
+        }
+
+        @Override
+        public List<String> refine(List<String> previous, SearchSession.Search<Void> search) {
+            calls.add("refine " + search.text + " from " + previous.size());
+            return refine(previous, search.text);
+        }
+
+        @Override
+        public void show(SearchSession.Search<Void> search, List<String> results) {
+            calls.add("show " + search.text);
+        }
+
+        @Override
+        public String pathOf(String result) {
+            return result;
+        }
+
+        @Override
+        public boolean couldMatch(String path, String text) {
+            return path.toLowerCase(Locale.ROOT).contains(text);
+        }
+
+        private static List<String> refine(List<String> paths, String text) {
+            List<String> results = new ArrayList<>();
+            for (String path : paths) {
+                if (path.toLowerCase(Locale.ROOT).contains(text)) {
+                    results.add(path);
+                }
+            }
+            return results;
+        }
+    }
+
+    private static class DirectExecutor implements Executor {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    }
+}
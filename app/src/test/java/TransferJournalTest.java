@@ -0,0 +1,62 @@
+package com.hfm.app;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Journals kept across interrupted transfers, and the ids they are opened by.
+ */
+public class TransferJournalTest {
+
+    @Test
+    public void doneUnitsSurviveReopening() throws IOException {
+        File dir = Files.createTempDirectory("journal").toFile();
+        String id = TransferJournal.idFor("file", "42");
+        TransferJournal journal = TransferJournal.open(dir, id, 10);
+        assertTrue(journal.markDone(3));
+        assertFalse(journal.markDone(3));
+        journal.close();
+
+        journal = TransferJournal.open(dir, id, 10);
+        try {
+            assertTrue(journal.isDone(3));
+            assertEquals(1, journal.doneCount());
+        } finally {
+            journal.delete();
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void idsOutsideTheJournalFolderAreRefused() throws IOException {
+        File dir = Files.createTempDirectory("journal").toFile();
+        File outside = new File(dir.getParentFile(), dir.getName() + "-victim.journal");
+        try {
+            TransferJournal.open(dir, "../" + dir.getName() + "-victim", 10);
+            fail("A traversal id was accepted");
+        } catch (IOException expected) {
+        } finally {
+            dir.delete();
+        }
+        assertFalse(outside.exists());
+    }
+
+    @Test
+    public void prefixedIdsAreAccepted() {
+        String id = TransferJournal.idFor("x");
+        assertTrue(TransferJournal.isValidId(id));
+        assertTrue(TransferJournal.isValidId("pack_" + id));
+        assertTrue(TransferJournal.isValidId("send_" + id));
+        assertTrue(TransferJournal.isValidId("broadcast_" + id));
+        assertFalse(TransferJournal.isValidId(null));
+        assertFalse(TransferJournal.isValidId("pack_"));
+    }
+}
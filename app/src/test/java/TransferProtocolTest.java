@@ -0,0 +1,608 @@
+package com.hfm.app;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Round trips through the frame writers and parsers of TransferProtocol, and the malformed
+ * input a peer could send: truncated and mutated frames must be rejected with an IOException,
+ * never with a runtime exception or by allocating what a corrupt length asks for.
+ */
+public class TransferProtocolTest {
+
+    private static final int FUZZ_ROUNDS = 20000;
+
+    // Wire values of TransferProtocol's private field tags and value types.
+    private static final byte FIELD_PATH = 1;
+    private static final byte FIELD_SIZE = 2;
+    private static final byte FIELD_CODEC = 5;
+    private static final byte FIELD_TRANSFER_ID = 8;
+    private static final byte TYPE_BYTE = 1;
+    private static final byte TYPE_INT = 2;
+    private static final byte TYPE_LONG = 3;
+    private static final byte TYPE_STRING = 4;
+
+    @Test
+    public void fileFrameRoundTrip() throws IOException {
+        TransferProtocol.Header sent = fileHeader();
+        TransferProtocol.Header received = roundTrip(sent);
+
+        assertEquals(TransferProtocol.FRAME_FILE, received.frameType);
+        assertEquals(sent.path, received.path);
+        assertEquals(sent.size, received.size);
+        assertEquals(sent.lastModified, received.lastModified);
+        assertEquals(sent.permissions, received.permissions);
+        assertEquals(sent.codec, received.codec);
+        assertEquals(sent.chunkSize, received.chunkSize);
+        assertEquals(sent.chunkCount, received.chunkCount);
+        assertEquals(sent.transferId, received.transferId);
+        assertTrue(received.resume);
+        assertFalse(received.parallel);
+    }
+
+    @Test
+    public void parallelFileFrameCarriesStreamToken() throws IOException {
+        TransferProtocol.Header sent = fileHeader();
+        sent.parallel = true;
+        sent.streamToken = 0x0123456789ABCDEFL;
+        TransferProtocol.Header received = roundTrip(sent);
+
+        assertTrue(received.parallel);
+        assertEquals(sent.streamToken, received.streamToken);
+    }
+
+    @Test
+    public void packFrameRoundTrip() throws IOException {
+        TransferProtocol.Header sent = new TransferProtocol.Header();
+        sent.fileCount = 1500;
+        sent.codec = CompressionPolicy.Codec.RAW;
+        sent.chunkSize = ChunkedTransfer.CHUNK_SIZE;
+        sent.transferId = "pack_" + TransferJournal.idFor("7");
+        sent.resume = false;
+
+        MemoryChannel channel = new MemoryChannel();
+        new TransferProtocol(channel).writePack(sent);
+        TransferProtocol.Header received = new TransferProtocol(channel).readFrame(new TransferProtocol.Header());
+
+        assertEquals(TransferProtocol.FRAME_PACK, received.frameType);
+        assertEquals(1500, received.fileCount);
+        assertEquals(CompressionPolicy.Codec.RAW, received.codec);
+        assertEquals(sent.transferId, received.transferId);
+        assertFalse(received.resume);
+    }
+
+    @Test
+    public void goodbyeFrameRoundTrip() throws IOException {
+        MemoryChannel channel = new MemoryChannel();
+        new TransferProtocol(channel).writeGoodbye();
+        TransferProtocol.Header received = new TransferProtocol(channel).readFrame(new TransferProtocol.Header());
+
+        assertEquals(TransferProtocol.FRAME_GOODBYE, received.frameType);
+        assertNull(received.path);
+    }
+
+    @Test
+    public void readFrameClearsTheReusedHeader() throws IOException {
+        MemoryChannel channel = new MemoryChannel();
+        TransferProtocol writer = new TransferProtocol(channel);
+        writer.writeFile(fileHeader());
+        writer.writeGoodbye();
+
+        TransferProtocol reader = new TransferProtocol(channel);
+        TransferProtocol.Header header = new TransferProtocol.Header();
+        reader.readFrame(header);
+        reader.readFrame(header);
+
+        assertEquals(TransferProtocol.FRAME_GOODBYE, header.frameType);
+        assertNull(header.path);
+        assertNull(header.transferId);
+        assertEquals(0, header.size);
+        assertFalse(header.resume);
+    }
+
+    @Test
+    public void offerRoundTrip() throws IOException {
+        List<TransferProtocol.OfferEntry> sent = new ArrayList<>();
+        sent.add(new TransferProtocol.OfferEntry("DCIM/Camera/IMG_0001.jpg", fingerprint(4_000_000L, 1_600_000_000_000L, 1)));
+        sent.add(new TransferProtocol.OfferEntry("Documents/Überweisung.pdf", fingerprint(0, 0, 2)));
+        sent.add(new TransferProtocol.OfferEntry("", fingerprint(Long.MAX_VALUE, -1, 3)));
+
+        MemoryChannel channel = new MemoryChannel();
+        new TransferProtocol(channel).writeOffer(sent);
+        TransferProtocol reader = new TransferProtocol(channel);
+        TransferProtocol.Header header = reader.readFrame(new TransferProtocol.Header());
+        assertEquals(TransferProtocol.FRAME_OFFER, header.frameType);
+        assertEquals(sent.size(), header.fileCount);
+
+        List<TransferProtocol.OfferEntry> received = reader.readOffer(header);
+        assertEquals(sent.size(), received.size());
+        for (int i = 0; i < sent.size(); i++) {
+            assertEquals(sent.get(i).path, received.get(i).path);
+            assertEquals(sent.get(i).fingerprint.size, received.get(i).fingerprint.size);
+            assertEquals(sent.get(i).fingerprint.lastModified, received.get(i).fingerprint.lastModified);
+            assertArrayEquals(sent.get(i).fingerprint.hash, received.get(i).fingerprint.hash);
+        }
+    }
+
+    @Test
+    public void handshakeUsesCommonVersionAndCapabilities() throws IOException {
+        ByteBuffer hello = ByteBuffer.allocate(TransferProtocol.HELLO_SIZE);
+        hello.putInt(TransferProtocol.MAGIC).putShort((short) (TransferProtocol.VERSION + 5))
+                .putInt(TransferProtocol.CAP_RESUME | TransferProtocol.CAP_PACK | (1 << 30));
+        hello.flip();
+
+        TransferProtocol protocol = new TransferProtocol(new MemoryChannel());
+        protocol.acceptHello(hello);
+
+        assertEquals(TransferProtocol.VERSION, protocol.getVersion());
+        assertTrue(protocol.supports(TransferProtocol.CAP_RESUME));
+        assertTrue(protocol.supports(TransferProtocol.CAP_PACK));
+        assertFalse(protocol.supports(TransferProtocol.CAP_PARALLEL));
+        assertFalse(protocol.supports(1 << 30));
+    }
+
+    @Test
+    public void handshakeBetweenTwoPeers() throws IOException {
+        MemoryChannel toReceiver = new MemoryChannel();
+        TransferProtocol sender = new TransferProtocol(toReceiver);
+        sender.writeHello();
+
+        MemoryChannel toSender = new MemoryChannel();
+        TransferProtocol receiver = new TransferProtocol(new JoinedChannel(toReceiver, toSender));
+        receiver.handshakeAsReceiver();
+
+        ByteBuffer reply = ByteBuffer.wrap(toSender.toByteArray());
+        sender.acceptHello(reply);
+        assertEquals(TransferProtocol.VERSION, sender.getVersion());
+        assertEquals(TransferProtocol.VERSION, receiver.getVersion());
+        assertTrue(sender.supports(TransferProtocol.CAP_RESUME));
+        assertTrue(receiver.supports(TransferProtocol.CAP_RESUME));
+    }
+
+    @Test
+    public void helloWithWrongMagicIsRejected() {
+        ByteBuffer hello = ByteBuffer.allocate(TransferProtocol.HELLO_SIZE);
+        hello.putInt(0x47455420).putShort((short) TransferProtocol.VERSION).putInt(0); // "GET "
+        hello.flip();
+        assertRejected(hello, new Parser() {
+            @Override
+            public void parse(ByteBuffer buffer) throws IOException {
+                new TransferProtocol(new MemoryChannel()).acceptHello(buffer);
+            }
+        });
+    }
+
+    @Test
+    public void helloWithUnsupportedVersionIsRejected() {
+        ByteBuffer hello = ByteBuffer.allocate(TransferProtocol.HELLO_SIZE);
+        hello.putInt(TransferProtocol.MAGIC).putShort((short) 0).putInt(0);
+        hello.flip();
+        assertRejected(hello, new Parser() {
+            @Override
+            public void parse(ByteBuffer buffer) throws IOException {
+                new TransferProtocol(new MemoryChannel()).acceptHello(buffer);
+            }
+        });
+    }
+
+    @Test
+    public void unknownFrameTypesAreRejected() {
+        for (byte type : new byte[] {0, 5, 42, -1, Byte.MIN_VALUE, Byte.MAX_VALUE}) {
+            assertRejected(frame(type), FRAME_PARSER);
+        }
+    }
+
+    @Test
+    public void unknownFieldTagsAreSkipped() throws IOException {
+        ByteBuffer frame = frame(TransferProtocol.FRAME_FILE,
+                field((byte) 99, TYPE_BYTE, new byte[] {7}),
+                stringField(FIELD_PATH, "a/b.txt"),
+                field((byte) 100, TYPE_INT, new byte[4]),
+                field((byte) -3, TYPE_LONG, new byte[8]),
+                field((byte) 101, TYPE_STRING, new byte[] {0, 3, 'x', 'y', 'z'}),
+                longField(FIELD_SIZE, 12345));
+
+        TransferProtocol.Header header = TransferProtocol.parseFrame(frame, new TransferProtocol.Header());
+        assertEquals("a/b.txt", header.path);
+        assertEquals(12345, header.size);
+    }
+
+    @Test
+    public void unknownValueTypeIsRejected() {
+        assertRejected(frame(TransferProtocol.FRAME_FILE, field(FIELD_PATH, (byte) 9, new byte[] {1, 2, 3})), FRAME_PARSER);
+        assertRejected(frame(TransferProtocol.FRAME_FILE, field(FIELD_PATH, (byte) 0, new byte[0])), FRAME_PARSER);
+    }
+
+    @Test
+    public void fieldsOfTheWrongTypeAreRejected() {
+        // A path sent as a number.
+        assertRejected(frame(TransferProtocol.FRAME_FILE, field(FIELD_PATH, TYPE_INT, new byte[4])), FRAME_PARSER);
+    }
+
+    @Test
+    public void negativeSizesAndCountsAreRejected() {
+        assertRejected(frame(TransferProtocol.FRAME_FILE, longField(FIELD_SIZE, -1)), FRAME_PARSER);
+        assertRejected(frame(TransferProtocol.FRAME_FILE, field((byte) 7, TYPE_INT, ByteBuffer.allocate(4).putInt(-5).array())), FRAME_PARSER);
+        assertRejected(frame(TransferProtocol.FRAME_PACK, field((byte) 11, TYPE_INT, ByteBuffer.allocate(4).putInt(Integer.MIN_VALUE).array())), FRAME_PARSER);
+    }
+
+    @Test
+    public void unsupportedCodecIsRejected() {
+        assertRejected(frame(TransferProtocol.FRAME_FILE, field(FIELD_CODEC, TYPE_BYTE, new byte[] {(byte) 200})), FRAME_PARSER);
+    }
+
+    @Test
+    public void transferIdsThatCouldNameAPathAreRejected() {
+        String id = TransferJournal.idFor("a");
+        String[] invalid = {"../../shared_prefs/settings", "pack_../" + id, id + "/..", "/" + id, id.toUpperCase(),
+                id.substring(1), "other_" + id, ""};
+        for (String transferId : invalid) {
+            assertRejected(frame(TransferProtocol.FRAME_FILE, stringField(FIELD_TRANSFER_ID, transferId)), FRAME_PARSER);
+            assertRejected(frame(TransferProtocol.FRAME_PACK, stringField(FIELD_TRANSFER_ID, transferId)), FRAME_PARSER);
+        }
+    }
+
+    @Test
+    public void stringLongerThanTheFrameIsRejected() {
+        ByteBuffer frame = frame(TransferProtocol.FRAME_FILE, field(FIELD_PATH, TYPE_STRING, new byte[] {(byte) 0xFF, (byte) 0xFF, 'a'}));
+        assertRejected(frame, FRAME_PARSER);
+    }
+
+    @Test
+    public void frameLengthsOutsideTheLimitsAreRejected() throws IOException {
+        assertEquals(1, TransferProtocol.checkFrameLength(1));
+        assertEquals(TransferProtocol.MAX_FRAME_SIZE, TransferProtocol.checkFrameLength(TransferProtocol.MAX_FRAME_SIZE));
+        for (int length : new int[] {0, -1, Integer.MIN_VALUE, TransferProtocol.MAX_FRAME_SIZE + 1, Integer.MAX_VALUE}) {
+            try {
+                TransferProtocol.checkFrameLength(length);
+                fail("Frame length " + length + " was accepted");
+            } catch (IOException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void readFrameRejectsOversizedLengthBeforeReadingTheBody() {
+        ByteBuffer bytes = ByteBuffer.allocate(8);
+        bytes.putInt(TransferProtocol.MAX_FRAME_SIZE + 1).put(TransferProtocol.FRAME_GOODBYE);
+        TransferProtocol protocol = new TransferProtocol(new MemoryChannel(bytes.array()));
+        try {
+            protocol.readFrame(new TransferProtocol.Header());
+            fail("Oversized frame was accepted");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void readFrameRejectsAStreamThatEndsMidFrame() throws IOException {
+        MemoryChannel channel = new MemoryChannel();
+        new TransferProtocol(channel).writeFile(fileHeader());
+        byte[] bytes = channel.toByteArray();
+        for (int cut = 0; cut < bytes.length; cut++) {
+            TransferProtocol protocol = new TransferProtocol(new MemoryChannel(Arrays.copyOf(bytes, cut)));
+            try {
+                protocol.readFrame(new TransferProtocol.Header());
+                fail("Frame cut after " + cut + " of " + bytes.length + " bytes was accepted");
+            } catch (IOException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void frameTooLargeToSendIsRefused() {
+        TransferProtocol.Header header = fileHeader();
+        char[] name = new char[TransferProtocol.MAX_FRAME_SIZE];
+        Arrays.fill(name, 'x');
+        header.path = new String(name);
+        try {
+            new TransferProtocol(new MemoryChannel()).writeFile(header);
+            fail("Frame larger than MAX_FRAME_SIZE was written");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void truncatedFramesAreRejectedOrParsedCleanly() throws IOException {
+        for (ByteBuffer frame : sampleFrames()) {
+            byte[] bytes = toArray(frame);
+            // Fields are self-delimiting, so a cut between two fields leaves a shorter valid frame;
+            // any other cut must be reported as an IOException.
+            for (int cut = 0; cut < bytes.length; cut++) {
+                parseQuietly(ByteBuffer.wrap(bytes, 0, cut), FRAME_PARSER);
+            }
+            assertRejected(ByteBuffer.wrap(bytes, 0, bytes.length - 1), FRAME_PARSER);
+            assertRejected(ByteBuffer.wrap(bytes, 0, 0), FRAME_PARSER);
+        }
+    }
+
+    @Test
+    public void mutatedFramesNeverFailWithRuntimeExceptions() throws IOException {
+        Random random = new Random(8);
+        List<ByteBuffer> frames = sampleFrames();
+        for (int round = 0; round < FUZZ_ROUNDS; round++) {
+            byte[] bytes = toArray(frames.get(round % frames.size()));
+            bytes = mutate(bytes, random);
+            parseQuietly(ByteBuffer.wrap(bytes), FRAME_PARSER);
+        }
+    }
+
+    @Test
+    public void randomBytesNeverFailWithRuntimeExceptions() throws IOException {
+        Random random = new Random(9);
+        for (int round = 0; round < FUZZ_ROUNDS; round++) {
+            byte[] bytes = new byte[random.nextInt(64)];
+            random.nextBytes(bytes);
+            parseQuietly(ByteBuffer.wrap(bytes), FRAME_PARSER);
+        }
+    }
+
+    @Test
+    public void offerLengthsOutsideTheLimitsAreRejected() throws IOException {
+        TransferProtocol.checkOfferLength(0, 0);
+        TransferProtocol.checkOfferLength(TransferProtocol.MAX_OFFER_FILES, 1024);
+        int[][] invalid = {
+            {TransferProtocol.MAX_OFFER_FILES + 1, 100},
+            {1, -1},
+            {1, Integer.MAX_VALUE},
+            {0, 1},
+            {Integer.MAX_VALUE, 100},
+        };
+        for (int[] offer : invalid) {
+            try {
+                TransferProtocol.checkOfferLength(offer[0], offer[1]);
+                fail("Offer of " + offer[0] + " files in " + offer[1] + " bytes was accepted");
+            } catch (IOException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void offerWithOverlongPathIsRejected() {
+        ByteBuffer body = ByteBuffer.allocate(2 + 16);
+        body.putShort((short) 0xFFFF);
+        body.flip();
+        assertRejected(body, offerParser(1));
+    }
+
+    @Test
+    public void truncatedOffersAreRejected() throws IOException {
+        byte[] bytes = offerBody(sampleOffer());
+        for (int cut = 0; cut < bytes.length; cut++) {
+            assertRejected(ByteBuffer.wrap(bytes, 0, cut), offerParser(sampleOffer().size()));
+        }
+    }
+
+    @Test
+    public void mutatedOffersNeverFailWithRuntimeExceptions() throws IOException {
+        Random random = new Random(10);
+        byte[] original = offerBody(sampleOffer());
+        for (int round = 0; round < FUZZ_ROUNDS; round++) {
+            parseQuietly(ByteBuffer.wrap(mutate(original, random)), offerParser(sampleOffer().size()));
+        }
+    }
+
+    // --- Helpers ---
+
+    interface Parser {
+        void parse(ByteBuffer buffer) throws IOException;
+    }
+
+    private static final Parser FRAME_PARSER = new Parser() {
+        @Override
+        public void parse(ByteBuffer buffer) throws IOException {
+            TransferProtocol.parseFrame(buffer, new TransferProtocol.Header());
+        }
+    };
+
+    private static Parser offerParser(final int count) {
+        return new Parser() {
+            @Override
+            public void parse(ByteBuffer buffer) throws IOException {
+                TransferProtocol.parseOffer(buffer, count);
+            }
+        };
+    }
+
+    static void assertRejected(ByteBuffer buffer, Parser parser) {
+        try {
+            parser.parse(buffer);
+            fail("Malformed input was accepted");
+        } catch (IOException expected) {
+        }
+    }
+
+    /**
+     * Parses buffer, which may or may not be valid; only an IOException may come out of it.
+     */
+    static void parseQuietly(ByteBuffer buffer, Parser parser) {
+        try {
+            parser.parse(buffer);
+        } catch (IOException expected) {
+        } catch (RuntimeException | OutOfMemoryError e) {
+            throw new AssertionError("Malformed input failed with " + e, e);
+        }
+    }
+
+    /**
+     * Flips, overwrites, inserts or removes a few bytes.
+     */
+    static byte[] mutate(byte[] original, Random random) {
+        byte[] bytes = original.clone();
+        int mutations = 1 + random.nextInt(4);
+        for (int i = 0; i < mutations && bytes.length > 0; i++) {
+            int at = random.nextInt(bytes.length);
+            switch (random.nextInt(4)) {
+                case 0:
+                    bytes[at] ^= 1 << random.nextInt(8);
+                    break;
+                case 1:
+                    bytes[at] = (byte) random.nextInt(256);
+                    break;
+                case 2:
+                    byte[] longer = new byte[bytes.length + 1];
+                    System.arraycopy(bytes, 0, longer, 0, at);
+                    longer[at] = (byte) random.nextInt(256);
+                    System.arraycopy(bytes, at, longer, at + 1, bytes.length - at);
+                    bytes = longer;
+                    break;
+                default:
+                    byte[] shorter = new byte[bytes.length - 1];
+                    System.arraycopy(bytes, 0, shorter, 0, at);
+                    System.arraycopy(bytes, at + 1, shorter, at, bytes.length - at - 1);
+                    bytes = shorter;
+                    break;
+            }
+        }
+        return bytes;
+    }
+
+    static byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    private static TransferProtocol.Header fileHeader() {
+        TransferProtocol.Header header = new TransferProtocol.Header();
+        header.path = "Pictures/Trip 2024/Ålesund – day 1.jpg";
+        header.size = 5L * 1024 * 1024 * 1024 + 17;
+        header.lastModified = 1_700_000_000_123L;
+        header.permissions = TransferProtocol.PERMISSION_READ | TransferProtocol.PERMISSION_EXECUTE;
+        header.codec = CompressionPolicy.Codec.LZ4_HC;
+        header.chunkSize = ChunkedTransfer.CHUNK_SIZE;
+        header.chunkCount = ChunkedTransfer.chunkCount(header.size);
+        header.transferId = TransferJournal.idFor("b6f1c0de-1");
+        header.resume = true;
+        return header;
+    }
+
+    private static TransferProtocol.Header roundTrip(TransferProtocol.Header sent) throws IOException {
+        MemoryChannel channel = new MemoryChannel();
+        new TransferProtocol(channel).writeFile(sent);
+        return new TransferProtocol(channel).readFrame(new TransferProtocol.Header());
+    }
+
+    // The frames the writers produce, without their length prefix.
+    private static List<ByteBuffer> sampleFrames() throws IOException {
+        MemoryChannel channel = new MemoryChannel();
+        TransferProtocol protocol = new TransferProtocol(channel);
+        protocol.writeFile(fileHeader());
+        TransferProtocol.Header parallel = fileHeader();
+        parallel.parallel = true;
+        parallel.streamToken = 42;
+        protocol.writeFile(parallel);
+        TransferProtocol.Header pack = new TransferProtocol.Header();
+        pack.fileCount = 12;
+        pack.transferId = "pack_" + TransferJournal.idFor("pack");
+        protocol.writePack(pack);
+        protocol.writeGoodbye();
+        // Last, as the offer's file list follows its frame.
+        protocol.writeOffer(new ArrayList<TransferProtocol.OfferEntry>());
+
+        List<ByteBuffer> frames = new ArrayList<>();
+        ByteBuffer stream = ByteBuffer.wrap(channel.toByteArray());
+        while (frames.size() < 5) {
+            byte[] frame = new byte[stream.getInt()];
+            stream.get(frame);
+            frames.add(ByteBuffer.wrap(frame));
+        }
+        assertEquals(5, frames.size());
+        return frames;
+    }
+
+    private static List<TransferProtocol.OfferEntry> sampleOffer() {
+        List<TransferProtocol.OfferEntry> entries = new ArrayList<>();
+        entries.add(new TransferProtocol.OfferEntry("a.txt", fingerprint(10, 20, 4)));
+        entries.add(new TransferProtocol.OfferEntry("Music/Album/Track 01.flac", fingerprint(30_000_000, 40, 5)));
+        return entries;
+    }
+
+    // The offer's file list without its length prefix.
+    private static byte[] offerBody(List<TransferProtocol.OfferEntry> entries) throws IOException {
+        MemoryChannel channel = new MemoryChannel();
+        TransferProtocol protocol = new TransferProtocol(channel);
+        protocol.writeOffer(entries);
+        ByteBuffer stream = ByteBuffer.wrap(channel.toByteArray());
+        stream.position(stream.getInt() + 4);
+        int length = stream.getInt();
+        assertEquals(length, stream.remaining());
+        return toArray(stream);
+    }
+
+    private static Fingerprint fingerprint(long size, long lastModified, int seed) {
+        byte[] hash = new byte[Fingerprint.HASH_SIZE];
+        new Random(seed).nextBytes(hash);
+        return new Fingerprint(size, lastModified, hash);
+    }
+
+    private static ByteBuffer frame(byte frameType, byte[]... fields) {
+        int length = 1;
+        for (byte[] field : fields) {
+            length += field.length;
+        }
+        ByteBuffer frame = ByteBuffer.allocate(length);
+        frame.put(frameType);
+        for (byte[] field : fields) {
+            frame.put(field);
+        }
+        frame.flip();
+        return frame;
+    }
+
+    private static byte[] field(byte tag, byte type, byte[] value) {
+        return ByteBuffer.allocate(2 + value.length).put(tag).put(type).put(value).array();
+    }
+
+    private static byte[] longField(byte tag, long value) {
+        return field(tag, TYPE_LONG, ByteBuffer.allocate(8).putLong(value).array());
+    }
+
+    private static byte[] stringField(byte tag, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        return field(tag, TYPE_STRING, ByteBuffer.allocate(2 + bytes.length).putShort((short) bytes.length).put(bytes).array());
+    }
+
+    // Reads from one channel and writes to another, like one end of a socket.
+    private static class JoinedChannel implements java.nio.channels.ByteChannel {
+        private final MemoryChannel in;
+        private final MemoryChannel out;
+
+        JoinedChannel(MemoryChannel in, MemoryChannel out) {
+            this.in = in;
+            this.out = out;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            return in.read(dst);
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            return out.write(src);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.hfm.app;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The order picked items go out in, across sessions of the same batch.
+ */
+public class TransferQueueTest {
+
+    @Test
+    public void lanesAreServedInOrder() throws IOException {
+        List<String> paths = createItems();
+        TransferQueue queue = new TransferQueue(paths);
+        assertEquals(Arrays.asList(1, 2, 4, 0, 3), walk(paths, queue, new BitSet(), -1));
+    }
+
+    @Test
+    public void itemsHandedOutButNotConfirmedGoOutAgain() throws IOException {
+        List<String> paths = createItems();
+        TransferQueue queue = new TransferQueue(paths);
+        BitSet done = new BitSet();
+        queue.restart(done);
+        // The walker takes one item ahead of the file it returns, so 2 is out too when the link drops.
+        assertEquals(Arrays.asList(1), walk(paths, queue, done, 1));
+        done.set(1);
+
+        queue.restart(done);
+        assertEquals(Arrays.asList(2, 4, 0, 3), walk(paths, queue, done, -1));
+        assertEquals(Arrays.asList(1, 2, 4, 0, 3), toList(queue.order()));
+    }
+
+    @Test
+    public void unconfirmedItemsKeepTheirLanes() throws IOException {
+        List<String> paths = createItems();
+        TransferQueue queue = new TransferQueue(paths);
+        BitSet done = new BitSet();
+        queue.restart(done);
+        assertTrue(queue.prioritize(0));
+        assertEquals(Arrays.asList(0, 1, 2), walk(paths, queue, done, 3));
+        done.set(1);
+
+        // The bulk item the user moved forward still goes first, then the small ones.
+        assertTrue(queue.prioritize(3));
+        queue.restart(done);
+        assertEquals(Arrays.asList(1, 0, 3, 2, 4), toList(queue.order()));
+        assertEquals(Arrays.asList(0, 3, 2, 4), walk(paths, queue, done, -1));
+    }
+
+    // Picked items 0 and 3 are folders, so they go in the bulk lane; 1, 2 and 4 are small files.
+    private static List<String> createItems() throws IOException {
+        File dir = File.createTempFile("queue", "");
+        dir.delete();
+        dir.mkdirs();
+        dir.deleteOnExit();
+        List<String> paths = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            File item = new File(dir, "item" + i);
+            if (i == 0 || i == 3) {
+                item.mkdir();
+                File inner = new File(item, "inner");
+                inner.createNewFile();
+                inner.deleteOnExit();
+            } else {
+                item.createNewFile();
+            }
+            item.deleteOnExit();
+            paths.add(item.getPath());
+        }
+        return paths;
+    }
+
+    // Walks a session of the batch, stopping after the given number of files or at the end if -1,
+    // and returns the picked items the files came from.
+    private static List<Integer> walk(List<String> paths, TransferQueue queue, BitSet done, int files) {
+        FileTreeWalker walker = new FileTreeWalker(paths, (BitSet) done.clone(), queue);
+        List<Integer> roots = new ArrayList<>();
+        while (walker.hasNext() && files != 0) {
+            roots.add(walker.next().rootIndex);
+            files--;
+        }
+        return roots;
+    }
+
+    private static List<Integer> toList(int[] values) {
+        List<Integer> list = new ArrayList<>();
+        for (int value : values) {
+            list.add(value);
+        }
+        return list;
+    }
+}